@@ -0,0 +1,71 @@
+package meetup.beeno;
+
+/**
+ * Describes an aggregate function to compute over the results of a query.
+ * Aggregates are computed on the numeric values of mapped entity properties,
+ * decoded straight from the stored column values without creating entity
+ * instances.
+ *
+ * <pre>
+ *   AggregateResult res = service.query()
+ *       .where( Criteria.eq("itemType", "comment") )
+ *       .aggregate( Aggregate.count(), Aggregate.avg("score") );
+ * </pre>
+ *
+ * @author garyh
+ *
+ */
+public class Aggregate {
+	public static enum Function { SUM, MIN, MAX, AVG, COUNT };
+
+	private final Function function;
+	private final String property;
+
+	protected Aggregate(Function function, String property) {
+		this.function = function;
+		this.property = property;
+	}
+
+	public Function getFunction() { return this.function; }
+
+	/**
+	 * Returns the aggregated property name, or <code>null</code> for a count
+	 * of all rows.
+	 */
+	public String getProperty() { return this.property; }
+
+	public static Aggregate sum(String property) {
+		return new Aggregate(Function.SUM, property);
+	}
+
+	public static Aggregate min(String property) {
+		return new Aggregate(Function.MIN, property);
+	}
+
+	public static Aggregate max(String property) {
+		return new Aggregate(Function.MAX, property);
+	}
+
+	public static Aggregate avg(String property) {
+		return new Aggregate(Function.AVG, property);
+	}
+
+	/**
+	 * Counts the rows where the given property has a value
+	 */
+	public static Aggregate count(String property) {
+		return new Aggregate(Function.COUNT, property);
+	}
+
+	/**
+	 * Counts all matching rows
+	 */
+	public static Aggregate count() {
+		return new Aggregate(Function.COUNT, null);
+	}
+
+	public String toString() {
+		return String.format("%s(%s)", this.function.name().toLowerCase(),
+							 (this.property == null ? "*" : this.property));
+	}
+}
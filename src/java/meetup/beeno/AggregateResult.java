@@ -0,0 +1,145 @@
+package meetup.beeno;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * Holds the accumulated values for a set of {@link Aggregate} functions.
+ * Values are accumulated in primitive arrays, one slot per aggregate, so
+ * folding in a row does not allocate.
+ *
+ * @author garyh
+ *
+ */
+public class AggregateResult {
+	private final Aggregate[] aggregates;
+	private final double[] values;
+	private final long[] counts;
+
+	public AggregateResult(Aggregate[] aggregates) {
+		this.aggregates = aggregates;
+		this.values = new double[aggregates.length];
+		this.counts = new long[aggregates.length];
+		for (int i=0; i<aggregates.length; i++) {
+			if (aggregates[i].getFunction() == Aggregate.Function.MIN)
+				this.values[i] = Double.POSITIVE_INFINITY;
+			else if (aggregates[i].getFunction() == Aggregate.Function.MAX)
+				this.values[i] = Double.NEGATIVE_INFINITY;
+		}
+	}
+
+	/**
+	 * Folds in a value for the aggregate at the given position
+	 */
+	public void add(int idx, double val) {
+		this.counts[idx]++;
+		switch (this.aggregates[idx].getFunction()) {
+		case SUM:
+		case AVG:
+			this.values[idx] += val;
+			break;
+		case MIN:
+			if (val < this.values[idx])
+				this.values[idx] = val;
+			break;
+		case MAX:
+			if (val > this.values[idx])
+				this.values[idx] = val;
+			break;
+		default:
+			// counts only
+		}
+	}
+
+	/**
+	 * Counts a row for the aggregate at the given position, without a value
+	 */
+	public void increment(int idx) {
+		this.counts[idx]++;
+	}
+
+	/**
+	 * Combines the partial results from another set of rows into this one
+	 */
+	public void merge(AggregateResult other) {
+		for (int i=0; i<this.aggregates.length; i++) {
+			this.counts[i] += other.counts[i];
+			switch (this.aggregates[i].getFunction()) {
+			case SUM:
+			case AVG:
+				this.values[i] += other.values[i];
+				break;
+			case MIN:
+				this.values[i] = Math.min(this.values[i], other.values[i]);
+				break;
+			case MAX:
+				this.values[i] = Math.max(this.values[i], other.values[i]);
+				break;
+			default:
+				// counts only
+			}
+		}
+	}
+
+	public Aggregate[] getAggregates() { return this.aggregates; }
+
+	/**
+	 * Returns the computed value for the aggregate at the given position.
+	 * Returns NaN for the min, max or average of an empty set of values.
+	 */
+	public double get(int idx) {
+		switch (this.aggregates[idx].getFunction()) {
+		case COUNT:
+			return this.counts[idx];
+		case AVG:
+			return (this.counts[idx] > 0 ? this.values[idx] / this.counts[idx] : Double.NaN);
+		case MIN:
+		case MAX:
+			return (this.counts[idx] > 0 ? this.values[idx] : Double.NaN);
+		default:
+			return this.values[idx];
+		}
+	}
+
+	/**
+	 * Returns the computed value for the given aggregate instance
+	 */
+	public double get(Aggregate agg) {
+		for (int i=0; i<this.aggregates.length; i++) {
+			if (this.aggregates[i] == agg)
+				return get(i);
+		}
+
+		throw new IllegalArgumentException("Aggregate not included in result: "+agg);
+	}
+
+	/**
+	 * Returns the number of values folded in for the aggregate at the given position
+	 */
+	public long getCount(int idx) {
+		return this.counts[idx];
+	}
+
+	public void write(DataOutput out) throws IOException {
+		for (int i=0; i<this.aggregates.length; i++) {
+			out.writeDouble(this.values[i]);
+			out.writeLong(this.counts[i]);
+		}
+	}
+
+	public void readFields(DataInput in) throws IOException {
+		for (int i=0; i<this.aggregates.length; i++) {
+			this.values[i] = in.readDouble();
+			this.counts[i] = in.readLong();
+		}
+	}
+
+	public String toString() {
+		StringBuilder str = new StringBuilder("[").append(getClass().getSimpleName());
+		for (int i=0; i<this.aggregates.length; i++)
+			str.append(", ").append(this.aggregates[i]).append('=').append(get(i));
+
+		return str.append(']').toString();
+	}
+}
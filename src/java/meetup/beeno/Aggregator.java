@@ -0,0 +1,210 @@
+package meetup.beeno;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import meetup.beeno.mapping.EmbeddedField;
+import meetup.beeno.mapping.EntityInfo;
+import meetup.beeno.mapping.FieldMapping;
+import meetup.beeno.mapping.ListField;
+import meetup.beeno.mapping.MapField;
+import meetup.beeno.mapping.MappingException;
+import meetup.beeno.util.CompactCodec;
+import meetup.beeno.util.FieldReader;
+import meetup.beeno.util.HUtil;
+import meetup.beeno.util.PBUtil;
+
+import org.apache.hadoop.hbase.KeyValue;
+import org.apache.hadoop.hbase.client.Result;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.apache.log4j.Logger;
+
+/**
+ * Folds query result rows into {@link AggregateResult} accumulators.  Only
+ * the columns for the aggregated properties (and the group by property, if
+ * any) are examined, and values are decoded directly from the row's
+ * KeyValues.
+ *
+ * @author garyh
+ *
+ */
+public class Aggregator {
+	private static Logger log = Logger.getLogger(Aggregator.class);
+
+	private final Aggregate[] aggregates;
+	private final HUtil.HCol[] columns;
+	private final HUtil.HCol groupColumn;
+	/** column names within the packed cell, for packed properties */
+	private final byte[][] packedNames;
+	private final byte[] groupPackedName;
+
+	/** Reused decoders, as regions may be aggregated in parallel */
+	private final ThreadLocal<FieldReader> readers = new ThreadLocal<FieldReader>() {
+		protected FieldReader initialValue() {
+			return new FieldReader();
+		}
+	};
+
+	public Aggregator(EntityInfo info, String groupBy, Aggregate[] aggregates) throws MappingException {
+		this.aggregates = aggregates;
+		this.columns = new HUtil.HCol[aggregates.length];
+		this.packedNames = new byte[aggregates.length][];
+		for (int i=0; i<aggregates.length; i++) {
+			if (aggregates[i].getProperty() != null) {
+				this.columns[i] = getColumn(info, aggregates[i].getProperty());
+				this.packedNames[i] = getPackedName(info, aggregates[i].getProperty());
+			}
+		}
+		this.groupColumn = (groupBy != null ? getColumn(info, groupBy) : null);
+		this.groupPackedName = (groupBy != null ? getPackedName(info, groupBy) : null);
+	}
+
+	protected HUtil.HCol getColumn(EntityInfo info, String property) throws MappingException {
+		FieldMapping field = info.getPropertyMapping(property);
+		if (field == null)
+			throw new MappingException(info.getEntityClass(),
+					String.format("No mapping for aggregate property '%s'", property));
+		if (field instanceof MapField || field instanceof ListField)
+			throw new MappingException(info.getEntityClass(),
+					String.format("Cannot aggregate collection property '%s'", property));
+		if (field instanceof EmbeddedField)
+			throw new MappingException(info.getEntityClass(),
+					String.format("Cannot aggregate embedded property '%s'", property));
+
+		return HUtil.HCol.parse(info.getStoredColumn(field));
+	}
+
+	/**
+	 * Returns the property's column name within the packed cell, or 
+	 * <code>null</code> if the property is stored in its own column
+	 */
+	protected byte[] getPackedName(EntityInfo info, String property) {
+		FieldMapping field = info.getPropertyMapping(property);
+		return (info.isPacked(field) ? Bytes.toBytes(field.getColumn()) : null);
+	}
+
+	/**
+	 * Returns the stored value, extracted from the packed cell if needed
+	 */
+	private static byte[] getValue(KeyValue kv, byte[] packedName) {
+		if (packedName != null)
+			return CompactCodec.getPacked(kv.getValue(), packedName);
+
+		return kv.getValue();
+	}
+
+	public Aggregate[] getAggregates() { return this.aggregates; }
+
+	public boolean isGrouped() { return this.groupColumn != null; }
+
+	/**
+	 * Returns <code>true</code> if any of the aggregates is a count of all rows
+	 */
+	public boolean hasRowCount() {
+		for (Aggregate agg : this.aggregates) {
+			if (agg.getProperty() == null)
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Returns the columns ("family:column") needed to compute the aggregates
+	 */
+	public Set<String> getColumns() {
+		Set<String> names = new HashSet<String>();
+		for (HUtil.HCol col : this.columns) {
+			if (col != null)
+				names.add(col.toString());
+		}
+		if (this.groupColumn != null)
+			names.add(this.groupColumn.toString());
+
+		return names;
+	}
+
+	public AggregateResult newResult() {
+		return new AggregateResult(this.aggregates);
+	}
+
+	/**
+	 * Adds the row's values into the accumulated results
+	 */
+	public void add(Result row, AggregateResult acc) {
+		for (int i=0; i<this.aggregates.length; i++) {
+			if (this.columns[i] == null)
+				acc.increment(i);
+		}
+
+		List<KeyValue> kvs = row.list();
+		if (kvs == null)
+			return;
+
+		for (KeyValue kv : kvs) {
+			for (int i=0; i<this.columns.length; i++) {
+				if (this.columns[i] != null && kv.matchingColumn(this.columns[i].family(), this.columns[i].column())) {
+					byte[] val = getValue(kv, this.packedNames[i]);
+					if (this.aggregates[i].getFunction() == Aggregate.Function.COUNT) {
+						if (val != null && val.length > 0)
+							acc.increment(i);
+					}
+					else if (val != null) {
+						addValue(acc, i, val);
+					}
+				}
+			}
+		}
+	}
+
+	protected void addValue(AggregateResult acc, int idx, byte[] val) {
+		// compact values are read directly, without decoding a message
+		if (CompactCodec.isInteger(val)) {
+			acc.add(idx, CompactCodec.getLong(val));
+			return;
+		}
+		else if (CompactCodec.isFloat(val)) {
+			acc.add(idx, CompactCodec.getDouble(val));
+			return;
+		}
+
+		FieldReader field = readers.get();
+		if (!field.read(val))
+			return;
+
+		switch (field.getType()) {
+		case INTEGER:
+			acc.add(idx, field.getInteger());
+			break;
+		case FLOAT:
+			acc.add(idx, field.getFloat());
+			break;
+		default:
+			if (log.isDebugEnabled())
+				log.debug(String.format("Skipping non-numeric value for aggregate %s", this.aggregates[idx]));
+		}
+	}
+
+	/**
+	 * Adds the row's values into the accumulated results for the row's group
+	 */
+	public void add(Result row, GroupAggregator groups) {
+		add(row, groups.getResult(getGroupKey(row)));
+	}
+
+	/**
+	 * Returns the decoded value of the group by property for the row.  Binary
+	 * values are returned in their printable string form, so they can be
+	 * compared as map keys.
+	 */
+	public Object getGroupKey(Result row) {
+		byte[] val = row.getValue(this.groupColumn.family(), this.groupColumn.column());
+		if (val != null && this.groupPackedName != null)
+			val = CompactCodec.getPacked(val, this.groupPackedName);
+		Object key = PBUtil.toValue(val);
+		if (key instanceof byte[])
+			key = Bytes.toStringBinary((byte[])key);
+
+		return key;
+	}
+}
@@ -5,15 +5,22 @@ import java.io.IOException;
 import java.io.ObjectInput;
 import java.io.ObjectOutput;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 
 import meetup.beeno.filter.ColumnMatchFilter;
+import meetup.beeno.filter.PackedColumnFilter;
+import meetup.beeno.filter.RowKeyFilter;
 import meetup.beeno.filter.WhileMatchFilter;
+import meetup.beeno.mapping.EmbeddedField;
 import meetup.beeno.mapping.EntityInfo;
 import meetup.beeno.mapping.FieldMapping;
 import meetup.beeno.mapping.MappingException;
+import meetup.beeno.util.HUtil;
 import meetup.beeno.util.IOUtil;
-import meetup.beeno.util.PBUtil;
 
 import org.apache.hadoop.hbase.filter.Filter;
 import org.apache.hadoop.hbase.filter.FilterList;
@@ -46,6 +53,18 @@ public class Criteria implements Externalizable {
 	public List<Expression> getExpressions() {
 		return this.expressions;
 	}
+
+	/**
+	 * Returns the columns ("family:column") read by the filters for all
+	 * expressions
+	 */
+	public Set<String> getColumns(EntityInfo info) throws HBaseException {
+		Set<String> columns = new HashSet<String>();
+		for (Expression e : this.expressions)
+			e.addColumns(info, columns);
+
+		return columns;
+	}
 	
 	@Override
 	public void readExternal( ObjectInput in ) throws IOException,
@@ -105,11 +124,57 @@ public class Criteria implements Externalizable {
 		return new PropertyComparison(prop, val, ColumnMatchFilter.CompareOp.NOT_EQUAL);
 	}
 
+	/**
+	 * Range comparisons.  These are only supported on the {@link HRowKey} 
+	 * property, where they compare the row key bytes, in the order HBase 
+	 * stores rows, and are used to bound the table scan.  Stored property 
+	 * values are not encoded in sort order, so queries with a range 
+	 * comparison on any other property throw a {@link QueryException}.
+	 */
+	public static Expression lt(String prop, Object val) {
+		return new PropertyComparison(prop, val, ColumnMatchFilter.CompareOp.LESS);
+	}
+
+	public static Expression le(String prop, Object val) {
+		return new PropertyComparison(prop, val, ColumnMatchFilter.CompareOp.LESS_OR_EQUAL);
+	}
+
+	public static Expression gt(String prop, Object val) {
+		return new PropertyComparison(prop, val, ColumnMatchFilter.CompareOp.GREATER);
+	}
+
+	public static Expression ge(String prop, Object val) {
+		return new PropertyComparison(prop, val, ColumnMatchFilter.CompareOp.GREATER_OR_EQUAL);
+	}
+
+	/**
+	 * Matches any of the given values.  When used as the indexed expression
+	 * in {@link Query#using(Expression)}, one index scan is opened for each
+	 * value and the scans are merged in index key order, so a newest first
+	 * date index returns the newest matches across all values.
+	 */
+	public static Expression in(String prop, Object... vals) {
+		return new InExpression(prop, Arrays.asList(vals));
+	}
+
+	public static Expression in(String prop, Collection<?> vals) {
+		return new InExpression(prop, vals);
+	}
+
 	public static abstract class Expression implements Externalizable {		
 		public Expression() {
 		}
 		
 		public abstract Filter getFilter(EntityInfo info) throws HBaseException;
+
+		/**
+		 * Adds the columns ("family:column") that the expression's filter
+		 * needs to read, so scans restricted to specific columns still
+		 * return them.
+		 */
+		public void addColumns(EntityInfo info, Set<String> columns) throws HBaseException {
+			// nothing by default
+		}
 		
 		public String toString() {
 			return "["+this.getClass().getSimpleName()+"]";
@@ -151,6 +216,32 @@ public class Criteria implements Externalizable {
 		}
 	}
 	
+	/**
+	 * Returns a filter comparing the stored value of the field, reading it
+	 * from the packed cell for packed fields
+	 */
+	protected static Filter getColumnFilter(EntityInfo entityInfo, FieldMapping mapping, 
+											ColumnMatchFilter.CompareOp op, Object value) {
+		if (entityInfo.isPacked(mapping)) {
+			byte[] encoded = entityInfo.encodePacked(mapping, value);
+			return new PackedColumnFilter(Bytes.toBytes(entityInfo.getStoredColumn(mapping)),
+										  Bytes.toBytes(mapping.getColumn()),
+										  op,
+										  (encoded != null ? encoded : new byte[0]));
+		}
+		
+		byte[] encoded = null;
+		if (mapping instanceof EmbeddedField)
+			encoded = ((EmbeddedField)mapping).getCodec().encode(value);
+		else
+			encoded = entityInfo.encodeValue(mapping.getBeanProperty(), value);
+		
+		return new ColumnMatchFilter(Bytes.toBytes(mapping.getFieldName()), 
+									 op,
+									 encoded,
+									 true);
+	}
+	
 	public static class PropertyComparison extends PropertyExpression {
 		
 		private ColumnMatchFilter.CompareOp op = null;
@@ -165,6 +256,13 @@ public class Criteria implements Externalizable {
 		}
 		
 		public Filter getFilter(EntityInfo entityInfo) throws HBaseException {
+			if (entityInfo.isKeyProperty(this.property))
+				return new RowKeyFilter(EntityIndexer.INDEX_KEY_FIELD, this.op, HUtil.convertToBytes(this.value));
+			
+			if (isRange())
+				throw new QueryException(String.format("Range comparison %s on property '%s' is only supported on the row key", 
+													   this.op, this.property));
+			
 			FieldMapping mapping = entityInfo.getPropertyMapping(this.property);
 			if (mapping == null) {
 				throw new MappingException( entityInfo.getEntityClass(),
@@ -176,14 +274,79 @@ public class Criteria implements Externalizable {
 				log.debug(String.format("PropertyComparison(%s, %s, %s): Creating ColumnRowFilter, column=%s", 
 						  this.property, this.value, this.op.toString(), mapping.getFieldName()));
 			}
-			return new ColumnMatchFilter(Bytes.toBytes(mapping.getFieldName()), 
-										 this.op,
-										 PBUtil.toBytes(this.value),
-										 true);
+			return getColumnFilter(entityInfo, mapping, this.op, this.value);
+		}
+
+		public void addColumns(EntityInfo entityInfo, Set<String> columns) throws HBaseException {
+			FieldMapping mapping = entityInfo.getPropertyMapping(this.property);
+			if (mapping != null)
+				columns.add(entityInfo.getStoredColumn(mapping));
+		}
+
+		public ColumnMatchFilter.CompareOp getOp() { return this.op; }
+
+		/**
+		 * Returns <code>true</code> for the less than and greater than comparisons
+		 */
+		public boolean isRange() {
+			return (this.op != ColumnMatchFilter.CompareOp.EQUAL && this.op != ColumnMatchFilter.CompareOp.NOT_EQUAL);
 		}
 		
 		public String toString() {
-			return String.format("[%s: property=%s, value=%s]", this.getClass().getSimpleName(), this.property, this.value.toString());
+			return String.format("[%s: property=%s, op=%s, value=%s]", this.getClass().getSimpleName(), this.property, this.op, this.value);
+		}
+	}
+	
+	/**
+	 * Equality comparison against a set of values
+	 */
+	public static class InExpression extends PropertyExpression {
+		
+		public InExpression() {
+			// for Externalizable
+		}
+		
+		public InExpression(String prop, Collection<?> vals) {
+			super(prop, new ArrayList<Object>(vals));
+		}
+		
+		public List<Object> getValues() { return (List<Object>)this.value; }
+		
+		public Filter getFilter(EntityInfo entityInfo) throws HBaseException {
+			FilterList anyMatch = new FilterList(FilterList.Operator.MUST_PASS_ONE, new ArrayList<Filter>());
+			if (entityInfo.isKeyProperty(this.property)) {
+				for (Object val : getValues())
+					anyMatch.addFilter(new RowKeyFilter(EntityIndexer.INDEX_KEY_FIELD, 
+														ColumnMatchFilter.CompareOp.EQUAL,
+														HUtil.convertToBytes(val)));
+				return anyMatch;
+			}
+			
+			FieldMapping mapping = entityInfo.getPropertyMapping(this.property);
+			if (mapping == null) {
+				throw new MappingException( entityInfo.getEntityClass(),
+											String.format("No mapping for criteria!  class=%s, property=%s", 
+													entityInfo.getEntityClass().getName(), this.property) );
+			}
+			
+			for (Object val : getValues()) {
+				anyMatch.addFilter(getColumnFilter(entityInfo, mapping, ColumnMatchFilter.CompareOp.EQUAL, val));
+			}
+			
+			return anyMatch;
+		}
+
+		public void addColumns(EntityInfo entityInfo, Set<String> columns) throws HBaseException {
+			FieldMapping mapping = entityInfo.getPropertyMapping(this.property);
+			if (mapping != null)
+				columns.add(entityInfo.getStoredColumn(mapping));
+		}
+		
+		/**
+		 * Returns an equality comparison for one of the values
+		 */
+		public PropertyComparison getComparison(Object val) {
+			return new PropertyComparison(this.property, val, ColumnMatchFilter.CompareOp.EQUAL);
 		}
 	}
 	
@@ -208,6 +371,10 @@ public class Criteria implements Externalizable {
 		public Expression getRequired() {
 			return this.required;
 		}
+
+		public void addColumns(EntityInfo entityInfo, Set<String> columns) throws HBaseException {
+			this.required.addColumns(entityInfo, columns);
+		}
 		
 		@Override
 		public void readExternal( ObjectInput in ) throws IOException,
@@ -250,6 +417,11 @@ public class Criteria implements Externalizable {
 		}
 		
 		public void add(Expression e) { this.subconditions.add(e); }
+
+		public void addColumns(EntityInfo entityInfo, Set<String> columns) throws HBaseException {
+			for (Expression expr : this.subconditions)
+				expr.addColumns(entityInfo, columns);
+		}
 		
 		@Override
 		public void readExternal( ObjectInput in ) throws IOException,
@@ -0,0 +1,82 @@
+package meetup.beeno;
+
+import java.util.TreeSet;
+
+import org.apache.hadoop.hbase.util.MurmurHash;
+
+/**
+ * Estimates the number of distinct values in a stream, using the k minimum
+ * values of the value hashes.  If fewer than k distinct hashes are seen,
+ * the count is exact.  Counters for separate parts of the stream (such as
+ * table regions) can be merged.
+ *
+ * @author garyh
+ *
+ */
+public class DistinctCounter {
+	public static final int DEFAULT_SIZE = 1024;
+
+	private final int size;
+	private final TreeSet<Long> minHashes = new TreeSet<Long>();
+
+	public DistinctCounter() {
+		this(DEFAULT_SIZE);
+	}
+
+	public DistinctCounter(int size) {
+		this.size = size;
+	}
+
+	public void add(byte[] value) {
+		add( MurmurHash.getInstance().hash(value, value.length, 0) & 0xffffffffL );
+	}
+
+	protected void add(long hash) {
+		if (this.minHashes.size() < this.size) {
+			this.minHashes.add(hash);
+		}
+		else if (hash < this.minHashes.last() && this.minHashes.add(hash)) {
+			this.minHashes.pollLast();
+		}
+	}
+
+	public void merge(DistinctCounter other) {
+		for (Long hash : other.minHashes)
+			add(hash);
+	}
+
+	/**
+	 * Returns the retained value hashes, for storing the counter
+	 */
+	public long[] getHashes() {
+		long[] hashes = new long[this.minHashes.size()];
+		int i = 0;
+		for (Long hash : this.minHashes)
+			hashes[i++] = hash;
+
+		return hashes;
+	}
+
+	/**
+	 * Recreates a counter from stored hashes
+	 */
+	public static DistinctCounter fromHashes(long[] hashes) {
+		DistinctCounter counter = new DistinctCounter();
+		for (long hash : hashes)
+			counter.add(hash);
+
+		return counter;
+	}
+
+	/**
+	 * Returns the estimated number of distinct values added
+	 */
+	public long estimate() {
+		if (this.minHashes.size() < this.size)
+			return this.minHashes.size();
+
+		// the kth smallest of n uniform hashes falls near k/n of the hash range
+		double kth = (this.minHashes.last() + 1) / (double)(1L << 32);
+		return Math.round((this.size - 1) / kth);
+	}
+}
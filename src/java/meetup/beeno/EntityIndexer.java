@@ -1,16 +1,22 @@
 package meetup.beeno;
 
+import java.io.ByteArrayOutputStream;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
 
 import meetup.beeno.mapping.IndexMapping;
 import meetup.beeno.util.HUtil;
 import meetup.beeno.util.PBUtil;
 
 import org.apache.hadoop.hbase.KeyValue;
+import org.apache.hadoop.hbase.client.Delete;
 import org.apache.hadoop.hbase.client.Put;
+import org.apache.hadoop.hbase.client.Result;
 import org.apache.hadoop.hbase.util.Bytes;
+import org.apache.hadoop.hbase.util.MurmurHash;
 import org.apache.log4j.Logger;
 
 /**
@@ -24,8 +30,16 @@ import org.apache.log4j.Logger;
  * row, along with the primary property value and the date column (if
  * present), and can be used for filtering in scanning the index.
  * 
- * TODO: Currently this implementation does not handle removing
- * secondary index rows when a value is removed!!!
+ * Composite indexes form the key from several column values, in order,
+ * using the encoding from {@link #createCompositeValue(List)}.
+ * 
+ * For collection properties mapped as multi-valued indexes, one index 
+ * row is generated for each distinct element in the collection.
+ * 
+ * When an entity row is deleted, or the primary or date value changes,
+ * {@link #getIndexDeletes(Result, Put)} generates the deletes for the 
+ * now stale index rows, based on the values currently stored for the 
+ * entity.
  * 
  * @author garyh
  *
@@ -33,7 +47,8 @@ import org.apache.log4j.Logger;
 public class EntityIndexer {
 	static final byte[] INDEX_FAMILY = Bytes.toBytes("__idx__");
 	static final byte[] INDEX_KEY_COLUMN = Bytes.toBytes("row");
-	private static final byte[] ROW_KEY_SEP = Bytes.toBytes("-");
+	static final byte[] INDEX_KEY_FIELD = Bytes.toBytes("__idx__:row");
+	static final byte[] ROW_KEY_SEP = Bytes.toBytes("-");
 	
 	private static Logger log = Logger.getLogger(EntityIndexer.class);
 	
@@ -43,6 +58,10 @@ public class EntityIndexer {
 	private boolean invertDate = false;
 	private List<HUtil.HCol> extraFields;
 	private IndexKeyFactory keyFactory = new DefaultKeyFactory();
+	private boolean multiValue = false;
+	private byte[] elementPrefix = null;
+	private List<HUtil.HCol> keyFields;
+	private int saltBuckets = 0;
 
 	public EntityIndexer(IndexMapping mapping) {
 		this.indexTable = mapping.getTableName();
@@ -51,6 +70,11 @@ public class EntityIndexer {
 		this.dateField = mapping.getDateField();
 		this.invertDate = mapping.isDateInverted();
 		this.extraFields = mapping.getExtraFields();
+		this.multiValue = mapping.isMultiValue();
+		this.keyFields = mapping.getKeyFields();
+		this.saltBuckets = mapping.getSaltBuckets();
+		if (this.multiValue)
+			this.elementPrefix = Bytes.toBytes(mapping.getPrimaryField().getColumn()+"_");
 		
 		if (mapping.getKeyFactory() != null) {
 			try {
@@ -63,62 +87,388 @@ public class EntityIndexer {
 	}
 	
 	public String getIndexTable() { return this.indexTable; }
+
+	/**
+	 * Returns true if index keys are generated by one of the built-in key
+	 * factories, meaning all keys for a value begin with the key generated 
+	 * for the value alone, followed by a '-' separator.
+	 */
+	public boolean hasDefaultKeyFormat() {
+		return this.keyFactory instanceof DefaultKeyFactory;
+	}
+	
+	/**
+	 * Returns true if this index maps a collection property, with one index
+	 * row generated for each element.
+	 */
+	public boolean isMultiValue() {
+		return this.multiValue;
+	}
+
+	/**
+	 * Returns true if the index key is formed from several columns 
+	 * (the primary column followed by the key columns).
+	 */
+	public boolean isComposite() {
+		return !this.keyFields.isEmpty();
+	}
+	
+	/**
+	 * Returns the columns following the primary column in a composite index key
+	 */
+	public List<HUtil.HCol> getKeyFields() {
+		return this.keyFields;
+	}
 	
 	/**
 	 * Returns a set of updates for this index table, based on the 
-	 * update to the underlying table.
+	 * update to the underlying table.  For multi-valued indexes, one
+	 * update is returned for each distinct element value.
 	 * 
 	 * @param entityUpdate
 	 * @return
 	 */
 	public List<Put> getIndexUpdates(Put entityUpdate) {
-		List<Put> up = new ArrayList<Put>(1);
+		Map<byte[],List<KeyValue>> familyMap = entityUpdate.getFamilyMap();
+		List<byte[]> primaryVals = (isComposite() ? 
+									getCompositeValues(familyMap, null) :
+									getPrimaryValues(familyMap.get(this.primaryField.family())));
+		if (primaryVals.isEmpty()) {
+			// no update for primary value, skip
+			log.debug("No primary value for index "+getIndexTable());
+			return new ArrayList<Put>(0);
+		}
 
-		/* TODO: handle many index records to one base record.
-		 * For example, if the primary property value contains 
-		 * a collection type, a new index record could be generated
-		 * for each value in the collection.
-		 */
-		Put valUpdate = getUpdateForValue(entityUpdate);
-		if (valUpdate != null)
-			up.add(valUpdate);
+		List<Put> up = new ArrayList<Put>(primaryVals.size());
+		Long date = getDateValue(familyMap);
+		for (byte[] val : primaryVals)
+			up.add( getUpdateForValue(entityUpdate, val, date) );
 		
 		return up;
 	}
 	
-	protected Put getUpdateForValue(Put entityUpdate) {
-		Put put = null;
+	/**
+	 * Returns the columns used to generate the index key for an entity row
+	 * (the primary value and date columns).  For multi-valued indexes, the
+	 * element columns cannot be named individually, so the whole primary
+	 * column family must be read instead of the primary column.
+	 */
+	public List<HUtil.HCol> getKeyColumns() {
+		List<HUtil.HCol> cols = new ArrayList<HUtil.HCol>(2 + this.keyFields.size());
+		cols.add(this.primaryField);
+		cols.addAll(this.keyFields);
+		if (this.dateField != null)
+			cols.add(this.dateField);
 		
-		// generate the index row key
-		Map<byte[],List<KeyValue>> familyMap = entityUpdate.getFamilyMap();
-		// store all the indexed values
-		byte[] primaryVal = getValue(this.primaryField.family(), this.primaryField.column(), familyMap);
-		if (primaryVal != null && primaryVal.length > 0) {
+		return cols;
+	}
+	
+	/**
+	 * Returns all of the entity columns stored in the index rows (the key 
+	 * columns plus any extra columns).
+	 */
+	public List<HUtil.HCol> getIndexedColumns() {
+		List<HUtil.HCol> cols = getKeyColumns();
+		cols.addAll(this.extraFields);
+		
+		return cols;
+	}
+	
+	/**
+	 * Returns deletes for the index rows pointing to the currently stored 
+	 * entity row, where the row will no longer be indexed under the same key.
+	 * 
+	 * @param current the currently stored values for the entity row, including
+	 * 		at least the columns from {@link #getKeyColumns()}
+	 * @param entityUpdate the pending update to the entity row, or 
+	 * 		<code>null</code> if the row is being deleted
+	 * @return the index row deletes, empty if the index rows are still current
+	 */
+	public List<Delete> getIndexDeletes(Result current, Put entityUpdate) {
+		List<Delete> deletes = new ArrayList<Delete>(1);
+		if (current == null || current.isEmpty())
+			return deletes;
+		
+		List<byte[]> oldKeys = getIndexKeys(current);
+		if (oldKeys.isEmpty())
+			return deletes;
+		
+		Set<byte[]> newKeys = new TreeSet<byte[]>(Bytes.BYTES_COMPARATOR);
+		if (entityUpdate != null) {
+			Map<byte[],List<KeyValue>> familyMap = entityUpdate.getFamilyMap();
+			List<KeyValue> primaryKvs = familyMap.get(this.primaryField.family());
+			List<byte[]> primaryVals = null;
+			if (isComposite()) {
+				primaryVals = getCompositeValues(familyMap, current);
+			}
+			else if (hasPrimaryColumn(primaryKvs)) {
+				primaryVals = getPrimaryValues(primaryKvs);
+			}
+			else {
+				// primary value not updated, so only the date can change
+				primaryVals = getPrimaryValues(current.list());
+			}
+			
 			Long date = getDateValue(familyMap);
-			put = new Put( createIndexKey(primaryVal, date, entityUpdate.getRow()) );
+			if (date == null && this.dateField != null && 
+					getValue(this.dateField.family(), this.dateField.column(), familyMap) == null)
+				date = getDateValue(current);
 			
-			// sync with base timestamp
-			put.setTimeStamp( entityUpdate.getTimeStamp() );
-			// store all specified values (when present)
-			put.add(this.primaryField.family(), this.primaryField.column(), primaryVal);
+			for (byte[] val : primaryVals)
+				newKeys.add( createIndexKey(val, date, entityUpdate.getRow()) );
+		}
+		
+		for (byte[] oldKey : oldKeys) {
+			if (!newKeys.contains(oldKey)) {
+				if (log.isDebugEnabled())
+					log.debug(String.format("Removing stale index row %s from %s", Bytes.toStringBinary(oldKey), getIndexTable()));
+				deletes.add(new Delete(oldKey));
+			}
+		}
+		
+		return deletes;
+	}
+	
+	/**
+	 * Returns the index keys for the stored values of an entity row, empty 
+	 * if the row has no primary value.
+	 */
+	public List<byte[]> getIndexKeys(Result row) {
+		List<byte[]> primaryVals = (isComposite() ? 
+									getCompositeValues(null, row) : 
+									getPrimaryValues(row.list()));
+		List<byte[]> keys = new ArrayList<byte[]>(primaryVals.size());
+		if (!primaryVals.isEmpty()) {
+			Long date = getDateValue(row);
+			for (byte[] val : primaryVals)
+				keys.add( createIndexKey(val, date, row.getRow()) );
+		}
+		
+		return keys;
+	}
+	
+	/**
+	 * Returns true if the stored values for the entity row generate the 
+	 * given index key.
+	 */
+	public boolean generatesKey(Result row, byte[] indexKey) {
+		for (byte[] key : getIndexKeys(row)) {
+			if (Bytes.equals(key, indexKey))
+				return true;
+		}
+		
+		return false;
+	}
+	
+	/**
+	 * Returns true if the values include the primary column, or for a 
+	 * multi-valued index, any of the element columns
+	 */
+	protected boolean hasPrimaryColumn(List<KeyValue> kvs) {
+		if (kvs != null) {
+			for (KeyValue kv : kvs) {
+				if (kv.matchingColumn(this.primaryField.family(), this.primaryField.column()) ||
+					(this.multiValue && isElementColumn(kv)))
+					return true;
+			}
+		}
+		
+		return false;
+	}
+	
+	/**
+	 * Returns the distinct non-empty primary values from the given values.
+	 * For single valued indexes this is just the primary column value.  For
+	 * multi-valued indexes, this is the value of each element column 
+	 * ([column name]_[index number]).
+	 */
+	protected List<byte[]> getPrimaryValues(List<KeyValue> kvs) {
+		List<byte[]> vals = new ArrayList<byte[]>(1);
+		if (kvs == null)
+			return vals;
+		
+		Set<byte[]> seen = (this.multiValue ? new TreeSet<byte[]>(Bytes.BYTES_COMPARATOR) : null);
+		for (KeyValue kv : kvs) {
+			if (kv.getValueLength() == 0)
+				continue;
+			
+			if (this.multiValue) {
+				if (isElementColumn(kv)) {
+					byte[] val = kv.getValue();
+					if (seen.add(val))
+						vals.add(val);
+				}
+			}
+			else if (kv.matchingColumn(this.primaryField.family(), this.primaryField.column())) {
+				vals.add(kv.getValue());
+				break;
+			}
+		}
+		
+		return vals;
+	}
+	
+	/**
+	 * Returns the encoded composite key value for a composite index, taking
+	 * each column value from the update if present, or otherwise from the 
+	 * stored row.  Returns an empty list if the primary value is missing.
+	 * 
+	 * @param familyMap updated values, may be <code>null</code>
+	 * @param current stored values, may be <code>null</code>
+	 */
+	protected List<byte[]> getCompositeValues(Map<byte[],List<KeyValue>> familyMap, Result current) {
+		List<byte[]> vals = new ArrayList<byte[]>(1);
+		List<byte[]> components = new ArrayList<byte[]>(1 + this.keyFields.size());
+		components.add(getValue(this.primaryField, familyMap, current));
+		if (components.get(0) == null || components.get(0).length == 0)
+			return vals;
+		
+		for (HUtil.HCol col : this.keyFields)
+			components.add(getValue(col, familyMap, current));
+		
+		vals.add(createCompositeValue(components));
+		return vals;
+	}
+	
+	private byte[] getValue(HUtil.HCol col, Map<byte[],List<KeyValue>> familyMap, Result current) {
+		byte[] val = null;
+		if (familyMap != null)
+			val = getValue(col.family(), col.column(), familyMap);
+		if (val == null && current != null)
+			val = current.getValue(col.family(), col.column());
+		
+		return val;
+	}
+	
+	/**
+	 * Encodes the (protobuf encoded) column values as a composite key value.
+	 * Each value is encoded so that byte ordering of the keys follows the 
+	 * ordering of the values, and terminated so that keys sharing a prefix of 
+	 * values share a common byte prefix.
+	 * <ul>
+	 *   <li>integer values use the same fixed width ordered form as single 
+	 *       column indexes</li>
+	 *   <li>text values use their UTF-8 bytes</li>
+	 *   <li>other values use their protobuf encoding</li>
+	 * </ul>
+	 * Zero bytes within the value are escaped as 0x00 0xFF, and each value
+	 * is followed by 0x00 0x01.  Missing values are written as 0x00 0x00, 
+	 * sorting before all present values.
+	 */
+	public static byte[] createCompositeValue(List<byte[]> pbVals) {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		for (byte[] pbVal : pbVals) {
+			HDataTypes.HField field = PBUtil.readMessage(pbVal);
+			if (field == null) {
+				out.write(0);
+				out.write(0);
+				continue;
+			}
 			
-			if (this.dateField != null && date != null)
-				put.add(this.dateField.family(), this.dateField.column(), PBUtil.toBytes(date));
+			byte[] raw = null;
+			switch (field.getType()) {
+			case INTEGER:
+				raw = HUtil.toOrderedBytes(field.getInteger());
+				break;
+			case DATETIME:
+				raw = HUtil.toOrderedBytes(field.getDateTime().getTimestamp());
+				break;
+			case TEXT:
+				raw = Bytes.toBytes(field.getText());
+				break;
+			default:
+				raw = pbVal;
+			}
 			
-			// add any extra fields
-			for (HUtil.HCol col : this.extraFields) {
-				byte[] val = getValue(col.family(), col.column(), familyMap);
+			for (byte b : raw) {
+				out.write(b);
+				if (b == 0)
+					out.write(0xFF);
+			}
+			out.write(0);
+			out.write(1);
+		}
+		
+		return out.toByteArray();
+	}
+	
+	/**
+	 * Returns the smallest key greater than all keys beginning with the given
+	 * prefix, or <code>null</code> if there is none.
+	 */
+	public static byte[] nextPrefix(byte[] prefix) {
+		for (int i=prefix.length-1; i>=0; i--) {
+			if (prefix[i] != (byte)0xFF) {
+				byte[] next = new byte[i+1];
+				System.arraycopy(prefix, 0, next, 0, i+1);
+				next[i]++;
+				return next;
+			}
+		}
+		
+		return null;
+	}
+	
+	/**
+	 * Returns true if the KeyValue is an element column for the multi-valued
+	 * primary property
+	 */
+	protected boolean isElementColumn(KeyValue kv) {
+		if (!kv.matchingFamily(this.primaryField.family()))
+			return false;
+		
+		byte[] qual = kv.getQualifier();
+		int prefixLen = this.elementPrefix.length;
+		if (qual.length <= prefixLen || 
+			Bytes.compareTo(qual, 0, prefixLen, this.elementPrefix, 0, prefixLen) != 0)
+			return false;
+		
+		for (int i=prefixLen; i<qual.length; i++) {
+			if (qual[i] < '0' || qual[i] > '9')
+				return false;
+		}
+		
+		return true;
+	}
+	
+	protected Put getUpdateForValue(Put entityUpdate, byte[] primaryVal, Long date) {
+		Map<byte[],List<KeyValue>> familyMap = entityUpdate.getFamilyMap();
+		Put put = new Put( createIndexKey(primaryVal, date, entityUpdate.getRow()) );
+		
+		// sync with base timestamp
+		put.setTimeStamp( entityUpdate.getTimeStamp() );
+		// store all specified values (when present).  Elements of multi-valued
+		// properties are stored under the property column, for filtering
+		if (isComposite()) {
+			// store the actual key column values, rather than the composite value
+			byte[] val = getValue(this.primaryField.family(), this.primaryField.column(), familyMap);
+			if (val != null)
+				put.add(this.primaryField.family(), this.primaryField.column(), val);
+			for (HUtil.HCol col : this.keyFields) {
+				val = getValue(col.family(), col.column(), familyMap);
 				if (val != null)
 					put.add(col.family(), col.column(), val);
 			}
-			
-			// store the orig record key
-			put.add(INDEX_FAMILY, INDEX_KEY_COLUMN, entityUpdate.getRow());
 		}
 		else {
-			// no update for primary value, skip
-			log.debug("No primary value for index "+getIndexTable());
+			put.add(this.primaryField.family(), this.primaryField.column(), primaryVal);
 		}
+		
+		// the stored date, in the entity's format, so filters compare it as in the entity row
+		if (this.dateField != null && date != null)
+			put.add(this.dateField.family(), this.dateField.column(), 
+					getValue(this.dateField.family(), this.dateField.column(), familyMap));
+		
+		// add any extra fields
+		for (HUtil.HCol col : this.extraFields) {
+			byte[] val = getValue(col.family(), col.column(), familyMap);
+			if (val != null)
+				put.add(col.family(), col.column(), val);
+		}
+		
+		// store the orig record key
+		put.add(INDEX_FAMILY, INDEX_KEY_COLUMN, entityUpdate.getRow());
+
 		return put;
 	}
 	
@@ -137,6 +487,19 @@ public class EntityIndexer {
 		return dateVal;
 	}
 	
+	protected Long getDateValue(Result row) {
+		Long dateVal = null;
+		
+		if (this.dateField != null) {
+			HDataTypes.HField pbDate = PBUtil.readMessage(row.getValue(this.dateField.family(), 
+																	   this.dateField.column()));
+			if (pbDate != null && pbDate.getType() == HDataTypes.HField.Type.INTEGER)
+				dateVal = pbDate.getInteger();
+		}
+		
+		return dateVal;
+	}
+	
 	protected byte[] getValue(byte[] family, byte[] col, 
 							  Map<byte[],List<KeyValue>> familyMap) {
 		byte[] val = null;
@@ -153,10 +516,42 @@ public class EntityIndexer {
 	}
 	
 	/** 
-	 * TODO: split this out into a separate interface for different
-	 * implementations
+	 * Creates the index key for the value, date and entity row key.  If 
+	 * the index is salted and a row key is given, the key is prefixed with
+	 * the row key's salt bucket.
 	 */
 	public byte[] createIndexKey(byte[] primaryVal, Long date, byte[] origRow) {
+		byte[] key = createUnsaltedKey(primaryVal, date, origRow);
+		if (isSalted() && origRow != null && origRow.length > 0)
+			key = Bytes.add(new byte[]{ getBucket(origRow, this.saltBuckets) }, key);
+		
+		return key;
+	}
+	
+	/**
+	 * Returns true if index keys are prefixed with a salt bucket byte
+	 */
+	public boolean isSalted() { return this.saltBuckets > 0; }
+	
+	public int getSaltBuckets() { return this.saltBuckets; }
+	
+	/**
+	 * Returns the salt bucket for an entity row key
+	 */
+	public static byte getBucket(byte[] rowKey, int buckets) {
+		int hash = MurmurHash.getInstance().hash(rowKey, rowKey.length, 0);
+		return (byte)((hash & Integer.MAX_VALUE) % buckets);
+	}
+	
+	/**
+	 * Creates the index key without any salt prefix.  Keys generated without
+	 * a row key (for use as scan bounds) are never salted.
+	 */
+	protected byte[] createUnsaltedKey(byte[] primaryVal, Long date, byte[] origRow) {
+		if (isComposite()) {
+			// composite values are already encoded, so just append date and row
+			return COMPOSITE_KEY_FACTORY.createKey(primaryVal, origRow, date, this.invertDate);
+		}
 		if (this.dateField != null && date != null) {
 			return this.keyFactory.createKey(primaryVal, origRow, date, this.invertDate);
 		}
@@ -198,12 +593,23 @@ public class EntityIndexer {
 	}
 	
 	
+	/**
+	 * Appends the date and row key to an already encoded composite value
+	 */
+	private static final IndexKeyFactory COMPOSITE_KEY_FACTORY = new DefaultKeyFactory() {
+		public byte[] createKey( byte[] compositeVal, byte[] rowKey, Long date, boolean invertDate ) {
+			return Bytes.add(compositeVal, super.createKey(new byte[0], rowKey, date, invertDate));
+		}
+	};
+	
+	
 	/**
 	 * Generates the same index keys as DefaultKeyFactory, but prefixed with the primary value mod 100 for
 	 * better row key distribution.
 	 * 
 	 * This is designed specifically to avoid hot regions arising from frequently used indexes based off of
-	 * a sequentially incremented primary value.
+	 * a sequentially incremented primary value.  Ordered scans across the mod prefixes are not supported,
+	 * so new indexes should use {@link HIndex#salt_buckets()} instead.
 	 * @author garyh
 	 *
 	 */
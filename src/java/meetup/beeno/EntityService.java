@@ -8,18 +8,24 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.SortedSet;
+import java.util.TreeMap;
 import java.util.TreeSet;
 
+import meetup.beeno.filter.ColumnRangeFilter;
+import meetup.beeno.mapping.EmbeddedField;
 import meetup.beeno.mapping.EntityInfo;
 import meetup.beeno.mapping.EntityMetadata;
 import meetup.beeno.mapping.FieldMapping;
 import meetup.beeno.mapping.IndexMapping;
+import meetup.beeno.mapping.ListField;
 import meetup.beeno.mapping.MapField;
 import meetup.beeno.mapping.MappingException;
+import meetup.beeno.util.CompactCodec;
 import meetup.beeno.util.HUtil;
 import meetup.beeno.util.PBUtil;
 
@@ -29,6 +35,8 @@ import org.apache.hadoop.hbase.client.Get;
 import org.apache.hadoop.hbase.client.HTable;
 import org.apache.hadoop.hbase.client.Put;
 import org.apache.hadoop.hbase.client.Result;
+import org.apache.hadoop.hbase.client.ResultScanner;
+import org.apache.hadoop.hbase.client.Scan;
 import org.apache.hadoop.hbase.util.Bytes;
 import org.apache.log4j.Logger;
 
@@ -53,6 +61,8 @@ public class EntityService<T> {
 
 	private static Logger log = Logger.getLogger(EntityService.class.getName());
 	
+	private static final byte[] PACKED_QUALIFIER = Bytes.toBytes(EntityInfo.PACKED_COLUMN);
+	
 	/** Default collection types to use for generic instances */
 	private static Map<Class,Class> defaultCollections = new HashMap<Class,Class>();
 	static {
@@ -109,6 +119,7 @@ public class EntityService<T> {
 		try {
 			table = HUtil.getTable( info.getTablename() );
 			Get get = new Get(Bytes.toBytes(rowKey));
+			HUtil.addFetchColumns(get, info, null);
 			Result row = table.get(get);
 			if (row == null || row.isEmpty()) {
 				log.info(String.format("%s: row not found for key '%s'", info.getTablename(), rowKey));
@@ -128,6 +139,25 @@ public class EntityService<T> {
 	}
 	
 	
+	/**
+	 * Returns whether a row exists for the given key, without reading
+	 * any of the row data or creating an entity.
+	 */
+	public boolean exists(String rowKey) throws HBaseException {
+		EntityInfo info = getInfo();
+		HTable table = null;
+		try {
+			table = HUtil.getTable( info.getTablename() );
+			return table.exists(new Get(Bytes.toBytes(rowKey)));
+		}
+		catch (IOException ioe) {
+			throw new HBaseException(ioe);
+		}
+		finally {
+			HUtil.releaseTable(table);
+		}
+	}
+	
 	/**
 	 * Instantiates a new entity class instance, and populates the instance with data from the 
 	 * passed in HBase RowResult.
@@ -164,11 +194,17 @@ public class EntityService<T> {
 	 * @throws Exception
 	 */
 	protected T newEntityInstance(Result row) throws Exception {
+		if (getInfo().isLazy() || getInfo().hasDeferredFields())
+			return this.clazz.cast(LazyEntityInterceptor.newInstance(this, getInfo()));
+		
 		return this.clazz.newInstance();
 	}
 	
 	/**
-	 * Populate the entity's data fields using reflection.
+	 * Populate the entity's data fields using reflection.  For lazy entities
+	 * (see {@link HEntity#lazy()}), only the row key is set, and the row is
+	 * kept for decoding each property on first access.  Deferred fields (see
+	 * {@link HProperty#lazy()}) are left to be loaded on first access.
 	 * 
 	 * @param entity
 	 * @param row
@@ -179,50 +215,196 @@ public class EntityService<T> {
 		PropertyDescriptor keyProp = info.getKeyProperty();
 		writeProperty(entity, keyProp, res.getRow(), false);
 		
+		LazyEntityInterceptor<?> lazy = LazyEntityInterceptor.get(entity);
+		if (lazy != null) {
+			lazy.setRow(res);
+			if (info.isLazy())
+				return;
+		}
 		
-		Map<PropertyDescriptor,Object> collectionProps = new HashMap<PropertyDescriptor,Object>();
+		for (Map.Entry<PropertyDescriptor,List<KeyValue>> e : getPropertyColumns(info, res).entrySet()) {
+			// columns of deferred fields may be read for filters, but are incomplete
+			if (!info.isDeferred(e.getKey()))
+				populateProperty(entity, info, e.getKey(), e.getValue());
+		}
+	}
+
+
+	/**
+	 * Groups the row's columns by mapped property, in column order.  Values 
+	 * held in packed cells are returned as separate columns.  List counter
+	 * columns are returned with their list's elements.
+	 */
+	protected Map<PropertyDescriptor,List<KeyValue>> getPropertyColumns(EntityInfo info, Result res) {
+		Map<PropertyDescriptor,List<KeyValue>> columns = new LinkedHashMap<PropertyDescriptor,List<KeyValue>>();
 		for (KeyValue kv : res.list()) {
 			String col = Bytes.toString(kv.getColumn());
 			if (log.isDebugEnabled())
 				log.debug(String.format("populate(): column=%s", col));
 			
-			PropertyDescriptor prop = info.getFieldProperty(col);
-			EntityMetadata.PropertyType propType = info.getPropertyType(prop);
 			byte[] fieldData = kv.getValue();
-			if (prop == null) {
-				log.warn(String.format("No entity property mapped for column '%s'", col));
+			if (info.isPacked() && CompactCodec.isPacked(fieldData) && 
+				Bytes.equals(kv.getQualifier(), PACKED_QUALIFIER)) {
+				addPackedColumns(columns, info, kv);
+				continue;
 			}
-			else if ( Map.class.isAssignableFrom(prop.getPropertyType()) ) {
-				Map propVals = (Map) collectionProps.get(prop);
-				if (propVals == null) {
-					propVals = (Map) newCollectionInstance(prop.getPropertyType());
-					collectionProps.put(prop, propVals);
-				}
-
-				propVals.put(HUtil.column(col), 
-							 PBUtil.toValue(fieldData));
-			}
-			else if ( Collection.class.isAssignableFrom(prop.getPropertyType()) ) {
-				Collection propVals = (Collection) collectionProps.get(prop);
-				if (propVals == null) {
-					propVals = (Collection) newCollectionInstance(prop.getPropertyType());
-					collectionProps.put(prop, propVals);
-				}
 			
-				propVals.add(PBUtil.toValue(fieldData));
+			ListField counted = info.getCounterList(col);
+			if (counted != null) {
+				addColumn(columns, counted.getBeanProperty(), kv);
+				continue;
 			}
-			else {
-				writeProperty(entity, prop, fieldData);
+			
+			PropertyDescriptor prop = info.getFieldProperty(col);
+			if (prop == null)
+				log.warn(String.format("No entity property mapped for column '%s'", col));
+			else
+				addColumn(columns, prop, kv);
+		}
+		
+		return columns;
+	}
+	
+	
+	/**
+	 * Adds the property values stored in a packed cell
+	 */
+	private void addPackedColumns(Map<PropertyDescriptor,List<KeyValue>> columns, EntityInfo info, KeyValue packed) {
+		String family = Bytes.toString(packed.getFamily());
+		for (Map.Entry<String,byte[]> e : CompactCodec.unpack(packed.getValue()).entrySet()) {
+			PropertyDescriptor prop = info.getFieldProperty(family + ":" + e.getKey());
+			if (prop == null)
+				log.warn(String.format("No entity property mapped for packed column '%s:%s'", family, e.getKey()));
+			else
+				addColumn(columns, prop, new KeyValue(packed.getRow(), packed.getFamily(), 
+						Bytes.toBytes(e.getKey()), packed.getTimestamp(), e.getValue()));
+		}
+	}
+	
+	private static void addColumn(Map<PropertyDescriptor,List<KeyValue>> columns, PropertyDescriptor prop, KeyValue kv) {
+		List<KeyValue> propColumns = columns.get(prop);
+		if (propColumns == null) {
+			propColumns = new ArrayList<KeyValue>(1);
+			columns.put(prop, propColumns);
+		}
+		propColumns.add(kv);
+	}
+	
+	
+	/**
+	 * Decodes the stored columns for a single property and sets the value
+	 * in the entity instance
+	 */
+	protected void populateProperty(T entity, EntityInfo info, PropertyDescriptor prop, List<KeyValue> columns) 
+			throws HBaseException {
+		FieldMapping field = info.getPropertyMapping(prop.getName());
+		if ( field instanceof EmbeddedField ) {
+			byte[] fieldData = columns.get(columns.size()-1).getValue();
+			setProperty(entity, prop, ((EmbeddedField)field).decode(fieldData));
+		}
+		else if ( Map.class.isAssignableFrom(prop.getPropertyType()) ) {
+			Map propVals = (Map) newCollectionInstance(prop.getPropertyType());
+			Class<?> valueType = (field != null ? field.getValueType() : null);
+			for (KeyValue kv : columns)
+				propVals.put(HUtil.column(Bytes.toString(kv.getColumn())), 
+							 PBUtil.toValue(kv.getValue(), valueType));
+			setProperty(entity, prop, propVals);
+		}
+		else if ( Collection.class.isAssignableFrom(prop.getPropertyType()) ) {
+			Collection propVals = (Collection) newCollectionInstance(prop.getPropertyType());
+			if (field instanceof ListField)
+				columns = getElementsInOrder((ListField)field, columns);
+			Class<?> elementType = (field != null ? field.getValueType() : null);
+			for (KeyValue kv : columns)
+				propVals.add(PBUtil.toValue(kv.getValue(), elementType));
+			setProperty(entity, prop, propVals);
+		}
+		else {
+			// the last stored column wins
+			writeProperty(entity, prop, columns.get(columns.size()-1).getValue());
+		}
+	}
+	
+	
+	/**
+	 * Returns the element columns of a list property in element order.  
+	 * Columns are stored in qualifier order, which differs from element 
+	 * order once a list has more than 10 elements ("_10" sorts before "_2").
+	 * If the list's counter column is present, elements at or past the 
+	 * counter are left out, as they remain from a longer list saved earlier.
+	 */
+	protected List<KeyValue> getElementsInOrder(ListField field, List<KeyValue> columns) {
+		long count = -1;
+		TreeMap<Long,KeyValue> sorted = new TreeMap<Long,KeyValue>();
+		for (KeyValue kv : columns) {
+			String qualifier = Bytes.toString(kv.getQualifier());
+			long idx = field.getIndex(qualifier);
+			if (idx >= 0)
+				sorted.put(idx, kv);
+			else if (qualifier.equals(field.getCounterColumn()) && kv.getValueLength() == Bytes.SIZEOF_LONG)
+				count = Bytes.toLong(kv.getValue());
+		}
+		
+		if (count >= 0)
+			return new ArrayList<KeyValue>(sorted.headMap(count).values());
+		return new ArrayList<KeyValue>(sorted.values());
+	}
+	
+	
+	/**
+	 * Loads the deferred fields (see {@link HProperty#lazy()}) in the given
+	 * fetch groups for each of the entities, reading each row once with a 
+	 * Get for all of its groups not yet loaded.  Fetch groups are named by 
+	 * column family.  With no groups given, all fetch groups are loaded.  
+	 * Entities without deferred fields are skipped.
+	 * 
+	 * The Gets are run one after another, so this costs a round trip for
+	 * each entity with groups to load, as loading on first access does.
+	 * Fields usually read along with the rest of the entity are better
+	 * left out of the fetch groups.
+	 * 
+	 * @param entities
+	 * @param families
+	 * @throws HBaseException
+	 */
+	public void loadLazy(Collection<? extends T> entities, String... families) throws HBaseException {
+		if (entities == null || entities.isEmpty())
+			return;
+		
+		EntityInfo info = getInfo();
+		HTable table = null;
+		int cnt = 0;
+		try {
+			for (T entity : entities) {
+				LazyEntityInterceptor<?> lazy = LazyEntityInterceptor.get(entity);
+				if (lazy == null)
+					continue;
+				Set<String> groups = lazy.getPendingGroups(families);
+				if (groups.isEmpty())
+					continue;
+				
+				if (table == null)
+					table = HUtil.getTable(info.getTablename());
+				Get get = new Get(lazy.getRowKey());
+				for (String family : groups)
+					get.addFamily(Bytes.toBytes(family));
+				lazy.setGroups(entity, groups, table.get(get));
+				cnt++;
 			}
+			
+			if (log.isDebugEnabled())
+				log.debug(String.format("Loaded lazy fields for %d of %d entities", cnt, entities.size()));
 		}
-
-		// add on mapped collections
-		for (PropertyDescriptor prop : collectionProps.keySet()) {
-			setProperty(entity, prop, collectionProps.get(prop));
+		catch (IOException ioe) {
+			throw new HBaseException(String.format("Error loading lazy fields from table [%s]", info.getTablename()), ioe);
+		}
+		finally {
+			if (table != null)
+				HUtil.releaseTable(table);
 		}
 	}
-
-
+	
+	
 	protected Object newCollectionInstance(Class typeClass) throws HBaseException {
 		if (defaultCollections.get(typeClass) != null) {
 			typeClass = defaultCollections.get(typeClass);
@@ -265,26 +447,95 @@ public class EntityService<T> {
 	 * @throws HBaseException
 	 */
 	public void save(T entity) throws HBaseException {
-		Put update = getUpdateForEntity(entity);
-		EntityInfo info = EntityMetadata.getInstance().getInfo(entity.getClass());
-		
-		// commit the update
 		List<Put> puts = new ArrayList<Put>(1);
-		puts.add(update);
-		processUpdates(info.getTablename(), puts);
+		puts.add(getUpdateForEntity(entity));
+		commitUpdates(puts, EntityMetadata.getInstance().getInfo(entity.getClass()), true);
+	}
 
-		index(update, info);
+
+	/**
+	 * Saves a new entity instance, without first reading the row for any
+	 * previously indexed values.  Only use for rows known not to exist, as 
+	 * index rows for previously stored values would be left in place.
+	 * @param entity
+	 * @throws HBaseException
+	 */
+	public void insert(T entity) throws HBaseException {
+		List<Put> puts = new ArrayList<Put>(1);
+		puts.add(getUpdateForEntity(entity));
+		commitUpdates(puts, EntityMetadata.getInstance().getInfo(entity.getClass()), false);
+	}
+
+
+	/**
+	 * Updates only the given properties of the entity row, by property name,
+	 * without reading or rewriting the entity's other columns.  Map values
+	 * are added to the stored map, while lists replace the stored elements.
+	 * The row is only read if an updated property is indexed, to update the
+	 * index rows, or is stored in a packed cell.
+	 * 
+	 * @param rowKey
+	 * @param values new property values by property name
+	 * @throws HBaseException
+	 */
+	public void updateProperties(String rowKey, Map<String,Object> values) throws HBaseException {
+		Map<String,Map<String,Object>> updates = new HashMap<String,Map<String,Object>>(1);
+		updates.put(rowKey, values);
+		updateProperties(updates);
+	}
+	
+	
+	/**
+	 * Updates only the given properties of a number of entity rows at once.
+	 * The updates to the entity table and to each index table are batched.
+	 * 
+	 * @param valuesByKey new property values by property name, for each row key
+	 * @throws HBaseException
+	 * @see #updateProperties(String, Map)
+	 */
+	public void updateProperties(Map<String,Map<String,Object>> valuesByKey) throws HBaseException {
+		if (valuesByKey == null || valuesByKey.isEmpty())
+			return;
+		
+		EntityInfo info = getInfo();
+		List<Put> puts = new ArrayList<Put>(valuesByKey.size());
+		for (Map.Entry<String,Map<String,Object>> e : valuesByKey.entrySet()) {
+			if (e.getValue() != null && !e.getValue().isEmpty())
+				puts.add(getUpdateForProperties(Bytes.toBytes(e.getKey()), e.getValue(), info));
+		}
+		if (puts.isEmpty())
+			return;
+		
+		// only indexes covering the updated columns need maintenance
+		List<IndexMapping> indexes = getUpdatedIndexes(puts, info);
+		if (indexes.isEmpty()) {
+			processUpdates(info.getTablename(), puts);
+			return;
+		}
+		
+		List<Result> current = getIndexedValues(puts, info, indexes);
+		processUpdates(info.getTablename(), puts);
+		
+		// index rows store all indexed columns, including those not updated
+		List<Put> indexed = new ArrayList<Put>(puts.size());
+		for (int i=0; i<puts.size(); i++)
+			indexed.add(getIndexedUpdate(puts.get(i), current.get(i), info));
+		index(indexed, indexes);
+		removeStaleIndexes(current, puts, indexes);
+		removeStaleElements(current, puts, info);
 	}
 
 
 	/**
-	 * FIXME: does not remove references to the row from index tables!!!!
+	 * Deletes the row for the given key, along with any index rows 
+	 * referencing it.
 	 * 
 	 * @param rowKey
 	 * @throws HBaseException
 	 */
 	public void delete(String rowKey) throws HBaseException {
 		EntityInfo info = getInfo();
+		List<Result> current = getIndexedValues(Bytes.toBytes(rowKey), info);
 
 		// commit the update
 		HTable table = null;
@@ -302,6 +553,8 @@ public class EntityService<T> {
 		finally {
 			HUtil.releaseTable(table);
 		}
+	
+		removeStaleIndexes(current, null, info);
 	}
 
 
@@ -313,6 +566,11 @@ public class EntityService<T> {
 		if (field == null)
 			throw new IllegalArgumentException( String.format("Unknown property name '%s'", propertyName) );
 
+		if (info.isPacked(field)) {
+			deletePackedProperty(rowKey, field, info);
+			return;
+		}
+
 		// commit the delete
 		HTable table = null;
 		try {
@@ -333,15 +591,44 @@ public class EntityService<T> {
 	}
 
 
+	/**
+	 * Removes a packed property value by rewriting the packed cell without it
+	 */
+	protected void deletePackedProperty(String rowKey, FieldMapping field, EntityInfo info)
+			throws HBaseException {
+		byte[] family = Bytes.toBytes(field.getFamily());
+		HTable table = null;
+		try {
+			table = HUtil.getTable(info.getTablename());
+			Get get = new Get(Bytes.toBytes(rowKey));
+			get.addColumn(family, PACKED_QUALIFIER);
+			Result row = table.get(get);
+			byte[] current = (row != null ? row.getValue(family, PACKED_QUALIFIER) : null);
+			
+			Map<String,byte[]> values = CompactCodec.unpack(current);
+			if (values.remove(field.getColumn()) != null) {
+				Put update = new Put(Bytes.toBytes(rowKey));
+				update.add(family, PACKED_QUALIFIER, CompactCodec.pack(values));
+				table.put(update);
+			}
+
+			if (log.isDebugEnabled())
+				log.debug(String.format("Deleted packed column '%s' for row '%s'", field.getFieldName(), rowKey));
+		}
+		catch (IOException ioe) {
+			throw new HBaseException(String.format("Error deleting column '%s' for row '%s'", field.getFieldName(), rowKey), ioe);
+		}
+		finally {
+			HUtil.releaseTable(table);
+		}
+	}
+
+
 	public void deleteMapProperty(String rowKey, String propertyName, String mapKey)
 			throws HBaseException {
 
 		EntityInfo info = getInfo();
-		FieldMapping field = info.getPropertyMapping(propertyName);
-		if (field == null)
-			throw new IllegalArgumentException( String.format("Unknown property name '%s'", propertyName) );
-		else if (!(field instanceof MapField))
-			throw new IllegalArgumentException( String.format("Property '%s' is not a Map type", propertyName) );
+		FieldMapping field = getMapField(info, propertyName);
 
 		String columnName = field.getColumn() + mapKey;
 		HTable table = null;
@@ -362,6 +649,331 @@ public class EntityService<T> {
 		}
 	}
 
+
+	/**
+	 * Appends values to the end of a list property, writing only the new 
+	 * element columns.  The element indexes are allocated from the list's
+	 * counter column with an atomic increment, so the stored list is not
+	 * read.  If the increment returns only the appended values, the list 
+	 * may have been stored without a counter, and the row's element 
+	 * columns are read to count it.  As this can't tell a list saved empty
+	 * from one without a counter, elements left from before a list was
+	 * saved empty are counted again.  The first append to a list stored 
+	 * without a counter must not run concurrently with other appends to 
+	 * the list.  Index rows are added for the new elements of indexed 
+	 * lists.
+	 * 
+	 * @param rowKey
+	 * @param propertyName
+	 * @param values
+	 * @throws HBaseException
+	 */
+	public void append(String rowKey, String propertyName, Object... values) throws HBaseException {
+		EntityInfo info = getInfo();
+		FieldMapping mapping = info.getPropertyMapping(propertyName);
+		if (mapping == null)
+			throw new IllegalArgumentException( String.format("Unknown property name '%s'", propertyName) );
+		else if (!(mapping instanceof ListField))
+			throw new IllegalArgumentException( String.format("Property '%s' is not a Collection type", propertyName) );
+		if (values == null || values.length == 0)
+			return;
+		
+		ListField field = (ListField) mapping;
+		byte[] row = Bytes.toBytes(rowKey);
+		byte[] family = Bytes.toBytes(field.getFamily());
+		Put update = new Put(row);
+		HTable table = null;
+		try {
+			table = HUtil.getTable(info.getTablename());
+			byte[] counter = Bytes.toBytes(field.getCounterColumn());
+			long next = table.incrementColumnValue(row, family, counter, values.length);
+			if (next == values.length) {
+				// the counter was empty or missing
+				long size = countStoredElements(table, row, field);
+				if (size > 0)
+					next = table.incrementColumnValue(row, family, counter, size);
+			}
+			long idx = next - values.length;
+			for (Object val : values)
+				setUpdateField(update, field.getFamily(), field.getElementColumn(idx++), 
+							   info.encodeValue(field.getBeanProperty(), val));
+			table.put(update);
+			
+			if (log.isDebugEnabled())
+				log.debug(String.format("Appended %d elements to '%s' for row '%s'", values.length, field.getFieldName(), rowKey));
+		}
+		catch (IOException ioe) {
+			throw new HBaseException(String.format("Error appending to '%s' for row '%s'", field.getFieldName(), rowKey), ioe);
+		}
+		finally {
+			HUtil.releaseTable(table);
+		}
+		
+		List<IndexMapping> indexes = info.getPropertyIndexes(field.getBeanProperty());
+		if (indexes != null && !indexes.isEmpty())
+			indexPartial(update, indexes, info);
+	}
+	
+	
+	/**
+	 * Returns the number of elements of a list stored without a counter,
+	 * from the highest stored element index
+	 */
+	protected long countStoredElements(HTable table, byte[] row, ListField field) throws IOException {
+		Get get = new Get(row);
+		get.addFamily(Bytes.toBytes(field.getFamily()));
+		Result current = table.get(get);
+		long size = 0;
+		if (current != null && !current.isEmpty()) {
+			for (KeyValue kv : current.raw()) {
+				long idx = field.getIndex(Bytes.toString(kv.getQualifier()));
+				if (idx >= size)
+					size = idx + 1;
+			}
+		}
+		
+		return size;
+	}
+	
+	
+	/**
+	 * Adds the index rows for an update writing only some of the entity's 
+	 * columns.  Index rows also store the row's other indexed columns, so
+	 * those not in the update are read from the row first.
+	 */
+	protected void indexPartial(Put update, List<IndexMapping> indexes, EntityInfo info) 
+			throws HBaseException {
+		Map<byte[],List<KeyValue>> updated = update.getFamilyMap();
+		Get get = new Get(update.getRow());
+		boolean read = false;
+		for (IndexMapping idx : indexes) {
+			if (idx.getGenerator() == null)
+				continue;
+			for (HUtil.HCol col : idx.getGenerator().getIndexedColumns()) {
+				// elements of multi-valued properties are in the update
+				if (idx.isMultiValue() && col.toString().equals(idx.getPrimaryField().getFieldName()))
+					continue;
+				if (!hasColumn(updated, col)) {
+					get.addColumn(col.family(), col.column());
+					read = true;
+				}
+			}
+		}
+		
+		Put indexed = update;
+		if (read) {
+			HTable table = null;
+			try {
+				table = HUtil.getTable(info.getTablename());
+				Result current = table.get(get);
+				if (current != null && !current.isEmpty()) {
+					indexed = new Put(update.getRow());
+					for (List<KeyValue> kvs : updated.values())
+						for (KeyValue kv : kvs)
+							indexed.add(kv.getFamily(), kv.getQualifier(), kv.getValue());
+					for (KeyValue kv : current.raw())
+						indexed.add(kv.getFamily(), kv.getQualifier(), kv.getValue());
+				}
+			}
+			catch (IOException ioe) {
+				throw new HBaseException(String.format("Error reading indexed values from table [%s]", info.getTablename()), ioe);
+			}
+			finally {
+				HUtil.releaseTable(table);
+			}
+		}
+		
+		List<Put> updates = new ArrayList<Put>(1);
+		updates.add(indexed);
+		index(updates, indexes);
+	}
+	
+	
+	/**
+	 * Reads the values of a map property for the given keys only, with a 
+	 * Get restricted to the keys' columns.  Keys without a stored value are
+	 * left out of the returned map.
+	 * 
+	 * @param rowKey
+	 * @param propertyName
+	 * @param keys
+	 * @return the stored values by key, or an empty map if the row is not found
+	 * @throws HBaseException
+	 */
+	public Map<String,Object> getMapValues(String rowKey, String propertyName, Collection<String> keys)
+			throws HBaseException {
+		EntityInfo info = getInfo();
+		MapField field = getMapField(info, propertyName);
+		if (keys == null || keys.isEmpty())
+			return new LinkedHashMap<String,Object>();
+		
+		byte[] family = Bytes.toBytes(field.getFamily());
+		HTable table = null;
+		try {
+			table = HUtil.getTable(info.getTablename());
+			Get get = new Get(Bytes.toBytes(rowKey));
+			for (String key : keys)
+				get.addColumn(family, Bytes.toBytes(field.getColumn() + key));
+			
+			return getMapValues(info, field, table.get(get));
+		}
+		catch (IOException ioe) {
+			throw new HBaseException(String.format("Error reading map property '%s' for row '%s'", propertyName, rowKey), ioe);
+		}
+		finally {
+			HUtil.releaseTable(table);
+		}
+	}
+	
+	
+	/**
+	 * Reads the entries of a map property whose keys start with the given
+	 * prefix, in key (column qualifier) order.  Only the matching columns are
+	 * returned from the region server.
+	 */
+	public Map<String,Object> getMapValuesByPrefix(String rowKey, String propertyName, String prefix)
+			throws HBaseException {
+		return getMapPage(rowKey, propertyName, prefix, null, 0);
+	}
+	
+	
+	/**
+	 * Reads a page of entries of a map property in key (column qualifier) 
+	 * order.  To read the following page, pass the last key of the returned
+	 * page as <code>afterKey</code>.
+	 * 
+	 * @param rowKey
+	 * @param propertyName
+	 * @param afterKey key to resume after, or <code>null</code> to read from 
+	 * 		the first key
+	 * @param limit maximum number of entries to return
+	 * @return the entries in key order, or an empty map when no entries remain
+	 * @throws HBaseException
+	 */
+	public Map<String,Object> getMapPage(String rowKey, String propertyName, String afterKey, int limit)
+			throws HBaseException {
+		return getMapPage(rowKey, propertyName, null, afterKey, limit);
+	}
+	
+	
+	/**
+	 * Reads a page of the entries of a map property whose keys start with
+	 * the given prefix, in key (column qualifier) order.  The row is read
+	 * with a single row scan, filtered by {@link ColumnRangeFilter} to the
+	 * page's columns.
+	 * 
+	 * The filter counts every column in the key range toward the limit, so
+	 * pages with a limit can't be read for maps whose columns may share 
+	 * the range with other properties: a map without a column prefix (name
+	 * "*") in a family holding other properties, or a map whose prefix 
+	 * overlaps other properties' columns.
+	 * 
+	 * @param rowKey
+	 * @param propertyName
+	 * @param prefix key prefix, or <code>null</code> for all keys
+	 * @param afterKey key to resume after, or <code>null</code> to read from 
+	 * 		the first key
+	 * @param limit maximum number of entries to return, or 0 for all
+	 * @return the entries in key order, or an empty map when no entries remain
+	 * @throws HBaseException
+	 */
+	public Map<String,Object> getMapPage(String rowKey, String propertyName, String prefix, 
+										 String afterKey, int limit) throws HBaseException {
+		EntityInfo info = getInfo();
+		MapField field = getMapField(info, propertyName);
+		if (limit > 0 && sharesColumns(info, field)) {
+			throw new IllegalArgumentException( 
+					String.format("Map property '%s' shares columns in family '%s' with other properties, and can't be paged with a limit", 
+								  propertyName, field.getFamily()) );
+		}
+		
+		byte[] keyPrefix = Bytes.toBytes(field.getColumn() + (prefix != null ? prefix : ""));
+		byte[] start = keyPrefix;
+		if (afterKey != null) {
+			byte[] after = ScanByKey.nextKey(Bytes.toBytes(field.getColumn() + afterKey));
+			if (Bytes.compareTo(after, start) > 0)
+				start = after;
+		}
+		byte[] stop = (keyPrefix.length > 0 ? EntityIndexer.nextPrefix(keyPrefix) : null);
+		
+		byte[] row = Bytes.toBytes(rowKey);
+		Scan scan = new Scan(row, ScanByKey.nextKey(row));
+		scan.addFamily(Bytes.toBytes(field.getFamily()));
+		scan.setFilter(new ColumnRangeFilter(Bytes.toBytes(field.getFamily()), start, stop, limit));
+		
+		HTable table = null;
+		ResultScanner scanner = null;
+		try {
+			table = HUtil.getTable(info.getTablename());
+			scanner = table.getScanner(scan);
+			return getMapValues(info, field, scanner.next());
+		}
+		catch (IOException ioe) {
+			throw new HBaseException(String.format("Error reading map property '%s' for row '%s'", propertyName, rowKey), ioe);
+		}
+		finally {
+			if (scanner != null)
+				scanner.close();
+			HUtil.releaseTable(table);
+		}
+	}
+	
+	
+	/**
+	 * Returns <code>true</code> if other properties may store columns 
+	 * starting with the map property's column prefix
+	 */
+	protected boolean sharesColumns(EntityInfo info, MapField field) {
+		String mapPrefix = field.getColumn();
+		for (FieldMapping other : info.getMappedFields()) {
+			if (other == field || !other.getFamily().equals(field.getFamily()))
+				continue;
+			
+			String column = (info.isPacked(other) ? EntityInfo.PACKED_COLUMN : other.getColumn());
+			if (column.startsWith(mapPrefix))
+				return true;
+			// lists and maps store further columns starting with their column name
+			if ((other instanceof ListField || other instanceof MapField) && mapPrefix.startsWith(column))
+				return true;
+		}
+		
+		return false;
+	}
+	
+	
+	protected MapField getMapField(EntityInfo info, String propertyName) {
+		FieldMapping field = info.getPropertyMapping(propertyName);
+		if (field == null)
+			throw new IllegalArgumentException( String.format("Unknown property name '%s'", propertyName) );
+		else if (!(field instanceof MapField))
+			throw new IllegalArgumentException( String.format("Property '%s' is not a Map type", propertyName) );
+		
+		return (MapField) field;
+	}
+	
+	
+	/**
+	 * Decodes the row's columns for the map property, in column order.  Keys
+	 * are returned without the property's column prefix.
+	 */
+	protected Map<String,Object> getMapValues(EntityInfo info, MapField field, Result row) {
+		Map<String,Object> values = new LinkedHashMap<String,Object>();
+		if (row == null || row.isEmpty())
+			return values;
+		
+		PropertyDescriptor prop = field.getBeanProperty();
+		int prefixLen = field.getColumn().length();
+		for (KeyValue kv : row.raw()) {
+			String col = Bytes.toString(kv.getColumn());
+			if (info.getFieldProperty(col) != prop)
+				continue;
+			
+			values.put(Bytes.toString(kv.getQualifier()).substring(prefixLen), PBUtil.toValue(kv.getValue(), field.getValueType()));
+		}
+		
+		return values;
+	}
+
 	
 	/**
 	 * Updates any indexes based on entity annotations for the instance
@@ -385,35 +997,341 @@ public class EntityService<T> {
 		
 		List<IndexMapping> indexes = info.getMappedIndexes();
 		if (indexes != null && indexes.size() > 0) {
-			Map<String,List<Put>> updatesByTable = new HashMap<String,List<Put>>();
-			for (IndexMapping idx : indexes) {
-				
-				EntityIndexer indexer = idx.getGenerator();
-				if (indexer != null) {
-					for (Put update : updates) {
-						List<Put> indexUpdates = indexer.getIndexUpdates(update);
-						if (indexUpdates != null && indexUpdates.size() > 0) {
-							List<Put> tableUpdates = updatesByTable.get( indexer.getIndexTable() );
-							if (tableUpdates == null)
-								tableUpdates = new ArrayList<Put>();
-							
-							tableUpdates.addAll(indexUpdates);
-							updatesByTable.put(indexer.getIndexTable(), tableUpdates);
-						}
-					}					
+			index(updates, indexes);
+		}
+		else {
+			log.info(String.format("No indexes mapped for entity %s", info.getEntityClass().getName()));
+		}
+	}
+	
+	
+	/**
+	 * Adds the rows for the given indexes, batching the index updates per 
+	 * index table
+	 */
+	protected void index(List<Put> updates, List<IndexMapping> indexes) throws HBaseException {
+		Map<String,List<Put>> updatesByTable = new HashMap<String,List<Put>>();
+		for (IndexMapping idx : indexes) {
+			
+			EntityIndexer indexer = idx.getGenerator();
+			if (indexer != null) {
+				for (Put update : updates) {
+					List<Put> indexUpdates = indexer.getIndexUpdates(update);
+					if (indexUpdates != null && indexUpdates.size() > 0) {
+						List<Put> tableUpdates = updatesByTable.get( indexer.getIndexTable() );
+						if (tableUpdates == null)
+							tableUpdates = new ArrayList<Put>();
+						
+						tableUpdates.addAll(indexUpdates);
+						updatesByTable.put(indexer.getIndexTable(), tableUpdates);
+					}
+				}					
+			}
+		}
+
+		// process updates for each table
+		int indexCnt = 0;
+		for (Map.Entry<String,List<Put>> entry : updatesByTable.entrySet())
+			indexCnt += processUpdates(entry.getKey(), entry.getValue());
+		
+		log.info(String.format("Processed %d index updates for %d entity row(s)", indexCnt, updates.size()));			
+	}
+	
+	/**
+	 * Returns the mapped indexes storing any of the columns written by the
+	 * updates.  Lists written by an update are matched by their counter 
+	 * column.
+	 */
+	protected List<IndexMapping> getUpdatedIndexes(List<Put> updates, EntityInfo info) {
+		Set<String> updated = new HashSet<String>();
+		for (Put update : updates) {
+			for (List<KeyValue> kvs : update.getFamilyMap().values())
+				for (KeyValue kv : kvs)
+					updated.add(Bytes.toString(kv.getColumn()));
+		}
+		for (FieldMapping field : info.getMappedFields()) {
+			if (field instanceof ListField && updated.contains(((ListField)field).getCounterFieldName()))
+				updated.add(field.getFieldName());
+		}
+		
+		List<IndexMapping> indexes = new ArrayList<IndexMapping>();
+		for (IndexMapping idx : info.getMappedIndexes()) {
+			if (idx.getGenerator() == null)
+				continue;
+			for (HUtil.HCol col : idx.getGenerator().getIndexedColumns()) {
+				if (updated.contains(col.toString())) {
+					indexes.add(idx);
+					break;
 				}
 			}
+		}
+		
+		return indexes;
+	}
+
+	protected List<Result> getIndexedValues(byte[] rowKey, EntityInfo info) throws HBaseException {
+		List<byte[]> keys = new ArrayList<byte[]>(1);
+		keys.add(rowKey);
+		return getIndexedValues(keys, info);
+	}
 
-			// process updates for each table
-			int indexCnt = 0;
-			for (Map.Entry<String,List<Put>> entry : updatesByTable.entrySet())
-				indexCnt += processUpdates(entry.getKey(), entry.getValue());
+	/**
+	 * Reads the currently stored values of the key columns of all mapped
+	 * indexes for the rows, in the same order as the keys.  Returns 
+	 * <code>null</code> if the entity has no mapped indexes.
+	 */
+	protected List<Result> getIndexedValues(Collection<byte[]> rowKeys, EntityInfo info) 
+			throws HBaseException {
+		List<IndexMapping> indexes = info.getMappedIndexes();
+		if (indexes == null || indexes.size() == 0)
+			return null;
+		
+		return getIndexedValues(rowKeys, info, indexes, false);
+	}
+	
+	/**
+	 * Reads the currently stored values of all columns stored in the given
+	 * indexes' rows, for the updated rows, in the same order as the updates.
+	 */
+	protected List<Result> getIndexedValues(List<Put> updates, EntityInfo info, List<IndexMapping> indexes) 
+			throws HBaseException {
+		List<byte[]> keys = new ArrayList<byte[]>(updates.size());
+		for (Put update : updates)
+			keys.add(update.getRow());
+		
+		return getIndexedValues(keys, info, indexes, true);
+	}
+	
+	/**
+	 * Reads the indexed columns of the given indexes for each row, in the 
+	 * same order as the keys.  Element columns of multi-valued properties 
+	 * can't be named, so the property's family is read instead.
+	 * 
+	 * @param extra whether to read the extra columns stored in the index 
+	 * 		rows, as well as the key columns
+	 */
+	private List<Result> getIndexedValues(Collection<byte[]> rowKeys, EntityInfo info, 
+			List<IndexMapping> indexes, boolean extra) throws HBaseException {
+		List<HUtil.HCol> columns = new ArrayList<HUtil.HCol>();
+		Set<String> families = new HashSet<String>();
+		for (IndexMapping idx : indexes) {
+			if (idx.getGenerator() == null)
+				continue;
+			columns.addAll(extra ? idx.getGenerator().getIndexedColumns() : idx.getGenerator().getKeyColumns());
+			if (idx.isMultiValue())
+				families.add(idx.getPrimaryField().getFamily());
+		}
+		if (columns.isEmpty())
+			return null;
+		
+		List<Result> current = new ArrayList<Result>(rowKeys.size());
+		HTable table = null;
+		try {
+			table = HUtil.getTable(info.getTablename());
+			for (byte[] key : rowKeys) {
+				Get get = new Get(key);
+				for (HUtil.HCol col : columns)
+					get.addColumn(col.family(), col.column());
+				// families last, so they aren't narrowed to the named columns
+				for (String family : families)
+					get.addFamily(Bytes.toBytes(family));
+				current.add(table.get(get));
+			}
+		}
+		catch (IOException ioe) {
+			throw new HBaseException(String.format("Error reading indexed values from table [%s]", info.getTablename()), ioe);
+		}
+		finally {
+			HUtil.releaseTable(table);
+		}
+		
+		return current;
+	}
+	
+	/**
+	 * Returns the update merged with the stored values of the columns it 
+	 * doesn't write, for generating complete index rows.  Stored elements of
+	 * lists replaced by the update are left out.
+	 */
+	protected Put getIndexedUpdate(Put update, Result current, EntityInfo info) {
+		if (current == null || current.isEmpty())
+			return update;
+		
+		Map<byte[],List<KeyValue>> updated = update.getFamilyMap();
+		Put indexed = new Put(update.getRow());
+		for (List<KeyValue> kvs : updated.values())
+			for (KeyValue kv : kvs)
+				indexed.add(kv.getFamily(), kv.getQualifier(), kv.getValue());
+		for (KeyValue kv : current.raw()) {
+			if (hasColumn(updated, kv) || isReplacedElement(updated, kv, info))
+				continue;
+			indexed.add(kv.getFamily(), kv.getQualifier(), kv.getValue());
+		}
+		
+		return indexed;
+	}
+	
+	/**
+	 * Returns <code>true</code> if the column is an element of a list 
+	 * property written by the update.  Updates writing a list always write
+	 * its counter column.
+	 */
+	private static boolean isReplacedElement(Map<byte[],List<KeyValue>> updated, KeyValue kv, EntityInfo info) {
+		String col = Bytes.toString(kv.getColumn());
+		for (FieldMapping field : info.getMappedFields()) {
+			if (field instanceof ListField && ((ListField)field).matches(col))
+				return hasColumn(updated, kv.getFamily(), Bytes.toBytes(((ListField)field).getCounterColumn()));
+		}
+		
+		return false;
+	}
+	
+	/**
+	 * Deletes any index rows referencing the previously stored values for 
+	 * the given rows, where the row has been deleted or the indexed values 
+	 * have changed.  Deletes are batched per index table.
+	 * 
+	 * @param current previously stored values, as returned from {@link #getIndexedValues(Collection, EntityInfo)}
+	 * @param updates the updates applied to each row, or <code>null</code> if
+	 * 		the rows were deleted
+	 */
+	protected void removeStaleIndexes(List<Result> current, List<Put> updates, EntityInfo info) 
+			throws HBaseException {
+		removeStaleIndexes(current, updates, info.getMappedIndexes());
+	}
+	
+	/**
+	 * Deletes the stale index rows for the given indexes only.
+	 * @see #removeStaleIndexes(List, List, EntityInfo)
+	 */
+	protected void removeStaleIndexes(List<Result> current, List<Put> updates, List<IndexMapping> indexes) 
+			throws HBaseException {
+		if (current == null || current.isEmpty() || indexes == null)
+			return;
+		
+		Map<String,ArrayList<Delete>> deletesByTable = new HashMap<String,ArrayList<Delete>>();
+		for (IndexMapping idx : indexes) {
+			EntityIndexer indexer = idx.getGenerator();
+			if (indexer == null)
+				continue;
 			
-			log.info(String.format("Processed %d index updates for %d entity row(s)", indexCnt, updates.size()));			
+			for (int i=0; i<current.size(); i++) {
+				List<Delete> ops = indexer.getIndexDeletes(current.get(i), (updates != null ? updates.get(i) : null));
+				if (!ops.isEmpty()) {
+					ArrayList<Delete> tableDeletes = deletesByTable.get(indexer.getIndexTable());
+					if (tableDeletes == null) {
+						tableDeletes = new ArrayList<Delete>();
+						deletesByTable.put(indexer.getIndexTable(), tableDeletes);
+					}
+					tableDeletes.addAll(ops);
+				}
+			}
 		}
-		else {
-			log.info(String.format("No indexes mapped for entity %s", info.getEntityClass().getName()));
+		
+		int deleteCnt = 0;
+		for (Map.Entry<String,ArrayList<Delete>> entry : deletesByTable.entrySet())
+			deleteCnt += processDeletes(entry.getKey(), entry.getValue());
+		
+		if (deleteCnt > 0)
+			log.info(String.format("Removed %d stale index rows for %d entity row(s)", deleteCnt, current.size()));
+	}
+	
+	/**
+	 * Removes the stored element columns of multi-value indexed collection 
+	 * properties which are no longer present in the updated collection, so 
+	 * that removed elements are not read back (or re-indexed) later.
+	 */
+	protected void removeStaleElements(List<Result> current, List<Put> updates, EntityInfo info) 
+			throws HBaseException {
+		if (current == null || current.isEmpty())
+			return;
+		
+		List<ListField> fields = new ArrayList<ListField>();
+		for (FieldMapping field : info.getMappedFields()) {
+			List<IndexMapping> indexes = info.getPropertyIndexes(field.getBeanProperty());
+			if (field instanceof ListField && indexes != null) {
+				for (IndexMapping idx : indexes) {
+					if (idx.isMultiValue()) {
+						fields.add((ListField)field);
+						break;
+					}
+				}
+			}
+		}
+		if (fields.isEmpty())
+			return;
+		
+		ArrayList<Delete> deletes = new ArrayList<Delete>();
+		for (int i=0; i<current.size(); i++) {
+			Result row = current.get(i);
+			if (row == null || row.isEmpty())
+				continue;
+			
+			Map<byte[],List<KeyValue>> updated = updates.get(i).getFamilyMap();
+			Delete op = null;
+			for (KeyValue kv : row.raw()) {
+				String col = Bytes.toString(kv.getColumn());
+				for (ListField field : fields) {
+					// lists not written by the update are left as stored
+					if (field.matches(col) && !hasColumn(updated, kv) &&
+							hasColumn(updated, kv.getFamily(), Bytes.toBytes(field.getCounterColumn()))) {
+						if (op == null)
+							op = new Delete(row.getRow());
+						op.deleteColumns(kv.getFamily(), kv.getQualifier());
+					}
+				}
+			}
+			if (op != null)
+				deletes.add(op);
+		}
+		
+		if (!deletes.isEmpty())
+			processDeletes(info.getTablename(), deletes);
+	}
+	
+	private static boolean hasColumn(Map<byte[],List<KeyValue>> familyMap, KeyValue col) {
+		return hasColumn(familyMap, col.getFamily(), col.getQualifier());
+	}
+	
+	private static boolean hasColumn(Map<byte[],List<KeyValue>> familyMap, HUtil.HCol col) {
+		return hasColumn(familyMap, col.family(), col.column());
+	}
+	
+	private static boolean hasColumn(Map<byte[],List<KeyValue>> familyMap, byte[] family, byte[] qualifier) {
+		List<KeyValue> kvs = familyMap.get(family);
+		if (kvs != null) {
+			for (KeyValue kv : kvs) {
+				if (kv.matchingColumn(family, qualifier))
+					return true;
+			}
 		}
+		
+		return false;
+	}
+	
+	/**
+	 * Simple utility to handle batch deletes against a table, then correctly
+	 * returning the table to the instance pool.
+	 */
+	protected int processDeletes(String table, ArrayList<Delete> deletes)
+		throws HBaseException {
+		
+		int cnt = deletes.size();
+		HTable ht = null;
+		try {
+			ht = HUtil.getTable(table);
+			ht.delete(deletes);
+			
+			log.info(String.format("Committed %d deletes for table %s", cnt, table));
+		}
+		catch (IOException ioe) {
+			throw new HBaseException(String.format("IO Error deleting rows from table [%s]", table), ioe);
+		}
+		finally {
+			HUtil.releaseTable(ht);
+		}
+		
+		return cnt;
 	}
 	
 	/**
@@ -451,6 +1369,23 @@ public class EntityService<T> {
 	 * @throws HBaseException
 	 */
 	public void saveAll(List<T> entities) throws HBaseException {
+		saveAll(entities, true);
+	}
+	
+	
+	/**
+	 * Commits a number of new entities to the table at once, without first
+	 * reading the rows for previously indexed values.
+	 * @param entities
+	 * @throws HBaseException
+	 * @see #insert(Object)
+	 */
+	public void insertAll(List<T> entities) throws HBaseException {
+		saveAll(entities, false);
+	}
+	
+	
+	protected void saveAll(List<T> entities, boolean replace) throws HBaseException {
 		if (entities == null || entities.size() == 0)
 			return;
 		
@@ -462,10 +1397,34 @@ public class EntityService<T> {
 			updates.add( getUpdateForEntity(entity) );
 		}
 		
+		commitUpdates(updates, info, replace);
+	}
+	
+	
+	/**
+	 * Commits the entity updates and their index rows.  When replacing 
+	 * stored rows, the current values of the indexes covering the updated
+	 * columns are read first, to remove any stale index rows.  Indexes whose
+	 * columns are not written can't be left stale, so are not read.
+	 */
+	protected void commitUpdates(List<Put> updates, EntityInfo info, boolean replace) 
+			throws HBaseException {
+		List<IndexMapping> stale = null;
+		List<Result> current = null;
+		if (replace) {
+			stale = getUpdatedIndexes(updates, info);
+			if (!stale.isEmpty())
+				current = getIndexedValues(updates, info, stale);
+		}
+
 		// commit the update
-		processUpdates(getInfo().getTablename(), updates);
+		processUpdates(info.getTablename(), updates);
 
 		index(updates, info);
+		if (current != null) {
+			removeStaleIndexes(current, updates, stale);
+			removeStaleElements(current, updates, info);
+		}
 	}
 	
 	
@@ -503,45 +1462,153 @@ public class EntityService<T> {
 		}
 		
 		Put update = new Put(rowKey);
+		// deferred fields not yet loaded keep their stored values
+		LazyEntityInterceptor<?> lazy = LazyEntityInterceptor.get(entity);
+		// packed values by family, in column order
+		Map<String,Map<String,byte[]>> packed = null;
 		
 		// setup each field
 		for (FieldMapping field : entityInfo.getMappedFields()) {
 			PropertyDescriptor prop = field.getBeanProperty();
-			String fieldname = field.getColumn();
-			// allow multiple values for collections
-			if (Map.class.isAssignableFrom(prop.getPropertyType())) {
-				Map propValues = (Map) getProperty(entity, prop);
-				if (propValues != null) {
-					for (Object key : propValues.keySet()) {
-						String mapfield = fieldname + key.toString();
-						setUpdateField(update, field.getFamily(), mapfield, PBUtil.toBytes(propValues.get(key)));
+			if (lazy != null && lazy.isUnread(prop))
+				continue;
+			if (entityInfo.isPacked(field)) {
+				packed = addPackedValue(packed, field, entityInfo.encodePacked(field, getProperty(entity, prop)));
+				continue;
+			}
+			
+			addFieldUpdate(update, entityInfo, field, getProperty(entity, prop));
+		}
+		
+		if (packed != null) {
+			for (Map.Entry<String,Map<String,byte[]>> e : packed.entrySet())
+				setUpdateField(update, e.getKey(), EntityInfo.PACKED_COLUMN, CompactCodec.pack(e.getValue()));
+		}
+		
+		return update;
+	}
+	
+	
+	/**
+	 * Returns an update writing only the given properties to the row.  
+	 * Packed properties share a cell with the family's other packed values,
+	 * so the stored packed cells are read and rewritten with the new values.
+	 */
+	protected Put getUpdateForProperties(byte[] rowKey, Map<String,Object> values, EntityInfo info) 
+			throws HBaseException {
+		Put update = new Put(rowKey);
+		Map<String,Map<String,byte[]>> packed = null;
+		for (Map.Entry<String,Object> e : values.entrySet()) {
+			FieldMapping field = info.getPropertyMapping(e.getKey());
+			if (field == null) {
+				if (info.getKeyProperty() != null && info.getKeyProperty().getName().equals(e.getKey()))
+					throw new IllegalArgumentException( String.format("Row key property '%s' cannot be updated", e.getKey()) );
+				throw new IllegalArgumentException( String.format("Unknown property name '%s'", e.getKey()) );
+			}
+			
+			if (info.isPacked(field))
+				packed = addPackedValue(packed, field, info.encodePacked(field, e.getValue()));
+			else
+				addFieldUpdate(update, info, field, e.getValue());
+		}
+		
+		if (packed != null) {
+			HTable table = null;
+			try {
+				table = HUtil.getTable(info.getTablename());
+				Get get = new Get(rowKey);
+				for (String family : packed.keySet())
+					get.addColumn(Bytes.toBytes(family), PACKED_QUALIFIER);
+				Result row = table.get(get);
+				
+				for (Map.Entry<String,Map<String,byte[]>> e : packed.entrySet()) {
+					byte[] family = Bytes.toBytes(e.getKey());
+					Map<String,byte[]> stored = CompactCodec.unpack(row != null ? row.getValue(family, PACKED_QUALIFIER) : null);
+					for (Map.Entry<String,byte[]> val : e.getValue().entrySet()) {
+						if (val.getValue() == null)
+							stored.remove(val.getKey());
+						else
+							stored.put(val.getKey(), val.getValue());
 					}
-				}
-				else {
-					// FIXME: delete mapped values
+					update.add(family, PACKED_QUALIFIER, CompactCodec.pack(stored));
 				}
 			}
-			else if (Collection.class.isAssignableFrom(prop.getPropertyType())) {
-				Collection propValues = (Collection) getProperty(entity, prop);
-				if (propValues != null) {
-					int idx = 0;
-					for (Object val : propValues) {
-						String indexfield = String.format("%s_%d", fieldname, idx++);
-						setUpdateField(update, field.getFamily(), indexfield, PBUtil.toBytes(val));
-					}
+			catch (IOException ioe) {
+				throw new HBaseException(String.format("Error reading packed values for row '%s'", Bytes.toString(rowKey)), ioe);
+			}
+			finally {
+				HUtil.releaseTable(table);
+			}
+		}
+		
+		return update;
+	}
+	
+	
+	/**
+	 * Adds an encoded packed value to the values collected by family, 
+	 * returning the (possibly newly created) collection
+	 */
+	private static Map<String,Map<String,byte[]>> addPackedValue(Map<String,Map<String,byte[]>> packed,
+			FieldMapping field, byte[] value) {
+		if (packed == null)
+			packed = new TreeMap<String,Map<String,byte[]>>();
+		Map<String,byte[]> familyVals = packed.get(field.getFamily());
+		if (familyVals == null) {
+			familyVals = new TreeMap<String,byte[]>();
+			packed.put(field.getFamily(), familyVals);
+		}
+		familyVals.put(field.getColumn(), value);
+		
+		return packed;
+	}
+	
+	
+	/**
+	 * Adds the columns storing the property value to the update.  Packed
+	 * fields are not handled here, as they share a single cell per family.
+	 */
+	protected void addFieldUpdate(Put update, EntityInfo info, FieldMapping field, Object value) {
+		PropertyDescriptor prop = field.getBeanProperty();
+		String fieldname = field.getColumn();
+		if (field instanceof EmbeddedField) {
+			byte[] propVal = ((EmbeddedField)field).getCodec().encode(value);
+			setUpdateField(update, field.getFamily(), fieldname, propVal);
+		}
+		// allow multiple values for collections
+		else if (Map.class.isAssignableFrom(prop.getPropertyType())) {
+			Map propValues = (Map) value;
+			if (propValues != null) {
+				for (Object key : propValues.keySet()) {
+					String mapfield = fieldname + key.toString();
+					setUpdateField(update, field.getFamily(), mapfield, info.encodeValue(prop, propValues.get(key)));
 				}
-				else {
-					// FIXME: delete all cell values
-					setUpdateField(update, field.getFamily(), fieldname, null);
+			}
+			else {
+				// FIXME: delete mapped values
+			}
+		}
+		else if (Collection.class.isAssignableFrom(prop.getPropertyType())) {
+			ListField listField = (ListField) field;
+			Collection propValues = (Collection) value;
+			int idx = 0;
+			if (propValues != null) {
+				for (Object val : propValues) {
+					String indexfield = listField.getElementColumn(idx++);
+					setUpdateField(update, field.getFamily(), indexfield, info.encodeValue(prop, val));
 				}
 			}
 			else {
-				byte[] propVal = readProperty(entity, prop);
-				setUpdateField(update, field.getFamily(), fieldname, propVal);
+				// FIXME: delete all cell values
+				setUpdateField(update, field.getFamily(), fieldname, null);
 			}
+			// appends continue after the saved elements
+			setUpdateField(update, field.getFamily(), listField.getCounterColumn(), Bytes.toBytes((long)idx));
+		}
+		else {
+			byte[] propVal = info.encodeValue(prop, value);
+			setUpdateField(update, field.getFamily(), fieldname, propVal);
 		}
-		
-		return update;
 	}
 	
 	
@@ -622,7 +1689,7 @@ public class EntityService<T> {
 	protected void writeProperty(T entity, PropertyDescriptor prop, byte[] value, boolean pbEncoded) 
 		    throws HBaseException {
 		if (pbEncoded)
-			setProperty(entity, prop, PBUtil.toValue(value));
+			setProperty(entity, prop, PBUtil.toValue(value, prop.getPropertyType()));
 		else
 			setProperty(entity, prop, HUtil.convertValue(value, prop.getPropertyType()));
 	}
@@ -0,0 +1,199 @@
+package meetup.beeno;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.HashMap;
+import java.util.Map;
+
+import meetup.beeno.util.IOUtil;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Accumulates aggregate results per group key in a hash map.  When the
+ * number of groups held in memory exceeds the configured limit, the current
+ * partial results are spilled to temporary files, hash partitioned by group
+ * key.  When the results are read back, each partition is merged in memory
+ * one at a time, so only a fraction of the groups need to be held at once.
+ *
+ * @author garyh
+ *
+ */
+public class GroupAggregator {
+	private static Logger log = Logger.getLogger(GroupAggregator.class);
+
+	public static final int DEFAULT_MAX_GROUPS = 100000;
+	private static final int SPILL_PARTITIONS = 16;
+
+	/**
+	 * Receives the final aggregate results for each group
+	 */
+	public static interface Handler {
+		void group(Object key, AggregateResult result) throws HBaseException;
+	}
+
+	private final Aggregate[] aggregates;
+	private final int maxGroups;
+	private Map<Object,AggregateResult> groups = new HashMap<Object,AggregateResult>();
+	private File[] spillFiles = null;
+	private ObjectOutputStream[] spillOutputs = null;
+	private int spillCount = 0;
+
+	public GroupAggregator(Aggregate[] aggregates) {
+		this(aggregates, DEFAULT_MAX_GROUPS);
+	}
+
+	public GroupAggregator(Aggregate[] aggregates, int maxGroups) {
+		this.aggregates = aggregates;
+		this.maxGroups = maxGroups;
+	}
+
+	/**
+	 * Returns the in-memory accumulator for the group, creating it if needed
+	 */
+	public AggregateResult getResult(Object key) {
+		AggregateResult res = this.groups.get(key);
+		if (res == null) {
+			if (this.groups.size() >= this.maxGroups)
+				spill();
+
+			res = new AggregateResult(this.aggregates);
+			this.groups.put(key, res);
+		}
+
+		return res;
+	}
+
+	/**
+	 * Merges in a partial result for the group
+	 */
+	public void merge(Object key, AggregateResult partial) {
+		getResult(key).merge(partial);
+	}
+
+	/**
+	 * Merges all of the groups from another aggregator into this one
+	 */
+	public void merge(GroupAggregator other) throws HBaseException {
+		other.finish(new Handler() {
+			public void group(Object key, AggregateResult result) {
+				merge(key, result);
+			}
+		});
+	}
+
+	public boolean isSpilled() { return this.spillCount > 0; }
+
+	/**
+	 * Writes out the in-memory groups to the partition files
+	 */
+	protected void spill() {
+		try {
+			if (this.spillOutputs == null) {
+				this.spillFiles = new File[SPILL_PARTITIONS];
+				this.spillOutputs = new ObjectOutputStream[SPILL_PARTITIONS];
+				for (int i=0; i<SPILL_PARTITIONS; i++) {
+					this.spillFiles[i] = File.createTempFile("beeno-agg", ".spill");
+					this.spillFiles[i].deleteOnExit();
+					this.spillOutputs[i] = new ObjectOutputStream(
+							new BufferedOutputStream(new FileOutputStream(this.spillFiles[i])));
+				}
+			}
+
+			for (Map.Entry<Object,AggregateResult> e : this.groups.entrySet()) {
+				ObjectOutputStream out = this.spillOutputs[partition(e.getKey())];
+				out.writeBoolean(true);
+				IOUtil.writeNullableWithType(out, e.getKey());
+				e.getValue().write(out);
+			}
+			for (ObjectOutputStream out : this.spillOutputs)
+				out.reset();
+
+			this.spillCount++;
+			if (log.isDebugEnabled())
+				log.debug(String.format("Spilled %d groups to disk (spill %d)", this.groups.size(), this.spillCount));
+			this.groups = new HashMap<Object,AggregateResult>();
+		}
+		catch (IOException ioe) {
+			throw new IllegalStateException("Error spilling aggregate groups to disk", ioe);
+		}
+	}
+
+	protected int partition(Object key) {
+		int hash = (key == null ? 0 : key.hashCode());
+		return (hash & Integer.MAX_VALUE) % SPILL_PARTITIONS;
+	}
+
+	/**
+	 * Passes the final result for each group to the handler, then releases
+	 * all held groups and any spill files.
+	 */
+	public void finish(Handler handler) throws HBaseException {
+		if (!isSpilled()) {
+			for (Map.Entry<Object,AggregateResult> e : this.groups.entrySet())
+				handler.group(e.getKey(), e.getValue());
+			this.groups = new HashMap<Object,AggregateResult>();
+			return;
+		}
+
+		try {
+			spill();
+			for (ObjectOutputStream out : this.spillOutputs) {
+				out.writeBoolean(false);
+				out.close();
+			}
+
+			for (File f : this.spillFiles) {
+				Map<Object,AggregateResult> partition = readPartition(f);
+				for (Map.Entry<Object,AggregateResult> e : partition.entrySet())
+					handler.group(e.getKey(), e.getValue());
+			}
+		}
+		catch (IOException ioe) {
+			throw new HBaseException("Error reading spilled aggregate groups", ioe);
+		}
+		finally {
+			for (File f : this.spillFiles)
+				f.delete();
+			this.spillFiles = null;
+			this.spillOutputs = null;
+			this.spillCount = 0;
+		}
+	}
+
+	protected Map<Object,AggregateResult> readPartition(File f) throws IOException {
+		Map<Object,AggregateResult> partition = new HashMap<Object,AggregateResult>();
+		ObjectInputStream in = new ObjectInputStream(new BufferedInputStream(new FileInputStream(f)));
+		try {
+			while (in.readBoolean()) {
+				Object key = IOUtil.readWithType(in);
+				AggregateResult res = new AggregateResult(this.aggregates);
+				res.readFields(in);
+
+				AggregateResult cur = partition.get(key);
+				if (cur == null)
+					partition.put(key, res);
+				else
+					cur.merge(res);
+			}
+		}
+		catch (EOFException eof) {
+			log.error("Truncated aggregate spill file "+f.getPath());
+		}
+		catch (ClassNotFoundException cnfe) {
+			throw new IOException("Unable to read group key: "+cnfe.getMessage());
+		}
+		finally {
+			in.close();
+		}
+
+		return partition;
+	}
+}
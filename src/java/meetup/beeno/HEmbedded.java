@@ -0,0 +1,28 @@
+package meetup.beeno;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Marks an {@link HProperty} mapped property holding a nested value object
+ * (a JavaBean such as an address or settings struct), which is serialized
+ * with all of its bean properties into the single mapped column.  See
+ * {@link meetup.beeno.util.EmbeddedCodec} for the supported property types.
+ * 
+ * @author garyh
+ *
+ */
+@Documented
+@Retention(RetentionPolicy.RUNTIME)
+@Target({ElementType.FIELD, ElementType.METHOD})
+public @interface HEmbedded {
+	/**
+	 * Decodes the stored value on first access to the value object, rather
+	 * than when the entity is read.  Lazy values are subclass proxies, so
+	 * the value class must not be final and needs a no argument constructor.
+	 */
+	boolean lazy() default true;
+}
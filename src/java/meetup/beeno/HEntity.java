@@ -13,4 +13,34 @@ import java.lang.annotation.Target;
 @Inherited
 public @interface HEntity {
 	String name();
+	/**
+	 * Stores property values with the {@link meetup.beeno.util.CompactCodec}
+	 * instead of protobuf messages.  Cells already stored as protobufs are
+	 * still read, but query conditions are encoded in the entity's current 
+	 * format, so indexes should be rebuilt after changing this setting.
+	 */
+	boolean compact() default false;
+	/**
+	 * Stores the values of all scalar properties not used by an index in a
+	 * single packed cell per column family, instead of a cell for each
+	 * property.  Properties stored in index rows (indexed, key, date and
+	 * extra columns), collection properties and embedded properties are 
+	 * still stored in their own columns.
+	 */
+	boolean packed() default false;
+	/**
+	 * Reads entities as generated subclasses which keep the stored row, and
+	 * decode each property on the first call to its getter.  Calling any 
+	 * other method of the entity (other than a mapped setter) decodes all
+	 * remaining properties first, so methods reading fields directly see 
+	 * the stored values.  The entity class must be non-final, with a 
+	 * non-private no-argument constructor.  Instances implement 
+	 * {@link LazyEntity}.
+	 */
+	boolean lazy() default false;
+	/**
+	 * Column families whose mapped properties are all lazy, as if each had
+	 * {@link HProperty#lazy()} set.
+	 */
+	String[] lazyFamilies() default {};
 }
@@ -23,4 +23,19 @@ public @interface HIndex {
 	boolean date_invert() default false;
 	String[] extra_cols() default {};
 	Class<? extends IndexKeyFactory> key_factory() default EntityIndexer.DefaultKeyFactory.class;
+	/**
+	 * Additional columns ("family:column") following the property value in
+	 * the index key, forming a composite index.  Queries constraining a 
+	 * leading prefix of the key properties can scan the index directly.
+	 */
+	String[] key_cols() default {};
+	/**
+	 * Number of buckets (up to 256) to spread index rows across.  When set,
+	 * each index key is prefixed with a single byte bucket number, hashed
+	 * from the entity row key.  Index queries scan all buckets in parallel
+	 * and merge the results back into index key order.
+	 */
+	int salt_buckets() default 0;
+	/** For collection properties, generates one index row for each element */
+	boolean multi_value() default false;
 }
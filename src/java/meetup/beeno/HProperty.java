@@ -12,6 +12,23 @@ import java.lang.annotation.Target;
 public @interface HProperty {
 	String family();
 	String name();
+	/**
+	 * Short column qualifier stored in place of <code>name</code>, to cut
+	 * the size of each stored cell.  Index annotations and queries still
+	 * refer to the column by <code>name</code>.
+	 */
+	String alias() default "";
 	String type() default "";
+	/**
+	 * Leaves the property's columns out of the reads for the entity, loading
+	 * them with a separate Get on first access.  Lazy properties are loaded
+	 * together with the other lazy properties in their column family (the
+	 * family's fetch group), and can be loaded for many entities at once 
+	 * with {@link EntityService#loadLazy(java.util.Collection, String...)}.  
+	 * Properties stored in index rows are always read.  Entities with lazy
+	 * properties are read as generated subclasses, as for 
+	 * {@link HEntity#lazy()}.
+	 */
+	boolean lazy() default false;
 	HIndex[] indexes() default {};
 }
@@ -0,0 +1,96 @@
+package meetup.beeno;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.apache.hadoop.hbase.util.Bytes;
+
+/**
+ * Tracks the most frequent values in a stream with a fixed number of
+ * counters (the "space saving" algorithm).  When a new value arrives and
+ * all counters are in use, the counter with the lowest count is reassigned
+ * to the new value, keeping its count.  Counts for frequent values are
+ * therefore overestimated by at most the count of the replaced value,
+ * which is tracked as the counter's error.
+ *
+ * @author garyh
+ *
+ */
+public class HeavyHitters {
+	public static final int DEFAULT_SIZE = 100;
+
+	private final int size;
+	private final Map<byte[],long[]> counters = new TreeMap<byte[],long[]>(Bytes.BYTES_COMPARATOR);
+
+	public HeavyHitters() {
+		this(DEFAULT_SIZE);
+	}
+
+	public HeavyHitters(int size) {
+		this.size = size;
+	}
+
+	public void add(byte[] value) {
+		add(value, 1, 0);
+	}
+
+	/**
+	 * Adds <code>count</code> occurrences of the value, with the given
+	 * possible overcount
+	 */
+	public void add(byte[] value, long count, long error) {
+		long[] counter = this.counters.get(value);
+		if (counter != null) {
+			counter[0] += count;
+			counter[1] += error;
+			return;
+		}
+
+		if (this.counters.size() < this.size) {
+			this.counters.put(value, new long[]{ count, error });
+			return;
+		}
+
+		// replace the least frequent value
+		byte[] minValue = null;
+		long[] min = null;
+		for (Map.Entry<byte[],long[]> e : this.counters.entrySet()) {
+			if (min == null || e.getValue()[0] < min[0]) {
+				minValue = e.getKey();
+				min = e.getValue();
+			}
+		}
+		this.counters.remove(minValue);
+		this.counters.put(value, new long[]{ min[0] + count, min[0] + error });
+	}
+
+	public void merge(HeavyHitters other) {
+		for (Map.Entry<byte[],long[]> e : other.counters.entrySet())
+			add(e.getKey(), e.getValue()[0], e.getValue()[1]);
+	}
+
+	/**
+	 * Returns up to <code>n</code> of the most frequent values, with their
+	 * estimated counts
+	 */
+	public Map<byte[],Long> getTop(int n) {
+		List<Map.Entry<byte[],long[]>> entries = new ArrayList<Map.Entry<byte[],long[]>>(this.counters.entrySet());
+		Collections.sort(entries, new Comparator<Map.Entry<byte[],long[]>>() {
+			public int compare(Map.Entry<byte[],long[]> e1, Map.Entry<byte[],long[]> e2) {
+				long c1 = e1.getValue()[0];
+				long c2 = e2.getValue()[0];
+				return (c1 > c2 ? -1 : (c1 < c2 ? 1 : 0));
+			}
+		});
+
+		Map<byte[],Long> top = new TreeMap<byte[],Long>(Bytes.BYTES_COMPARATOR);
+		for (int i=0; i<Math.min(n, entries.size()); i++)
+			top.put(entries.get(i).getKey(), entries.get(i).getValue()[0]);
+
+		return top;
+	}
+}
@@ -0,0 +1,385 @@
+package meetup.beeno;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+import meetup.beeno.mapping.EntityInfo;
+import meetup.beeno.mapping.EntityMetadata;
+import meetup.beeno.mapping.IndexMapping;
+import meetup.beeno.mapping.MappingException;
+import meetup.beeno.util.HUtil;
+
+import org.apache.hadoop.hbase.KeyValue;
+import org.apache.hadoop.hbase.client.HTable;
+import org.apache.hadoop.hbase.client.Put;
+import org.apache.hadoop.hbase.client.Result;
+import org.apache.hadoop.hbase.client.ResultScanner;
+import org.apache.hadoop.hbase.client.Scan;
+import org.apache.hadoop.hbase.util.Base64;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.apache.log4j.Logger;
+
+/**
+ * Populates secondary index tables from the existing rows of an entity
+ * table, without rewriting the entity rows.  Each region of the entity
+ * table is scanned in parallel, and index updates are generated by the
+ * mapped {@link EntityIndexer} instances for each row and written in
+ * batches.
+ *
+ * <pre>
+ *   IndexRebuilder rebuilder = new IndexRebuilder(MyEntity.class);
+ *   rebuilder.setCheckpointFile( new File("/tmp/myentity-rebuild.ckpt") );
+ *   rebuilder.setMaxRowsPerSecond(5000);
+ *   rebuilder.rebuild("myentity-by_itemtype");
+ * </pre>
+ *
+ * If a checkpoint file is set, the last row indexed for each region is
+ * recorded after each batch.  A later run with the same file and index 
+ * tables skips the rows already processed, and skips completed regions 
+ * entirely.  Progress is tracked by index tables and region end key, so 
+ * regions split since the checkpoint was written are rescanned from the 
+ * start.  Index updates are idempotent, so rescanning rows is harmless.
+ * Once all regions are done, the rebuild's checkpoints are cleared, so a
+ * later run with the same file starts over.
+ *
+ * @author garyh
+ *
+ */
+public class IndexRebuilder {
+	private static Logger log = Logger.getLogger(IndexRebuilder.class);
+
+	public static final int DEFAULT_BATCH_SIZE = 1000;
+	private static final String DONE = "done";
+
+	private final EntityInfo info;
+	private int batchSize = DEFAULT_BATCH_SIZE;
+	private int maxThreads = ParallelScan.DEFAULT_MAX_THREADS;
+	private int maxRowsPerSecond = 0;
+	private File checkpointFile = null;
+	private Properties checkpoints = new Properties();
+	private String checkpointTables = null;
+
+	private long throttleStart = 0;
+	private long throttleRows = 0;
+
+	public IndexRebuilder(Class entityClass) throws MappingException {
+		this.info = EntityMetadata.getInstance().getInfo(entityClass);
+	}
+
+	public int getBatchSize() { return this.batchSize; }
+	/** Number of entity rows to process between index table flushes */
+	public void setBatchSize(int size) { this.batchSize = size; }
+
+	public int getMaxThreads() { return this.maxThreads; }
+	public void setMaxThreads(int threads) { this.maxThreads = threads; }
+
+	public int getMaxRowsPerSecond() { return this.maxRowsPerSecond; }
+	/** Limits the combined rate of all region scans.  Zero means unlimited. */
+	public void setMaxRowsPerSecond(int rows) { this.maxRowsPerSecond = rows; }
+
+	public File getCheckpointFile() { return this.checkpointFile; }
+	public void setCheckpointFile(File file) { this.checkpointFile = file; }
+
+	/**
+	 * Rebuilds all of the indexes mapped for the entity
+	 * @return the number of entity rows processed
+	 */
+	public long rebuild() throws HBaseException {
+		return rebuild((String[])null);
+	}
+
+	/**
+	 * Rebuilds the given index tables, which must be mapped for the entity.
+	 * Passing no table names rebuilds all mapped indexes.
+	 * @return the number of entity rows processed
+	 */
+	public long rebuild(String... indexTables) throws HBaseException {
+		final List<EntityIndexer> indexers = getIndexers(indexTables);
+		if (indexers.isEmpty()) {
+			log.warn("No indexes to rebuild for entity "+this.info.getEntityClass().getName());
+			return 0;
+		}
+
+		loadCheckpoints(indexers);
+
+		long t1 = System.nanoTime();
+		Scan scan = new Scan();
+		scan.setCaching(Math.min(this.batchSize, 1000));
+		ParallelScan pscan = new ParallelScan(this.info.getTablename(), scan) {
+			protected <R> R scanRegion(RegionTask<R> task, byte[] startRow, byte[] stopRow)
+					throws IOException, HBaseException {
+				String progress = getCheckpoint(stopRow);
+				if (DONE.equals(progress)) {
+					if (log.isDebugEnabled())
+						log.debug("Skipping completed region ending at "+Bytes.toStringBinary(stopRow));
+					return null;
+				}
+				if (progress != null) {
+					// resume after the last indexed row
+					startRow = Bytes.add(Base64.decode(progress, Base64.URL_SAFE), new byte[]{ 0 });
+				}
+
+				return super.scanRegion(task, startRow, stopRow);
+			}
+		};
+		pscan.setMaxThreads(this.maxThreads);
+
+		List<Long> counts = pscan.run(new ParallelScan.RegionTask<Long>() {
+			public Long scan(ResultScanner scanner, byte[] startRow, byte[] stopRow)
+					throws IOException, HBaseException {
+				return rebuildRegion(scanner, stopRow, indexers);
+			}
+		});
+
+		long total = 0;
+		for (Long cnt : counts) {
+			if (cnt != null)
+				total += cnt;
+		}
+
+		try {
+			clearCheckpoints();
+		}
+		catch (IOException ioe) {
+			throw new HBaseException("Error clearing checkpoint file "+this.checkpointFile.getPath(), ioe);
+		}
+
+		long t2 = System.nanoTime();
+		log.info(String.format("HBASE TIMER: [%s] rebuilt %d indexes from %d rows in %f msec.",
+				this.info.getEntityClass().getSimpleName(), indexers.size(), total, ((t2-t1)/1000000.0)));
+
+		return total;
+	}
+
+	protected List<EntityIndexer> getIndexers(String[] indexTables) throws MappingException {
+		List<EntityIndexer> indexers = new ArrayList<EntityIndexer>();
+		for (IndexMapping idx : this.info.getMappedIndexes()) {
+			if (idx.getGenerator() != null)
+				indexers.add(idx.getGenerator());
+		}
+		if (indexTables == null || indexTables.length == 0)
+			return indexers;
+
+		List<EntityIndexer> selected = new ArrayList<EntityIndexer>(indexTables.length);
+		for (String table : indexTables) {
+			EntityIndexer match = null;
+			for (EntityIndexer indexer : indexers) {
+				if (indexer.getIndexTable().equals(table))
+					match = indexer;
+			}
+			if (match == null)
+				throw new MappingException(this.info.getEntityClass(),
+						String.format("No index mapped for table '%s'", table));
+			selected.add(match);
+		}
+
+		return selected;
+	}
+
+	/**
+	 * Generates and writes the index updates for all rows in the region
+	 */
+	protected long rebuildRegion(ResultScanner scanner, byte[] regionStop, List<EntityIndexer> indexers)
+			throws IOException, HBaseException {
+		Map<String,HTable> tables = new HashMap<String,HTable>();
+		long cnt = 0;
+		int batchCnt = 0;
+		byte[] lastRow = null;
+		try {
+			for (EntityIndexer indexer : indexers) {
+				if (!tables.containsKey(indexer.getIndexTable())) {
+					HTable table = HUtil.getTable(indexer.getIndexTable());
+					table.setAutoFlush(false);
+					tables.put(indexer.getIndexTable(), table);
+				}
+			}
+
+			for (Result row : scanner) {
+				if (row == null || row.isEmpty())
+					continue;
+
+				Put entityPut = toPut(row);
+				for (EntityIndexer indexer : indexers) {
+					List<Put> updates = indexer.getIndexUpdates(entityPut);
+					if (updates != null && updates.size() > 0)
+						tables.get(indexer.getIndexTable()).put(updates);
+				}
+
+				lastRow = row.getRow();
+				cnt++;
+				if (++batchCnt >= this.batchSize) {
+					flush(tables);
+					setCheckpoint(regionStop, Base64.encodeBytes(lastRow, Base64.URL_SAFE | Base64.DONT_BREAK_LINES));
+					throttle(batchCnt);
+					batchCnt = 0;
+				}
+			}
+
+			flush(tables);
+			setCheckpoint(regionStop, DONE);
+		}
+		finally {
+			for (HTable table : tables.values()) {
+				table.setAutoFlush(true);
+				HUtil.releaseTable(table);
+			}
+		}
+
+		return cnt;
+	}
+
+	/**
+	 * Rebuilds the entity update from the stored row values, using the
+	 * latest timestamp in the row so index rows match the base row.
+	 */
+	static Put toPut(Result row) throws IOException {
+		Put put = new Put(row.getRow());
+		long maxTs = 0;
+		for (KeyValue kv : row.raw()) {
+			put.add(kv);
+			maxTs = Math.max(maxTs, kv.getTimestamp());
+		}
+		put.setTimeStamp(maxTs);
+
+		return put;
+	}
+
+	protected void flush(Map<String,HTable> tables) throws IOException {
+		for (HTable table : tables.values())
+			table.flushCommits();
+	}
+
+	/**
+	 * Sleeps as needed to keep the combined row rate under the limit
+	 */
+	protected void throttle(int rows) {
+		if (this.maxRowsPerSecond <= 0)
+			return;
+
+		long sleepMsec = 0;
+		synchronized (this) {
+			long now = System.currentTimeMillis();
+			if (this.throttleStart == 0)
+				this.throttleStart = now;
+			this.throttleRows += rows;
+			long expectedMsec = (this.throttleRows * 1000) / this.maxRowsPerSecond;
+			sleepMsec = expectedMsec - (now - this.throttleStart);
+		}
+
+		if (sleepMsec > 0) {
+			try {
+				Thread.sleep(sleepMsec);
+			}
+			catch (InterruptedException ie) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+
+	/* ========== Checkpoint tracking ========== */
+
+	/**
+	 * Returns the checkpoint entry name for the region, prefixed by the 
+	 * index tables being rebuilt
+	 */
+	protected String regionKey(byte[] regionStop) {
+		String region = (regionStop == null || regionStop.length == 0) ? "end" :
+			Base64.encodeBytes(regionStop, Base64.URL_SAFE | Base64.DONT_BREAK_LINES);
+		return this.checkpointTables + "/" + region;
+	}
+
+	protected synchronized String getCheckpoint(byte[] regionStop) {
+		return this.checkpoints.getProperty(regionKey(regionStop));
+	}
+
+	protected synchronized void setCheckpoint(byte[] regionStop, String progress) throws IOException {
+		this.checkpoints.setProperty(regionKey(regionStop), progress);
+		storeCheckpoints();
+	}
+
+	/**
+	 * Removes the checkpoints for the completed rebuild, deleting the file 
+	 * if no other rebuild's checkpoints remain
+	 */
+	protected synchronized void clearCheckpoints() throws IOException {
+		String prefix = this.checkpointTables + "/";
+		for (String key : this.checkpoints.stringPropertyNames()) {
+			if (key.startsWith(prefix))
+				this.checkpoints.remove(key);
+		}
+		if (this.checkpointFile == null)
+			return;
+
+		if (this.checkpoints.isEmpty()) {
+			if (this.checkpointFile.exists() && !this.checkpointFile.delete())
+				throw new IOException("Unable to delete checkpoint file "+this.checkpointFile.getPath());
+		}
+		else {
+			storeCheckpoints();
+		}
+	}
+
+	protected synchronized void storeCheckpoints() throws IOException {
+		if (this.checkpointFile == null)
+			return;
+
+		// write to a temp file and swap in, so a crash doesn't leave a partial file
+		File tmp = new File(this.checkpointFile.getPath()+".tmp");
+		OutputStream out = new FileOutputStream(tmp);
+		try {
+			this.checkpoints.store(out, "Index rebuild progress for "+this.info.getTablename());
+		}
+		finally {
+			out.close();
+		}
+		if (!tmp.renameTo(this.checkpointFile)) {
+			this.checkpointFile.delete();
+			if (!tmp.renameTo(this.checkpointFile))
+				throw new IOException("Unable to write checkpoint file "+this.checkpointFile.getPath());
+		}
+	}
+
+	protected synchronized void loadCheckpoints(List<EntityIndexer> indexers) throws HBaseException {
+		List<String> tables = new ArrayList<String>(indexers.size());
+		for (EntityIndexer indexer : indexers)
+			tables.add(indexer.getIndexTable());
+		Collections.sort(tables);
+		StringBuilder names = new StringBuilder();
+		for (String table : tables) {
+			if (names.length() > 0)
+				names.append(',');
+			names.append(table);
+		}
+		this.checkpointTables = names.toString();
+
+		this.checkpoints = new Properties();
+		if (this.checkpointFile == null || !this.checkpointFile.exists())
+			return;
+
+		try {
+			InputStream in = new FileInputStream(this.checkpointFile);
+			try {
+				this.checkpoints.load(in);
+			}
+			finally {
+				in.close();
+			}
+			log.info(String.format("Resuming index rebuild with %d region checkpoints from %s",
+					this.checkpoints.size(), this.checkpointFile.getPath()));
+		}
+		catch (IOException ioe) {
+			throw new HBaseException("Error reading checkpoint file "+this.checkpointFile.getPath(), ioe);
+		}
+	}
+}
@@ -0,0 +1,158 @@
+package meetup.beeno;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import meetup.beeno.util.HUtil;
+
+import org.apache.hadoop.hbase.client.Delete;
+import org.apache.hadoop.hbase.client.HTable;
+import org.apache.log4j.Logger;
+
+/**
+ * Background queue of stale index rows found during index scans with read
+ * repair enabled.  A single daemon thread drains the queue, deleting the
+ * stale rows in batches per index table.
+ *
+ * The queue is bounded, so repairs are dropped rather than blocking readers
+ * when the queue is full.  Dropped rows will be found again by later scans.
+ *
+ * @author garyh
+ *
+ */
+public class IndexRepairQueue {
+	private static Logger log = Logger.getLogger(IndexRepairQueue.class);
+
+	public static final int DEFAULT_CAPACITY = 10000;
+	public static final int BATCH_SIZE = 100;
+	private static final long FLUSH_INTERVAL_MSEC = 1000;
+
+	private static IndexRepairQueue instance = null;
+
+	private final BlockingQueue<Repair> pending;
+	private Thread worker = null;
+	private final AtomicLong repairedCnt = new AtomicLong();
+	private final AtomicLong droppedCnt = new AtomicLong();
+
+	protected IndexRepairQueue(int capacity) {
+		this.pending = new LinkedBlockingQueue<Repair>(capacity);
+	}
+
+	public static synchronized IndexRepairQueue getInstance() {
+		if (instance == null)
+			instance = new IndexRepairQueue(DEFAULT_CAPACITY);
+
+		return instance;
+	}
+
+	/**
+	 * Queues the delete of a stale index row.  Returns <code>false</code> if
+	 * the queue is full and the repair was dropped.
+	 */
+	public boolean add(String indexTable, Delete staleRow) {
+		ensureStarted();
+		if (!this.pending.offer(new Repair(indexTable, staleRow))) {
+			this.droppedCnt.incrementAndGet();
+			if (log.isDebugEnabled())
+				log.debug("Repair queue full, dropping repair for index table "+indexTable);
+			return false;
+		}
+
+		return true;
+	}
+
+	/** Number of stale index rows deleted so far */
+	public long getRepairedCount() { return this.repairedCnt.get(); }
+
+	/** Number of repairs dropped because the queue was full */
+	public long getDroppedCount() { return this.droppedCnt.get(); }
+
+	/** Number of repairs waiting to be applied */
+	public int getPendingCount() { return this.pending.size(); }
+
+	protected synchronized void ensureStarted() {
+		if (this.worker == null || !this.worker.isAlive()) {
+			this.worker = new Thread(new Runnable() {
+				public void run() {
+					processQueue();
+				}
+			}, "beeno-index-repair");
+			this.worker.setDaemon(true);
+			this.worker.start();
+		}
+	}
+
+	protected void processQueue() {
+		List<Repair> batch = new ArrayList<Repair>(BATCH_SIZE);
+		while (!Thread.currentThread().isInterrupted()) {
+			try {
+				Repair first = this.pending.poll(FLUSH_INTERVAL_MSEC, TimeUnit.MILLISECONDS);
+				if (first == null)
+					continue;
+
+				batch.add(first);
+				this.pending.drainTo(batch, BATCH_SIZE - 1);
+				flush(batch);
+			}
+			catch (InterruptedException ie) {
+				Thread.currentThread().interrupt();
+			}
+			catch (Exception e) {
+				log.error("Error applying index repairs", e);
+			}
+			finally {
+				batch.clear();
+			}
+		}
+	}
+
+	/**
+	 * Applies the deletes in the batch, grouped by index table
+	 */
+	protected void flush(List<Repair> batch) {
+		Map<String,ArrayList<Delete>> deletesByTable = new HashMap<String,ArrayList<Delete>>();
+		for (Repair r : batch) {
+			ArrayList<Delete> deletes = deletesByTable.get(r.table);
+			if (deletes == null) {
+				deletes = new ArrayList<Delete>();
+				deletesByTable.put(r.table, deletes);
+			}
+			deletes.add(r.delete);
+		}
+
+		for (Map.Entry<String,ArrayList<Delete>> entry : deletesByTable.entrySet()) {
+			int cnt = entry.getValue().size();
+			HTable table = null;
+			try {
+				table = HUtil.getTable(entry.getKey());
+				table.delete(entry.getValue());
+				this.repairedCnt.addAndGet(cnt);
+				log.info(String.format("Repaired %d stale index rows in table %s", cnt, entry.getKey()));
+			}
+			catch (IOException ioe) {
+				log.error(String.format("Error deleting stale index rows from table [%s]", entry.getKey()), ioe);
+			}
+			finally {
+				HUtil.releaseTable(table);
+			}
+		}
+	}
+
+
+	private static class Repair {
+		final String table;
+		final Delete delete;
+
+		Repair(String table, Delete delete) {
+			this.table = table;
+			this.delete = delete;
+		}
+	}
+}
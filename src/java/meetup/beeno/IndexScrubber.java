@@ -0,0 +1,393 @@
+package meetup.beeno;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+import meetup.beeno.mapping.EntityInfo;
+import meetup.beeno.mapping.EntityMetadata;
+import meetup.beeno.mapping.IndexMapping;
+import meetup.beeno.mapping.MappingException;
+import meetup.beeno.util.HUtil;
+
+import org.apache.hadoop.hbase.KeyValue;
+import org.apache.hadoop.hbase.client.Delete;
+import org.apache.hadoop.hbase.client.HTable;
+import org.apache.hadoop.hbase.client.Put;
+import org.apache.hadoop.hbase.client.Result;
+import org.apache.hadoop.hbase.client.ResultScanner;
+import org.apache.hadoop.hbase.client.Scan;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.apache.log4j.Logger;
+
+/**
+ * Checks the consistency of an entity's index tables against the entity
+ * table, optionally repairing any problems found.  Each index row is
+ * classified as:
+ * <ul>
+ *   <li><em>valid</em>: the base row exists and generates the same index key</li>
+ *   <li><em>dangling</em>: the base row does not exist or has no indexed values
+ *       (or the index row has no base key)</li>
+ *   <li><em>mismatched</em>: the base row exists, but no longer generates the index key</li>
+ * </ul>
+ * and each base row with an indexed value but no matching index row is
+ * counted as <em>missing</em>.
+ *
+ * The check runs in two passes.  First, the index table regions are scanned
+ * in parallel, collecting the base row key referenced by each index row.
+ * These references are sorted by base row key.  Then the entity table
+ * regions are scanned in parallel, with each region merging its sorted
+ * base rows against the slice of index references falling in the region's
+ * key range.  All index references are held in memory during the second
+ * pass, so very large indexes may need a larger heap.
+ *
+ * @author garyh
+ *
+ */
+public class IndexScrubber {
+	private static Logger log = Logger.getLogger(IndexScrubber.class);
+
+	/**
+	 * Counts of the rows found in each state
+	 */
+	public static class Report {
+		private final String indexTable;
+		private long indexRows = 0;
+		private long baseRows = 0;
+		private long valid = 0;
+		private long dangling = 0;
+		private long mismatched = 0;
+		private long missing = 0;
+		private long repaired = 0;
+
+		public Report(String indexTable) {
+			this.indexTable = indexTable;
+		}
+
+		public String getIndexTable() { return this.indexTable; }
+		public long getIndexRows() { return this.indexRows; }
+		public long getBaseRows() { return this.baseRows; }
+		public long getValid() { return this.valid; }
+		public long getDangling() { return this.dangling; }
+		public long getMismatched() { return this.mismatched; }
+		public long getMissing() { return this.missing; }
+		public long getRepaired() { return this.repaired; }
+
+		/** Returns <code>true</code> if no inconsistencies were found */
+		public boolean isConsistent() {
+			return this.dangling == 0 && this.mismatched == 0 && this.missing == 0;
+		}
+
+		void merge(Report other) {
+			this.indexRows += other.indexRows;
+			this.baseRows += other.baseRows;
+			this.valid += other.valid;
+			this.dangling += other.dangling;
+			this.mismatched += other.mismatched;
+			this.missing += other.missing;
+			this.repaired += other.repaired;
+		}
+
+		public String toString() {
+			return String.format("[%s: table=%s; indexRows=%d; baseRows=%d; valid=%d; dangling=%d; mismatched=%d; missing=%d; repaired=%d]",
+					getClass().getSimpleName(), this.indexTable, this.indexRows, this.baseRows,
+					this.valid, this.dangling, this.mismatched, this.missing, this.repaired);
+		}
+	}
+
+	/**
+	 * An index row and the base row key it references
+	 */
+	static class IndexRef {
+		final byte[] baseRow;
+		final byte[] indexKey;
+		final long timestamp;
+
+		IndexRef(byte[] baseRow, byte[] indexKey, long timestamp) {
+			this.baseRow = baseRow;
+			this.indexKey = indexKey;
+			this.timestamp = timestamp;
+		}
+	}
+
+	private static final Comparator<IndexRef> BY_BASE_ROW = new Comparator<IndexRef>() {
+		public int compare(IndexRef r1, IndexRef r2) {
+			return Bytes.compareTo(r1.baseRow, r2.baseRow);
+		}
+	};
+
+	private final EntityInfo info;
+	private boolean repair = false;
+	private int maxThreads = ParallelScan.DEFAULT_MAX_THREADS;
+
+	public IndexScrubber(Class entityClass) throws MappingException {
+		this.info = EntityMetadata.getInstance().getInfo(entityClass);
+	}
+
+	public boolean isRepair() { return this.repair; }
+	/**
+	 * When set, dangling and mismatched index rows are deleted, and missing
+	 * index rows are written.
+	 */
+	public void setRepair(boolean repair) { this.repair = repair; }
+
+	public int getMaxThreads() { return this.maxThreads; }
+	public void setMaxThreads(int threads) { this.maxThreads = threads; }
+
+	/**
+	 * Checks all of the indexes mapped for the entity, returning a report for
+	 * each index table.
+	 */
+	public Map<String,Report> scrub() throws HBaseException {
+		Map<String,Report> reports = new HashMap<String,Report>();
+		for (IndexMapping idx : this.info.getMappedIndexes()) {
+			EntityIndexer indexer = idx.getGenerator();
+			if (indexer != null && !reports.containsKey(indexer.getIndexTable()))
+				reports.put(indexer.getIndexTable(), scrub(indexer));
+		}
+
+		return reports;
+	}
+
+	/**
+	 * Checks a single index table, which must be mapped for the entity
+	 */
+	public Report scrub(String indexTable) throws HBaseException {
+		for (IndexMapping idx : this.info.getMappedIndexes()) {
+			EntityIndexer indexer = idx.getGenerator();
+			if (indexer != null && indexer.getIndexTable().equals(indexTable))
+				return scrub(indexer);
+		}
+
+		throw new MappingException(this.info.getEntityClass(),
+				String.format("No index mapped for table '%s'", indexTable));
+	}
+
+	protected Report scrub(final EntityIndexer indexer) throws HBaseException {
+		long t1 = System.nanoTime();
+		final Report total = new Report(indexer.getIndexTable());
+
+		// pass 1: collect the base row references from the index table
+		final IndexRef[] refs = readIndexRefs(indexer, total);
+		Arrays.sort(refs, BY_BASE_ROW);
+
+		// pass 2: merge each base table region against its slice of references
+		Scan scan = new Scan();
+		// element columns for multi-valued indexes can't be named, so read whole rows
+		if (!indexer.isMultiValue()) {
+			for (HUtil.HCol col : indexer.getIndexedColumns())
+				scan.addColumn(col.family(), col.column());
+		}
+		ParallelScan pscan = new ParallelScan(this.info.getTablename(), scan);
+		pscan.setMaxThreads(this.maxThreads);
+
+		List<Report> partials = pscan.run(new ParallelScan.RegionTask<Report>() {
+			public Report scan(ResultScanner scanner, byte[] startRow, byte[] stopRow)
+					throws IOException, HBaseException {
+				int from = (startRow == null || startRow.length == 0) ? 0 : findFirst(refs, startRow);
+				return scrubRegion(indexer, scanner, refs, from, findFirst(refs, stopRow));
+			}
+		});
+		for (Report r : partials)
+			total.merge(r);
+
+		long t2 = System.nanoTime();
+		log.info(String.format("HBASE TIMER: scrubbed index %s in %f msec: %s",
+				indexer.getIndexTable(), ((t2-t1)/1000000.0), total));
+
+		return total;
+	}
+
+	/**
+	 * Reads the base row key from every index row, in parallel by index region.
+	 * Index rows without a base row key are counted (and repaired) here.
+	 */
+	protected IndexRef[] readIndexRefs(final EntityIndexer indexer, Report report) throws HBaseException {
+		Scan scan = new Scan();
+		scan.addColumn(EntityIndexer.INDEX_FAMILY, EntityIndexer.INDEX_KEY_COLUMN);
+		ParallelScan pscan = new ParallelScan(indexer.getIndexTable(), scan);
+		pscan.setMaxThreads(this.maxThreads);
+
+		final List<IndexRef> unreferenced = new ArrayList<IndexRef>();
+		List<List<IndexRef>> regionRefs = pscan.run(new ParallelScan.RegionTask<List<IndexRef>>() {
+			public List<IndexRef> scan(ResultScanner scanner, byte[] startRow, byte[] stopRow) {
+				List<IndexRef> refs = new ArrayList<IndexRef>();
+				for (Result row : scanner) {
+					if (row == null || row.isEmpty())
+						continue;
+
+					IndexRef ref = new IndexRef(row.getValue(EntityIndexer.INDEX_FAMILY, EntityIndexer.INDEX_KEY_COLUMN),
+												row.getRow(), getTimestamp(row));
+					if (ref.baseRow == null || ref.baseRow.length == 0) {
+						synchronized (unreferenced) {
+							unreferenced.add(ref);
+						}
+					}
+					else {
+						refs.add(ref);
+					}
+				}
+				return refs;
+			}
+		});
+
+		int cnt = 0;
+		for (List<IndexRef> refs : regionRefs)
+			cnt += refs.size();
+
+		IndexRef[] allRefs = new IndexRef[cnt];
+		int i = 0;
+		for (List<IndexRef> refs : regionRefs) {
+			for (IndexRef ref : refs)
+				allRefs[i++] = ref;
+		}
+
+		report.indexRows += cnt + unreferenced.size();
+		report.dangling += unreferenced.size();
+		if (this.repair && !unreferenced.isEmpty())
+			report.repaired += deleteRefs(indexer.getIndexTable(), unreferenced);
+
+		return allRefs;
+	}
+
+	/**
+	 * Merges the sorted base rows of a region against the sorted index
+	 * references in <code>refs[from, to)</code>
+	 */
+	protected Report scrubRegion(EntityIndexer indexer, ResultScanner scanner, IndexRef[] refs, int from, int to)
+			throws IOException, HBaseException {
+		Report report = new Report(indexer.getIndexTable());
+		List<IndexRef> stale = new ArrayList<IndexRef>();
+		List<Put> missing = new ArrayList<Put>();
+
+		int pos = from;
+		for (Result row : scanner) {
+			if (row == null || row.isEmpty())
+				continue;
+			report.baseRows++;
+			byte[] rowKey = row.getRow();
+
+			// references to rows before this one point to missing rows
+			while (pos < to && Bytes.compareTo(refs[pos].baseRow, rowKey) < 0) {
+				report.dangling++;
+				stale.add(refs[pos++]);
+			}
+
+			List<byte[]> expected = indexer.getIndexKeys(row);
+			Set<byte[]> found = new TreeSet<byte[]>(Bytes.BYTES_COMPARATOR);
+			while (pos < to && Bytes.equals(refs[pos].baseRow, rowKey)) {
+				if (indexer.generatesKey(row, refs[pos].indexKey)) {
+					report.valid++;
+					found.add(refs[pos].indexKey);
+				}
+				else {
+					report.mismatched++;
+					stale.add(refs[pos]);
+				}
+				pos++;
+			}
+
+			if (found.size() < expected.size()) {
+				report.missing += expected.size() - found.size();
+				if (this.repair) {
+					for (Put put : indexer.getIndexUpdates(IndexRebuilder.toPut(row))) {
+						if (!found.contains(put.getRow()))
+							missing.add(put);
+					}
+				}
+			}
+		}
+
+		// remaining references point past the last row in the region
+		while (pos < to) {
+			report.dangling++;
+			stale.add(refs[pos++]);
+		}
+
+		if (this.repair) {
+			if (!stale.isEmpty())
+				report.repaired += deleteRefs(indexer.getIndexTable(), stale);
+			if (!missing.isEmpty())
+				report.repaired += putRows(indexer.getIndexTable(), missing);
+		}
+
+		return report;
+	}
+
+	/**
+	 * Returns the position of the first reference with a base row key at or
+	 * after the given key.  An empty key denotes the end of the table.
+	 */
+	static int findFirst(IndexRef[] refs, byte[] key) {
+		if (key == null || key.length == 0)
+			return refs.length;
+
+		int low = 0;
+		int high = refs.length;
+		while (low < high) {
+			int mid = (low + high) >>> 1;
+			if (Bytes.compareTo(refs[mid].baseRow, key) < 0)
+				low = mid + 1;
+			else
+				high = mid;
+		}
+
+		return low;
+	}
+
+	protected static long getTimestamp(Result row) {
+		long maxTs = 0;
+		for (KeyValue kv : row.raw())
+			maxTs = Math.max(maxTs, kv.getTimestamp());
+
+		return maxTs;
+	}
+
+	/**
+	 * Deletes the index rows, limited to the versions seen during the scan
+	 */
+	protected int deleteRefs(String indexTable, List<IndexRef> refs) throws HBaseException {
+		ArrayList<Delete> deletes = new ArrayList<Delete>(refs.size());
+		for (IndexRef ref : refs)
+			deletes.add(new Delete(ref.indexKey, ref.timestamp, null));
+
+		int cnt = deletes.size();
+		HTable table = null;
+		try {
+			table = HUtil.getTable(indexTable);
+			table.delete(deletes);
+		}
+		catch (IOException ioe) {
+			throw new HBaseException(String.format("Error deleting stale index rows from table [%s]", indexTable), ioe);
+		}
+		finally {
+			HUtil.releaseTable(table);
+		}
+
+		log.info(String.format("Deleted %d stale index rows from table %s", cnt, indexTable));
+		return cnt;
+	}
+
+	protected int putRows(String indexTable, List<Put> puts) throws HBaseException {
+		HTable table = null;
+		try {
+			table = HUtil.getTable(indexTable);
+			table.put(puts);
+		}
+		catch (IOException ioe) {
+			throw new HBaseException(String.format("Error writing missing index rows to table [%s]", indexTable), ioe);
+		}
+		finally {
+			HUtil.releaseTable(table);
+		}
+
+		log.info(String.format("Wrote %d missing index rows to table %s", puts.size(), indexTable));
+		return puts.size();
+	}
+}
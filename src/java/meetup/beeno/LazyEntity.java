@@ -0,0 +1,18 @@
+package meetup.beeno;
+
+/**
+ * Implemented by the generated subclasses used for entities mapped with
+ * {@link HEntity#lazy()} or with lazy properties ({@link HProperty#lazy()}).
+ * Their properties are decoded from the stored row, or loaded with a 
+ * separate read, on first access.
+ * 
+ * @author garyh
+ *
+ */
+public interface LazyEntity {
+	/**
+	 * Decodes all properties not yet read from the stored row, and loads
+	 * all lazy properties not yet loaded
+	 */
+	public void loadProperties();
+}
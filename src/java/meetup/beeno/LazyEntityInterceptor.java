@@ -0,0 +1,324 @@
+package meetup.beeno;
+
+import java.beans.PropertyDescriptor;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import meetup.beeno.mapping.EntityInfo;
+import net.sf.cglib.proxy.Callback;
+import net.sf.cglib.proxy.Enhancer;
+import net.sf.cglib.proxy.Factory;
+import net.sf.cglib.proxy.MethodInterceptor;
+import net.sf.cglib.proxy.MethodProxy;
+
+import org.apache.hadoop.hbase.KeyValue;
+import org.apache.hadoop.hbase.client.Result;
+
+/**
+ * Backs the generated subclasses of lazy entities (see {@link HEntity#lazy()}),
+ * and of entities with deferred fields (see {@link HProperty#lazy()}).
+ * For lazy entities, the stored row is kept until each property is first 
+ * read.  Deferred fields are loaded by fetch group (column family), with
+ * a Get for the group's family.
+ * <ul>
+ * 	<li>calling a mapped getter decodes that property's columns, or loads
+ * 		its fetch group</li>
+ *  <li>calling a mapped setter discards the stored value for the property</li>
+ *  <li>calling <code>equals()</code>, <code>hashCode()</code>, 
+ *  	<code>toString()</code> or other methods declared by 
+ *  	<code>Object</code> decodes the properties remaining in the stored
+ *  	row, but doesn't load deferred fields, so entities can be used in
+ *  	collections and logged without a read for each</li>
+ *  <li>calling any other method decodes or loads all remaining properties, 
+ *  	as it may read the entity's fields directly</li>
+ * </ul>
+ * The subclass is generated once for each entity mapping, and instances
+ * are created from it with {@link Factory#newInstance(Callback)}.
+ * 
+ * @author garyh
+ *
+ */
+class LazyEntityInterceptor<T> implements MethodInterceptor {
+
+	/** Instances of the generated subclass for each entity mapping, for creating new instances */
+	private static final ConcurrentMap<EntityInfo, Factory> factories = new ConcurrentHashMap<EntityInfo, Factory>();
+
+	/** Callback for the factory instances, which are never used as entities */
+	private static final MethodInterceptor PASS_THROUGH = new MethodInterceptor() {
+		public Object intercept(Object entity, Method method, Object[] args, MethodProxy proxy) throws Throwable {
+			return proxy.invokeSuper(entity, args);
+		}
+	};
+
+	private final EntityService<T> service;
+	private final EntityInfo info;
+	private byte[] rowKey;
+	private Result row;
+	/* stored columns for the properties not yet read */
+	private Map<PropertyDescriptor,List<KeyValue>> pending;
+	/* fetch groups not yet loaded */
+	private Set<String> groups = new HashSet<String>();
+	/* deferred properties set before their fetch group was loaded */
+	private Set<PropertyDescriptor> assigned = new HashSet<PropertyDescriptor>();
+	
+	LazyEntityInterceptor(EntityService<T> service, EntityInfo info) {
+		this.service = service;
+		this.info = info;
+	}
+	
+	/**
+	 * Returns a new lazy subclass instance of the entity class
+	 */
+	static <T> Object newInstance(EntityService<T> service, EntityInfo info) {
+		Factory factory = factories.get(info);
+		if (factory == null) {
+			Enhancer enhancer = new Enhancer();
+			enhancer.setSuperclass(info.getEntityClass());
+			enhancer.setInterfaces(new Class<?>[]{LazyEntity.class});
+			enhancer.setInterceptDuringConstruction(false);
+			enhancer.setCallback(PASS_THROUGH);
+			factory = (Factory) enhancer.create();
+			Factory existing = factories.putIfAbsent(info, factory);
+			if (existing != null)
+				factory = existing;
+		}
+		
+		return factory.newInstance(new LazyEntityInterceptor<T>(service, info));
+	}
+	
+	/**
+	 * Returns the interceptor backing a lazy entity instance, or 
+	 * <code>null</code> if the entity isn't lazy
+	 */
+	static LazyEntityInterceptor<?> get(Object entity) {
+		if (entity instanceof LazyEntity && entity instanceof Factory) {
+			Callback callback = ((Factory)entity).getCallback(0);
+			if (callback instanceof LazyEntityInterceptor)
+				return (LazyEntityInterceptor<?>) callback;
+		}
+		
+		return null;
+	}
+	
+	/**
+	 * Sets the stored row to read property values from, replacing any 
+	 * values not yet read.  The row is only kept for lazy entities, other
+	 * entities being populated as usual.
+	 */
+	synchronized void setRow(Result row) {
+		this.rowKey = row.getRow();
+		this.row = (this.info.isLazy() ? row : null);
+		this.pending = null;
+		this.groups = new HashSet<String>(this.info.getDeferredFamilies());
+		this.assigned.clear();
+	}
+	
+	byte[] getRowKey() { return this.rowKey; }
+	
+	/**
+	 * Returns the given fetch groups which are not yet loaded, or all 
+	 * groups not yet loaded if none are given
+	 */
+	synchronized Set<String> getPendingGroups(String... families) {
+		Set<String> pendingGroups = new HashSet<String>(this.groups);
+		if (families != null && families.length > 0)
+			pendingGroups.retainAll(Arrays.asList(families));
+		
+		return pendingGroups;
+	}
+	
+	/**
+	 * Returns <code>true</code> if the property is deferred, and neither
+	 * loaded nor set
+	 */
+	synchronized boolean isUnread(PropertyDescriptor prop) {
+		return this.info.isDeferred(prop) && !this.assigned.contains(prop) &&
+			this.groups.contains(getFamily(prop));
+	}
+	
+	/**
+	 * Populates the deferred properties in the given fetch groups from the
+	 * row read for them, skipping any properties already set
+	 */
+	void setGroups(Object entity, Set<String> families, Result res) {
+		Set<PropertyDescriptor> skip = null;
+		synchronized (this) {
+			families.retainAll(this.groups);
+			this.groups.removeAll(families);
+			skip = new HashSet<PropertyDescriptor>(this.assigned);
+		}
+		if (res == null || res.isEmpty() || families.isEmpty())
+			return;
+		
+		Map<PropertyDescriptor,List<KeyValue>> columns = this.service.getPropertyColumns(this.info, res);
+		for (Map.Entry<PropertyDescriptor,List<KeyValue>> e : columns.entrySet()) {
+			PropertyDescriptor prop = e.getKey();
+			if (this.info.isDeferred(prop) && families.contains(getFamily(prop)) && !skip.contains(prop))
+				populate(entity, prop, e.getValue());
+		}
+	}
+	
+	private String getFamily(PropertyDescriptor prop) {
+		return this.info.getPropertyMapping(prop.getName()).getFamily();
+	}
+	
+	public Object intercept(Object entity, Method method, Object[] args, MethodProxy proxy) 
+			throws Throwable {
+		if (method.getDeclaringClass() == LazyEntity.class) {
+			loadAll(entity);
+			return null;
+		}
+		
+		PropertyDescriptor prop = this.info.getAccessorProperty(method);
+		if (prop != null) {
+			boolean deferred = this.info.isDeferred(prop);
+			if (method.equals(prop.getReadMethod())) {
+				if (deferred)
+					loadGroup(entity, prop);
+				else
+					load(entity, prop);
+			}
+			else if (deferred) {
+				assign(prop);
+			}
+			else {
+				discard(prop);
+			}
+		}
+		else if (isObjectMethod(method)) {
+			if (!"finalize".equals(method.getName()))
+				loadPending(entity);
+		}
+		else {
+			loadAll(entity);
+		}
+		
+		return proxy.invokeSuper(entity, args);
+	}
+	
+	/**
+	 * Returns <code>true</code> if the method is declared by, or overrides
+	 * a method of, <code>Object</code>
+	 */
+	private static boolean isObjectMethod(Method method) {
+		try {
+			Object.class.getDeclaredMethod(method.getName(), method.getParameterTypes());
+			return true;
+		}
+		catch (NoSuchMethodException nsme) {
+			return false;
+		}
+	}
+	
+	/**
+	 * Returns the stored columns for unread properties, grouping the row's
+	 * columns on first use
+	 */
+	private synchronized Map<PropertyDescriptor,List<KeyValue>> getPending() {
+		if (this.pending == null) {
+			if (this.row != null) {
+				this.pending = this.service.getPropertyColumns(this.info, this.row);
+				// columns of deferred fields may be read for filters, but are incomplete
+				if (this.info.hasDeferredFields()) {
+					for (Iterator<PropertyDescriptor> i = this.pending.keySet().iterator(); i.hasNext(); ) {
+						if (this.info.isDeferred(i.next()))
+							i.remove();
+					}
+				}
+			}
+			else
+				this.pending = new HashMap<PropertyDescriptor,List<KeyValue>>();
+			this.row = null;
+		}
+		
+		return this.pending;
+	}
+	
+	private synchronized List<KeyValue> take(PropertyDescriptor prop) {
+		if (this.pending == null && this.row == null)
+			return null;
+		
+		return getPending().remove(prop);
+	}
+	
+	private void discard(PropertyDescriptor prop) {
+		take(prop);
+	}
+	
+	private synchronized void assign(PropertyDescriptor prop) {
+		if (this.groups.contains(getFamily(prop)))
+			this.assigned.add(prop);
+	}
+	
+	private void loadGroup(Object entity, PropertyDescriptor prop) {
+		String family = getFamily(prop);
+		synchronized (this) {
+			if (!this.groups.contains(family) || this.assigned.contains(prop))
+				return;
+		}
+		
+		fetch(entity, family);
+	}
+	
+	private void fetch(Object entity, String... families) {
+		try {
+			this.service.loadLazy(Collections.singletonList(this.service.clazz.cast(entity)), families);
+		}
+		catch (HBaseException he) {
+			throw new IllegalStateException(
+					String.format("Unable to load lazy fields of %s", this.info.getEntityClass().getName()), he);
+		}
+	}
+	
+	private void load(Object entity, PropertyDescriptor prop) {
+		List<KeyValue> columns = take(prop);
+		if (columns != null)
+			populate(entity, prop, columns);
+	}
+	
+	private void loadAll(Object entity) {
+		loadPending(entity);
+		boolean fetch = false;
+		synchronized (this) {
+			fetch = !this.groups.isEmpty();
+		}
+		if (fetch)
+			fetch(entity);
+	}
+	
+	/**
+	 * Decodes all properties remaining in the stored row
+	 */
+	private void loadPending(Object entity) {
+		List<PropertyDescriptor> props = null;
+		synchronized (this) {
+			if (this.pending != null || this.row != null)
+				props = new ArrayList<PropertyDescriptor>(getPending().keySet());
+		}
+		
+		if (props != null) {
+			for (PropertyDescriptor prop : props)
+				load(entity, prop);
+		}
+	}
+	
+	private void populate(Object entity, PropertyDescriptor prop, List<KeyValue> columns) {
+		try {
+			this.service.populateProperty(this.service.clazz.cast(entity), this.info, prop, columns);
+		}
+		catch (HBaseException he) {
+			throw new IllegalStateException(
+					String.format("Unable to read property %s.%s", this.info.getEntityClass().getName(), prop.getName()), he);
+		}
+	}
+}
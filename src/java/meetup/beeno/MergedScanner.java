@@ -0,0 +1,196 @@
+package meetup.beeno;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+import org.apache.hadoop.hbase.client.Result;
+import org.apache.hadoop.hbase.client.ResultScanner;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.apache.log4j.Logger;
+
+/**
+ * Merges the results of several scanners, each already sorted by row key,
+ * into a single scanner in row key order.  Sources are read on demand in
+ * the calling thread: a source is only advanced when its current row is
+ * returned, so no rows are fetched beyond the head of each source (plus
+ * whatever the source scan's caching batches up).  Set the caching on the
+ * source scans to control how many rows each region server call returns.
+ *
+ * A number of leading row key bytes can be skipped for each source when
+ * comparing rows, so that scans over each bucket of a salted index table,
+ * or over the keys for different index values, are merged in the order 
+ * of the remaining key bytes.
+ *
+ * @author garyh
+ *
+ */
+public class MergedScanner implements ResultScanner {
+	private static Logger log = Logger.getLogger(MergedScanner.class);
+
+	/** Default number of rows fetched per call for each source scan */
+	public static final int DEFAULT_SOURCE_CACHING = 100;
+
+	private final List<ResultScanner> sources;
+	private final PriorityQueue<Head> heads;
+	private final int[] skipBytes;
+	private byte[] lastKey = null;
+	private boolean started = false;
+
+	/**
+	 * @param sources scanners to merge, each returning rows in key order
+	 * @param skipBytes number of leading row key bytes to ignore in comparisons
+	 */
+	public MergedScanner(List<ResultScanner> sources, int skipBytes) {
+		this(sources, fill(sources.size(), skipBytes));
+	}
+
+	/**
+	 * @param sources scanners to merge, each returning rows in key order
+	 * @param skipBytes number of leading row key bytes to ignore in comparisons,
+	 * 		for each source
+	 */
+	public MergedScanner(List<ResultScanner> sources, final int[] skipBytes) {
+		this.sources = sources;
+		this.skipBytes = skipBytes;
+		this.heads = new PriorityQueue<Head>(Math.max(1, sources.size()), new Comparator<Head>() {
+			public int compare(Head h1, Head h2) {
+				byte[] r1 = h1.row.getRow();
+				byte[] r2 = h2.row.getRow();
+				int s1 = skipBytes[h1.source];
+				int s2 = skipBytes[h2.source];
+				int cmp = Bytes.compareTo(r1, s1, r1.length - s1, r2, s2, r2.length - s2);
+				// keep ties stable by source order
+				return (cmp != 0 ? cmp : h1.source - h2.source);
+			}
+		});
+	}
+
+	private static int[] fill(int size, int value) {
+		int[] arr = new int[size];
+		Arrays.fill(arr, value);
+		return arr;
+	}
+
+	/**
+	 * Returns the key of the last row returned, without the skipped
+	 * leading bytes for its source.  This is the key the rows are merged
+	 * on, so can be used to resume the merged scan.
+	 */
+	public byte[] getLastKey() {
+		return this.lastKey;
+	}
+
+	/**
+	 * Loads the first row of each source into the merge queue
+	 */
+	protected void start() throws IOException {
+		if (this.started)
+			return;
+
+		this.started = true;
+		for (int i=0; i<this.sources.size(); i++)
+			advance(i);
+	}
+
+	/**
+	 * Adds the next row from the source to the merge queue, if it has one
+	 */
+	protected void advance(int idx) throws IOException {
+		Result next = this.sources.get(idx).next();
+		if (next != null && !next.isEmpty())
+			this.heads.add(new Head(next, idx));
+	}
+
+	@Override
+	public synchronized Result next() throws IOException {
+		start();
+
+		Head head = this.heads.poll();
+		if (head == null)
+			return null;
+
+		advance(head.source);
+		byte[] row = head.row.getRow();
+		int skip = this.skipBytes[head.source];
+		this.lastKey = new byte[row.length - skip];
+		System.arraycopy(row, skip, this.lastKey, 0, this.lastKey.length);
+		
+		return head.row;
+	}
+
+	@Override
+	public Result[] next(int count) throws IOException {
+		ArrayList<Result> results = new ArrayList<Result>(count);
+		for (int i=0; i<count; i++) {
+			Result next = next();
+			if (next == null)
+				break;
+			results.add(next);
+		}
+
+		return results.toArray(new Result[0]);
+	}
+
+	@Override
+	public void close() {
+		for (ResultScanner scanner : this.sources) {
+			try {
+				scanner.close();
+			}
+			catch (Exception e) {
+				log.warn("Error closing merged scanner source", e);
+			}
+		}
+	}
+
+	@Override
+	public Iterator<Result> iterator() {
+		return new Iterator<Result>() {
+			// store next item to support look ahead
+			private Result next = null;
+
+			public boolean hasNext() {
+				if (next == null) {
+					try {
+						next = MergedScanner.this.next();
+						return next != null;
+					}
+					catch (IOException ioe) {
+						throw new RuntimeException(ioe);
+					}
+				}
+
+				return true;
+			}
+
+			public Result next() {
+				if (!hasNext())
+					return null;
+
+				Result tmp = next;
+				next = null;
+				return tmp;
+			}
+
+			public void remove() {
+				throw new UnsupportedOperationException("Not supported");
+			}
+		};
+	}
+
+
+	private static class Head {
+		final Result row;
+		final int source;
+
+		Head(Result row, int source) {
+			this.row = row;
+			this.source = source;
+		}
+	}
+}
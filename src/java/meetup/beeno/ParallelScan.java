@@ -0,0 +1,229 @@
+package meetup.beeno;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import meetup.beeno.util.HUtil;
+
+import org.apache.hadoop.hbase.client.HTable;
+import org.apache.hadoop.hbase.client.ResultScanner;
+import org.apache.hadoop.hbase.client.Scan;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.apache.hadoop.hbase.util.Pair;
+import org.apache.log4j.Logger;
+
+/**
+ * Runs a table scan as a set of concurrent scans, one per table region
+ * overlapping the scan's start and stop rows.  Each region is handed to a
+ * {@link RegionTask}, which consumes the region's results and returns a
+ * partial result for the caller to merge.
+ *
+ * A scan can also cover several key ranges of the table (such as the 
+ * buckets of a salted index), in which case each range is split by region
+ * and all of the pieces share the same thread pool.
+ *
+ * Each region task gets its own scanner and its own table instance from
+ * the pool, so tasks do not need to synchronize access to HBase.
+ *
+ * @author garyh
+ *
+ */
+public class ParallelScan {
+	private static Logger log = Logger.getLogger(ParallelScan.class);
+
+	public static final int DEFAULT_MAX_THREADS = 10;
+
+	/**
+	 * Processes the results of the scan for a single region range
+	 */
+	public static interface RegionTask<R> {
+		R scan(ResultScanner scanner, byte[] startRow, byte[] stopRow) throws IOException, HBaseException;
+	}
+
+	private final String tablename;
+	private final Scan template;
+	private final List<byte[][]> keyRanges;
+	private int maxThreads = DEFAULT_MAX_THREADS;
+
+	/**
+	 * @param tablename table to scan
+	 * @param template scan settings (columns, filter, start and stop rows) to
+	 * 		apply to each region
+	 */
+	public ParallelScan(String tablename, Scan template) {
+		this(tablename, template, null);
+	}
+
+	/**
+	 * @param tablename table to scan
+	 * @param template scan settings (columns, filter) to apply to each region
+	 * @param keyRanges start and stop rows of each key range to scan, in 
+	 * 		place of the template's start and stop rows
+	 */
+	public ParallelScan(String tablename, Scan template, List<byte[][]> keyRanges) {
+		this.tablename = tablename;
+		this.template = template;
+		this.keyRanges = keyRanges;
+	}
+
+	public String getTableName() { return this.tablename; }
+
+	public int getMaxThreads() { return this.maxThreads; }
+	public void setMaxThreads(int threads) { this.maxThreads = threads; }
+
+	/**
+	 * Returns the start and stop rows of each region overlapping the template
+	 * scan range (or each of the key ranges), clipped to the range's start 
+	 * and stop rows.
+	 */
+	public List<byte[][]> getRanges() throws IOException {
+		HTable table = null;
+		try {
+			table = HUtil.getTable(this.tablename);
+			Pair<byte[][],byte[][]> keys = table.getStartEndKeys();
+			if (this.keyRanges == null)
+				return getRanges(keys.getFirst(), keys.getSecond(),
+								 this.template.getStartRow(), this.template.getStopRow());
+
+			List<byte[][]> ranges = new ArrayList<byte[][]>();
+			for (byte[][] range : this.keyRanges)
+				ranges.addAll(getRanges(keys.getFirst(), keys.getSecond(), range[0], range[1]));
+			return ranges;
+		}
+		finally {
+			HUtil.releaseTable(table);
+		}
+	}
+
+	/**
+	 * Clips the region boundaries to the given scan range.  Empty start or
+	 * end keys denote the beginning or end of the table.
+	 */
+	public static List<byte[][]> getRanges(byte[][] startKeys, byte[][] endKeys,
+										   byte[] scanStart, byte[] scanStop) {
+		List<byte[][]> ranges = new ArrayList<byte[][]>(startKeys.length);
+		for (int i=0; i<startKeys.length; i++) {
+			byte[] start = startKeys[i];
+			byte[] stop = endKeys[i];
+			if (!isEmpty(scanStart) && Bytes.compareTo(scanStart, start) > 0)
+				start = scanStart;
+			if (!isEmpty(scanStop) && (isEmpty(stop) || Bytes.compareTo(scanStop, stop) < 0))
+				stop = scanStop;
+
+			// skip regions entirely outside of the scan range
+			if (!isEmpty(stop) && Bytes.compareTo(start, stop) >= 0)
+				continue;
+
+			ranges.add(new byte[][]{ start, stop });
+		}
+
+		return ranges;
+	}
+
+	/**
+	 * Runs the task against each region range, returning the results in
+	 * region order.
+	 */
+	public <R> List<R> run(final RegionTask<R> task) throws HBaseException {
+		List<byte[][]> ranges = null;
+		try {
+			ranges = getRanges();
+		}
+		catch (IOException ioe) {
+			throw new HBaseException(String.format("Error reading regions for table [%s]", this.tablename), ioe);
+		}
+
+		List<R> results = new ArrayList<R>(ranges.size());
+		if (ranges.isEmpty())
+			return results;
+
+		long t1 = System.nanoTime();
+		int threads = Math.max(1, Math.min(this.maxThreads, ranges.size()));
+		ExecutorService executor = Executors.newFixedThreadPool(threads, new DaemonThreadFactory(this.tablename));
+		try {
+			List<Future<R>> pending = new ArrayList<Future<R>>(ranges.size());
+			for (final byte[][] range : ranges) {
+				pending.add( executor.submit(new Callable<R>() {
+					public R call() throws Exception {
+						return scanRegion(task, range[0], range[1]);
+					}
+				}) );
+			}
+
+			for (Future<R> f : pending) {
+				try {
+					results.add(f.get());
+				}
+				catch (ExecutionException ee) {
+					if (ee.getCause() instanceof HBaseException)
+						throw (HBaseException)ee.getCause();
+					throw new HBaseException(String.format("Error scanning regions for table [%s]", this.tablename), ee.getCause());
+				}
+				catch (InterruptedException ie) {
+					Thread.currentThread().interrupt();
+					throw new HBaseException("Interrupted waiting for region scans", ie);
+				}
+			}
+		}
+		finally {
+			executor.shutdownNow();
+		}
+
+		long t2 = System.nanoTime();
+		log.info(String.format("HBASE TIMER: scanned %d regions of %s with %d threads in %f msec.",
+				 ranges.size(), this.tablename, threads, ((t2-t1)/1000000.0)));
+
+		return results;
+	}
+
+	protected <R> R scanRegion(RegionTask<R> task, byte[] startRow, byte[] stopRow)
+			throws IOException, HBaseException {
+		HTable table = null;
+		ResultScanner scanner = null;
+		try {
+			Scan scan = new Scan(this.template);
+			scan.setStartRow(startRow);
+			scan.setStopRow(stopRow);
+
+			table = HUtil.getTable(this.tablename);
+			scanner = table.getScanner(scan);
+			return task.scan(scanner, startRow, stopRow);
+		}
+		finally {
+			if (scanner != null)
+				scanner.close();
+			HUtil.releaseTable(table);
+		}
+	}
+
+	private static boolean isEmpty(byte[] key) {
+		return key == null || key.length == 0;
+	}
+
+
+	/**
+	 * Names the region scan threads after the table and keeps them from
+	 * blocking JVM shutdown.
+	 */
+	static class DaemonThreadFactory implements ThreadFactory {
+		private final String prefix;
+		private int count = 0;
+
+		DaemonThreadFactory(String prefix) {
+			this.prefix = prefix;
+		}
+
+		public synchronized Thread newThread(Runnable r) {
+			Thread t = new Thread(r, String.format("%s-scan-%d", this.prefix, ++count));
+			t.setDaemon(true);
+			return t;
+		}
+	}
+}
@@ -1,7 +1,11 @@
 package meetup.beeno;
 
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 import meetup.beeno.mapping.EntityInfo;
 import meetup.beeno.mapping.EntityMetadata;
@@ -9,8 +13,10 @@ import meetup.beeno.mapping.MappingException;
 
 import org.apache.hadoop.hbase.client.Result;
 import org.apache.hadoop.hbase.client.ResultScanner;
+import org.apache.hadoop.hbase.client.Scan;
 import org.apache.hadoop.hbase.filter.Filter;
 import org.apache.hadoop.hbase.filter.FilterList;
+import org.apache.hadoop.hbase.filter.FirstKeyOnlyFilter;
 import org.apache.hadoop.hbase.filter.PageFilter;
 
 import org.apache.log4j.Logger;
@@ -30,6 +36,8 @@ public class Query<T> {
 	protected Criteria criteria = new Criteria();
 	protected Criteria indexCriteria = new Criteria();
 	protected EntityService<T> service = null;
+	protected QueryCursor cursor = null;
+	protected QueryStats stats = null;
 	
 	public Query(EntityService<T> service, Class<? extends T> entityClass) throws MappingException {
 		this.service = service;
@@ -122,21 +130,138 @@ public class Query<T> {
 		return this;
 	}
 
+	/**
+	 * Enables read repair for indexed queries.  Each row read through an 
+	 * index is checked against the current indexed value, and index rows 
+	 * that no longer match (or point to deleted rows) are skipped and 
+	 * removed in the background.  Counts computed by {@link #count()} read
+	 * only the index and are not verified.
+	 */
+	public Query<T> readRepair() {
+		this.opts.setReadRepair(true);
+		return this;
+	}
+
+	/**
+	 * Resumes the query immediately after the last row returned by a previous
+	 * execution, as recorded in the cursor from {@link #getCursor()}.
+	 */
+	public Query<T> resume(QueryCursor cursor) {
+		this.opts.setCursor(cursor);
+		return this;
+	}
+
+	/**
+	 * Resumes the query from the string form of a previous query cursor
+	 * @throws QueryException if the cursor token is invalid
+	 */
+	public Query<T> resume(String cursorToken) throws QueryException {
+		return resume(QueryCursor.parse(cursorToken));
+	}
+
+	/**
+	 * Returns a cursor pointing after the last row returned by the most recent
+	 * call to {@link #execute()}, for use in fetching the next page of results.
+	 * Returns <code>null</code> if the scan was exhausted before filling the
+	 * page, meaning there are no further results.
+	 */
+	public QueryCursor getCursor() {
+		return this.cursor;
+	}
+
+	/**
+	 * Returns the statistics recorded by the most recent call to 
+	 * {@link #executeWithStats()}
+	 */
+	public QueryStats getStats() {
+		return this.stats;
+	}
+
+	/**
+	 * Returns the plan the query would be run with: the strategy, the table
+	 * scan ranges, and which conditions are checked by filters on the 
+	 * region servers.  The query is not run.
+	 */
+	public QueryPlan explain() throws HBaseException {
+		QueryPlanner planner = new QueryPlanner(this.entityInfo);
+		QueryStrategy strategy = getStrategy(getCriteriaFilter(this.criteria.getExpressions()), planner);
+		return explain(strategy, planner);
+	}
+
+	protected QueryPlan explain(QueryStrategy strategy, QueryPlanner planner) throws HBaseException {
+		QueryPlan plan = strategy.explain();
+		for (Map.Entry<String,Double> e : planner.getCosts().entrySet())
+			plan.addEstimatedCost(e.getKey(), e.getValue());
+		for (Map.Entry<String,Double> e : planner.getMatches().entrySet())
+			plan.addEstimatedMatches(e.getKey(), e.getValue());
+
+		return plan;
+	}
+
 	public List<T> execute() throws HBaseException {
+		return execute(null);
+	}
+
+	/**
+	 * Runs the query as for {@link #execute()}, recording the plan used, the
+	 * rows read and the time spent in each phase of the query.  The 
+	 * statistics are available from {@link #getStats()}.
+	 */
+	public List<T> executeWithStats() throws HBaseException {
+		this.stats = new QueryStats();
+		return execute(this.stats);
+	}
+
+	protected List<T> execute(QueryStats stats) throws HBaseException {
 		long t1 = System.nanoTime();
 		List<T> entities = new ArrayList<T>();
 		FilterList baseFilter = getCriteriaFilter(this.criteria.getExpressions());
+		int pageSize = this.opts.getPageSize();
 		
 		ResultScanner scanner = null;
 		int processCnt = 0;
+		this.cursor = null;
 		try {
-			scanner = getStrategy(baseFilter).createScanner();
-			for (Result res : scanner) {
+			QueryPlanner planner = new QueryPlanner(this.entityInfo);
+			QueryStrategy strategy = getStrategy(baseFilter, planner);
+			if (stats != null)
+				stats.setPlan(explain(strategy, planner));
+			scanner = strategy.createScanner();
+			// index scanners record their own reads
+			boolean indexed = (scanner instanceof ScanByIndex.IndexScannerWrapper);
+			if (stats != null && indexed)
+				((ScanByIndex.IndexScannerWrapper)scanner).setStats(stats);
+			
+			long r1 = System.nanoTime();
+			if (stats != null)
+				stats.addPlanTime(r1-t1);
+			Iterator<Result> rows = scanner.iterator();
+			while (rows.hasNext()) {
+				Result res = rows.next();
+				long r2 = System.nanoTime();
+				if (stats != null && !indexed)
+					stats.addBaseRow(res, r2-r1);
+				
 				processCnt++;
 				T entity = this.service.createFromRow(res);
 				if (entity != null)
 					entities.add( entity );
+				
+				r1 = System.nanoTime();
+				if (stats != null) {
+					stats.addMapTime(r1-r2);
+					if (entity == null)
+						stats.addFiltered();
+				}
+				
+				// PageFilter only limits rows per region, so enforce the page size here
+				if (pageSize != -1 && entities.size() >= pageSize) {
+					this.cursor = new QueryCursor(strategy.getPlanId(), strategy.getLastKey(scanner, res));
+					break;
+				}
 			}
+			if (stats != null && !indexed)
+				stats.addScanTime(System.nanoTime()-r1);
 		}
 		finally {
 			// always clean up scanner resources
@@ -145,12 +270,190 @@ public class Query<T> {
 		}
 		
 		long t2 = System.nanoTime();
+		if (stats != null)
+			stats.setTotalTime(t2-t1);
 		log.info(String.format("HBASE TIMER: [%s] fetched %d records (processed %d) in %f msec.", 
 				this.entityInfo.getEntityClass().getSimpleName(), entities.size(), processCnt, ((t2-t1)/1000000.0)));
 		
 		return entities;
 	}
 
+	/**
+	 * Returns the number of rows matching the query, without reading full rows
+	 * or creating entity instances.  Regions are counted in parallel.  The 
+	 * page size set by {@link #limit(int)} is not applied to the count.
+	 */
+	public long count() throws HBaseException {
+		long t1 = System.nanoTime();
+		FilterList baseFilter = getCriteriaFilter(this.criteria.getExpressions(), false);
+		long cnt = getStrategy(baseFilter).count();
+		
+		long t2 = System.nanoTime();
+		log.info(String.format("HBASE TIMER: [%s] counted %d records in %f msec.", 
+				this.entityInfo.getEntityClass().getSimpleName(), cnt, ((t2-t1)/1000000.0)));
+		
+		return cnt;
+	}
+
+	/**
+	 * Computes the given aggregates over all rows matching the query.  Values
+	 * are decoded directly from the stored columns, without creating entity
+	 * instances.  For queries without an index, table regions are aggregated
+	 * in parallel and the partial results merged.  The page size set by 
+	 * {@link #limit(int)} is not applied.
+	 */
+	public AggregateResult aggregate(Aggregate... aggregates) throws HBaseException {
+		long t1 = System.nanoTime();
+		final Aggregator agg = new Aggregator(this.entityInfo, null, aggregates);
+		AggregateResult total = agg.newResult();
+
+		if (this.indexCriteria.isEmpty()) {
+			List<AggregateResult> partials = getAggregateScan(agg).run(
+				new ParallelScan.RegionTask<AggregateResult>() {
+					public AggregateResult scan(ResultScanner scanner, byte[] startRow, byte[] stopRow) {
+						AggregateResult res = agg.newResult();
+						for (Result row : scanner) {
+							if (row != null && !row.isEmpty())
+								agg.add(row, res);
+						}
+						return res;
+					}
+				});
+			for (AggregateResult res : partials)
+				total.merge(res);
+		}
+		else {
+			ResultScanner scanner = null;
+			try {
+				scanner = getAggregateScanner(agg);
+				for (Result row : scanner)
+					agg.add(row, total);
+			}
+			finally {
+				if (scanner != null)
+					try { scanner.close(); } catch (Exception e) { log.error("Error closing scanner", e); }
+			}
+		}
+
+		long t2 = System.nanoTime();
+		log.info(String.format("HBASE TIMER: [%s] computed aggregates in %f msec.", 
+				this.entityInfo.getEntityClass().getSimpleName(), ((t2-t1)/1000000.0)));
+
+		return total;
+	}
+
+	/**
+	 * Computes the given aggregates for each distinct value of the 
+	 * <code>groupBy</code> property over all rows matching the query.
+	 * Results for each group are passed to the handler as they are completed.
+	 * If the number of groups grows too large to hold in memory, partial 
+	 * results are spilled to disk (see {@link GroupAggregator}).
+	 */
+	public void aggregate(String groupBy, GroupAggregator.Handler handler, Aggregate... aggregates) 
+			throws HBaseException {
+		long t1 = System.nanoTime();
+		final Aggregator agg = new Aggregator(this.entityInfo, groupBy, aggregates);
+		final Aggregate[] aggs = aggregates;
+		GroupAggregator groups = new GroupAggregator(aggregates);
+
+		if (this.indexCriteria.isEmpty()) {
+			List<GroupAggregator> partials = getAggregateScan(agg).run(
+				new ParallelScan.RegionTask<GroupAggregator>() {
+					public GroupAggregator scan(ResultScanner scanner, byte[] startRow, byte[] stopRow) {
+						GroupAggregator regionGroups = new GroupAggregator(aggs);
+						for (Result row : scanner) {
+							if (row != null && !row.isEmpty())
+								agg.add(row, regionGroups);
+						}
+						return regionGroups;
+					}
+				});
+			for (GroupAggregator partial : partials)
+				groups.merge(partial);
+		}
+		else {
+			ResultScanner scanner = null;
+			try {
+				scanner = getAggregateScanner(agg);
+				for (Result row : scanner)
+					agg.add(row, groups);
+			}
+			finally {
+				if (scanner != null)
+					try { scanner.close(); } catch (Exception e) { log.error("Error closing scanner", e); }
+			}
+		}
+
+		groups.finish(handler);
+
+		long t2 = System.nanoTime();
+		log.info(String.format("HBASE TIMER: [%s] computed aggregates grouped by %s in %f msec.", 
+				this.entityInfo.getEntityClass().getSimpleName(), groupBy, ((t2-t1)/1000000.0)));
+	}
+
+	/**
+	 * Computes the given aggregates for each distinct value of the 
+	 * <code>groupBy</code> property, returning the results keyed by the 
+	 * property value.
+	 */
+	public Map<Object,AggregateResult> aggregate(String groupBy, Aggregate... aggregates) 
+			throws HBaseException {
+		final Map<Object,AggregateResult> results = new HashMap<Object,AggregateResult>();
+		aggregate(groupBy, new GroupAggregator.Handler() {
+			public void group(Object key, AggregateResult result) {
+				results.put(key, result);
+			}
+		}, aggregates);
+
+		return results;
+	}
+
+	/**
+	 * Builds a parallel scan of the entity table reading only the columns 
+	 * needed for the aggregates and criteria
+	 */
+	protected ParallelScan getAggregateScan(Aggregator agg) throws HBaseException {
+		Scan scan = new Scan();
+		if (this.opts.getStartKey() != null)
+			scan.setStartRow(this.opts.getStartKey());
+		if (this.opts.getStopKey() != null)
+			scan.setStopRow(this.opts.getStopKey());
+
+		Set<String> columns = this.criteria.getColumns(this.entityInfo);
+		columns.addAll(agg.getColumns());
+		if (!this.criteria.isEmpty()) {
+			scan.setFilter(getCriteriaFilter(this.criteria.getExpressions(), false));
+		}
+		else if (columns.isEmpty()) {
+			// only counting rows
+			scan.setFilter(new FirstKeyOnlyFilter());
+		}
+
+		// rows missing all of the selected columns would not be counted
+		if (!agg.hasRowCount() || columns.isEmpty() || !this.criteria.isEmpty()) {
+			for (String col : columns)
+				ScanByIndex.addColumn(scan, col);
+		}
+
+		return new ParallelScan(this.entityInfo.getTablename(), scan);
+	}
+
+	/**
+	 * Opens the scanner for the query's strategy, reading only the columns
+	 * needed for the aggregates and criteria from each entity row read for 
+	 * an index row
+	 */
+	protected ResultScanner getAggregateScanner(Aggregator agg) throws HBaseException {
+		ResultScanner scanner = getStrategy(getCriteriaFilter(this.criteria.getExpressions(), false)).createScanner();
+		if (scanner instanceof ScanByIndex.IndexScannerWrapper) {
+			Set<String> columns = this.criteria.getColumns(this.entityInfo);
+			columns.addAll(agg.getColumns());
+			((ScanByIndex.IndexScannerWrapper)scanner).setSelectColumns(columns);
+		}
+
+		return scanner;
+	}
+
 	public T executeSingle() throws HBaseException {
 		// TODO: explicitly limit to 1 record in filter?
 		List<T> results = execute();
@@ -160,12 +463,12 @@ public class Query<T> {
 		return null;
 	}
 	
-	protected QueryStrategy getStrategy(FilterList baseFilter) {
-		QueryStrategy strat = null;
-		if (!this.indexCriteria.isEmpty())
-			strat = new ScanByIndex(this.entityInfo, this.opts, this.indexCriteria, baseFilter);
-		else
-			strat = new ScanNoIndex(this.entityInfo, this.opts, baseFilter);
+	protected QueryStrategy getStrategy(FilterList baseFilter) throws HBaseException {
+		return getStrategy(baseFilter, new QueryPlanner(this.entityInfo));
+	}
+
+	protected QueryStrategy getStrategy(FilterList baseFilter, QueryPlanner planner) throws HBaseException {
+		QueryStrategy strat = planner.plan(this.opts, this.indexCriteria, this.criteria, baseFilter);
 		
 		log.debug("Using strategy impl.: "+strat.getClass().getSimpleName());
 		return strat;
@@ -173,12 +476,17 @@ public class Query<T> {
 
 	protected FilterList getCriteriaFilter(List<Criteria.Expression> expressions) 
 			throws HBaseException {
+		return getCriteriaFilter(expressions, true);
+	}
+
+	protected FilterList getCriteriaFilter(List<Criteria.Expression> expressions, boolean paged) 
+			throws HBaseException {
 		FilterList filterset = new FilterList(FilterList.Operator.MUST_PASS_ALL, new ArrayList<Filter>());
 		for (Criteria.Expression e : expressions) {
 			filterset.addFilter( e.getFilter(this.entityInfo) );
 		}
 
-		if (this.opts.getPageSize() != -1 ) {
+		if (paged && this.opts.getPageSize() != -1 ) {
 			// add on any query option filters
 			if (log.isDebugEnabled())
 				log.debug(String.format("Adding PageFilter size=%d", this.opts.getPageSize()));
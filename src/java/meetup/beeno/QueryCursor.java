@@ -0,0 +1,139 @@
+package meetup.beeno;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.Externalizable;
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+
+import org.apache.hadoop.hbase.util.Base64;
+import org.apache.hadoop.hbase.util.Bytes;
+
+/**
+ * Opaque continuation token for resuming a query after the last row
+ * returned.  The cursor records the last scanned key (the index table row
+ * key for indexed queries, or the base table row key otherwise) along with
+ * an identifier for the query plan that produced it, so that a cursor is
+ * never applied against a different table than the one it was read from.
+ *
+ * Cursors are serialized to a compact, URL-safe string form via
+ * {@link #toString()} and read back with {@link #parse(String)}.
+ *
+ * @author garyh
+ *
+ */
+public class QueryCursor implements Externalizable {
+	private static final byte VERSION = 1;
+
+	private String plan;
+	private byte[] lastKey;
+
+	public QueryCursor() {
+		// for Externalizable
+	}
+
+	public QueryCursor(String plan, byte[] lastKey) {
+		this.plan = plan;
+		this.lastKey = lastKey;
+	}
+
+	/**
+	 * Returns the identifier of the query plan the cursor was created from
+	 */
+	public String getPlan() { return this.plan; }
+
+	/**
+	 * Returns the last row key read by the scan
+	 */
+	public byte[] getLastKey() { return this.lastKey; }
+
+	/**
+	 * Returns the first possible row key following the last key read.
+	 * Appending a zero byte gives the immediate successor in HBase's
+	 * lexicographic row ordering.
+	 */
+	public byte[] getResumeKey() {
+		return Bytes.add(this.lastKey, new byte[]{ 0 });
+	}
+
+	/**
+	 * Verifies that the cursor was produced by the given query plan.
+	 * Resuming a scan with a key from a different table would silently
+	 * skip or repeat rows, so this is treated as an error.
+	 */
+	public void checkPlan(String currentPlan) throws QueryException {
+		if (!this.plan.equals(currentPlan))
+			throw new QueryException(String.format("Query cursor for plan '%s' cannot be used with plan '%s'", 
+												   this.plan, currentPlan));
+	}
+
+	public byte[] toBytes() {
+		try {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream(this.lastKey.length + this.plan.length() + 8);
+			DataOutputStream out = new DataOutputStream(bytes);
+			out.writeByte(VERSION);
+			out.writeUTF(this.plan);
+			Bytes.writeByteArray(out, this.lastKey);
+			out.flush();
+			return bytes.toByteArray();
+		}
+		catch (IOException ioe) {
+			// not possible writing to a byte array
+			throw new IllegalStateException("Error serializing cursor", ioe);
+		}
+	}
+
+	public static QueryCursor fromBytes(byte[] bytes) throws QueryException {
+		if (bytes == null || bytes.length == 0)
+			throw new QueryException("Empty query cursor");
+
+		try {
+			DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+			byte version = in.readByte();
+			if (version != VERSION)
+				throw new QueryException(String.format("Unsupported query cursor version %d", version));
+
+			String plan = in.readUTF();
+			byte[] key = Bytes.readByteArray(in);
+			return new QueryCursor(plan, key);
+		}
+		catch (IOException ioe) {
+			throw new QueryException("Invalid query cursor", ioe);
+		}
+	}
+
+	/**
+	 * Reads back a cursor serialized by {@link #toString()}
+	 */
+	public static QueryCursor parse(String token) throws QueryException {
+		if (token == null)
+			throw new QueryException("Empty query cursor");
+
+		return fromBytes( Base64.decode(token, Base64.URL_SAFE) );
+	}
+
+	@Override
+	public void readExternal( ObjectInput in ) throws IOException,
+			ClassNotFoundException {
+		this.plan = in.readUTF();
+		this.lastKey = new byte[in.readInt()];
+		in.readFully(this.lastKey);
+	}
+
+	@Override
+	public void writeExternal( ObjectOutput out ) throws IOException {
+		out.writeUTF(this.plan);
+		out.writeInt(this.lastKey.length);
+		out.write(this.lastKey);
+	}
+
+	/**
+	 * Returns the opaque string form of the cursor, safe for use in URLs
+	 */
+	public String toString() {
+		return Base64.encodeBytes(toBytes(), Base64.URL_SAFE | Base64.DONT_BREAK_LINES);
+	}
+}
@@ -19,6 +19,8 @@ public class QueryOpts implements Externalizable {
 	private byte[] stopKey = null;
 	private Long startTime = null;
 	private int pageSize = DEFAULT_PAGE_SIZE;
+	private QueryCursor cursor = null;
+	private boolean readRepair = false;
 	
 	public QueryOpts() {}
 	
@@ -26,6 +28,9 @@ public class QueryOpts implements Externalizable {
 		this.startKey = toCopy.startKey;
 		this.pageSize = toCopy.pageSize;
 		this.startTime = toCopy.startTime;
+		this.stopKey = toCopy.stopKey;
+		this.cursor = toCopy.cursor;
+		this.readRepair = toCopy.readRepair;
 	}
 	
 	public byte[] getStartKey() { return this.startKey; }
@@ -56,6 +61,20 @@ public class QueryOpts implements Externalizable {
 	public int getPageSize() { return this.pageSize; }
 	public void setPageSize(int size) { this.pageSize = size; }
 
+	/**
+	 * Cursor from a previous page of results.  When set, the scan resumes
+	 * immediately after the cursor's last key, overriding any start key.
+	 */
+	public QueryCursor getCursor() { return this.cursor; }
+	public void setCursor(QueryCursor cursor) { this.cursor = cursor; }
+
+	/**
+	 * When set, index scans verify each base row against the index key and
+	 * skip (and queue for removal) any stale index rows.
+	 */
+	public boolean isReadRepair() { return this.readRepair; }
+	public void setReadRepair(boolean repair) { this.readRepair = repair; }
+
 	@Override
 	public void readExternal( ObjectInput in ) throws IOException,
 			ClassNotFoundException {
@@ -69,6 +88,8 @@ public class QueryOpts implements Externalizable {
 		}
 		startTime = IOUtil.readLong(in);
 		pageSize = in.readInt();
+		cursor = (in.readBoolean() ? null : (QueryCursor)in.readObject());
+		readRepair = in.readBoolean();
 	}
 
 	@Override
@@ -80,6 +101,8 @@ public class QueryOpts implements Externalizable {
 		}
 		IOUtil.writeNullable(out, this.startTime);
 		out.writeInt(this.pageSize);
+		IOUtil.writeNullable(out, this.cursor);
+		out.writeBoolean(this.readRepair);
 	}
 
 }
\ No newline at end of file
@@ -0,0 +1,107 @@
+package meetup.beeno;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.hadoop.hbase.util.Bytes;
+
+/**
+ * Describes how a query will be run, as returned by {@link Query#explain()}:
+ * the strategy and table scanned, the scan ranges, and which conditions
+ * are checked by filters pushed down to the region servers.  Residual
+ * conditions can't be checked against the index rows, so are checked 
+ * against each entity row after it is read.
+ * If the planner compared several plans, their estimated costs, and the
+ * index rows each index plan is estimated to match, are included.
+ *
+ * @author garyh
+ *
+ */
+public class QueryPlan {
+	private final String strategy;
+	private final String planId;
+	private final String table;
+	private String indexTable = null;
+	private List<byte[][]> ranges = new ArrayList<byte[][]>();
+	private List<String> pushedFilters = new ArrayList<String>();
+	private List<String> residualFilters = new ArrayList<String>();
+	private Map<String,Double> estimatedCosts = new LinkedHashMap<String,Double>();
+	private Map<String,Double> estimatedMatches = new LinkedHashMap<String,Double>();
+
+	public QueryPlan(QueryStrategy strategy, String table) {
+		this.strategy = strategy.getClass().getSimpleName();
+		this.planId = strategy.getPlanId();
+		this.table = table;
+	}
+
+	/** Name of the query strategy implementation */
+	public String getStrategy() { return this.strategy; }
+
+	/** Identifier of the plan, as recorded in query cursors */
+	public String getPlanId() { return this.planId; }
+
+	/** The entity table */
+	public String getTable() { return this.table; }
+
+	/** The index table scanned, or <code>null</code> for a table scan */
+	public String getIndexTable() { return this.indexTable; }
+	public void setIndexTable(String table) { this.indexTable = table; }
+
+	/** Start and stop rows of each range scanned.  Open ends are <code>null</code> or empty. */
+	public List<byte[][]> getRanges() { return this.ranges; }
+	public void addRange(byte[] start, byte[] stop) {
+		this.ranges.add(new byte[][]{ start, stop });
+	}
+
+	/** Conditions checked by scan filters */
+	public List<String> getPushedFilters() { return this.pushedFilters; }
+	public void addPushedFilter(Object condition) {
+		this.pushedFilters.add(String.valueOf(condition));
+	}
+
+	/** Conditions the plan can't check */
+	public List<String> getResidualFilters() { return this.residualFilters; }
+	public void addResidualFilter(Object condition) {
+		this.residualFilters.add(String.valueOf(condition));
+	}
+
+	/** Estimated cost of each plan considered, by plan ID */
+	public Map<String,Double> getEstimatedCosts() { return this.estimatedCosts; }
+	public void addEstimatedCost(String planId, double cost) {
+		this.estimatedCosts.put(planId, cost);
+	}
+
+	/** Estimated index rows matched by each index plan considered, by plan ID */
+	public Map<String,Double> getEstimatedMatches() { return this.estimatedMatches; }
+	public void addEstimatedMatches(String planId, double matches) {
+		this.estimatedMatches.put(planId, matches);
+	}
+
+	public String toString() {
+		StringBuilder str = new StringBuilder();
+		str.append(this.strategy).append(" [").append(this.planId).append("]\n");
+		str.append("  table: ").append(this.table).append("\n");
+		if (this.indexTable != null)
+			str.append("  index table: ").append(this.indexTable).append("\n");
+		for (byte[][] range : this.ranges) {
+			str.append("  range: ").append(printable(range[0]))
+			   .append(" -> ").append(printable(range[1])).append("\n");
+		}
+		for (String f : this.pushedFilters)
+			str.append("  filter: ").append(f).append("\n");
+		for (String f : this.residualFilters)
+			str.append("  checked on entity rows: ").append(f).append("\n");
+		for (Map.Entry<String,Double> e : this.estimatedCosts.entrySet())
+			str.append(String.format("  cost %s: %.1f\n", e.getKey(), e.getValue()));
+		for (Map.Entry<String,Double> e : this.estimatedMatches.entrySet())
+			str.append(String.format("  matches %s: %.1f\n", e.getKey(), e.getValue()));
+
+		return str.toString();
+	}
+
+	private static String printable(byte[] key) {
+		return (key == null || key.length == 0 ? "<open>" : Bytes.toStringBinary(key));
+	}
+}
@@ -0,0 +1,314 @@
+package meetup.beeno;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import meetup.beeno.filter.ColumnMatchFilter;
+import meetup.beeno.mapping.EntityInfo;
+import meetup.beeno.mapping.IndexMapping;
+
+import org.apache.hadoop.hbase.filter.Filter;
+import org.apache.hadoop.hbase.filter.FilterList;
+import org.apache.log4j.Logger;
+
+/**
+ * Chooses the query strategy for a query, by estimating the cost of an
+ * index scan for each indexed expression and of a filtered scan of the
+ * entity table, using the table statistics from the {@link StatsStore}.
+ *
+ * Costs are measured in rows read: each index row costs one row, plus
+ * a random read of the entity row, and each row read in a table scan
+ * costs one row.  With a page size set, scans are assumed to stop once
+ * a page of matches is read.
+ *
+ * Conditions on the row key property are always used to read the entity
+ * table directly: equality and IN conditions with a Get for each key, 
+ * which is chosen over any scan, and range conditions as the start and 
+ * stop rows of the table scan (see {@link ScanByKey}).
+ *
+ * If statistics are missing for any of the tables involved, the first
+ * indexed expression is used, as in earlier releases.
+ *
+ * @author garyh
+ *
+ */
+public class QueryPlanner {
+	private static Logger log = Logger.getLogger(QueryPlanner.class);
+
+	/** Cost of reading a row in a sequential scan */
+	public static final double SCAN_ROW_COST = 1.0;
+	/** Cost of a random read of an entity row for an index row */
+	public static final double GET_COST = 5.0;
+	/** Assumed selectivity of each additional composite key equality */
+	public static final double KEY_COLUMN_SELECTIVITY = 0.1;
+	/** Assumed fraction of the table within a row key range */
+	public static final double KEY_RANGE_SELECTIVITY = 1.0 / 3;
+
+	private final EntityInfo info;
+	private final StatsStore stats;
+	private Map<String,Double> costs = new LinkedHashMap<String,Double>();
+	private Map<String,Double> matches = new LinkedHashMap<String,Double>();
+
+	public QueryPlanner(EntityInfo info) {
+		this(info, StatsStore.getInstance());
+	}
+
+	public QueryPlanner(EntityInfo info, StatsStore stats) {
+		this.info = info;
+		this.stats = stats;
+	}
+
+	/**
+	 * Returns the cheapest strategy for the query.  Queries resuming from a
+	 * cursor keep the plan the cursor was created with.
+	 */
+	public QueryStrategy plan(QueryOpts opts, Criteria indexConditions, Criteria criteria, FilterList baseFilter)
+			throws HBaseException {
+		this.costs.clear();
+		this.matches.clear();
+		List<Criteria.PropertyExpression> keyConditions = new ArrayList<Criteria.PropertyExpression>();
+		boolean indexed = getKeyConditions(indexConditions, keyConditions);
+		getKeyConditions(criteria, keyConditions);
+		if (!keyConditions.isEmpty()) {
+			ScanByKey byKey = (ScanByKey)getTableScan(opts, indexConditions, criteria, baseFilter, keyConditions);
+			// reading rows by key is cheaper than any scan
+			if (byKey.isLookup() || !indexed)
+				return byKey;
+		}
+		else if (indexConditions.isEmpty()) {
+			return new ScanNoIndex(this.info, opts, criteria, baseFilter);
+		}
+
+		List<QueryStrategy> candidates = getCandidates(opts, indexConditions, criteria, baseFilter, keyConditions);
+		if (opts.getCursor() != null) {
+			for (QueryStrategy strat : candidates) {
+				if (getPlanId(strat).equals(opts.getCursor().getPlan()))
+					return strat;
+			}
+			// the mismatch is reported when the scan is started
+			return candidates.get(0);
+		}
+
+		QueryStrategy best = null;
+		double bestCost = 0;
+		for (QueryStrategy strat : candidates) {
+			double cost = estimateCost(strat, opts);
+			if (cost < 0) {
+				if (log.isDebugEnabled())
+					log.debug("No statistics for plan "+getPlanId(strat)+", using first indexed expression");
+				this.costs.clear();
+				this.matches.clear();
+				return candidates.get(0);
+			}
+			if (log.isDebugEnabled())
+				log.debug(String.format("Estimated cost %f for plan %s", cost, getPlanId(strat)));
+			this.costs.put(getPlanId(strat), cost);
+
+			if (best == null || cost < bestCost) {
+				best = strat;
+				bestCost = cost;
+			}
+		}
+
+		return best;
+	}
+
+	/**
+	 * Returns the estimated cost of each plan compared by the last call to
+	 * {@link #plan(QueryOpts, Criteria, Criteria, FilterList)}, by plan ID.
+	 * Empty if no plans were compared.
+	 */
+	public Map<String,Double> getCosts() {
+		return this.costs;
+	}
+
+	/**
+	 * Returns the estimated index rows matched by each index plan compared
+	 * by the last call to {@link #plan(QueryOpts, Criteria, Criteria, FilterList)},
+	 * by plan ID.
+	 */
+	public Map<String,Double> getMatches() {
+		return this.matches;
+	}
+
+	/**
+	 * Returns an index scan for each indexed expression where the index
+	 * rows can check the other index conditions, followed by a filtered
+	 * scan of the entity table.  If no index can check all conditions, an
+	 * index scan for the first indexed expression is returned first.
+	 */
+	protected List<QueryStrategy> getCandidates(QueryOpts opts, Criteria indexConditions, Criteria criteria, FilterList baseFilter,
+												List<Criteria.PropertyExpression> keyConditions)
+			throws HBaseException {
+		List<QueryStrategy> candidates = new ArrayList<QueryStrategy>();
+		for (Criteria.Expression e : indexConditions.getExpressions()) {
+			Criteria.Expression cond = e;
+			if (cond instanceof Criteria.RequireExpression)
+				cond = ((Criteria.RequireExpression)cond).getRequired();
+			if (!(cond instanceof Criteria.PropertyComparison || cond instanceof Criteria.InExpression))
+				continue;
+
+			Criteria.PropertyExpression expr = (Criteria.PropertyExpression)cond;
+			if (this.info.getPropertyIndexes(expr.getProperty()) == null ||
+				this.info.getPropertyIndexes(expr.getProperty()).isEmpty())
+				continue;
+
+			ScanByIndex strat = new ScanByIndex(this.info, opts, indexConditions, criteria, baseFilter, expr);
+			if (coversConditions(strat, indexConditions))
+				candidates.add(strat);
+		}
+		if (candidates.isEmpty())
+			candidates.add(new ScanByIndex(this.info, opts, indexConditions, criteria, baseFilter));
+
+		candidates.add(getTableScan(opts, indexConditions, criteria, baseFilter, keyConditions));
+		return candidates;
+	}
+
+	/**
+	 * Adds the comparison and IN expressions on the row key property to
+	 * <code>keyConditions</code>.
+	 * @return <code>true</code> if there are any other expressions
+	 */
+	protected boolean getKeyConditions(Criteria conditions, List<Criteria.PropertyExpression> keyConditions) {
+		boolean others = false;
+		for (Criteria.Expression e : conditions.getExpressions()) {
+			if (e instanceof Criteria.RequireExpression)
+				e = ((Criteria.RequireExpression)e).getRequired();
+			if ((e instanceof Criteria.PropertyComparison || e instanceof Criteria.InExpression) &&
+				this.info.isKeyProperty(((Criteria.PropertyExpression)e).getProperty()))
+				keyConditions.add((Criteria.PropertyExpression)e);
+			else
+				others = true;
+		}
+		return others;
+	}
+
+	private boolean coversConditions(ScanByIndex strat, Criteria indexConditions) throws HBaseException {
+		for (Criteria.Expression e : indexConditions.getExpressions()) {
+			if (!strat.isCovered(e, strat.getIndex()))
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Returns a scan of the entity table, filtering on the index conditions
+	 * along with the other criteria, and bounded by any row key conditions
+	 */
+	protected ScanNoIndex getTableScan(QueryOpts opts, Criteria indexConditions, Criteria criteria, FilterList baseFilter,
+									   List<Criteria.PropertyExpression> keyConditions)
+			throws HBaseException {
+		Criteria all = new Criteria();
+		List<Filter> filters = new ArrayList<Filter>();
+		for (Criteria.Expression e : indexConditions.getExpressions()) {
+			all.add(e);
+			filters.add(e.getFilter(this.info));
+		}
+		for (Criteria.Expression e : criteria.getExpressions())
+			all.add(e);
+		// keep the base filter (with any page filter) last
+		filters.add(baseFilter);
+
+		FilterList filter = new FilterList(FilterList.Operator.MUST_PASS_ALL, filters);
+		if (!keyConditions.isEmpty())
+			return new ScanByKey(this.info, opts, all, filter, keyConditions);
+
+		return new ScanNoIndex(this.info, opts, all, filter);
+	}
+
+	/**
+	 * Returns the estimated cost of the strategy, or -1 if the statistics
+	 * needed are not available
+	 */
+	public double estimateCost(QueryStrategy strat, QueryOpts opts) throws HBaseException {
+		TableStats baseStats = this.stats.get(this.info.getTablename());
+		if (baseStats == null)
+			return -1;
+
+		if (strat instanceof ScanByIndex) {
+			double matches = estimateMatches((ScanByIndex)strat);
+			if (matches < 0)
+				return -1;
+			this.matches.put(getPlanId(strat), matches);
+
+			double rows = matches;
+			if (opts.getPageSize() > 0)
+				rows = Math.min(rows, opts.getPageSize());
+			return rows * (SCAN_ROW_COST + GET_COST);
+		}
+
+		// table scan, reading until a page of matches is found
+		double rows = baseStats.getRowCount();
+		if (strat instanceof ScanByKey && ((ScanByKey)strat).isBounded())
+			rows *= KEY_RANGE_SELECTIVITY;
+		if (opts.getPageSize() > 0 && baseStats.getRowCount() > 0) {
+			double matches = estimateTableMatches((ScanNoIndex)strat, baseStats);
+			if (matches > 0)
+				rows = Math.min(rows, opts.getPageSize() * baseStats.getRowCount() / matches);
+		}
+		return rows * SCAN_ROW_COST;
+	}
+
+	/**
+	 * Returns the estimated number of index rows read by the index scan,
+	 * or -1 if there are no statistics for the index.  Comparisons other 
+	 * than equality are assumed to read the whole index.
+	 */
+	protected double estimateMatches(ScanByIndex strat) throws HBaseException {
+		IndexMapping idx = strat.getIndex();
+		TableStats idxStats = this.stats.get(idx.getTableName());
+		if (idxStats == null)
+			return -1;
+
+		Criteria.PropertyExpression expr = strat.getIndexedExpression();
+		double matches = idxStats.getRowCount();
+		if (expr instanceof Criteria.InExpression) {
+			matches = 0;
+			for (Object val : ((Criteria.InExpression)expr).getValues())
+				matches += idxStats.estimateEqual(this.info.encodeValue(expr.getProperty(), val));
+		}
+		else if (((Criteria.PropertyComparison)expr).getOp() == ColumnMatchFilter.CompareOp.EQUAL) {
+			matches = idxStats.estimateEqual(this.info.encodeValue(expr.getProperty(), expr.getValue()));
+		}
+
+		for (int i=1; i<strat.getKeyPrefix().size(); i++)
+			matches *= KEY_COLUMN_SELECTIVITY;
+
+		return Math.min(matches, idxStats.getRowCount());
+	}
+
+	/**
+	 * Estimates the matching entity rows for a table scan, from the most
+	 * selective indexed expression with statistics
+	 */
+	protected double estimateTableMatches(ScanNoIndex strat, TableStats baseStats) throws HBaseException {
+		double matches = baseStats.getRowCount();
+		for (Criteria.Expression e : strat.getCriteria().getExpressions()) {
+			if (e instanceof Criteria.RequireExpression)
+				e = ((Criteria.RequireExpression)e).getRequired();
+			if (!(e instanceof Criteria.PropertyComparison || e instanceof Criteria.InExpression))
+				continue;
+
+			Criteria.PropertyExpression expr = (Criteria.PropertyExpression)e;
+			if (this.info.getPropertyIndexes(expr.getProperty()) == null ||
+				this.info.getPropertyIndexes(expr.getProperty()).isEmpty())
+				continue;
+
+			Criteria indexCond = new Criteria().add(expr);
+			double idxMatches = estimateMatches(
+					new ScanByIndex(this.info, new QueryOpts(), indexCond, new Criteria(), null, expr));
+			if (idxMatches >= 0)
+				matches = Math.min(matches, idxMatches);
+		}
+
+		return matches;
+	}
+
+	private String getPlanId(QueryStrategy strat) throws HBaseException {
+		if (strat instanceof ScanByIndex)
+			((ScanByIndex)strat).selectPlan();
+		return strat.getPlanId();
+	}
+}
@@ -0,0 +1,110 @@
+package meetup.beeno;
+
+import java.util.List;
+
+import org.apache.hadoop.hbase.KeyValue;
+import org.apache.hadoop.hbase.client.Result;
+
+/**
+ * Runtime statistics for a single query execution, as recorded by
+ * {@link Query#executeWithStats()}.  Rows filtered by the region servers
+ * are never returned to the client, so the filtered count only covers
+ * rows dropped on the client: stale or duplicate index rows, index rows
+ * without an entity row, and rows that can't be mapped to an entity.
+ *
+ * Times are in nanoseconds.  Scan time includes waiting on scanner
+ * results, so for index scans the parallel read ahead of merged scans
+ * is not counted separately.
+ *
+ * @author garyh
+ *
+ */
+public class QueryStats {
+	private QueryPlan plan = null;
+	private long indexRows = 0;
+	private long baseRows = 0;
+	private long baseGets = 0;
+	private long rowsFiltered = 0;
+	private long bytes = 0;
+	private long planTime = 0;
+	private long scanTime = 0;
+	private long getTime = 0;
+	private long mapTime = 0;
+	private long totalTime = 0;
+
+	/** The plan the query was run with */
+	public QueryPlan getPlan() { return this.plan; }
+	void setPlan(QueryPlan plan) { this.plan = plan; }
+
+	/** Number of index table rows read */
+	public long getIndexRows() { return this.indexRows; }
+
+	/** Number of entity table rows read by a table scan */
+	public long getBaseRows() { return this.baseRows; }
+
+	/** Number of entity rows read individually for index rows */
+	public long getBaseGets() { return this.baseGets; }
+
+	/** Number of rows read but not returned as entities */
+	public long getRowsFiltered() { return this.rowsFiltered; }
+
+	/** Total size of the KeyValues received */
+	public long getBytesReceived() { return this.bytes; }
+
+	/** Time spent choosing the plan and opening scanners */
+	public long getPlanTime() { return this.planTime; }
+
+	/** Time spent reading index rows, or entity rows for table scans */
+	public long getScanTime() { return this.scanTime; }
+
+	/** Time spent reading entity rows for index rows */
+	public long getGetTime() { return this.getTime; }
+
+	/** Time spent creating entities from rows */
+	public long getMapTime() { return this.mapTime; }
+
+	/** Total execution time */
+	public long getTotalTime() { return this.totalTime; }
+
+	void addIndexRow(Result row, long nanos) {
+		this.indexRows++;
+		this.bytes += size(row);
+		this.scanTime += nanos;
+	}
+
+	void addBaseRow(Result row, long nanos) {
+		this.baseRows++;
+		this.bytes += size(row);
+		this.scanTime += nanos;
+	}
+
+	void addBaseGet(Result row, long nanos) {
+		this.baseGets++;
+		this.bytes += size(row);
+		this.getTime += nanos;
+	}
+
+	void addFiltered() { this.rowsFiltered++; }
+	void addPlanTime(long nanos) { this.planTime += nanos; }
+	void addScanTime(long nanos) { this.scanTime += nanos; }
+	void addMapTime(long nanos) { this.mapTime += nanos; }
+	void setTotalTime(long nanos) { this.totalTime = nanos; }
+
+	private static long size(Result row) {
+		long size = 0;
+		List<KeyValue> kvs = (row != null ? row.list() : null);
+		if (kvs != null) {
+			for (KeyValue kv : kvs)
+				size += kv.getLength();
+		}
+		return size;
+	}
+
+	public String toString() {
+		return String.format("[%s: index rows=%d; base rows=%d; gets=%d; filtered=%d; bytes=%d; " +
+				"plan=%f msec; scan=%f msec; get=%f msec; map=%f msec; total=%f msec]",
+				this.getClass().getSimpleName(), this.indexRows, this.baseRows, this.baseGets,
+				this.rowsFiltered, this.bytes, this.planTime/1000000.0, this.scanTime/1000000.0,
+				this.getTime/1000000.0, this.mapTime/1000000.0, this.totalTime/1000000.0);
+	}
+}
@@ -5,6 +5,7 @@ package meetup.beeno;
 
 import meetup.beeno.mapping.EntityInfo;
 
+import org.apache.hadoop.hbase.client.Result;
 import org.apache.hadoop.hbase.client.ResultScanner;
 import org.apache.hadoop.hbase.filter.Filter;
 
@@ -15,5 +16,30 @@ import org.apache.hadoop.hbase.filter.Filter;
 public interface QueryStrategy {
 
 	ResultScanner createScanner() throws QueryException;
+
+	/**
+	 * Returns the number of rows matching the query, without reading full
+	 * rows or creating entities.  Page size and cursors are ignored.
+	 */
+	long count() throws QueryException;
+
+	/**
+	 * Returns an identifier for the table scan used by the strategy, used to
+	 * match up query cursors with the plan that created them.  Only valid
+	 * after {@link #createScanner()} has been called.
+	 */
+	String getPlanId();
+
+	/**
+	 * Returns the row key of the last scanned table row (index table or base 
+	 * table) for the given result, for use in creating a query cursor.
+	 */
+	byte[] getLastKey(ResultScanner scanner, Result lastResult);
+
+	/**
+	 * Describes the table scans and filters the strategy will use, without
+	 * running the query.
+	 */
+	QueryPlan explain() throws QueryException;
 	
 }
@@ -6,16 +6,25 @@ package meetup.beeno;
 import java.beans.PropertyDescriptor;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
 
+import meetup.beeno.filter.ColumnMatchFilter;
 import meetup.beeno.mapping.EntityInfo;
+import meetup.beeno.mapping.FieldMapping;
 import meetup.beeno.mapping.IndexMapping;
 import meetup.beeno.mapping.MappingException;
 import meetup.beeno.util.HUtil;
-import meetup.beeno.util.PBUtil;
 
 import org.apache.hadoop.hbase.HConstants;
+import org.apache.hadoop.hbase.KeyValue;
+import org.apache.hadoop.hbase.client.Delete;
 import org.apache.hadoop.hbase.client.Get;
 import org.apache.hadoop.hbase.client.HTable;
 import org.apache.hadoop.hbase.client.Result;
@@ -23,7 +32,9 @@ import org.apache.hadoop.hbase.client.ResultScanner;
 import org.apache.hadoop.hbase.client.Scan;
 import org.apache.hadoop.hbase.filter.Filter;
 import org.apache.hadoop.hbase.filter.FilterList;
+import org.apache.hadoop.hbase.filter.FirstKeyOnlyFilter;
 import org.apache.hadoop.hbase.filter.PageFilter;
+import org.apache.hadoop.hbase.util.Bytes;
 import org.apache.log4j.Logger;
 
 /**
@@ -36,13 +47,221 @@ public class ScanByIndex implements QueryStrategy {
 	private final EntityInfo info;
 	private final QueryOpts opts;
 	private final Criteria indexConditions;
+	private final Criteria criteria;
 	private final FilterList baseFilter;
+	private String planId = null;
+	private Criteria.PropertyExpression indexedExpr = null;
+	private IndexMapping index = null;
+	private List<Criteria.PropertyExpression> keyPrefix = new ArrayList<Criteria.PropertyExpression>();
+	private byte[] startRow = null;
+	private byte[] stopRow = null;
+	private List<ScanRange> ranges = null;
+	private boolean planned = false;
+	private List<Filter> planFilters = new ArrayList<Filter>();
+	private boolean filtersApplied = false;
+	private List<Criteria.Expression> residualConditions = new ArrayList<Criteria.Expression>();
 	
-	public ScanByIndex( EntityInfo info, QueryOpts opts, Criteria indexConditions, FilterList baseFilter ) {
+	public ScanByIndex( EntityInfo info, QueryOpts opts, Criteria indexConditions, Criteria criteria, FilterList baseFilter ) {
+		this(info, opts, indexConditions, criteria, baseFilter, null);
+	}
+	
+	/**
+	 * Creates an index scan using the index for the given expression, which
+	 * must be one of the index conditions.  If <code>indexedExpr</code> is
+	 * <code>null</code>, the first indexed expression is used.
+	 */
+	public ScanByIndex( EntityInfo info, QueryOpts opts, Criteria indexConditions, Criteria criteria, FilterList baseFilter,
+						Criteria.PropertyExpression indexedExpr ) {
 		this.info = info;
 		this.opts = opts;
 		this.indexConditions = indexConditions;
+		this.criteria = criteria;
 		this.baseFilter = baseFilter;
+		this.indexedExpr = indexedExpr;
+	}
+
+	/**
+	 * Selects the index to use for the query and the filters to apply to 
+	 * the index rows, without computing the scan range.
+	 */
+	protected void selectPlan() throws HBaseException {
+		if (this.planId != null)
+			return;
+
+		if (this.indexedExpr == null)
+			this.indexedExpr = selectIndexedExpression(info, indexConditions.getExpressions());
+		if (this.indexedExpr != null) {
+			log.debug("Using indexed expression: "+this.indexedExpr);
+			// add on while match filter for exit at end of index value
+			this.planFilters.add( Criteria.require(this.indexedExpr).getFilter(info) );
+			this.index = selectIndex(this.indexedExpr, this.keyPrefix);
+			log.debug("Using index table: "+this.index.getTableName());
+
+			if (this.indexedExpr instanceof Criteria.InExpression) {
+				// cursor keys are relative to each value, so don't mix with other plans
+				this.planId = "fanin:"+this.index.getTableName();
+			}
+			else {
+				this.planId = "index:"+this.index.getTableName();
+				// filter on the rest of a composite key prefix as well
+				for (int i=1; i<this.keyPrefix.size(); i++)
+					this.planFilters.add( Criteria.require(this.keyPrefix.get(i)).getFilter(info) );
+			}
+			addConditionFilters();
+		}
+		else {
+			this.planId = "scan:"+info.getTablename();
+		}
+	}
+	
+	/**
+	 * Adds filters for the other index conditions, where the index rows
+	 * contain the needed columns.  Other conditions can't be checked against
+	 * the index rows, so are checked against the entity rows as they are
+	 * read (see {@link #getResidualFilter()}).
+	 */
+	private void addConditionFilters() throws HBaseException {
+		for (Criteria.Expression e : this.indexConditions.getExpressions()) {
+			Criteria.Expression cond = e;
+			if (cond instanceof Criteria.RequireExpression)
+				cond = ((Criteria.RequireExpression)cond).getRequired();
+			if (cond == this.indexedExpr || this.keyPrefix.contains(cond))
+				continue;
+			
+			if (isCovered(e, this.index)) {
+				this.planFilters.add( e.getFilter(info) );
+			}
+			else {
+				this.residualConditions.add(e);
+				if (log.isDebugEnabled())
+					log.debug(String.format("Index condition %s is not stored in index table %s, checking entity rows", 
+											e, this.index.getTableName()));
+			}
+		}
+	}
+	
+	/**
+	 * Returns <code>true</code> if all the columns read by the expression's
+	 * filter are stored in the index table rows
+	 */
+	protected boolean isCovered(Criteria.Expression expr, IndexMapping idx) throws HBaseException {
+		Set<String> needed = new HashSet<String>();
+		expr.addColumns(info, needed);
+		for (HUtil.HCol col : idx.getGenerator().getIndexedColumns())
+			needed.remove(col.toString());
+		
+		return needed.isEmpty();
+	}
+
+	/**
+	 * Selects the index to use for the query and computes the index table
+	 * scan range.  If no indexed expression is available, the scan falls back
+	 * to the base table.
+	 */
+	protected void plan() throws HBaseException {
+		selectPlan();
+		if (this.planned)
+			return;
+
+		this.planned = true;
+		if (this.index != null) {
+			if (this.indexedExpr instanceof Criteria.InExpression) {
+				this.ranges = getFanInRanges(opts, (Criteria.InExpression)this.indexedExpr, this.index);
+			}
+			else {
+				this.startRow = getIndexStartRow(opts);
+				this.stopRow = (this.index.isComposite() ? 
+								getCompositeStopRow(opts, this.keyPrefix, this.index) :
+								getStopRow(opts, this.indexedExpr, this.index));
+				// keys before the resume position still match the query
+				byte[] first = this.startRow;
+				if (opts.getCursor() != null) {
+					QueryOpts unresumed = new QueryOpts(opts);
+					unresumed.setCursor(null);
+					first = getIndexStartRow(unresumed);
+				}
+				this.ranges = new ArrayList<ScanRange>();
+				addRange(this.ranges, this.startRow, first, this.stopRow, 0);
+			}
+		}
+		else {
+			this.startRow = getStartRow(opts, null, null);
+			this.stopRow = opts.getStopKey();
+		}
+		log.debug("Using filter: "+getScanFilter());
+	}
+	
+	private byte[] getIndexStartRow(QueryOpts opts) throws HBaseException {
+		if (this.index.isComposite())
+			return getCompositeStartRow(opts, this.keyPrefix, this.index);
+		
+		return getStartRow(opts, this.indexedExpr, this.index);
+	}
+	
+	/**
+	 * Returns a new filter for the index conditions that can't be checked
+	 * against the index rows, to apply to each entity row read, or 
+	 * <code>null</code> if all conditions are checked by the index rows
+	 */
+	protected Filter getResidualFilter() throws HBaseException {
+		if (this.residualConditions.isEmpty())
+			return null;
+		
+		FilterList residual = new FilterList(FilterList.Operator.MUST_PASS_ALL, new ArrayList<Filter>());
+		for (Criteria.Expression e : this.residualConditions)
+			residual.addFilter(e.getFilter(info));
+		
+		return residual;
+	}
+	
+	/**
+	 * Returns the columns ("family:column") read by the residual filter
+	 */
+	protected Set<String> getResidualColumns() throws HBaseException {
+		Set<String> columns = new HashSet<String>();
+		for (Criteria.Expression e : this.residualConditions)
+			e.addColumns(info, columns);
+		
+		return columns;
+	}
+	
+	/**
+	 * Returns the base filter with the filters for the selected index added
+	 */
+	protected FilterList getScanFilter() {
+		if (!this.filtersApplied) {
+			for (Filter f : this.planFilters)
+				this.baseFilter.addFilter(f);
+			this.filtersApplied = true;
+		}
+		
+		return this.baseFilter;
+	}
+	
+	/**
+	 * Returns the selected index, or <code>null</code> if the query will 
+	 * scan the base table
+	 */
+	public IndexMapping getIndex() throws HBaseException {
+		selectPlan();
+		return this.index;
+	}
+	
+	/**
+	 * Returns the expression used to select the index scan range
+	 */
+	public Criteria.PropertyExpression getIndexedExpression() throws HBaseException {
+		selectPlan();
+		return this.indexedExpr;
+	}
+	
+	/**
+	 * Returns the equality expressions for the leading index key columns
+	 * used in the scan, starting with the indexed expression
+	 */
+	public List<Criteria.PropertyExpression> getKeyPrefix() throws HBaseException {
+		selectPlan();
+		return this.keyPrefix;
 	}
 
 	/* (non-Javadoc)
@@ -55,54 +274,46 @@ public class ScanByIndex implements QueryStrategy {
 		ResultScanner scanner = null;
 
 		try {
-			HTable table = null;
-			
-			try {
-				table = HUtil.getTable(info.getTablename());
-				Criteria.PropertyExpression indexedExpr = selectIndexedExpression(info, indexConditions.getExpressions());
-				if (indexedExpr != null) {
-					log.debug("Using indexed expression: "+indexedExpr);
-					// add on while match filter for exit at end of index value
-					baseFilter.addFilter( Criteria.require(indexedExpr).getFilter(info) );
-					IndexMapping idx = info.getFirstPropertyIndex(indexedExpr.getProperty());
-					if (idx != null)
-						log.debug("Using index table: "+idx.getTableName());
-				
-					byte[] startrow = getStartRow(opts, indexedExpr, idx);
-					//RowFilterInterface filter = addIndexFilters(baseFilter, startrow);
-					log.debug("Using filter: "+baseFilter);
-				
-					long t1 = System.nanoTime();
-					scanner = getIndexScanner(idx.getTableName(),
-											  startrow,
-											  opts.getStopKey(),
-											  baseFilter, 
-											  table,
-											  null);
-					long t2 = System.nanoTime();
-					log.info(String.format("HBASE TIMER: created indexed scanner in %f msec.", ((t2-t1)/1000000.0)));
-				}
-				else {
-					log.warn("Creating non-indexed scanner.  THIS MAY BE VERY SLOW!!!");
-	
-					byte[] startrow = getStartRow(opts, null, null);			
-					log.debug("Using filter: "+baseFilter);
-				
+			plan();
+			if (this.index != null) {
+				long t1 = System.nanoTime();
+				Filter residual = getResidualFilter();
+				Set<String> residualColumns = getResidualColumns();
+				// the base table is released when the wrapping scanner is closed
+				scanner = getIndexScanner(this.index.getTableName(),
+										  this.ranges,
+										  getScanFilter(), 
+										  HUtil.getTable(info.getTablename()),
+										  null);
+				((IndexScannerWrapper)scanner).setResidualFilter(residual, residualColumns);
+				long t2 = System.nanoTime();
+				log.info(String.format("HBASE TIMER: created indexed scanner in %f msec.", ((t2-t1)/1000000.0)));
+			}
+			else {
+				log.warn("Creating non-indexed scanner.  THIS MAY BE VERY SLOW!!!");
+				HTable table = null;
+				try {
+					table = HUtil.getTable(info.getTablename());
 					long t1 = System.nanoTime();
 					Scan scan = new Scan();
-					if (startrow != null)
-						scan.setStartRow(startrow);
-					if (opts.getStopKey() != null)
-						scan.setStopRow(opts.getStopKey());
-					if (baseFilter != null)
-						scan.setFilter(baseFilter);
+					if (this.startRow != null)
+						scan.setStartRow(this.startRow);
+					if (this.stopRow != null)
+						scan.setStopRow(this.stopRow);
+					scan.setFilter(getScanFilter());
+					if (info.hasDeferredFields()) {
+						// filters must see the columns they read
+						Set<String> filtered = this.indexConditions.getColumns(info);
+						filtered.addAll(this.criteria.getColumns(info));
+						HUtil.addFetchColumns(scan, info, filtered);
+					}
 					scanner = table.getScanner(scan);
 					long t2 = System.nanoTime();
 					log.info(String.format("HBASE TIMER: created scanner in %f msec.", ((t2-t1)/1000000.0)));
 				}
-			}
-			finally {
-				HUtil.releaseTable(table);
+				finally {
+					HUtil.releaseTable(table);
+				}
 			}
 		}
 		catch (HBaseException he) {
@@ -115,28 +326,164 @@ public class ScanByIndex implements QueryStrategy {
 		return scanner;
 	}
 	
+	/**
+	 * Counts the matching index rows, scanning each index region in parallel
+	 * and reading only the base row key column from each index row.
+	 */
+	@Override
+	public long count() throws QueryException {
+		try {
+			plan();
+			if (this.index == null)
+				throw new QueryException("No index available for count");
+
+			Scan scan = new Scan();
+			scan.setFilter(getScanFilter());
+			scan.addColumn(EntityIndexer.INDEX_FAMILY, EntityIndexer.INDEX_KEY_COLUMN);
+			// filters are applied to index row columns, so these must be read as well
+			for (String col : this.indexConditions.getColumns(info))
+				addColumn(scan, col);
+			for (String col : this.criteria.getColumns(info))
+				addColumn(scan, col);
+
+			// salt buckets and IN values are counted concurrently with the regions
+			List<byte[][]> keyRanges = new ArrayList<byte[][]>(this.ranges.size());
+			for (ScanRange range : this.ranges)
+				keyRanges.add(new byte[][]{ range.start, (range.stop != null ? range.stop : HConstants.EMPTY_END_ROW) });
+			ParallelScan pscan = new ParallelScan(this.index.getTableName(), scan, keyRanges);
+			
+			// a row may be indexed under more than one matching element, or
+			// fail conditions not stored in the index rows
+			if (this.index.isMultiValue() || !this.residualConditions.isEmpty())
+				return countBaseRows(pscan);
+			
+			return ScanNoIndex.countRows(pscan);
+		}
+		catch (QueryException qe) {
+			throw qe;
+		}
+		catch (HBaseException he) {
+			throw new QueryException(he);
+		}
+	}
+
+	/**
+	 * Counts the base rows read for each index row, where the index rows 
+	 * alone can't give the count.  For a multi-valued index, the index key 
+	 * columns of the base row are read, and the row is only counted from 
+	 * its first matching index row, as for 
+	 * {@link IndexScannerWrapper#setDistinct(EntityIndexer, List)}.  Index
+	 * conditions not stored in the index rows are checked against the 
+	 * columns they read from the base row.
+	 */
+	protected long countBaseRows(ParallelScan scan) throws HBaseException {
+		final EntityIndexer generator = (this.index.isMultiValue() ? this.index.getGenerator() : null);
+		final List<ScanRange> matchRanges = this.ranges;
+		Set<String> familyNames = new TreeSet<String>();
+		if (generator != null) {
+			for (HUtil.HCol col : generator.getKeyColumns())
+				familyNames.add(Bytes.toString(col.family()));
+		}
+		for (String column : getResidualColumns()) {
+			HUtil.HCol col = HUtil.HCol.parse(column);
+			if (col != null)
+				familyNames.add(Bytes.toString(col.family()));
+		}
+		final byte[][] families = new byte[familyNames.size()][];
+		int i = 0;
+		for (String family : familyNames)
+			families[i++] = Bytes.toBytes(family);
+		
+		List<Long> counts = scan.run(new ParallelScan.RegionTask<Long>() {
+			public Long scan(ResultScanner scanner, byte[] startRow, byte[] stopRow) 
+					throws IOException, HBaseException {
+				HTable baseTable = HUtil.getTable(info.getTablename());
+				try {
+					IndexScannerWrapper rows = new IndexScannerWrapper(scanner, baseTable, families);
+					if (generator != null)
+						rows.setDistinct(generator, matchRanges);
+					// filters keep state, so each region needs its own
+					rows.setResidualFilter(getResidualFilter(), null);
+					long cnt = 0;
+					while (rows.next() != null)
+						cnt++;
+					return cnt;
+				}
+				finally {
+					HUtil.releaseTable(baseTable);
+				}
+			}
+		});
+
+		long total = 0;
+		for (Long cnt : counts)
+			total += cnt;
+
+		return total;
+	}
+
+	static void addColumn(Scan scan, String column) {
+		HUtil.HCol col = HUtil.HCol.parse(column);
+		if (col != null)
+			scan.addColumn(col.family(), col.column());
+	}
 	
+	/**
+	 * Opens the index table scan over the given key ranges, reading the
+	 * base record for each index row.  Multiple ranges are scanned in 
+	 * parallel and merged in order of the key bytes following each range's
+	 * skipped prefix.
+	 */
 	protected ResultScanner getIndexScanner(String tablename, 
-											byte[] startrow, 
-											byte[] stoprow,
+											List<ScanRange> ranges,
 											Filter filter, 
 											HTable baseTable, 
 											byte[][] families) 
 		throws IOException {
 		
-		Scan idxScan = new Scan();
-		idxScan.setStartRow(startrow);
-		if (stoprow != null)
-			idxScan.setStopRow(stoprow);
-		if (filter != null)
-			idxScan.setFilter(filter);
-		
 		HTable idxTable = null;
-		ResultScanner wrapper = null;
+		IndexScannerWrapper wrapper = null;
+		List<ResultScanner> scanners = new ArrayList<ResultScanner>(ranges.size());
 		try {
 			idxTable = HUtil.getTable(tablename);
-			ResultScanner idxScanner = idxTable.getScanner(idxScan);		
+			boolean merged = (ranges.size() != 1 || ranges.get(0).skip > 0);
+			// merged sources are read a batch at a time, up to a page of results
+			int caching = MergedScanner.DEFAULT_SOURCE_CACHING;
+			if (this.opts.getPageSize() > 0)
+				caching = Math.min(caching, this.opts.getPageSize());
+			int[] skips = new int[ranges.size()];
+			for (int i=0; i<ranges.size(); i++) {
+				ScanRange range = ranges.get(i);
+				Scan idxScan = new Scan();
+				idxScan.setStartRow(range.start);
+				if (range.stop != null)
+					idxScan.setStopRow(range.stop);
+				if (filter != null)
+					idxScan.setFilter(filter);
+				if (merged)
+					idxScan.setCaching(caching);
+				scanners.add(idxTable.getScanner(idxScan));
+				skips[i] = range.skip;
+			}
+			
+			ResultScanner idxScanner = null;
+			if (!merged)
+				idxScanner = scanners.get(0);
+			else
+				idxScanner = new MergedScanner(scanners, skips);
+			
 			wrapper = new IndexScannerWrapper(idxScanner, baseTable, families);
+			wrapper.setFetchColumns(this.info);
+			if (this.opts.isReadRepair() && this.index != null)
+				wrapper.setReadRepair(this.index.getGenerator(), IndexRepairQueue.getInstance());
+			// a row may be indexed under more than one matching element
+			if (this.index != null && this.index.isMultiValue())
+				wrapper.setDistinct(this.index.getGenerator(), ranges);
+		}
+		catch (IOException ioe) {
+			for (ResultScanner scanner : scanners)
+				scanner.close();
+			throw ioe;
 		}
 		finally {
 			if (idxTable != null)
@@ -146,6 +493,80 @@ public class ScanByIndex implements QueryStrategy {
 		return wrapper;
 	}
 	
+	/**
+	 * Adds the index scan range, split into a range per bucket for salted
+	 * indexes.  The skip length does not include the salt byte.
+	 */
+	protected void addRange(List<ScanRange> ranges, byte[] start, byte[] first, byte[] stop, int skip) {
+		if (this.index == null || !this.index.isSalted()) {
+			ranges.add(new ScanRange(start, first, stop, skip));
+			return;
+		}
+		
+		for (int i=0; i<this.index.getSaltBuckets(); i++) {
+			byte[][] range = getBucketRange(i, start, stop);
+			ranges.add(new ScanRange(range[0], getBucketRange(i, first, stop)[0], range[1], skip + 1));
+		}
+	}
+	
+	/**
+	 * Returns an index scan range for each value of the IN expression.  
+	 * Within each range the key prefix for the value is skipped, so the 
+	 * ranges are merged by the remainder of the key (the date and row key 
+	 * for a simple date index).  Cursor resume keys are likewise relative to
+	 * the value prefix, and are applied to every range.
+	 */
+	protected List<ScanRange> getFanInRanges(QueryOpts opts, Criteria.InExpression expr, IndexMapping idx) 
+			throws HBaseException {
+		EntityIndexer generator = idx.getGenerator();
+		if (!idx.isComposite() && !generator.hasDefaultKeyFormat())
+			throw new QueryException(String.format("Index table %s does not support IN queries", idx.getTableName()));
+		if (opts.getCursor() != null)
+			opts.getCursor().checkPlan(this.planId);
+		
+		List<ScanRange> fanIn = new ArrayList<ScanRange>();
+		for (Object val : expr.getValues()) {
+			byte[] encValue = info.encodeValue(expr.getProperty(), val);
+			byte[] prefix = null;
+			byte[] stop = null;
+			if (idx.isComposite()) {
+				List<Criteria.PropertyExpression> valPrefix = new ArrayList<Criteria.PropertyExpression>(1);
+				valPrefix.add(expr.getComparison(val));
+				prefix = getCompositePrefix(valPrefix);
+				stop = EntityIndexer.nextPrefix(prefix);
+			}
+			else {
+				byte[] valueKey = generator.createIndexKey(encValue, null, null);
+				prefix = Bytes.add(valueKey, EntityIndexer.ROW_KEY_SEP);
+				stop = Bytes.add(valueKey, new byte[]{ ('-' + 1) });
+			}
+			
+			byte[] start = prefix;
+			if (opts.getCursor() != null)
+				start = Bytes.add(prefix, opts.getCursor().getResumeKey());
+			else if (opts.getStartTime() != null && !idx.isComposite())
+				start = generator.createIndexKey(encValue, opts.getStartTime(), null);
+			
+			addRange(fanIn, start, prefix, stop, prefix.length);
+		}
+		
+		return fanIn;
+	}
+	
+	/**
+	 * Returns the start and stop rows for the unsalted key range within a
+	 * salt bucket.  An open ended range stops at the end of the bucket.
+	 */
+	static byte[][] getBucketRange(int bucket, byte[] startRow, byte[] stopRow) {
+		byte[] prefix = new byte[]{ (byte)bucket };
+		byte[] start = (startRow == null ? prefix : Bytes.add(prefix, startRow));
+		byte[] stop = (stopRow == null || stopRow.length == 0 ? 
+						EntityIndexer.nextPrefix(prefix) : Bytes.add(prefix, stopRow));
+		if (stop == null)
+			stop = HConstants.EMPTY_END_ROW;
+		
+		return new byte[][]{ start, stop };
+	}
 	
 	/**
 	 * Tries to find which expression in the list will be able to use a secondary index table
@@ -161,8 +582,8 @@ public class ScanByIndex implements QueryStrategy {
 			if (e instanceof Criteria.RequireExpression)
 				e = ((Criteria.RequireExpression)e).getRequired();
 			
-			if (e instanceof Criteria.PropertyComparison) {
-				Criteria.PropertyComparison propExpr = (Criteria.PropertyComparison)e;
+			if (e instanceof Criteria.PropertyComparison || e instanceof Criteria.InExpression) {
+				Criteria.PropertyExpression propExpr = (Criteria.PropertyExpression)e;
 				PropertyDescriptor prop = info.getProperty(propExpr.getProperty());
 				if (prop != null && info.getFirstPropertyIndex(prop) != null)
 					return propExpr;
@@ -176,7 +597,152 @@ public class ScanByIndex implements QueryStrategy {
 	}
 	
 	
+	/**
+	 * Selects the index for the indexed expression's property.  Composite 
+	 * indexes are preferred when the query constrains more of the leading 
+	 * key columns with equality comparisons, from either the index 
+	 * conditions or the query criteria.  The expressions matching the 
+	 * selected index's key prefix are added to <code>prefix</code>.
+	 */
+	protected IndexMapping selectIndex(Criteria.PropertyExpression expr, 
+									   List<Criteria.PropertyExpression> prefix) throws HBaseException {
+		List<IndexMapping> candidates = info.getPropertyIndexes(expr.getProperty());
+		Map<String,Criteria.PropertyExpression> equalities = new HashMap<String,Criteria.PropertyExpression>();
+		addEqualities(this.indexConditions.getExpressions(), equalities);
+		addEqualities(this.criteria.getExpressions(), equalities);
+		boolean exact = (expr instanceof Criteria.PropertyComparison &&
+						 ((Criteria.PropertyComparison)expr).getOp() == ColumnMatchFilter.CompareOp.EQUAL);
+		
+		IndexMapping best = null;
+		List<Criteria.PropertyExpression> bestPrefix = null;
+		for (IndexMapping idx : candidates) {
+			List<Criteria.PropertyExpression> idxPrefix = new ArrayList<Criteria.PropertyExpression>();
+			idxPrefix.add(expr);
+			if (exact) {
+				for (HUtil.HCol col : idx.getKeyFields()) {
+					Criteria.PropertyExpression keyExpr = equalities.get(col.toString());
+					if (keyExpr == null)
+						break;
+					idxPrefix.add(keyExpr);
+				}
+			}
+			
+			// on ties, prefer the simpler index
+			if (best == null || idxPrefix.size() > bestPrefix.size() ||
+				(idxPrefix.size() == bestPrefix.size() && best.isComposite() && !idx.isComposite())) {
+				best = idx;
+				bestPrefix = idxPrefix;
+			}
+		}
+		
+		prefix.clear();
+		prefix.addAll(bestPrefix);
+		return best;
+	}
+	
+	private void addEqualities(List<Criteria.Expression> expressions, 
+							   Map<String,Criteria.PropertyExpression> equalities) throws HBaseException {
+		for (Criteria.Expression e : expressions) {
+			if (e instanceof Criteria.RequireExpression)
+				e = ((Criteria.RequireExpression)e).getRequired();
+			
+			if (e instanceof Criteria.PropertyComparison && 
+				((Criteria.PropertyComparison)e).getOp() == ColumnMatchFilter.CompareOp.EQUAL) {
+				Criteria.PropertyComparison comp = (Criteria.PropertyComparison)e;
+				FieldMapping field = info.getPropertyMapping(comp.getProperty());
+				if (field != null && !equalities.containsKey(field.getFieldName()))
+					equalities.put(field.getFieldName(), comp);
+			}
+		}
+	}
+	
+	/**
+	 * Index table key range to scan, with the number of leading key bytes
+	 * to skip when merging with other ranges.  The first key matched by the
+	 * query is kept separately from the start key, which moves past it when
+	 * resuming from a cursor.
+	 */
+	protected static class ScanRange {
+		final byte[] start;
+		final byte[] first;
+		final byte[] stop;
+		final int skip;
+		
+		ScanRange(byte[] start, byte[] first, byte[] stop, int skip) {
+			this.start = start;
+			this.first = first;
+			this.stop = stop;
+			this.skip = skip;
+		}
+		
+		boolean contains(byte[] key) {
+			return (Bytes.compareTo(key, this.first) >= 0 &&
+					(this.stop == null || this.stop.length == 0 || Bytes.compareTo(key, this.stop) < 0));
+		}
+	}
+	
+	@Override
+	public String getPlanId() {
+		return this.planId;
+	}
+
+	/**
+	 * Describes the index scan ranges, and which conditions are checked by
+	 * the index row filters.  Index conditions that can't be checked against
+	 * the index rows are listed as residual.
+	 */
+	@Override
+	public QueryPlan explain() throws QueryException {
+		try {
+			plan();
+		}
+		catch (QueryException qe) {
+			throw qe;
+		}
+		catch (HBaseException he) {
+			throw new QueryException(he);
+		}
+
+		QueryPlan explained = new QueryPlan(this, info.getTablename());
+		if (this.index != null) {
+			explained.setIndexTable(this.index.getTableName());
+			for (ScanRange range : this.ranges)
+				explained.addRange(range.start, range.stop);
+			explained.addPushedFilter(this.indexedExpr);
+			for (int i=1; i<this.keyPrefix.size(); i++)
+				explained.addPushedFilter(this.keyPrefix.get(i));
+			for (Criteria.Expression e : this.indexConditions.getExpressions()) {
+				Criteria.Expression cond = e;
+				if (cond instanceof Criteria.RequireExpression)
+					cond = ((Criteria.RequireExpression)cond).getRequired();
+				if (cond != this.indexedExpr && !this.keyPrefix.contains(cond) && !this.residualConditions.contains(e))
+					explained.addPushedFilter(e);
+			}
+			for (Criteria.Expression e : this.residualConditions)
+				explained.addResidualFilter(e);
+		}
+		else {
+			explained.addRange(this.startRow, this.stopRow);
+		}
+		for (Criteria.Expression e : this.criteria.getExpressions())
+			explained.addPushedFilter(e);
+
+		return explained;
+	}
+
+	@Override
+	public byte[] getLastKey(ResultScanner scanner, Result lastResult) {
+		if (scanner instanceof IndexScannerWrapper)
+			return ((IndexScannerWrapper)scanner).getLastIndexKey();
+
+		return lastResult.getRow();
+	}
+
 	protected byte[] getStartRow(QueryOpts opts, Criteria.PropertyExpression expr, IndexMapping idx) throws HBaseException {
+		if (opts.getCursor() != null) {
+			opts.getCursor().checkPlan(this.planId);
+			return opts.getCursor().getResumeKey();
+		}
 		if (opts.getStartKey() != null) {
 			return opts.getStartKey();
 		}
@@ -184,12 +750,82 @@ public class ScanByIndex implements QueryStrategy {
 			return HConstants.EMPTY_START_ROW;
 		}
 		
-		byte[] encValue = PBUtil.toBytes(expr.getValue()); 
+		byte[] encValue = info.encodeValue(expr.getProperty(), expr.getValue());
 		EntityIndexer generator = idx.getGenerator();
 		
 		return generator.createIndexKey(encValue, opts.getStartTime(), null);
 	}
 	
+	/**
+	 * Returns the stop row for the index scan.  For the built-in key
+	 * factories, all index keys for a value share the key prefix generated
+	 * for the value alone, followed by a '-' separator, so the scan can stop
+	 * before the next separator character without reading into the next
+	 * region.
+	 */
+	protected byte[] getStopRow(QueryOpts opts, Criteria.PropertyExpression expr, IndexMapping idx) throws HBaseException {
+		if (opts.getStopKey() != null)
+			return opts.getStopKey();
+		if (expr == null || idx == null || !(expr instanceof Criteria.PropertyComparison) ||
+			((Criteria.PropertyComparison)expr).getOp() != ColumnMatchFilter.CompareOp.EQUAL)
+			return null;
+
+		EntityIndexer generator = idx.getGenerator();
+		if (!generator.hasDefaultKeyFormat())
+			return null;
+
+		byte[] prefix = generator.createIndexKey(info.encodeValue(expr.getProperty(), expr.getValue()), null, null);
+		return Bytes.add(prefix, new byte[]{ ('-' + 1) });
+	}
+
+	/**
+	 * Returns the encoded composite value for the key prefix expressions
+	 */
+	protected byte[] getCompositePrefix(List<Criteria.PropertyExpression> prefix) {
+		List<byte[]> vals = new ArrayList<byte[]>(prefix.size());
+		for (Criteria.PropertyExpression e : prefix)
+			vals.add(info.encodeValue(e.getProperty(), e.getValue()));
+		
+		return EntityIndexer.createCompositeValue(vals);
+	}
+	
+	/**
+	 * Returns the start row for a composite index scan.  The start time is
+	 * only applied when all of the index key columns are constrained.
+	 */
+	protected byte[] getCompositeStartRow(QueryOpts opts, List<Criteria.PropertyExpression> prefix, IndexMapping idx) 
+			throws HBaseException {
+		if (opts.getCursor() != null) {
+			opts.getCursor().checkPlan(this.planId);
+			return opts.getCursor().getResumeKey();
+		}
+		if (opts.getStartKey() != null)
+			return opts.getStartKey();
+		
+		byte[] value = getCompositePrefix(prefix);
+		if (prefix.size() == idx.getKeyFields().size() + 1)
+			return idx.getGenerator().createIndexKey(value, opts.getStartTime(), null);
+		
+		return value;
+	}
+	
+	/**
+	 * Returns the stop row for a composite index scan.  All keys for the 
+	 * constrained prefix of values share the same encoded prefix, so the 
+	 * scan can stop at the next possible prefix.
+	 */
+	protected byte[] getCompositeStopRow(QueryOpts opts, List<Criteria.PropertyExpression> prefix, IndexMapping idx) {
+		if (opts.getStopKey() != null)
+			return opts.getStopKey();
+		
+		// only an equality on the first column produces a fixed prefix
+		if (prefix.size() == 1 && !(prefix.get(0) instanceof Criteria.PropertyComparison &&
+				((Criteria.PropertyComparison)prefix.get(0)).getOp() == ColumnMatchFilter.CompareOp.EQUAL))
+			return null;
+		
+		return EntityIndexer.nextPrefix(getCompositePrefix(prefix));
+	}
+
 	protected Filter addIndexFilters(Filter baseFilter, byte[] startrow) {
 		if (startrow != null) {
 			List<Filter> orfilters = new ArrayList<Filter>(2);
@@ -209,6 +845,17 @@ public class ScanByIndex implements QueryStrategy {
 		private final ResultScanner indexScanner;
 		private final HTable baseTable;
 		private final byte[][] baseFamilies;
+		private byte[] lastIndexKey = null;
+		private EntityIndexer verifier = null;
+		private IndexRepairQueue repairQueue = null;
+		private long staleCnt = 0;
+		private EntityIndexer distinctKeys = null;
+		private List<ScanRange> matchRanges = null;
+		private Filter residualFilter = null;
+		private Collection<String> residualColumns = null;
+		private QueryStats stats = null;
+		private EntityInfo fetchInfo = null;
+		private Collection<String> selectColumns = null;
 		
 		IndexScannerWrapper(ResultScanner indexScanner, HTable baseTable) {
 			this(indexScanner, baseTable, null);
@@ -266,30 +913,247 @@ public class ScanByIndex implements QueryStrategy {
 			HUtil.releaseTable(this.baseTable);
 		}
 
+		/**
+		 * Enables read repair: each base record is checked against the index
+		 * key it was read from, and records that are missing or no longer
+		 * match are skipped.  The stale index rows are passed to the repair 
+		 * queue for deletion.
+		 */
+		void setReadRepair(EntityIndexer verifier, IndexRepairQueue queue) {
+			this.verifier = verifier;
+			this.repairQueue = queue;
+		}
+		
+		/**
+		 * Returns each base record only once, even if it is referenced by 
+		 * several index rows.  The index keys generated from the fetched record
+		 * are compared with the scan ranges, and the record is only returned
+		 * from the index row with the lowest matching key, so no state is kept
+		 * across index rows or pages.  Index rows the record no longer 
+		 * generates are skipped.
+		 * 
+		 * @param generator index key generator for the scanned index
+		 * @param ranges index key ranges matched by the query
+		 */
+		void setDistinct(EntityIndexer generator, List<ScanRange> ranges) {
+			this.distinctKeys = generator;
+			this.matchRanges = ranges;
+		}
+		
+		/**
+		 * Checks each base record against the filter on the client, for 
+		 * index conditions that can't be checked against the index rows.
+		 * 
+		 * @param filter filter to apply, or <code>null</code> for none
+		 * @param columns columns ("family:column") read by the filter, 
+		 * 		fetched along with the record's columns
+		 */
+		void setResidualFilter(Filter filter, Collection<String> columns) {
+			this.residualFilter = filter;
+			this.residualColumns = columns;
+		}
+		
+		/**
+		 * Records the index rows and base records read, and the time spent
+		 * reading each, in the given query statistics
+		 */
+		void setStats(QueryStats stats) {
+			this.stats = stats;
+		}
+		
+		/**
+		 * Reads only the columns fetched for the entity from each base 
+		 * record, leaving out any deferred (lazy) fields
+		 */
+		void setFetchColumns(EntityInfo info) {
+			this.fetchInfo = info;
+		}
+		
+		/**
+		 * Reads only the given columns ("family:column") from each base 
+		 * record, along with the columns needed to verify index rows and
+		 * check residual conditions.  Records missing all of the columns 
+		 * are still returned, as empty results.
+		 */
+		void setSelectColumns(Collection<String> columns) {
+			this.selectColumns = columns;
+		}
+		
+		/**
+		 * Returns the number of stale index rows skipped by read repair
+		 */
+		public long getStaleCount() {
+			return this.staleCnt;
+		}
+
 		@Override
 		/**
 		 * Advances the index scanner and reads the next record from the underlying table
 		 */
 		public Result next() throws IOException {
-			Result idxRow = this.indexScanner.next();
-			if (idxRow != null && !idxRow.isEmpty()) {
+			Result idxRow = null;
+			long t1 = System.nanoTime();
+			while ((idxRow = this.indexScanner.next()) != null && !idxRow.isEmpty()) {
+				if (this.stats != null) {
+					long t2 = System.nanoTime();
+					this.stats.addIndexRow(idxRow, t2-t1);
+					t1 = t2;
+				}
+				// merged scans resume from the merged key, rather than the table row
+				if (this.indexScanner instanceof MergedScanner)
+					this.lastIndexKey = ((MergedScanner)this.indexScanner).getLastKey();
+				else
+					this.lastIndexKey = idxRow.getRow();
 				byte[] rowkey = idxRow.getValue(EntityIndexer.INDEX_FAMILY, EntityIndexer.INDEX_KEY_COLUMN);
 				if (rowkey != null && rowkey.length > 0) {
 					Get get = new Get(rowkey);
 					if (this.baseFamilies != null)
 						for (byte[] fam : this.baseFamilies)
 							get.addFamily(fam);
+					else if (this.selectColumns != null)
+						addSelectColumns(get);
+					else if (this.fetchInfo != null)
+						HUtil.addFetchColumns(get, this.fetchInfo, this.residualColumns);
 					
-					return this.baseTable.get(get);
+					Result row = this.baseTable.get(get);
+					if (this.stats != null) {
+						long t2 = System.nanoTime();
+						this.stats.addBaseGet(row, t2-t1);
+						t1 = t2;
+					}
+					if ((this.verifier == null || isCurrent(idxRow, row)) &&
+						(this.distinctKeys == null || isFirstMatch(idxRow, row)) &&
+						(this.residualFilter == null || matches(this.residualFilter, row)))
+						return row;
 				}
 				else {
 					if (log.isDebugEnabled())
 						log.debug("No base record found for index key");
+					if (this.verifier == null)
+						break;
 				}
+				if (this.stats != null)
+					this.stats.addFiltered();
 			}
+			if (this.stats != null)
+				this.stats.addScanTime(System.nanoTime()-t1);
 			
 			return null;
 		}
+		
+		/**
+		 * Restricts the Get to the selected columns, plus those read for read
+		 * repair, multi-value matching and residual conditions.  Only the 
+		 * first column is read if none are needed.
+		 */
+		protected void addSelectColumns(Get get) {
+			List<HUtil.HCol> columns = new ArrayList<HUtil.HCol>();
+			Set<String> families = new HashSet<String>();
+			Set<String> names = new TreeSet<String>(this.selectColumns);
+			if (this.residualColumns != null)
+				names.addAll(this.residualColumns);
+			for (String name : names) {
+				HUtil.HCol col = HUtil.HCol.parse(name);
+				if (col != null)
+					columns.add(col);
+			}
+			for (EntityIndexer indexer : new EntityIndexer[]{this.verifier, this.distinctKeys}) {
+				if (indexer == null)
+					continue;
+				List<HUtil.HCol> keyCols = indexer.getKeyColumns();
+				columns.addAll(keyCols);
+				// element columns can't be named, so read the whole family
+				if (indexer.isMultiValue())
+					families.add(Bytes.toString(keyCols.get(0).family()));
+			}
+			
+			if (columns.isEmpty()) {
+				get.setFilter(new FirstKeyOnlyFilter());
+				return;
+			}
+			for (HUtil.HCol col : columns)
+				get.addColumn(col.family(), col.column());
+			// families last, so they aren't narrowed to the named columns
+			for (String family : families)
+				get.addFamily(Bytes.toBytes(family));
+		}
+		
+		/**
+		 * Checks that the base record still generates the index row's key,
+		 * queuing the index row for removal if not.
+		 */
+		protected boolean isCurrent(Result idxRow, Result baseRow) {
+			if (baseRow != null && !baseRow.isEmpty() &&
+				this.verifier.generatesKey(baseRow, idxRow.getRow()))
+				return true;
+			
+			this.staleCnt++;
+			if (log.isDebugEnabled())
+				log.debug(String.format("Skipping stale index row %s in %s", 
+										Bytes.toStringBinary(idxRow.getRow()), this.verifier.getIndexTable()));
+			
+			// only remove versions we've seen, in case the row is rewritten concurrently
+			long maxTs = 0;
+			for (KeyValue kv : idxRow.raw())
+				maxTs = Math.max(maxTs, kv.getTimestamp());
+			this.repairQueue.add(this.verifier.getIndexTable(), new Delete(idxRow.getRow(), maxTs, null));
+			
+			return false;
+		}
+
+		/**
+		 * Returns <code>true</code> if the index row has the lowest key within
+		 * the scan ranges of those generated for the base record
+		 */
+		protected boolean isFirstMatch(Result idxRow, Result baseRow) {
+			if (baseRow == null || baseRow.isEmpty())
+				return false;
+			
+			byte[] first = null;
+			for (byte[] key : this.distinctKeys.getIndexKeys(baseRow)) {
+				if ((first == null || Bytes.compareTo(key, first) < 0) && inRanges(key))
+					first = key;
+			}
+			
+			return (first != null && Bytes.equals(first, idxRow.getRow()));
+		}
+		
+		/**
+		 * Applies the filter to the record's columns, as a region server does
+		 * for a row in a scan
+		 */
+		static boolean matches(Filter filter, Result row) {
+			if (row == null || row.isEmpty())
+				return false;
+			
+			filter.reset();
+			byte[] key = row.getRow();
+			if (filter.filterRowKey(key, 0, key.length))
+				return false;
+			for (KeyValue kv : row.raw()) {
+				if (filter.filterAllRemaining() || 
+					filter.filterKeyValue(kv) == Filter.ReturnCode.NEXT_ROW)
+					break;
+			}
+			
+			return !filter.filterAllRemaining() && !filter.filterRow();
+		}
+		
+		private boolean inRanges(byte[] key) {
+			for (ScanRange range : this.matchRanges) {
+				if (range.contains(key))
+					return true;
+			}
+			
+			return false;
+		}
+
+		/**
+		 * Returns the index table row key for the last base record returned
+		 */
+		public byte[] getLastIndexKey() {
+			return this.lastIndexKey;
+		}
 
 		@Override
 		public Result[] next( int count ) throws IOException {
@@ -0,0 +1,335 @@
+package meetup.beeno;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.TreeSet;
+
+import meetup.beeno.mapping.EntityInfo;
+import meetup.beeno.util.HUtil;
+
+import org.apache.hadoop.hbase.KeyValue;
+import org.apache.hadoop.hbase.client.Get;
+import org.apache.hadoop.hbase.client.HTable;
+import org.apache.hadoop.hbase.client.Result;
+import org.apache.hadoop.hbase.client.ResultScanner;
+import org.apache.hadoop.hbase.filter.Filter;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.apache.log4j.Logger;
+
+/**
+ * Reads entity rows directly by row key, for queries with conditions on
+ * the {@link HRowKey} property.  Equality and IN conditions are read with
+ * a Get for each key, in key order.  Range conditions set the start and
+ * stop rows of the table scan.  All conditions, including those on the
+ * row key, are still checked by the scan filter.
+ *
+ * Both forms return rows in row key order, so cursors are interchangeable
+ * with those of a plain table scan.
+ *
+ * @author garyh
+ *
+ */
+public class ScanByKey extends ScanNoIndex {
+	private static Logger log = Logger.getLogger(ScanByKey.class);
+
+	private TreeSet<byte[]> keys = null;
+	private byte[] lower = null;
+	private byte[] upper = null;
+
+	/**
+	 * @param keyConditions the comparison and IN expressions on the row key
+	 * property, also included in <code>criteria</code>
+	 */
+	public ScanByKey( EntityInfo entityInfo, QueryOpts opts, Criteria criteria, Filter baseFilter,
+					  List<Criteria.PropertyExpression> keyConditions ) {
+		super(entityInfo, opts, criteria, baseFilter);
+		for (Criteria.PropertyExpression e : keyConditions)
+			addCondition(e);
+	}
+
+	/**
+	 * Narrows the keys or key range read for the row key condition
+	 */
+	protected void addCondition(Criteria.PropertyExpression expr) {
+		if (expr instanceof Criteria.InExpression) {
+			TreeSet<byte[]> vals = new TreeSet<byte[]>(Bytes.BYTES_COMPARATOR);
+			for (Object val : ((Criteria.InExpression)expr).getValues())
+				vals.add(HUtil.convertToBytes(val));
+			restrictKeys(vals);
+			return;
+		}
+
+		Criteria.PropertyComparison comp = (Criteria.PropertyComparison)expr;
+		byte[] key = HUtil.convertToBytes(comp.getValue());
+		switch (comp.getOp()) {
+		case EQUAL:
+			TreeSet<byte[]> vals = new TreeSet<byte[]>(Bytes.BYTES_COMPARATOR);
+			vals.add(key);
+			restrictKeys(vals);
+			break;
+		case GREATER:
+			raiseLower(nextKey(key));
+			break;
+		case GREATER_OR_EQUAL:
+			raiseLower(key);
+			break;
+		case LESS:
+			reduceUpper(key);
+			break;
+		case LESS_OR_EQUAL:
+			reduceUpper(nextKey(key));
+			break;
+		default:
+			// only checked by the filter
+		}
+	}
+
+	private void restrictKeys(TreeSet<byte[]> vals) {
+		if (this.keys == null)
+			this.keys = vals;
+		else
+			this.keys.retainAll(vals);
+	}
+
+	private void raiseLower(byte[] key) {
+		if (this.lower == null || Bytes.compareTo(key, this.lower) > 0)
+			this.lower = key;
+	}
+
+	private void reduceUpper(byte[] key) {
+		if (this.upper == null || Bytes.compareTo(key, this.upper) < 0)
+			this.upper = key;
+	}
+
+	/** Returns the first possible row key following the given key */
+	static byte[] nextKey(byte[] key) {
+		return Bytes.add(key, new byte[]{ 0 });
+	}
+
+	/**
+	 * Returns <code>true</code> if rows are read by key, rather than by a
+	 * table scan
+	 */
+	public boolean isLookup() {
+		return this.keys != null;
+	}
+
+	/**
+	 * Returns <code>true</code> if the table scan is bounded by row key
+	 * conditions
+	 */
+	public boolean isBounded() {
+		return this.lower != null || this.upper != null;
+	}
+
+	@Override
+	protected byte[] getStartKey() {
+		byte[] start = super.getStartKey();
+		if (this.lower != null && (start == null || Bytes.compareTo(this.lower, start) > 0))
+			start = this.lower;
+
+		return start;
+	}
+
+	@Override
+	protected byte[] getStopKey() {
+		byte[] stop = super.getStopKey();
+		if (this.upper != null && (stop == null || stop.length == 0 || Bytes.compareTo(this.upper, stop) < 0))
+			stop = this.upper;
+
+		return stop;
+	}
+
+	/**
+	 * Returns the keys to read, within the start and stop rows and after
+	 * any cursor
+	 */
+	protected List<byte[]> getLookupKeys() throws QueryException {
+		byte[] start = getScanStart();
+		byte[] stop = getStopKey();
+		List<byte[]> selected = new ArrayList<byte[]>(this.keys.size());
+		for (byte[] key : this.keys) {
+			if (start != null && Bytes.compareTo(key, start) < 0)
+				continue;
+			if (stop != null && stop.length > 0 && Bytes.compareTo(key, stop) >= 0)
+				break;
+			selected.add(key);
+		}
+
+		return selected;
+	}
+
+	@Override
+	public ResultScanner createScanner() throws QueryException {
+		if (!isLookup())
+			return super.createScanner();
+
+		List<byte[]> selected = getLookupKeys();
+		log.debug(String.format("Reading %d rows by key", selected.size()));
+		LookupScanner scanner = new LookupScanner(HUtil.getTable(info.getTablename()), selected, baseFilter);
+		if (info.hasDeferredFields()) {
+			try {
+				scanner.setFetchColumns(info, this.criteria.getColumns(info));
+			}
+			catch (HBaseException he) {
+				scanner.close();
+				throw new QueryException(he);
+			}
+		}
+
+		return scanner;
+	}
+
+	@Override
+	public long count() throws QueryException {
+		if (!isLookup())
+			return super.count();
+
+		long cnt = 0;
+		List<byte[]> selected = getLookupKeys();
+		ResultScanner scanner = new LookupScanner(HUtil.getTable(info.getTablename()), selected, baseFilter);
+		try {
+			for (Result row : scanner)
+				cnt++;
+		}
+		finally {
+			scanner.close();
+		}
+
+		return cnt;
+	}
+
+	@Override
+	public QueryPlan explain() throws QueryException {
+		if (!isLookup())
+			return super.explain();
+
+		QueryPlan plan = new QueryPlan(this, info.getTablename());
+		for (byte[] key : getLookupKeys())
+			plan.addRange(key, nextKey(key));
+		for (Criteria.Expression e : this.criteria.getExpressions())
+			plan.addPushedFilter(e);
+
+		return plan;
+	}
+
+
+	/**
+	 * Reads rows with a Get for each key, skipping missing rows and those
+	 * excluded by the filter.  Filters on Gets are not applied by the region
+	 * servers in this HBase release, so the filter is checked against the
+	 * returned row on the client.
+	 */
+	public static class LookupScanner implements ResultScanner {
+		private final HTable table;
+		private final Iterator<byte[]> keys;
+		private final Filter filter;
+		private EntityInfo fetchInfo = null;
+		private Collection<String> filterColumns = null;
+
+		LookupScanner(HTable table, List<byte[]> keys, Filter filter) {
+			this.table = table;
+			this.keys = keys.iterator();
+			this.filter = filter;
+		}
+
+		/**
+		 * Reads only the columns fetched for the entity, along with the 
+		 * columns read by the filter, leaving out any deferred (lazy) fields
+		 */
+		void setFetchColumns(EntityInfo info, Collection<String> filterColumns) {
+			this.fetchInfo = info;
+			this.filterColumns = filterColumns;
+		}
+
+		@Override
+		public Result next() throws IOException {
+			while (this.keys.hasNext()) {
+				Get get = new Get(this.keys.next());
+				if (this.fetchInfo != null)
+					HUtil.addFetchColumns(get, this.fetchInfo, this.filterColumns);
+				Result row = this.table.get(get);
+				if (row != null && !row.isEmpty() && matches(row))
+					return row;
+			}
+
+			return null;
+		}
+
+		/**
+		 * Applies the filter to the row, as a region server would for a
+		 * scanned row
+		 */
+		protected boolean matches(Result row) {
+			if (this.filter == null)
+				return true;
+
+			this.filter.reset();
+			byte[] key = row.getRow();
+			if (this.filter.filterRowKey(key, 0, key.length))
+				return false;
+			for (KeyValue kv : row.raw()) {
+				Filter.ReturnCode code = this.filter.filterKeyValue(kv);
+				if (code == Filter.ReturnCode.NEXT_ROW)
+					break;
+			}
+
+			return !this.filter.filterRow();
+		}
+
+		@Override
+		public Result[] next(int count) throws IOException {
+			ArrayList<Result> results = new ArrayList<Result>(count);
+			for (int i=0; i<count; i++) {
+				Result next = next();
+				if (next == null)
+					break;
+				results.add(next);
+			}
+
+			return results.toArray(new Result[0]);
+		}
+
+		@Override
+		public Iterator<Result> iterator() {
+			return new Iterator<Result>() {
+				// store next item to support look ahead
+				private Result next = null;
+
+				public boolean hasNext() {
+					if (next == null) {
+						try {
+							next = LookupScanner.this.next();
+						}
+						catch (IOException ioe) {
+							throw new RuntimeException(ioe);
+						}
+					}
+
+					return next != null;
+				}
+
+				public Result next() {
+					if (!hasNext())
+						return null;
+
+					Result tmp = next;
+					next = null;
+					return tmp;
+				}
+
+				public void remove() {
+					throw new UnsupportedOperationException("Not supported");
+				}
+			};
+		}
+
+		@Override
+		public void close() {
+			HUtil.releaseTable(this.table);
+		}
+	}
+}
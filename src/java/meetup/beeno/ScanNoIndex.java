@@ -1,26 +1,32 @@
 package meetup.beeno;
 
 import java.io.IOException;
+import java.util.List;
+import java.util.Set;
 
 import meetup.beeno.mapping.EntityInfo;
 import meetup.beeno.util.HUtil;
 
 import org.apache.hadoop.hbase.client.HTable;
+import org.apache.hadoop.hbase.client.Result;
 import org.apache.hadoop.hbase.client.ResultScanner;
 import org.apache.hadoop.hbase.client.Scan;
 import org.apache.hadoop.hbase.filter.Filter;
+import org.apache.hadoop.hbase.filter.FirstKeyOnlyFilter;
 import org.apache.log4j.Logger;
 
 public class ScanNoIndex implements QueryStrategy {
 	private static Logger log = Logger.getLogger(ScanNoIndex.class);
 	
-	private final EntityInfo info;
-	private final QueryOpts opts;
-	private final Filter baseFilter;
+	protected final EntityInfo info;
+	protected final QueryOpts opts;
+	protected final Criteria criteria;
+	protected final Filter baseFilter;
 	
-	public ScanNoIndex( EntityInfo entityInfo, QueryOpts opts, Filter baseFilter ) {
+	public ScanNoIndex( EntityInfo entityInfo, QueryOpts opts, Criteria criteria, Filter baseFilter ) {
 		this.info = entityInfo;
 		this.opts = opts;
+		this.criteria = criteria;
 		this.baseFilter = baseFilter;
 	}
 	
@@ -35,11 +41,15 @@ public class ScanNoIndex implements QueryStrategy {
 	
 			scan.setFilter(baseFilter);
 			log.debug("Using filter: "+baseFilter);
+			// filters must see the columns they read
+			if (info.hasDeferredFields())
+				HUtil.addFetchColumns(scan, info, this.criteria.getColumns(info));
 
-			if (opts.getStartKey() != null)
-				scan.setStartRow(opts.getStartKey());
-			if (opts.getStopKey() != null)
-				scan.setStopRow(opts.getStopKey());
+			byte[] start = getScanStart();
+			if (start != null)
+				scan.setStartRow(start);
+			if (getStopKey() != null)
+				scan.setStopRow(getStopKey());
 			
 		
 			long t1 = System.nanoTime();
@@ -49,10 +59,124 @@ public class ScanNoIndex implements QueryStrategy {
 		} catch (IOException ioe) {
 			throw new QueryException(ioe);
 		}
+		catch (HBaseException he) {
+			throw new QueryException(he);
+		}
 		finally {
 			HUtil.releaseTable(table);
 		}
 	
 		return scanner;
 	}
+
+	/**
+	 * Counts matching rows by scanning all table regions in parallel.  With
+	 * no criteria, only the first KeyValue of each row is returned.  Otherwise
+	 * the scan is restricted to the columns needed by the criteria filters
+	 * (if any, as row key conditions need none).
+	 */
+	@Override
+	public long count() throws QueryException {
+		Scan scan = new Scan();
+		if (getStartKey() != null)
+			scan.setStartRow(getStartKey());
+		if (getStopKey() != null)
+			scan.setStopRow(getStopKey());
+
+		try {
+			Set<String> columns = this.criteria.getColumns(info);
+			if (this.criteria.isEmpty()) {
+				scan.setFilter(new FirstKeyOnlyFilter());
+			}
+			else {
+				scan.setFilter(baseFilter);
+				for (String col : columns)
+					ScanByIndex.addColumn(scan, col);
+			}
+
+			return countRows(new ParallelScan(info.getTablename(), scan));
+		}
+		catch (QueryException qe) {
+			throw qe;
+		}
+		catch (HBaseException he) {
+			throw new QueryException(he);
+		}
+	}
+
+	/**
+	 * Sums the number of non-empty rows returned from each region of the scan
+	 */
+	static long countRows(ParallelScan scan) throws HBaseException {
+		List<Long> counts = scan.run(new ParallelScan.RegionTask<Long>() {
+			public Long scan(ResultScanner scanner, byte[] startRow, byte[] stopRow) throws IOException {
+				long cnt = 0;
+				for (Result res : scanner) {
+					if (res != null && !res.isEmpty())
+						cnt++;
+				}
+				return cnt;
+			}
+		});
+
+		long total = 0;
+		for (Long cnt : counts)
+			total += cnt;
+
+		return total;
+	}
+
+	/**
+	 * Returns the first row to scan, ignoring any cursor
+	 */
+	protected byte[] getStartKey() {
+		return opts.getStartKey();
+	}
+
+	/**
+	 * Returns the row to stop the scan at, or <code>null</code> to scan to
+	 * the end of the table
+	 */
+	protected byte[] getStopKey() {
+		return opts.getStopKey();
+	}
+
+	/**
+	 * Returns the first row to scan, resuming after the cursor if set
+	 */
+	protected byte[] getScanStart() throws QueryException {
+		if (opts.getCursor() != null) {
+			opts.getCursor().checkPlan(getPlanId());
+			return opts.getCursor().getResumeKey();
+		}
+
+		return getStartKey();
+	}
+
+	/**
+	 * Returns the criteria checked by the scan filter
+	 */
+	public Criteria getCriteria() {
+		return this.criteria;
+	}
+
+	@Override
+	public String getPlanId() {
+		return "scan:"+info.getTablename();
+	}
+
+	@Override
+	public QueryPlan explain() throws QueryException {
+		QueryPlan plan = new QueryPlan(this, info.getTablename());
+		plan.addRange(getScanStart(), getStopKey());
+		for (Criteria.Expression e : this.criteria.getExpressions())
+			plan.addPushedFilter(e);
+
+		return plan;
+	}
+
+	@Override
+	public byte[] getLastKey(ResultScanner scanner, Result lastResult) {
+		return lastResult.getRow();
+	}
 }
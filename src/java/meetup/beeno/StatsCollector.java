@@ -0,0 +1,409 @@
+package meetup.beeno;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import meetup.beeno.mapping.EntityInfo;
+import meetup.beeno.mapping.EntityMetadata;
+import meetup.beeno.mapping.IndexMapping;
+import meetup.beeno.mapping.MappingException;
+import meetup.beeno.util.HUtil;
+
+import org.apache.hadoop.hbase.client.Get;
+import org.apache.hadoop.hbase.client.HTable;
+import org.apache.hadoop.hbase.client.Result;
+import org.apache.hadoop.hbase.client.ResultScanner;
+import org.apache.hadoop.hbase.client.Scan;
+import org.apache.hadoop.hbase.filter.FirstKeyOnlyFilter;
+import org.apache.log4j.Logger;
+
+/**
+ * Collects statistics for an entity table and each of its index tables,
+ * and writes them to the {@link StatsStore} for use in query planning.
+ * Each table is scanned region by region in parallel.
+ *
+ * For the index tables, each region scan counts the rows and feeds the
+ * indexed values into a distinct value sketch, a frequent value tracker
+ * and a fixed size random sample.  The region results are merged, and the
+ * sample (weighted by region size) is used to build an equi-depth
+ * histogram of the values.
+ *
+ * <pre>
+ *   StatsCollector collector = new StatsCollector(MyEntity.class);
+ *   collector.collect();                         // full collection now
+ *   collector.start(60 * 60 * 1000);             // hourly refresh in the background
+ * </pre>
+ *
+ * A refresh only reads the rows written since the last collection (by
+ * timestamp).  Index values are merged into the stored value statistics,
+ * and the row counts of index and entity tables are adjusted by the rows
+ * added since then: those with no cells older than the last collection,
+ * checked with a Get for each changed row.  Deleted rows are not seen by
+ * a scan, so the counts drift upwards by the rows removed since the last
+ * full collection.  They also drift upwards where a column family only 
+ * keeps a single version, as a re-written row then has no older cells and
+ * is counted again.  A full collection is run instead once the full 
+ * refresh interval has passed, which recounts all rows.
+ *
+ * @author garyh
+ *
+ */
+public class StatsCollector {
+	private static Logger log = Logger.getLogger(StatsCollector.class);
+
+	public static final int DEFAULT_SAMPLE_SIZE = 10000;
+	public static final int DEFAULT_BUCKETS = 100;
+	public static final int DEFAULT_HEAVY_HITTERS = 20;
+	public static final long DEFAULT_FULL_INTERVAL = 24 * 60 * 60 * 1000L;
+
+	private final EntityInfo info;
+	private final StatsStore store;
+	private int maxThreads = ParallelScan.DEFAULT_MAX_THREADS;
+	private int sampleSize = DEFAULT_SAMPLE_SIZE;
+	private int buckets = DEFAULT_BUCKETS;
+	private int heavyHitters = DEFAULT_HEAVY_HITTERS;
+	private long fullInterval = DEFAULT_FULL_INTERVAL;
+	private ScheduledExecutorService scheduler = null;
+
+	public StatsCollector(Class entityClass) throws MappingException {
+		this(entityClass, StatsStore.getInstance());
+	}
+
+	public StatsCollector(Class entityClass, StatsStore store) throws MappingException {
+		this.info = EntityMetadata.getInstance().getInfo(entityClass);
+		this.store = store;
+	}
+
+	public int getMaxThreads() { return this.maxThreads; }
+	public void setMaxThreads(int threads) { this.maxThreads = threads; }
+
+	public int getSampleSize() { return this.sampleSize; }
+	/** Number of index values sampled per region for the histograms */
+	public void setSampleSize(int size) { this.sampleSize = size; }
+
+	public int getBuckets() { return this.buckets; }
+	/** Number of histogram buckets for each index */
+	public void setBuckets(int buckets) { this.buckets = buckets; }
+
+	public int getHeavyHitters() { return this.heavyHitters; }
+	/** Number of the most frequent values to store for each index */
+	public void setHeavyHitters(int count) { this.heavyHitters = count; }
+
+	public long getFullInterval() { return this.fullInterval; }
+	/** Maximum time in milliseconds between full collections */
+	public void setFullInterval(long msec) { this.fullInterval = msec; }
+
+	/**
+	 * Collects and stores statistics for the entity table and all mapped
+	 * index tables, scanning all rows.
+	 * @return the collected statistics
+	 */
+	public List<TableStats> collect() throws HBaseException {
+		return collect(true);
+	}
+
+	/**
+	 * Updates the stored statistics for the entity table and all mapped
+	 * index tables, only scanning index rows written since the last
+	 * collection where possible.
+	 * @return the updated statistics
+	 */
+	public List<TableStats> refresh() throws HBaseException {
+		return collect(false);
+	}
+
+	protected List<TableStats> collect(boolean full) throws HBaseException {
+		long t1 = System.nanoTime();
+		List<TableStats> collected = new ArrayList<TableStats>();
+		collected.add(collectTable(getPrevious(this.info.getTablename(), full)));
+		for (IndexMapping idx : this.info.getMappedIndexes()) {
+			if (idx.getGenerator() == null)
+				continue;
+
+			TableStats previous = getPrevious(idx.getTableName(), full);
+			if (previous != null && previous.getDistinctSketch() == null)
+				previous = null;
+			collected.add(collectIndex(idx.getGenerator(), previous));
+		}
+
+		for (TableStats stats : collected)
+			this.store.put(stats);
+
+		long t2 = System.nanoTime();
+		log.info(String.format("HBASE TIMER: [%s] collected stats for %d tables in %f msec.",
+				this.info.getEntityClass().getSimpleName(), collected.size(), ((t2-t1)/1000000.0)));
+
+		return collected;
+	}
+
+	/**
+	 * Returns the stored statistics to refresh for the table, or null if a
+	 * full collection is needed
+	 */
+	protected TableStats getPrevious(String tablename, boolean full) throws HBaseException {
+		if (full)
+			return null;
+
+		TableStats previous = this.store.load(tablename);
+		if (previous != null && System.currentTimeMillis() - previous.getLastFull() >= this.fullInterval)
+			previous = null;
+
+		return previous;
+	}
+
+	/**
+	 * Refreshes the statistics in the background at a fixed interval,
+	 * starting immediately
+	 */
+	public synchronized void start(long intervalMsec) {
+		if (this.scheduler != null)
+			return;
+
+		this.scheduler = Executors.newSingleThreadScheduledExecutor(
+				new ParallelScan.DaemonThreadFactory("stats-"+this.info.getTablename()));
+		this.scheduler.scheduleWithFixedDelay(new Runnable() {
+			public void run() {
+				try {
+					refresh();
+				}
+				catch (Exception e) {
+					log.error("Error collecting stats for "+info.getTablename(), e);
+				}
+			}
+		}, 0, intervalMsec, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Stops background refreshes
+	 */
+	public synchronized void stop() {
+		if (this.scheduler != null) {
+			this.scheduler.shutdownNow();
+			this.scheduler = null;
+		}
+	}
+
+	/**
+	 * Counts the rows in the entity table.  If previous statistics are
+	 * given, only rows written since they were collected are scanned, and
+	 * those added since then are added to the previous count.
+	 */
+	protected TableStats collectTable(TableStats previous) throws HBaseException {
+		long start = System.currentTimeMillis();
+		final String tablename = this.info.getTablename();
+		Scan scan = new Scan();
+		scan.setFilter(new FirstKeyOnlyFilter());
+		if (previous != null)
+			setTimeRange(scan, previous.getUpdated());
+		ParallelScan pscan = new ParallelScan(tablename, scan);
+		pscan.setMaxThreads(this.maxThreads);
+
+		TableStats stats = new TableStats(tablename);
+		stats.setUpdated(start);
+		if (previous == null) {
+			stats.setRowCount(ScanNoIndex.countRows(pscan));
+			stats.setLastFull(start);
+			return stats;
+		}
+
+		final long since = previous.getUpdated();
+		List<Long> counts = pscan.run(new ParallelScan.RegionTask<Long>() {
+			public Long scan(ResultScanner scanner, byte[] startRow, byte[] stopRow) 
+					throws IOException, HBaseException {
+				HTable table = HUtil.getTable(tablename);
+				try {
+					long cnt = 0;
+					for (Result row : scanner) {
+						if (row != null && !row.isEmpty() && isNewRow(table, row.getRow(), since))
+							cnt++;
+					}
+					return cnt;
+				}
+				finally {
+					HUtil.releaseTable(table);
+				}
+			}
+		});
+
+		long added = 0;
+		for (Long cnt : counts)
+			added += cnt;
+		if (log.isDebugEnabled())
+			log.debug(String.format("Adding %d new rows to stats for %s", added, tablename));
+		stats.setRowCount(previous.getRowCount() + added);
+		stats.setLastFull(previous.getLastFull());
+
+		return stats;
+	}
+
+	/**
+	 * Collects the row count and value statistics for the index table.  If
+	 * previous statistics are given, only index rows written since they
+	 * were collected are scanned, and merged into the previous values.
+	 */
+	protected TableStats collectIndex(EntityIndexer indexer, TableStats previous) throws HBaseException {
+		// start from before the scan, so rows written during it are seen next time
+		long start = System.currentTimeMillis();
+		final HUtil.HCol valueCol = indexer.getKeyColumns().get(0);
+		final String tablename = indexer.getIndexTable();
+		final long since = (previous != null ? previous.getUpdated() : 0);
+		Scan scan = new Scan();
+		scan.addColumn(valueCol.family(), valueCol.column());
+		scan.setCaching(1000);
+		if (previous != null)
+			setTimeRange(scan, since);
+		ParallelScan pscan = new ParallelScan(tablename, scan);
+		pscan.setMaxThreads(this.maxThreads);
+
+		List<RegionStats> regions = pscan.run(new ParallelScan.RegionTask<RegionStats>() {
+			public RegionStats scan(ResultScanner scanner, byte[] startRow, byte[] stopRow) 
+					throws IOException, HBaseException {
+				RegionStats region = new RegionStats(sampleSize);
+				HTable table = (since > 0 ? HUtil.getTable(tablename) : null);
+				try {
+					for (Result row : scanner) {
+						if (row == null || row.isEmpty())
+							continue;
+
+						byte[] val = row.getValue(valueCol.family(), valueCol.column());
+						region.add(val);
+						if (table != null && isNewRow(table, row.getRow(), since))
+							region.added++;
+					}
+				}
+				finally {
+					if (table != null)
+						HUtil.releaseTable(table);
+				}
+				return region;
+			}
+		});
+
+		long rows = 0;
+		long added = 0;
+		DistinctCounter values = new DistinctCounter();
+		HeavyHitters hitters = new HeavyHitters();
+		List<byte[]> sample = new ArrayList<byte[]>();
+		List<Double> weights = new ArrayList<Double>();
+		for (RegionStats region : regions) {
+			rows += region.rows;
+			added += region.added;
+			values.merge(region.values);
+			hitters.merge(region.hitters);
+			// each sampled value stands for an equal share of the region's rows
+			for (byte[] val : region.sample) {
+				sample.add(val);
+				weights.add((double)region.sampled / region.sample.size());
+			}
+		}
+
+		TableStats stats = new TableStats(tablename);
+		stats.setUpdated(start);
+		stats.setLastFull(start);
+		Map<byte[],Long> top;
+		if (previous != null) {
+			if (log.isDebugEnabled())
+				log.debug(String.format("Merging %d changed rows (%d new) into stats for %s", rows, added, tablename));
+			stats.setLastFull(previous.getLastFull());
+			values.merge(previous.getDistinctSketch());
+			for (Map.Entry<byte[],Long> e : previous.getHeavyHitters().entrySet())
+				hitters.add(e.getKey(), e.getValue(), 0);
+			// previous buckets each stand for an equal share of the previous rows
+			for (byte[] bound : previous.getHistogram()) {
+				sample.add(bound);
+				weights.add((double)previous.getRowCount() / previous.getHistogram().size());
+			}
+
+			// the changed rows include rows re-written since the last 
+			// collection, so only the new rows add to the count, and the 
+			// merged value counts are scaled to the total
+			long merged = rows + previous.getRowCount();
+			rows = previous.getRowCount() + added;
+			top = hitters.getTop(this.heavyHitters);
+			if (merged > rows) {
+				for (Map.Entry<byte[],Long> e : top.entrySet())
+					e.setValue(Math.round(e.getValue() * ((double)rows / merged)));
+			}
+		}
+		else {
+			top = hitters.getTop(this.heavyHitters);
+		}
+
+		stats.setRowCount(rows);
+		stats.setDistinctSketch(values);
+		stats.setDistinctValues(values.estimate());
+		stats.setHeavyHitters(top);
+		stats.setHistogram(TableStats.buildHistogram(sample, weights, this.buckets));
+
+		return stats;
+	}
+
+	/**
+	 * Limits the scan to cells written since the given time
+	 */
+	static void setTimeRange(Scan scan, long since) throws HBaseException {
+		try {
+			scan.setTimeRange(since, Long.MAX_VALUE);
+		}
+		catch (IOException ioe) {
+			throw new HBaseException("Invalid time range for incremental stats", ioe);
+		}
+	}
+
+	/**
+	 * Returns true if the row has no cells written before the given time,
+	 * so was added since then rather than re-written.  Only the first older
+	 * cell is read.
+	 */
+	static boolean isNewRow(HTable table, byte[] row, long since) throws IOException {
+		Get get = new Get(row);
+		get.setTimeRange(0, since);
+		get.setFilter(new FirstKeyOnlyFilter());
+		Result older = table.get(get);
+		return (older == null || older.isEmpty());
+	}
+
+	/**
+	 * Value statistics for a single region, with a reservoir sample of the
+	 * region's values
+	 */
+	private static class RegionStats {
+		final List<byte[]> sample;
+		final int sampleSize;
+		final Random random = new Random();
+		final DistinctCounter values = new DistinctCounter();
+		final HeavyHitters hitters = new HeavyHitters();
+		long rows = 0;
+		long added = 0;
+		long sampled = 0;
+
+		RegionStats(int sampleSize) {
+			this.sampleSize = sampleSize;
+			this.sample = new ArrayList<byte[]>(Math.min(sampleSize, 1000));
+		}
+
+		void add(byte[] val) {
+			this.rows++;
+			if (val == null)
+				return;
+
+			this.values.add(val);
+			this.hitters.add(val);
+			this.sampled++;
+			if (this.sample.size() < this.sampleSize) {
+				this.sample.add(val);
+			}
+			else {
+				long idx = (long)(this.random.nextDouble() * this.sampled);
+				if (idx < this.sampleSize)
+					this.sample.set((int)idx, val);
+			}
+		}
+	}
+}
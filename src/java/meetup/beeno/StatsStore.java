@@ -0,0 +1,264 @@
+package meetup.beeno;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+import meetup.beeno.util.HUtil;
+
+import org.apache.hadoop.hbase.client.Delete;
+import org.apache.hadoop.hbase.client.Get;
+import org.apache.hadoop.hbase.client.HTable;
+import org.apache.hadoop.hbase.client.Put;
+import org.apache.hadoop.hbase.client.Result;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.apache.hadoop.io.WritableUtils;
+import org.apache.log4j.Logger;
+
+/**
+ * Reads and writes table statistics in the stats table, keyed by the name
+ * of the table described.  Statistics read are cached for a short time, so
+ * query planning doesn't add a read to every query.  All tables are 
+ * accessed through the shared table pool.
+ *
+ * The stats table must be created with a single "stats" family:
+ * <pre>
+ *   create 'beeno_stats', 'stats'
+ * </pre>
+ * If the stats table does not exist, no statistics are returned and
+ * queries are planned without them.
+ *
+ * @author garyh
+ *
+ */
+public class StatsStore {
+	private static Logger log = Logger.getLogger(StatsStore.class);
+
+	public static final String DEFAULT_TABLE = "beeno_stats";
+	public static final long DEFAULT_CACHE_MSEC = 5 * 60 * 1000;
+
+	static final byte[] STATS_FAMILY = Bytes.toBytes("stats");
+	static final byte[] ROWS_COLUMN = Bytes.toBytes("rows");
+	static final byte[] DISTINCT_COLUMN = Bytes.toBytes("distinct");
+	static final byte[] UPDATED_COLUMN = Bytes.toBytes("updated");
+	static final byte[] FULL_COLUMN = Bytes.toBytes("full");
+	static final byte[] SKETCH_COLUMN = Bytes.toBytes("sketch");
+	static final byte[] HISTOGRAM_COLUMN = Bytes.toBytes("histogram");
+	static final byte[] HITTERS_COLUMN = Bytes.toBytes("hitters");
+
+	private static StatsStore instance = null;
+
+	private final String tableName;
+	private long cacheMsec = DEFAULT_CACHE_MSEC;
+	private final Map<String,CacheEntry> cache = new ConcurrentHashMap<String,CacheEntry>();
+
+	public StatsStore(String tableName) {
+		this.tableName = tableName;
+	}
+
+	public static synchronized StatsStore getInstance() {
+		if (instance == null)
+			instance = new StatsStore(DEFAULT_TABLE);
+
+		return instance;
+	}
+
+	public String getTableName() { return this.tableName; }
+
+	public long getCacheTime() { return this.cacheMsec; }
+	/** Time in milliseconds to hold statistics read from the table */
+	public void setCacheTime(long msec) { this.cacheMsec = msec; }
+
+	/**
+	 * Returns the stored statistics for the table, or <code>null</code> if
+	 * none have been collected.
+	 */
+	public TableStats get(String table) {
+		CacheEntry entry = this.cache.get(table);
+		if (entry != null && System.currentTimeMillis() - entry.loaded < this.cacheMsec)
+			return entry.stats;
+
+		TableStats stats = load(table);
+		this.cache.put(table, new CacheEntry(stats));
+		return stats;
+	}
+
+	protected TableStats load(String table) {
+		HTable statsTable = null;
+		try {
+			statsTable = HUtil.getTable(this.tableName);
+			Get get = new Get(Bytes.toBytes(table));
+			get.addFamily(STATS_FAMILY);
+			Result row = statsTable.get(get);
+			if (row == null || row.isEmpty())
+				return null;
+
+			return readStats(table, row);
+		}
+		catch (IOException ioe) {
+			log.warn(String.format("Error reading stats for table [%s]", table), ioe);
+		}
+		catch (RuntimeException re) {
+			// table pool wraps a missing stats table
+			if (log.isDebugEnabled())
+				log.debug(String.format("Unable to read stats table [%s]: %s", this.tableName, re.getMessage()));
+		}
+		finally {
+			HUtil.releaseTable(statsTable);
+		}
+
+		return null;
+	}
+
+	protected TableStats readStats(String table, Result row) throws IOException {
+		TableStats stats = new TableStats(table);
+		stats.setRowCount(getLong(row, ROWS_COLUMN));
+		stats.setDistinctValues(getLong(row, DISTINCT_COLUMN));
+		stats.setUpdated(getLong(row, UPDATED_COLUMN));
+		stats.setLastFull(getLong(row, FULL_COLUMN));
+
+		DataInputStream in = getInput(row, SKETCH_COLUMN);
+		if (in != null) {
+			long[] hashes = new long[WritableUtils.readVInt(in)];
+			for (int i=0; i<hashes.length; i++)
+				hashes[i] = WritableUtils.readVLong(in);
+			stats.setDistinctSketch(DistinctCounter.fromHashes(hashes));
+		}
+
+		in = getInput(row, HISTOGRAM_COLUMN);
+		if (in != null) {
+			int size = WritableUtils.readVInt(in);
+			List<byte[]> bounds = new ArrayList<byte[]>(size);
+			for (int i=0; i<size; i++)
+				bounds.add(Bytes.readByteArray(in));
+			stats.setHistogram(bounds);
+		}
+
+		in = getInput(row, HITTERS_COLUMN);
+		if (in != null) {
+			int size = WritableUtils.readVInt(in);
+			Map<byte[],Long> hitters = new TreeMap<byte[],Long>(Bytes.BYTES_COMPARATOR);
+			for (int i=0; i<size; i++) {
+				byte[] value = Bytes.readByteArray(in);
+				hitters.put(value, WritableUtils.readVLong(in));
+			}
+			stats.setHeavyHitters(hitters);
+		}
+
+		return stats;
+	}
+
+	private DataInputStream getInput(Result row, byte[] column) {
+		byte[] val = row.getValue(STATS_FAMILY, column);
+		return (val != null && val.length > 0 ? new DataInputStream(new ByteArrayInputStream(val)) : null);
+	}
+
+	private long getLong(Result row, byte[] column) {
+		byte[] val = row.getValue(STATS_FAMILY, column);
+		return (val != null && val.length == Bytes.SIZEOF_LONG ? Bytes.toLong(val) : 0);
+	}
+
+	/**
+	 * Writes the statistics to the stats table, replacing any previous
+	 * values for the table.
+	 */
+	public void put(TableStats stats) throws HBaseException {
+		HTable statsTable = null;
+		try {
+			statsTable = HUtil.getTable(this.tableName);
+			statsTable.put(toPut(stats));
+			this.cache.put(stats.getTableName(), new CacheEntry(stats));
+		}
+		catch (IOException ioe) {
+			throw new HBaseException(String.format("Error writing stats for table [%s]", stats.getTableName()), ioe);
+		}
+		finally {
+			HUtil.releaseTable(statsTable);
+		}
+	}
+
+	/**
+	 * Encodes the statistics, using variable length integers for the 
+	 * sketch, histogram and frequent value columns.
+	 */
+	protected Put toPut(TableStats stats) throws IOException {
+		Put put = new Put(Bytes.toBytes(stats.getTableName()));
+		put.add(STATS_FAMILY, ROWS_COLUMN, Bytes.toBytes(stats.getRowCount()));
+		put.add(STATS_FAMILY, DISTINCT_COLUMN, Bytes.toBytes(stats.getDistinctValues()));
+		put.add(STATS_FAMILY, UPDATED_COLUMN, Bytes.toBytes(stats.getUpdated()));
+		put.add(STATS_FAMILY, FULL_COLUMN, Bytes.toBytes(stats.getLastFull()));
+
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		if (stats.getDistinctSketch() != null) {
+			long[] hashes = stats.getDistinctSketch().getHashes();
+			WritableUtils.writeVInt(out, hashes.length);
+			for (long hash : hashes)
+				WritableUtils.writeVLong(out, hash);
+			out.flush();
+			put.add(STATS_FAMILY, SKETCH_COLUMN, bytes.toByteArray());
+		}
+
+		bytes.reset();
+		WritableUtils.writeVInt(out, stats.getHistogram().size());
+		for (byte[] bound : stats.getHistogram())
+			Bytes.writeByteArray(out, bound);
+		out.flush();
+		put.add(STATS_FAMILY, HISTOGRAM_COLUMN, bytes.toByteArray());
+
+		bytes.reset();
+		WritableUtils.writeVInt(out, stats.getHeavyHitters().size());
+		for (Map.Entry<byte[],Long> e : stats.getHeavyHitters().entrySet()) {
+			Bytes.writeByteArray(out, e.getKey());
+			WritableUtils.writeVLong(out, e.getValue());
+		}
+		out.flush();
+		put.add(STATS_FAMILY, HITTERS_COLUMN, bytes.toByteArray());
+
+		return put;
+	}
+
+	/**
+	 * Removes the stored statistics for the table, so queries against it
+	 * are planned without statistics
+	 */
+	public void delete(String table) throws HBaseException {
+		HTable statsTable = null;
+		try {
+			statsTable = HUtil.getTable(this.tableName);
+			statsTable.delete(new Delete(Bytes.toBytes(table)));
+			this.cache.remove(table);
+		}
+		catch (IOException ioe) {
+			throw new HBaseException(String.format("Error deleting stats for table [%s]", table), ioe);
+		}
+		finally {
+			HUtil.releaseTable(statsTable);
+		}
+	}
+
+	/**
+	 * Drops all cached statistics, so they will be read again on next use
+	 */
+	public void clearCache() {
+		this.cache.clear();
+	}
+
+
+	private static class CacheEntry {
+		final TableStats stats;
+		final long loaded;
+
+		CacheEntry(TableStats stats) {
+			this.stats = stats;
+			this.loaded = System.currentTimeMillis();
+		}
+	}
+}
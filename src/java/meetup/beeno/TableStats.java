@@ -0,0 +1,209 @@
+package meetup.beeno;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import meetup.beeno.util.PBUtil;
+
+import org.apache.hadoop.hbase.util.Bytes;
+
+/**
+ * Row count statistics for an entity or index table, as used by the
+ * {@link QueryPlanner} to estimate the cost of each query plan.  For index
+ * tables, the indexed values are also described by:
+ * <ul>
+ *   <li>the estimated number of distinct values</li>
+ *   <li>the most frequent values, with their row counts</li>
+ *   <li>an equi-depth histogram: the upper bound values of buckets each
+ *   holding an equal share of the rows, in value order</li>
+ * </ul>
+ *
+ * Values are the stored (encoded) property values, compared in the order
+ * of the decoded values.
+ *
+ * @author garyh
+ *
+ */
+public class TableStats {
+
+	/**
+	 * Orders encoded values by their decoded numeric, date or text value,
+	 * falling back to the encoded bytes for other types.
+	 */
+	public static final Comparator<byte[]> VALUE_COMPARATOR = new Comparator<byte[]>() {
+		public int compare(byte[] b1, byte[] b2) {
+			HDataTypes.HField f1 = PBUtil.readMessage(b1);
+			HDataTypes.HField f2 = PBUtil.readMessage(b2);
+			if (f1 == null || f2 == null || f1.getType() != f2.getType())
+				return Bytes.compareTo(b1, b2);
+
+			switch (f1.getType()) {
+			case INTEGER:
+				return compareLongs(f1.getInteger(), f2.getInteger());
+			case FLOAT:
+				return Double.compare(f1.getFloat(), f2.getFloat());
+			case DATETIME:
+				return compareLongs(f1.getDateTime().getTimestamp(), f2.getDateTime().getTimestamp());
+			case TEXT:
+				return f1.getText().compareTo(f2.getText());
+			default:
+				return Bytes.compareTo(b1, b2);
+			}
+		}
+	};
+
+	private static int compareLongs(long l1, long l2) {
+		return (l1 < l2 ? -1 : (l1 > l2 ? 1 : 0));
+	}
+
+	private final String tableName;
+	private long rowCount = 0;
+	private long distinctValues = 0;
+	private long updated = 0;
+	private long lastFull = 0;
+	private DistinctCounter distinctSketch = null;
+	private List<byte[]> histogram = new ArrayList<byte[]>();
+	private Map<byte[],Long> heavyHitters = new TreeMap<byte[],Long>(Bytes.BYTES_COMPARATOR);
+
+	public TableStats(String tableName) {
+		this.tableName = tableName;
+	}
+
+	public String getTableName() { return this.tableName; }
+
+	/** Number of rows in the table */
+	public long getRowCount() { return this.rowCount; }
+	public void setRowCount(long count) { this.rowCount = count; }
+
+	/** Number of distinct indexed values, for index tables */
+	public long getDistinctValues() { return this.distinctValues; }
+	public void setDistinctValues(long count) { this.distinctValues = count; }
+
+	/** Time the statistics were collected */
+	public long getUpdated() { return this.updated; }
+	public void setUpdated(long time) { this.updated = time; }
+
+	/** Time of the last full (rather than incremental) collection */
+	public long getLastFull() { return this.lastFull; }
+	public void setLastFull(long time) { this.lastFull = time; }
+
+	/** Sketch of the indexed values, used to update the distinct count incrementally */
+	public DistinctCounter getDistinctSketch() { return this.distinctSketch; }
+	public void setDistinctSketch(DistinctCounter sketch) { this.distinctSketch = sketch; }
+
+	/** Upper bound values of the equi-depth histogram buckets */
+	public List<byte[]> getHistogram() { return this.histogram; }
+	public void setHistogram(List<byte[]> bounds) { this.histogram = bounds; }
+
+	/** Most frequent indexed values, with their estimated row counts */
+	public Map<byte[],Long> getHeavyHitters() { return this.heavyHitters; }
+	public void setHeavyHitters(Map<byte[],Long> hitters) { this.heavyHitters = hitters; }
+
+	/**
+	 * Returns the expected number of index rows matching a single value.
+	 * Frequent values use their tracked counts, and the remaining rows are
+	 * assumed to be spread evenly across the remaining values.
+	 */
+	public double estimateEqual(byte[] value) {
+		Long frequent = (value != null ? this.heavyHitters.get(value) : null);
+		if (frequent != null)
+			return Math.min(frequent, this.rowCount);
+
+		long otherRows = this.rowCount;
+		long otherValues = this.distinctValues;
+		for (Long cnt : this.heavyHitters.values())
+			otherRows -= cnt;
+		otherValues -= this.heavyHitters.size();
+		// every value is tracked, so this one doesn't occur
+		if (otherValues <= 0 && !this.heavyHitters.isEmpty())
+			return 0;
+		if (otherValues <= 0 || otherRows <= 0)
+			return (this.distinctValues > 0 ? (double)this.rowCount / this.distinctValues : this.rowCount);
+
+		return (double)otherRows / otherValues;
+	}
+
+	/**
+	 * Returns the expected number of index rows with values between the
+	 * bounds, from the histogram.  A <code>null</code> bound leaves that end
+	 * of the range open.  Without a histogram, a third of the rows are
+	 * assumed to match.  The bounds are compared as encoded bytes, which
+	 * don't sort in value order, so the query planner doesn't use this.
+	 */
+	public double estimateRange(byte[] lower, byte[] upper) {
+		if (this.histogram.isEmpty())
+			return this.rowCount / 3.0;
+
+		int buckets = this.histogram.size();
+		double first = (lower == null ? 0 : bucketPosition(lower));
+		double last = (upper == null ? buckets : bucketPosition(upper));
+		if (last <= first)
+			return 0;
+
+		return this.rowCount * (last - first) / buckets;
+	}
+
+	/**
+	 * Returns the position of the value in the histogram, counted in
+	 * buckets, assuming values fall halfway through their bucket
+	 */
+	private double bucketPosition(byte[] value) {
+		int idx = Collections.binarySearch(this.histogram, value, VALUE_COMPARATOR);
+		if (idx >= 0)
+			return idx + 1;
+
+		int bucket = -(idx + 1);
+		return (bucket >= this.histogram.size() ? this.histogram.size() : bucket + 0.5);
+	}
+
+	/**
+	 * Builds equi-depth histogram bucket bounds from a sample of values,
+	 * where each value stands for the number of rows given by its weight
+	 */
+	public static List<byte[]> buildHistogram(List<byte[]> values, List<Double> weights, int buckets) {
+		List<Integer> order = new ArrayList<Integer>(values.size());
+		double total = 0;
+		for (int i=0; i<values.size(); i++) {
+			order.add(i);
+			total += weights.get(i);
+		}
+
+		final List<byte[]> vals = values;
+		Collections.sort(order, new Comparator<Integer>() {
+			public int compare(Integer i1, Integer i2) {
+				return VALUE_COMPARATOR.compare(vals.get(i1), vals.get(i2));
+			}
+		});
+
+		List<byte[]> bounds = new ArrayList<byte[]>(buckets);
+		if (values.isEmpty() || total <= 0)
+			return bounds;
+
+		double depth = total / buckets;
+		double seen = 0;
+		double nextBound = depth;
+		for (int i=0; i<order.size(); i++) {
+			seen += weights.get(order.get(i));
+			boolean lastValue = (i == order.size() - 1);
+			if (seen >= nextBound || lastValue) {
+				byte[] bound = values.get(order.get(i));
+				if (bounds.isEmpty() || VALUE_COMPARATOR.compare(bounds.get(bounds.size()-1), bound) < 0)
+					bounds.add(bound);
+				while (nextBound <= seen)
+					nextBound += depth;
+			}
+		}
+
+		return bounds;
+	}
+
+	public String toString() {
+		return String.format("[%s: table=%s; rows=%d; distinct=%d; buckets=%d; hitters=%d; updated=%d]",
+				this.getClass().getSimpleName(), this.tableName, this.rowCount, this.distinctValues,
+				this.histogram.size(), this.heavyHitters.size(), this.updated);
+	}
+}
@@ -0,0 +1,111 @@
+package meetup.beeno.filter;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+import org.apache.hadoop.hbase.KeyValue;
+import org.apache.hadoop.hbase.filter.Filter;
+import org.apache.hadoop.hbase.util.Bytes;
+
+/**
+ * Includes only the columns of a family whose qualifiers fall in a range,
+ * up to a maximum number of columns per row.  Used to read part of a wide
+ * map property in qualifier order, without returning the whole family.
+ * Columns outside the family are skipped.  All columns in the range count
+ * toward the limit, so the range must not hold other properties' columns.
+ *
+ * @author garyh
+ *
+ */
+public class ColumnRangeFilter implements Filter {
+
+	private byte[] family;
+	private byte[] start;
+	private byte[] stop;
+	private int limit;
+	private int columnCnt = 0;
+	private byte[] lastQualifier = null;
+
+	public ColumnRangeFilter() {
+		// for Writable
+	}
+
+	/**
+	 * @param family
+	 *            column family to read
+	 * @param start
+	 *            first qualifier included, or <code>null</code> to start at
+	 *            the beginning of the family
+	 * @param stop
+	 *            qualifier ending the range (excluded), or <code>null</code>
+	 *            to read to the end of the family
+	 * @param limit
+	 *            maximum number of columns included per row, or 0 for no limit
+	 */
+	public ColumnRangeFilter( final byte[] family, final byte[] start, final byte[] stop, int limit ) {
+		this.family = family;
+		this.start = (start != null ? start : new byte[0]);
+		this.stop = stop;
+		this.limit = limit;
+	}
+
+	public boolean filterRowKey( final byte[] rowKey, int offset, int length ) {
+		return false;
+	}
+
+	public Filter.ReturnCode filterKeyValue( KeyValue v ) {
+		if (!v.matchingFamily(this.family))
+			return Filter.ReturnCode.SKIP;
+
+		byte[] buffer = v.getBuffer();
+		int offset = v.getQualifierOffset();
+		int length = v.getQualifierLength();
+		if (Bytes.compareTo(buffer, offset, length, this.start, 0, this.start.length) < 0)
+			return Filter.ReturnCode.SKIP;
+		// qualifiers are sorted, so no later columns can match
+		if (this.stop != null && Bytes.compareTo(buffer, offset, length, this.stop, 0, this.stop.length) >= 0)
+			return Filter.ReturnCode.NEXT_ROW;
+
+		// older versions of a column don't count against the limit
+		if (this.lastQualifier == null ||
+			Bytes.compareTo(buffer, offset, length, this.lastQualifier, 0, this.lastQualifier.length) != 0) {
+			if (this.limit > 0 && this.columnCnt >= this.limit)
+				return Filter.ReturnCode.NEXT_ROW;
+			this.columnCnt++;
+			this.lastQualifier = v.getQualifier();
+		}
+
+		return Filter.ReturnCode.INCLUDE;
+	}
+
+	public boolean filterAllRemaining() {
+		return false;
+	}
+
+	public boolean filterRow() {
+		return false;
+	}
+
+	public void reset() {
+		this.columnCnt = 0;
+		this.lastQualifier = null;
+	}
+
+	public void readFields( final DataInput in ) throws IOException {
+		family = Bytes.readByteArray(in);
+		start = Bytes.readByteArray(in);
+		stop = (in.readBoolean() ? Bytes.readByteArray(in) : null);
+		limit = in.readInt();
+	}
+
+	public void write( final DataOutput out ) throws IOException {
+		Bytes.writeByteArray(out, family);
+		Bytes.writeByteArray(out, start);
+		out.writeBoolean(stop != null);
+		if (stop != null)
+			Bytes.writeByteArray(out, stop);
+		out.writeInt(limit);
+	}
+
+}
@@ -0,0 +1,121 @@
+package meetup.beeno.filter;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+import meetup.beeno.util.CompactCodec;
+
+import org.apache.hadoop.hbase.KeyValue;
+import org.apache.hadoop.hbase.filter.Filter;
+import org.apache.hadoop.hbase.util.Bytes;
+
+/**
+ * Filters rows on the value of a property stored in a packed cell (see
+ * {@link meetup.beeno.HEntity#packed()}).  The property's encoded value is
+ * read out of the packed cell and compared against the given value as
+ * unsigned bytes.  Rows without a value for the property are filtered
+ * out.
+ *
+ * @author garyh
+ *
+ */
+public class PackedColumnFilter implements Filter {
+
+	private byte[] packedColumn;
+	private byte[] fieldName;
+	private ColumnMatchFilter.CompareOp compareOp;
+	private byte[] value;
+	private boolean columnSeen = false;
+	private boolean columnFiltered = false;
+
+	public PackedColumnFilter() {
+		// for Writable
+	}
+
+	/**
+	 * @param packedColumn
+	 *            packed cell column ("family:qualifier")
+	 * @param fieldName
+	 *            column name of the property within the packed cell
+	 * @param compareOp
+	 *            operator
+	 * @param value
+	 *            encoded value to compare against
+	 */
+	public PackedColumnFilter( final byte[] packedColumn, final byte[] fieldName,
+			final ColumnMatchFilter.CompareOp compareOp, final byte[] value ) {
+		this.packedColumn = packedColumn;
+		this.fieldName = fieldName;
+		this.compareOp = compareOp;
+		this.value = value;
+	}
+
+	public boolean filterRowKey( final byte[] rowKey, int offset, int length ) {
+		return false;
+	}
+
+	public Filter.ReturnCode filterKeyValue( KeyValue v ) {
+		if (v.matchingColumn(this.packedColumn)) {
+			byte[] data = CompactCodec.getPacked(v.getValue(), this.fieldName);
+			if (data != null) {
+				this.columnSeen = true;
+				if (filterValue(data)) {
+					this.columnFiltered = true;
+					return Filter.ReturnCode.NEXT_ROW;
+				}
+			}
+		}
+
+		return Filter.ReturnCode.INCLUDE;
+	}
+
+	private boolean filterValue( final byte[] data ) {
+		int compareResult = Bytes.compareTo(this.value, data);
+
+		switch (compareOp) {
+		case LESS:
+			return compareResult <= 0;
+		case LESS_OR_EQUAL:
+			return compareResult < 0;
+		case EQUAL:
+			return compareResult != 0;
+		case NOT_EQUAL:
+			return compareResult == 0;
+		case GREATER_OR_EQUAL:
+			return compareResult > 0;
+		case GREATER:
+			return compareResult >= 0;
+		default:
+			throw new RuntimeException("Unknown Compare op " + compareOp.name());
+		}
+	}
+
+	public boolean filterAllRemaining() {
+		return false;
+	}
+
+	public boolean filterRow() {
+		return this.columnFiltered || !this.columnSeen;
+	}
+
+	public void reset() {
+		this.columnSeen = false;
+		this.columnFiltered = false;
+	}
+
+	public void readFields( final DataInput in ) throws IOException {
+		packedColumn = Bytes.readByteArray(in);
+		fieldName = Bytes.readByteArray(in);
+		compareOp = ColumnMatchFilter.CompareOp.valueOf(in.readUTF());
+		value = Bytes.readByteArray(in);
+	}
+
+	public void write( final DataOutput out ) throws IOException {
+		Bytes.writeByteArray(out, packedColumn);
+		Bytes.writeByteArray(out, fieldName);
+		out.writeUTF(compareOp.name());
+		Bytes.writeByteArray(out, value);
+	}
+
+}
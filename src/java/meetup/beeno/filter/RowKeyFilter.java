@@ -0,0 +1,114 @@
+package meetup.beeno.filter;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+import org.apache.hadoop.hbase.KeyValue;
+import org.apache.hadoop.hbase.filter.Filter;
+import org.apache.hadoop.hbase.util.Bytes;
+
+/**
+ * Filters rows by comparing the entity row key against a value, in the
+ * byte order HBase uses for row keys.  The same filter can be applied to
+ * entity table rows and to index table rows: if the row contains the given
+ * index key column (holding the entity row key), that column's value is
+ * compared instead of the row's own key.
+ *
+ * @author garyh
+ *
+ */
+public class RowKeyFilter implements Filter {
+
+	private byte[] keyColumn;
+	private ColumnMatchFilter.CompareOp compareOp;
+	private byte[] value;
+	private boolean rowFiltered = false;
+	private boolean columnSeen = false;
+	private boolean columnFiltered = false;
+
+	public RowKeyFilter() {
+		// for Writable
+	}
+
+	/**
+	 * @param keyColumn
+	 *            column holding the entity row key in index rows
+	 * @param compareOp
+	 *            operator
+	 * @param value
+	 *            value to compare row keys against
+	 */
+	public RowKeyFilter( final byte[] keyColumn, final ColumnMatchFilter.CompareOp compareOp, final byte[] value ) {
+		this.keyColumn = keyColumn;
+		this.compareOp = compareOp;
+		this.value = value;
+	}
+
+	public boolean filterRowKey( final byte[] rowKey, int offset, int length ) {
+		// can't exclude the row until we know whether it's an index row
+		this.rowFiltered = filterKey(rowKey, offset, length);
+		return false;
+	}
+
+	public Filter.ReturnCode filterKeyValue( KeyValue v ) {
+		if (v.matchingColumn(this.keyColumn)) {
+			this.columnSeen = true;
+			byte[] key = v.getValue();
+			if (filterKey(key, 0, key.length)) {
+				this.columnFiltered = true;
+				return Filter.ReturnCode.NEXT_ROW;
+			}
+		}
+
+		return Filter.ReturnCode.INCLUDE;
+	}
+
+	private boolean filterKey( final byte[] key, int offset, int length ) {
+		int compareResult = Bytes.compareTo(this.value, 0, this.value.length, key, offset, length);
+
+		switch (compareOp) {
+		case LESS:
+			return compareResult <= 0;
+		case LESS_OR_EQUAL:
+			return compareResult < 0;
+		case EQUAL:
+			return compareResult != 0;
+		case NOT_EQUAL:
+			return compareResult == 0;
+		case GREATER_OR_EQUAL:
+			return compareResult > 0;
+		case GREATER:
+			return compareResult >= 0;
+		default:
+			throw new RuntimeException("Unknown Compare op " + compareOp.name());
+		}
+	}
+
+	public boolean filterAllRemaining() {
+		return false;
+	}
+
+	public boolean filterRow() {
+		return (this.columnSeen ? this.columnFiltered : this.rowFiltered);
+	}
+
+	public void reset() {
+		this.rowFiltered = false;
+		this.columnSeen = false;
+		this.columnFiltered = false;
+	}
+
+	public void readFields( final DataInput in ) throws IOException {
+		keyColumn = Bytes.readByteArray(in);
+		compareOp = ColumnMatchFilter.CompareOp.valueOf(in.readUTF());
+		value = Bytes.readByteArray(in);
+	}
+
+	public void write( final DataOutput out ) throws IOException {
+		Bytes.writeByteArray(out, keyColumn);
+		out.writeUTF(compareOp.name());
+		Bytes.writeByteArray(out, value);
+	}
+
+}
@@ -0,0 +1,38 @@
+package meetup.beeno.mapping;
+
+import java.beans.PropertyDescriptor;
+
+import meetup.beeno.HEmbedded;
+import meetup.beeno.HProperty;
+import meetup.beeno.util.EmbeddedCodec;
+
+/**
+ * Represents an annotated {@link HProperty} mapping of a JavaBean property holding
+ * a nested value object, marked with {@link HEmbedded}.  The value object's own 
+ * properties are serialized together into the single mapped column, using the 
+ * {@link EmbeddedCodec} for the property type.
+ * 
+ * @author garyh
+ *
+ */
+public class EmbeddedField extends FieldMapping {
+	protected EmbeddedCodec codec = null;
+	protected boolean lazy = true;
+	
+	public EmbeddedField(HProperty prop, HEmbedded embedded, PropertyDescriptor beanProperty) {
+		super(prop, beanProperty);
+		this.codec = EmbeddedCodec.forClass(beanProperty.getPropertyType());
+		this.lazy = embedded.lazy();
+	}
+	
+	public EmbeddedCodec getCodec() { return this.codec; }
+	public boolean isLazy() { return this.lazy; }
+	
+	/**
+	 * Decodes the stored value, deferring the work until the value is used
+	 * for lazy mappings
+	 */
+	public Object decode(byte[] bytes) {
+		return (this.lazy ? this.codec.decodeLazy(bytes) : this.codec.decode(bytes));
+	}
+}
@@ -1,19 +1,26 @@
 package meetup.beeno.mapping;
 
 import java.beans.PropertyDescriptor;
+import java.lang.reflect.Method;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.TreeSet;
 
+import meetup.beeno.HEmbedded;
 import meetup.beeno.HEntity;
 import meetup.beeno.HIndex;
 import meetup.beeno.HProperty;
 import meetup.beeno.HRowKey;
 import meetup.beeno.mapping.EntityMetadata.PropertyType;
+import meetup.beeno.util.CompactCodec;
+import meetup.beeno.util.HUtil;
+import meetup.beeno.util.PBUtil;
 
 /**
  * Encapsulates the mapping of an entity class and its properties
@@ -23,15 +30,24 @@ import meetup.beeno.mapping.EntityMetadata.PropertyType;
  *
  */
 public class EntityInfo {
+	/** Column qualifier of the cell holding packed property values */
+	public static final String PACKED_COLUMN = "__packed__";
+	
 	private Class entityClass = null;
 	private String table = null;
 	private PropertyDescriptor keyProperty = null;
+	private boolean compact = false;
+	private boolean packed = false;
+	private boolean lazy = false;
+	private Set<String> lazyFamilies = new HashSet<String>();
 	
 	private List<FieldMapping> mappedProps = new ArrayList<FieldMapping>();
 	private Map<String, PropertyDescriptor> propertiesByName = new HashMap<String, PropertyDescriptor>();
 	private Map<PropertyDescriptor, FieldMapping> fieldsByProperty = new HashMap<PropertyDescriptor, FieldMapping>();
 	private Map<PropertyDescriptor, PropertyType> typesByProperty = new HashMap<PropertyDescriptor, PropertyType>();
 	private Map<PropertyDescriptor, List<IndexMapping>> indexesByProperty = new HashMap<PropertyDescriptor, List<IndexMapping>>();
+	private Map<String, String> columnAliases = new HashMap<String, String>();
+	private Map<FieldMapping, HIndex[]> pendingIndexes = new LinkedHashMap<FieldMapping, HIndex[]>();
 	
 	public EntityInfo(Class clazz) {
 		this.entityClass = clazz;
@@ -47,6 +63,282 @@ public class EntityInfo {
 	public String getTablename() { return this.table; }
 	public void setTablename(String tablename) { this.table = tablename; }
 	
+	/**
+	 * Returns <code>true</code> if property values are stored with the 
+	 * compact codec, rather than as protobuf messages
+	 */
+	public boolean isCompact() { return this.compact; }
+	public void setCompact(boolean compact) { this.compact = compact; }
+	
+	/**
+	 * Returns <code>true</code> if scalar properties not used by indexes are
+	 * stored together in a packed cell
+	 */
+	public boolean isPacked() { return this.packed; }
+	public void setPacked(boolean packed) { this.packed = packed; }
+	
+	/**
+	 * Returns <code>true</code> if entity instances are read as lazy 
+	 * subclasses, decoding each property on first access
+	 */
+	public boolean isLazy() { return this.lazy; }
+	public void setLazy(boolean lazy) { this.lazy = lazy; }
+	
+	/**
+	 * Returns the mapped property (or row key property) read or written by 
+	 * the given getter or setter method, or <code>null</code> if the method 
+	 * isn't a mapped property accessor
+	 */
+	public PropertyDescriptor getAccessorProperty(Method method) {
+		if (this.accessors == null) {
+			List<PropertyDescriptor> props = new ArrayList<PropertyDescriptor>(this.mappedProps.size()+1);
+			if (this.keyProperty != null)
+				props.add(this.keyProperty);
+			for (FieldMapping mapping : this.mappedProps)
+				props.add(mapping.getBeanProperty());
+			
+			Map<Method, PropertyDescriptor> methods = new HashMap<Method, PropertyDescriptor>();
+			for (PropertyDescriptor prop : props) {
+				if (prop.getReadMethod() != null)
+					methods.put(prop.getReadMethod(), prop);
+				if (prop.getWriteMethod() != null)
+					methods.put(prop.getWriteMethod(), prop);
+			}
+			this.accessors = methods;
+		}
+		
+		return this.accessors.get(method);
+	}
+	private Map<Method, PropertyDescriptor> accessors = null;
+	
+	/**
+	 * Returns <code>true</code> if the field's value is stored in the packed
+	 * cell for its family, rather than its own column
+	 */
+	public boolean isPacked(FieldMapping field) {
+		if (!this.packed)
+			return false;
+		
+		if (this.packedFields == null) {
+			// columns stored in index rows must stay readable on their own
+			Set<String> indexed = getIndexedColumns();
+			Set<FieldMapping> fields = new HashSet<FieldMapping>();
+			for (FieldMapping mapping : this.mappedProps) {
+				if (!(mapping instanceof MapField) && !(mapping instanceof ListField) &&
+					!(mapping instanceof EmbeddedField) && !indexed.contains(mapping.getFieldName()) &&
+					!isLazy(mapping))
+					fields.add(mapping);
+			}
+			this.packedFields = fields;
+		}
+		
+		return this.packedFields.contains(field);
+	}
+	private Set<FieldMapping> packedFields = null;
+	
+	/**
+	 * Returns the stored columns ("family:column") also stored in index rows:
+	 * indexed, key, extra and date columns
+	 */
+	protected Set<String> getIndexedColumns() {
+		Set<String> indexed = new HashSet<String>();
+		for (IndexMapping idx : getMappedIndexes()) {
+			indexed.add(idx.getPrimaryField().getFieldName());
+			for (HUtil.HCol col : idx.getKeyFields())
+				indexed.add(col.toString());
+			for (HUtil.HCol col : idx.getExtraFields())
+				indexed.add(col.toString());
+			if (idx.getDateField() != null)
+				indexed.add(idx.getDateField().toString());
+		}
+		
+		return indexed;
+	}
+	
+	/**
+	 * Sets the column families whose properties are all lazily loaded
+	 */
+	public void setLazyFamilies(String[] families) {
+		this.lazyFamilies.clear();
+		if (families != null) {
+			for (String family : families)
+				this.lazyFamilies.add(family);
+		}
+	}
+	
+	/**
+	 * Returns <code>true</code> if the field is mapped as lazily loaded, 
+	 * either on the property or for its column family
+	 */
+	public boolean isLazy(FieldMapping field) {
+		return field.isLazy() || this.lazyFamilies.contains(field.getFamily());
+	}
+	
+	/**
+	 * Returns <code>true</code> if the field's columns are left out of the
+	 * reads for the entity, to be loaded on first access.  Lazy fields are
+	 * still read with the entity if stored in index rows, or if their family
+	 * holds other collection properties (whose columns can't be named in a
+	 * Get), or if no other columns would be read.
+	 */
+	public boolean isDeferred(FieldMapping field) {
+		initFetch();
+		return this.deferredFields.contains(field);
+	}
+	
+	public boolean isDeferred(PropertyDescriptor prop) {
+		FieldMapping field = this.fieldsByProperty.get(prop);
+		return (field != null && isDeferred(field));
+	}
+	
+	/**
+	 * Returns <code>true</code> if any fields are left out of the reads for 
+	 * the entity
+	 */
+	public boolean hasDeferredFields() {
+		initFetch();
+		return !this.deferredFields.isEmpty();
+	}
+	
+	/**
+	 * Returns the fetch groups for deferred fields: the column families 
+	 * holding deferred fields, loaded on first access with a separate Get
+	 */
+	public Set<String> getDeferredFamilies() {
+		initFetch();
+		return this.deferredFamilies;
+	}
+	
+	/**
+	 * Returns the column families read in full for the entity
+	 */
+	public Set<String> getFetchFamilies() {
+		initFetch();
+		return this.fetchFamilies;
+	}
+	
+	/**
+	 * Returns the stored columns ("family:column") read for the entity from
+	 * families holding deferred fields
+	 */
+	public Set<String> getFetchColumns() {
+		initFetch();
+		return this.fetchColumns;
+	}
+	
+	private void initFetch() {
+		if (this.deferredFields == null) {
+			synchronized (this) {
+				if (this.deferredFields == null)
+					computeFetch();
+			}
+		}
+	}
+	
+	private void computeFetch() {
+		Map<String,List<FieldMapping>> fieldsByFamily = new LinkedHashMap<String,List<FieldMapping>>();
+		for (FieldMapping mapping : this.mappedProps) {
+			List<FieldMapping> familyFields = fieldsByFamily.get(mapping.getFamily());
+			if (familyFields == null) {
+				familyFields = new ArrayList<FieldMapping>();
+				fieldsByFamily.put(mapping.getFamily(), familyFields);
+			}
+			familyFields.add(mapping);
+		}
+		
+		Set<String> indexed = getIndexedColumns();
+		Set<FieldMapping> deferred = new HashSet<FieldMapping>();
+		Set<String> deferredFams = new TreeSet<String>();
+		Set<String> families = new TreeSet<String>();
+		Set<String> columns = new TreeSet<String>();
+		for (Map.Entry<String,List<FieldMapping>> e : fieldsByFamily.entrySet()) {
+			List<FieldMapping> lazyFields = new ArrayList<FieldMapping>();
+			List<FieldMapping> eagerFields = new ArrayList<FieldMapping>();
+			boolean named = true;
+			for (FieldMapping mapping : e.getValue()) {
+				if (isLazy(mapping) && !indexed.contains(mapping.getFieldName())) {
+					lazyFields.add(mapping);
+				}
+				else {
+					eagerFields.add(mapping);
+					named = named && !(mapping instanceof MapField) && !(mapping instanceof ListField);
+				}
+			}
+			
+			if (lazyFields.isEmpty() || !named) {
+				families.add(e.getKey());
+			}
+			else {
+				deferred.addAll(lazyFields);
+				deferredFams.add(e.getKey());
+				for (FieldMapping mapping : eagerFields)
+					columns.add(getStoredColumn(mapping));
+			}
+		}
+		
+		// rows are only found by the columns read
+		if (families.isEmpty() && columns.isEmpty()) {
+			deferred.clear();
+			deferredFams.clear();
+			families.addAll(fieldsByFamily.keySet());
+		}
+		
+		this.fetchFamilies = families;
+		this.fetchColumns = columns;
+		this.deferredFamilies = deferredFams;
+		this.deferredFields = deferred;
+	}
+	private volatile Set<FieldMapping> deferredFields = null;
+	private Set<String> deferredFamilies = null;
+	private Set<String> fetchFamilies = null;
+	private Set<String> fetchColumns = null;
+	
+	/**
+	 * Returns the stored column ("family:column") holding the field's value:
+	 * the packed cell for packed fields, or the mapped column
+	 */
+	public String getStoredColumn(FieldMapping field) {
+		if (isPacked(field))
+			return field.getFamily() + ":" + PACKED_COLUMN;
+		
+		return field.getFieldName();
+	}
+	
+	/**
+	 * Encodes a value for the packed cell, which always uses the compact
+	 * encoding
+	 */
+	public byte[] encodePacked(FieldMapping field, Object value) {
+		return CompactCodec.toBytes(value, field.getBeanProperty().getPropertyType());
+	}
+	
+	/**
+	 * Encodes a value of the named property in the entity's storage format,
+	 * as stored in the entity table and compared by query filters
+	 */
+	public byte[] encodeValue(String propName, Object value) {
+		return encodeValue(getProperty(propName), value);
+	}
+	
+	/**
+	 * Encodes a value of the property in the entity's storage format.  For
+	 * collection and map properties, the value is a single element, encoded
+	 * as the declared element type.
+	 */
+	public byte[] encodeValue(PropertyDescriptor prop, Object value) {
+		if (!this.compact)
+			return PBUtil.toBytes(value);
+		
+		Class<?> type = null;
+		FieldMapping field = (prop != null ? getPropertyMapping(prop.getName()) : null);
+		if (field != null)
+			type = field.getValueType();
+		else if (prop != null)
+			type = FieldMapping.getValueType(prop);
+		
+		return CompactCodec.toBytes(value, type);
+	}
+	
 	/**
 	 * Returns the java bean properties mapped by the entity's {@link HRowKey}
 	 * annotation.
@@ -56,20 +348,59 @@ public class EntityInfo {
 	public PropertyDescriptor getKeyProperty() { return this.keyProperty; }
 	public void setKeyProperty(PropertyDescriptor prop) { this.keyProperty = prop; }
 	
+	/**
+	 * Returns <code>true</code> if the named property is the row key property
+	 */
+	public boolean isKeyProperty(String propName) {
+		return this.keyProperty != null && this.keyProperty.getName().equals(propName);
+	}
+	
 	public void addProperty(HProperty mapping, PropertyDescriptor prop, PropertyType type) {
-		FieldMapping field = FieldMapping.get(mapping, prop);
+		addProperty(mapping, null, prop, type);
+	}
+	
+	public void addProperty(HProperty mapping, HEmbedded embedded, PropertyDescriptor prop, PropertyType type) {
+		FieldMapping field = FieldMapping.get(mapping, embedded, prop);
 		this.mappedProps.add(field);
 		this.propertiesByName.put(prop.getName(), prop);
 		this.fieldsByProperty.put(prop, field);
 		if (type != null)
 			this.typesByProperty.put(prop, type);
+		if (field.isAliased())
+			this.columnAliases.put(field.getMappedFieldName(), field.getFieldName());
 		
-		// !!! ADD HANDLING FOR INDEX ANNOTATIONS !!!
+		// indexes may refer to columns not yet mapped, so are added by initIndexes()
 		HIndex[] indexes = mapping.indexes();
-		if (indexes != null && indexes.length > 0) {
-			for (HIndex idx : indexes)
-				addIndex( new IndexMapping(this.table, field, idx), prop );
+		if (indexes != null && indexes.length > 0)
+			this.pendingIndexes.put(field, indexes);
+	}
+	
+	/**
+	 * Adds the index mappings annotated on the mapped properties, once all 
+	 * properties (and column aliases) are known
+	 */
+	public void initIndexes() throws MappingException {
+		for (Map.Entry<FieldMapping,HIndex[]> e : this.pendingIndexes.entrySet()) {
+			for (HIndex idx : e.getValue()) {
+				try {
+					addIndex( new IndexMapping(this.table, e.getKey(), idx, this.columnAliases), e.getKey().getBeanProperty() );
+				}
+				catch (IllegalArgumentException iae) {
+					throw new MappingException( this.entityClass,
+							String.format("Invalid index on '%s': %s", e.getKey().getBeanProperty().getName(), iae.getMessage()) );
+				}
+			}
 		}
+		this.pendingIndexes.clear();
+	}
+	
+	/**
+	 * Returns the stored column ("family:column") for a mapped column name,
+	 * resolving any alias
+	 */
+	public String resolveColumn(String fieldname) {
+		String stored = this.columnAliases.get(fieldname);
+		return (stored != null ? stored : fieldname);
 	}
 	
 	public void addIndex(IndexMapping index, PropertyDescriptor prop) {
@@ -82,18 +413,52 @@ public class EntityInfo {
 		curIndexes.add(index);
 	}
 	
+	/**
+	 * Returns the property mapped to the stored column, or to the mapped
+	 * column name for aliased properties
+	 */
 	public PropertyDescriptor getFieldProperty(String fieldname) {
 		for (FieldMapping mapping : this.mappedProps) {
 			if (mapping.matches(fieldname)) {
 				return mapping.getBeanProperty();
 			}
 		}
+		String stored = this.columnAliases.get(fieldname);
+		if (stored != null)
+			return getFieldProperty(stored);
 
 		return null;
 	}
 	
 	public List<FieldMapping> getMappedFields() { return this.mappedProps; }
 	
+	/**
+	 * Returns <code>true</code> if the stored column ("family:column") is the
+	 * element counter of a list property
+	 */
+	public boolean isListCounter(String fieldname) {
+		return getCounterList(fieldname) != null;
+	}
+	
+	/**
+	 * Returns the list property whose element counter is stored in the 
+	 * column ("family:column"), or <code>null</code> if the column is not a
+	 * list counter
+	 */
+	public ListField getCounterList(String fieldname) {
+		if (this.listCounters == null) {
+			Map<String,ListField> counters = new HashMap<String,ListField>();
+			for (FieldMapping mapping : this.mappedProps) {
+				if (mapping instanceof ListField)
+					counters.put(((ListField)mapping).getCounterFieldName(), (ListField)mapping);
+			}
+			this.listCounters = counters;
+		}
+		
+		return this.listCounters.get(fieldname);
+	}
+	private Map<String,ListField> listCounters = null;
+	
 	public PropertyDescriptor getProperty(String propName) {
 		return this.propertiesByName.get(propName);
 	}
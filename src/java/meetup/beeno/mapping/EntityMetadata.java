@@ -9,9 +9,11 @@ import java.lang.reflect.Method;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 
+import meetup.beeno.HEmbedded;
 import meetup.beeno.HEntity;
 import meetup.beeno.HProperty;
 import meetup.beeno.HRowKey;
+import meetup.beeno.LazyEntity;
 
 import org.apache.hadoop.hbase.client.HTable;
 import org.apache.hadoop.hbase.client.HTablePool;
@@ -62,7 +64,11 @@ public class EntityMetadata {
 		EntityInfo info = this.mappings.get(entityClass);
 		
 		if (info == null) {
-			info = parseEntity(entityClass);
+			// lazy entity subclasses share the mapping of the entity class
+			if (LazyEntity.class.isAssignableFrom(entityClass) && entityClass.getSuperclass() != null)
+				info = getInfo(entityClass.getSuperclass());
+			else
+				info = parseEntity(entityClass);
 			mappings.put(entityClass, info);
 		}
 		
@@ -86,9 +92,14 @@ public class EntityMetadata {
 		}
 		EntityInfo info = new EntityInfo(clazz);
 		info.setTablename(classTable.name());
+		info.setCompact(classTable.compact());
+		info.setPacked(classTable.packed());
+		info.setLazy(classTable.lazy());
+		info.setLazyFamilies(classTable.lazyFamilies());
 				
 		// lookup any property mappings for table fields and indexes
 		parseProperties(clazz, info);
+		info.initIndexes();
 		
 		// make sure we have a mapping for the row key
 		if (info.getKeyProperty() == null) {
@@ -146,6 +157,8 @@ public class EntityMetadata {
 		if (propAnnotation != null) {
 			String fieldname = fieldToString(propAnnotation);
 			PropertyDescriptor currentMapped = info.getFieldProperty(fieldname);
+			if (currentMapped == null && propAnnotation.alias().length() > 0)
+				currentMapped = info.getFieldProperty(propAnnotation.family() + ":" + propAnnotation.alias());
 			// check for a duplicate mapping
 			if (currentMapped != null && !prop.equals(currentMapped)) {
 				throw new MappingException( info.getEntityClass(),
@@ -163,7 +176,14 @@ public class EntityMetadata {
 				}
 			}
 
-			info.addProperty(propAnnotation, prop, type);
+			HEmbedded embedded = (HEmbedded) meth.getAnnotation(HEmbedded.class);
+			try {
+				info.addProperty(propAnnotation, embedded, prop, type);
+			}
+			catch (IllegalArgumentException iae) {
+				throw new MappingException( info.getEntityClass(),
+						String.format("Invalid embedded property '%s': %s", prop.getName(), iae.getMessage()) );
+			}
 		}
 		
 	}
@@ -1,36 +1,99 @@
 package meetup.beeno.mapping;
 
 import java.beans.PropertyDescriptor;
+import java.lang.reflect.Method;
+import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.Type;
 import java.util.Collection;
 import java.util.Map;
 
+import meetup.beeno.HEmbedded;
 import meetup.beeno.HProperty;
 
 /**
  * Stores an annotated {@link HProperty} mapping of a JavaBean property
  * in the entity class to an HBase table column.  This maps a single Java object
  * instance to a single column.
+ * 
+ * If the property declares an alias, the alias is the stored column and
+ * the mapped name is only used to refer to the column in annotations.
  */
 public class FieldMapping {
 	protected String family = null;
+	protected String name = null;
 	protected String column = null;
 	protected String fieldname = null;
 	protected PropertyDescriptor beanProperty = null;
+	protected Class<?> valueType = null;
+	protected boolean lazy = false;
 	public FieldMapping(HProperty prop, PropertyDescriptor beanProperty) {
 		this.family = prop.family();
-		this.column = prop.name();
+		this.name = prop.name();
+		this.column = (prop.alias() != null && prop.alias().length() > 0 ? prop.alias() : prop.name());
 		this.fieldname = this.family+":"+this.column;
 		this.beanProperty = beanProperty;
+		this.valueType = getValueType(beanProperty);
+		this.lazy = prop.lazy();
 	}
 
 	public boolean matches(String fieldname) { return this.fieldname.equals(fieldname); }
 	public PropertyDescriptor getBeanProperty() { return this.beanProperty; }
 	public String getFamily() { return this.family; }
+	/** Returns the stored column qualifier (the alias, if set) */
 	public String getColumn() { return this.column; }
+	/** Returns the stored column, as "family:column" */
 	public String getFieldName() { return this.fieldname; }
+	/** Returns the mapped column name, before aliasing */
+	public String getName() { return this.name; }
+	/** Returns the mapped column, as "family:name", before aliasing */
+	public String getMappedFieldName() { return this.family+":"+this.name; }
+	public boolean isAliased() { return !this.column.equals(this.name); }
+	/** Returns <code>true</code> if the property is annotated as lazily loaded */
+	public boolean isLazy() { return this.lazy; }
+	/** 
+	 * Returns the type of each stored value: the property type, or the 
+	 * declared element type for collections and value type for maps 
+	 */
+	public Class<?> getValueType() { return this.valueType; }
+
+	/**
+	 * Returns the property type, or for collection and map properties, the
+	 * type argument for the elements or values.  Returns <code>null</code> 
+	 * if a collection or map doesn't declare a class as its type argument.
+	 */
+	static Class<?> getValueType(PropertyDescriptor beanProperty) {
+		if (beanProperty == null)
+			return null;
+		
+		Class<?> type = beanProperty.getPropertyType();
+		int arg = -1;
+		if (Map.class.isAssignableFrom(type))
+			arg = 1;
+		else if (Collection.class.isAssignableFrom(type))
+			arg = 0;
+		else
+			return type;
+		
+		Method getter = beanProperty.getReadMethod();
+		Type generic = (getter != null ? getter.getGenericReturnType() : null);
+		if (generic instanceof ParameterizedType) {
+			Type[] args = ((ParameterizedType)generic).getActualTypeArguments();
+			if (arg < args.length && args[arg] instanceof Class)
+				return (Class<?>)args[arg];
+		}
+		
+		return null;
+	}
 
 	public static FieldMapping get(HProperty prop, PropertyDescriptor beanProperty) {
-		if (Map.class.isAssignableFrom(beanProperty.getPropertyType())) {
+		return get(prop, null, beanProperty);
+	}
+
+	public static FieldMapping get(HProperty prop, HEmbedded embedded, PropertyDescriptor beanProperty) {
+		if (embedded != null) {
+			return new EmbeddedField(prop, embedded, beanProperty);
+		}
+		else if (Map.class.isAssignableFrom(beanProperty.getPropertyType())) {
 			return new MapField(prop, beanProperty);
 		}
 		else if (Collection.class.isAssignableFrom(beanProperty.getPropertyType())) {
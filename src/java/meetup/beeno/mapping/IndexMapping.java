@@ -1,7 +1,9 @@
 package meetup.beeno.mapping;
 
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 import meetup.beeno.EntityIndexer;
 import meetup.beeno.HIndex;
@@ -20,26 +22,67 @@ public class IndexMapping {
 	protected HUtil.HCol dateCol;
 	protected boolean invertDate = false;
 	protected List<HUtil.HCol> extraFields = new ArrayList<HUtil.HCol>();
+	protected List<HUtil.HCol> keyFields = new ArrayList<HUtil.HCol>();
 	protected EntityIndexer generator;
 	protected Class<? extends IndexKeyFactory> keyFactory;
+	protected boolean multiValue = false;
+	protected int saltBuckets = 0;
 	
 	public IndexMapping(String baseTable, FieldMapping baseField, HIndex indexAnnotation) {
-		this.indexTable = String.format("%s-by_%s", baseTable, baseField.getColumn());
+		this(baseTable, baseField, indexAnnotation, new HashMap<String,String>());
+	}
+	
+	/**
+	 * @param columnAliases stored column names for aliased columns, keyed 
+	 * 		by the mapped "family:name" used in the index annotation
+	 */
+	public IndexMapping(String baseTable, FieldMapping baseField, HIndex indexAnnotation,
+						Map<String,String> columnAliases) {
 		this.primaryField = baseField;
+		// index tables are named by the mapped names, so aliasing doesn't rename them
+		StringBuilder tableName = new StringBuilder(baseTable).append("-by_").append(baseField.getName());
+		for (String col : indexAnnotation.key_cols()) {
+			HUtil.HCol hcol = HUtil.HCol.parse(resolve(col, columnAliases));
+			if (hcol != null) {
+				this.keyFields.add( hcol );
+				tableName.append('-').append(HUtil.column(col));
+			}
+		}
+		this.indexTable = tableName.toString();
 		for (String col : indexAnnotation.extra_cols()) {
-			HUtil.HCol hcol = HUtil.HCol.parse(col);
+			HUtil.HCol hcol = HUtil.HCol.parse(resolve(col, columnAliases));
 			if (hcol != null)
 				this.extraFields.add( hcol );
 		}
 		
 		if (indexAnnotation.date_col() != null && indexAnnotation.date_col().length() > 0)
-			this.dateCol = HUtil.HCol.parse(indexAnnotation.date_col());
+			this.dateCol = HUtil.HCol.parse(resolve(indexAnnotation.date_col(), columnAliases));
 		this.invertDate = indexAnnotation.date_invert();
 		this.keyFactory = indexAnnotation.key_factory();
+		this.multiValue = indexAnnotation.multi_value();
+		this.saltBuckets = indexAnnotation.salt_buckets();
+		if (this.saltBuckets < 0 || this.saltBuckets > 256)
+			throw new IllegalArgumentException(
+					String.format("Invalid salt_buckets %d for index on '%s', must be 0-256", this.saltBuckets, baseField.getFieldName()));
+		if (this.multiValue && !(baseField instanceof ListField))
+			throw new IllegalArgumentException(
+					String.format("Multi-valued index on non-collection property '%s'", baseField.getFieldName()));
+		if (this.multiValue && !this.keyFields.isEmpty())
+			throw new IllegalArgumentException(
+					String.format("Multi-valued index on property '%s' cannot be composite", baseField.getFieldName()));
+		// composite keys are always built by the indexer
+		if (!this.keyFields.isEmpty() && this.keyFactory != EntityIndexer.DefaultKeyFactory.class)
+			throw new IllegalArgumentException(
+					String.format("Composite index on property '%s' cannot use a key_factory", baseField.getFieldName()));
 		
 		this.generator = new EntityIndexer(this);
 	}
 	
+	private static String resolve(String col, Map<String,String> columnAliases) {
+		String stored = columnAliases.get(col);
+		return (stored != null ? stored : col);
+	}
+	
 	public String getTableName() { return this.indexTable; }
 	public FieldMapping getPrimaryField() { return this.primaryField; }
 	public HUtil.HCol getDateField() { return this.dateCol; }
@@ -47,4 +90,11 @@ public class IndexMapping {
 	public List<HUtil.HCol> getExtraFields() { return this.extraFields; }
 	public EntityIndexer getGenerator() { return this.generator; }
 	public Class<? extends IndexKeyFactory> getKeyFactory() { return this.keyFactory; }
+	public boolean isMultiValue() { return this.multiValue; }
+	/** Additional key columns for composite indexes, in key order */
+	public List<HUtil.HCol> getKeyFields() { return this.keyFields; }
+	public boolean isComposite() { return !this.keyFields.isEmpty(); }
+	/** Number of salt buckets for index keys, or zero if keys are not salted */
+	public int getSaltBuckets() { return this.saltBuckets; }
+	public boolean isSalted() { return this.saltBuckets > 0; }
 }
\ No newline at end of file
@@ -1,7 +1,6 @@
 package meetup.beeno.mapping;
 
 import java.beans.PropertyDescriptor;
-import java.util.regex.Pattern;
 
 import meetup.beeno.HProperty;
 
@@ -10,19 +9,66 @@ import meetup.beeno.HProperty;
  * to multiple indexed columns in an HBase table.  The multiple values will be mapped to columns
  * based on the value index in the collection:
  * 		[column family]:[column name]_[index number]
- * 
- * Due to the mapping to multiple columns, these property types are not easily covered by HBase 
- * secondary indexes and should not be used as query criteria.
- * 
+ *
+ * The number of elements written is kept in a counter column,
+ * 		[column family]:[column name]_count
+ * so that elements can be appended without reading the stored list.
+ *
+ * Due to the mapping to multiple columns, these property types can only be covered by HBase
+ * secondary indexes declared with <code>multi_value=true</code>, which index each element
+ * separately.
+ *
  * @author garyh
  *
  */
 public class ListField extends FieldMapping {
-	protected Pattern fieldRegex = null;
+	protected String elementPrefix = null;
+	protected String elementFieldPrefix = null;
+	protected String counterColumn = null;
 	public ListField(HProperty prop, PropertyDescriptor beanProperty) {
 		super(prop, beanProperty);
-		this.fieldRegex = Pattern.compile(this.family+":"+this.column+"_\\d+");
+		this.elementPrefix = this.column + "_";
+		this.elementFieldPrefix = this.family + ":" + this.elementPrefix;
+		this.counterColumn = this.column + "_count";
+	}
+
+	public boolean matches(String fieldname) {
+		return fieldname.startsWith(this.elementFieldPrefix) &&
+			parseIndex(fieldname, this.elementFieldPrefix.length()) >= 0;
+	}
+
+	/** Returns the column qualifier storing the element at the given index */
+	public String getElementColumn(long idx) { return this.elementPrefix + idx; }
+
+	/** Returns the column qualifier of the counter holding the number of elements written */
+	public String getCounterColumn() { return this.counterColumn; }
+
+	/** Returns the counter column, as "family:column" */
+	public String getCounterFieldName() { return this.family + ":" + this.counterColumn; }
+
+	/**
+	 * Returns the element index stored in the column qualifier, or -1 if the
+	 * qualifier is not an element column
+	 */
+	public long getIndex(String qualifier) {
+		if (!qualifier.startsWith(this.elementPrefix))
+			return -1;
+
+		return parseIndex(qualifier, this.elementPrefix.length());
 	}
 
-	public boolean matches(String fieldname) { return this.fieldRegex.matcher(fieldname).matches(); }
-}
\ No newline at end of file
+	private static long parseIndex(String name, int offset) {
+		if (offset >= name.length())
+			return -1;
+
+		long idx = 0;
+		for (int i=offset; i<name.length(); i++) {
+			char c = name.charAt(i);
+			if (c < '0' || c > '9')
+				return -1;
+			idx = idx*10 + (c - '0');
+		}
+
+		return idx;
+	}
+}
@@ -0,0 +1,415 @@
+package meetup.beeno.util;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.hadoop.hbase.util.Bytes;
+import org.apache.log4j.Logger;
+
+/**
+ * Compact binary encoding for property values, used in place of the
+ * self-describing <code>HField</code> protobuf messages for entities mapped
+ * with <code>@HEntity(compact=true)</code>.
+ *
+ * Each value is written as a 0x00 format marker, a single type byte and
+ * the value:
+ * <ul>
+ *   <li>int, long, float and double values in fixed width big-endian form</li>
+ *   <li>booleans as a single byte</li>
+ *   <li>dates as the epoch milliseconds, in 8 bytes</li>
+ *   <li>strings, enum names and binary values as a varint length followed
+ *   by the UTF-8 (or raw) bytes</li>
+ *   <li>string lists as a varint count followed by each string</li>
+ *   <li>packed records, holding several property values in one cell, as a
+ *   varint count followed by each column name and encoded value, both
+ *   length prefixed</li>
+ * </ul>
+ *
+ * A serialized <code>HField</code> always starts with the tag for its type
+ * field, never a zero byte, so cells in either format can be told apart
+ * and read by {@link PBUtil#toValue(byte[])}.
+ *
+ * The encoded type follows the declared property type where given, so
+ * query values are encoded the same way as the stored values they are
+ * compared against.
+ *
+ * @author garyh
+ *
+ */
+public class CompactCodec {
+	private static Logger log = Logger.getLogger(CompactCodec.class);
+
+	public static final byte MARKER = 0x00;
+
+	public static final byte INT = 1;
+	public static final byte LONG = 2;
+	public static final byte FLOAT = 3;
+	public static final byte DOUBLE = 4;
+	public static final byte BOOLEAN = 5;
+	public static final byte TEXT = 6;
+	public static final byte BINARY = 7;
+	public static final byte DATE = 8;
+	public static final byte ENUM = 9;
+	public static final byte STRINGLIST = 10;
+	public static final byte PACKED = 11;
+
+	/**
+	 * Returns <code>true</code> if the bytes hold a compact encoded value
+	 */
+	public static boolean isCompact(byte[] bytes) {
+		return bytes != null && bytes.length > 1 && bytes[0] == MARKER;
+	}
+
+	/**
+	 * Returns the type byte of a compact encoded value, or 0 if the bytes
+	 * are not compact encoded
+	 */
+	public static byte getType(byte[] bytes) {
+		return (isCompact(bytes) ? bytes[1] : 0);
+	}
+
+	/**
+	 * Encodes the value by its runtime type
+	 */
+	public static byte[] toBytes(Object val) {
+		return toBytes(val, null);
+	}
+
+	/**
+	 * Encodes the value as the given property type.  Numeric values are
+	 * converted to the property's width.  If the type is <code>null</code>
+	 * or doesn't apply to the value, the value's runtime type is used.
+	 */
+	public static byte[] toBytes(Object val, Class<?> type) {
+		if (val == null)
+			return null;
+
+		byte code = (type != null ? typeCode(type) : 0);
+		if (code == 0 || !accepts(code, val))
+			code = typeCode(val.getClass());
+
+		switch (code) {
+		case INT:
+			return Bytes.add(header(INT), Bytes.toBytes(((Number)val).intValue()));
+		case LONG:
+			return Bytes.add(header(LONG), Bytes.toBytes(((Number)val).longValue()));
+		case FLOAT:
+			return Bytes.add(header(FLOAT), Bytes.toBytes(((Number)val).floatValue()));
+		case DOUBLE:
+			return Bytes.add(header(DOUBLE), Bytes.toBytes(((Number)val).doubleValue()));
+		case BOOLEAN:
+			return new byte[]{ MARKER, BOOLEAN, (byte)(((Boolean)val) ? 1 : 0) };
+		case DATE:
+			return Bytes.add(header(DATE), Bytes.toBytes(((Date)val).getTime()));
+		case TEXT:
+			return withLength(TEXT, Bytes.toBytes((String)val));
+		case ENUM:
+			return withLength(ENUM, Bytes.toBytes(((Enum)val).name()));
+		case BINARY:
+			return withLength(BINARY, (byte[])val);
+		case STRINGLIST:
+			List<byte[]> parts = new ArrayList<byte[]>();
+			parts.add(header(STRINGLIST));
+			parts.add(vint(((Collection)val).size()));
+			for (Object elem : (Collection)val) {
+				byte[] str = Bytes.toBytes(String.valueOf(elem));
+				parts.add(vint(str.length));
+				parts.add(str);
+			}
+			return concat(parts);
+		default:
+			log.warn(String.format("Unknown compact encoding for property value type %s", val.getClass().getName()));
+			return null;
+		}
+	}
+
+	/**
+	 * Returns the type byte used for values of the class, or 0 if the class
+	 * is not supported
+	 */
+	static byte typeCode(Class<?> type) {
+		if (type == Integer.class || type == Integer.TYPE || type == Short.class || type == Short.TYPE ||
+			type == Byte.class || type == Byte.TYPE)
+			return INT;
+		if (type == Long.class || type == Long.TYPE)
+			return LONG;
+		if (type == Float.class || type == Float.TYPE)
+			return FLOAT;
+		if (type == Double.class || type == Double.TYPE)
+			return DOUBLE;
+		if (type == Boolean.class || type == Boolean.TYPE)
+			return BOOLEAN;
+		if (type == String.class)
+			return TEXT;
+		if (Date.class.isAssignableFrom(type))
+			return DATE;
+		if (type.isEnum() || (type.getSuperclass() != null && type.getSuperclass().isEnum()))
+			return ENUM;
+		if (type.isArray() && type.getComponentType() == Byte.TYPE)
+			return BINARY;
+		if (Collection.class.isAssignableFrom(type))
+			return STRINGLIST;
+
+		return 0;
+	}
+
+	private static boolean accepts(byte code, Object val) {
+		switch (code) {
+		case INT:
+		case LONG:
+		case FLOAT:
+		case DOUBLE:
+			return val instanceof Number;
+		default:
+			return code == typeCode(val.getClass());
+		}
+	}
+
+	/**
+	 * Decodes the value by its stored type
+	 */
+	public static Object toValue(byte[] bytes) {
+		return toValue(bytes, null);
+	}
+
+	/**
+	 * Decodes the value for a property of the given type.  Enum values are
+	 * returned as their name unless the type is an enum class.
+	 */
+	public static Object toValue(byte[] bytes, Class<?> type) {
+		if (!isCompact(bytes))
+			return null;
+
+		switch (bytes[1]) {
+		case INT:
+			return Bytes.toInt(bytes, 2);
+		case LONG:
+			return Bytes.toLong(bytes, 2);
+		case FLOAT:
+			return Bytes.toFloat(bytes, 2);
+		case DOUBLE:
+			return Bytes.toDouble(bytes, 2);
+		case BOOLEAN:
+			return bytes[2] != 0;
+		case DATE:
+			return new Date(Bytes.toLong(bytes, 2));
+		case TEXT:
+			return readString(bytes, 2);
+		case ENUM:
+			String name = readString(bytes, 2);
+			if (type != null && type.isEnum())
+				return Enum.valueOf((Class<? extends Enum>)type, name);
+			return name;
+		case BINARY:
+			int[] pos = new int[]{ 2 };
+			int len = (int)readVLong(bytes, pos);
+			byte[] val = new byte[len];
+			System.arraycopy(bytes, pos[0], val, 0, len);
+			return val;
+		case STRINGLIST:
+			int[] offset = new int[]{ 2 };
+			int cnt = (int)readVLong(bytes, offset);
+			List<String> vals = new ArrayList<String>(cnt);
+			for (int i=0; i<cnt; i++) {
+				int strlen = (int)readVLong(bytes, offset);
+				vals.add(Bytes.toString(bytes, offset[0], strlen));
+				offset[0] += strlen;
+			}
+			return vals;
+		case PACKED:
+			Map<String,Object> fields = new LinkedHashMap<String,Object>();
+			for (Map.Entry<String,byte[]> e : unpack(bytes).entrySet())
+				fields.put(e.getKey(), toValue(e.getValue()));
+			return fields;
+		default:
+			log.error("Unknown compact value type "+bytes[1]);
+			return null;
+		}
+	}
+
+	/**
+	 * Returns <code>true</code> if the value is an integer type, readable
+	 * with {@link #getLong(byte[])}
+	 */
+	public static boolean isInteger(byte[] bytes) {
+		byte type = getType(bytes);
+		return type == INT || type == LONG || type == DATE;
+	}
+
+	/**
+	 * Returns <code>true</code> if the value is a floating point type,
+	 * readable with {@link #getDouble(byte[])}
+	 */
+	public static boolean isFloat(byte[] bytes) {
+		byte type = getType(bytes);
+		return type == FLOAT || type == DOUBLE;
+	}
+
+	/**
+	 * Reads an int, long or date value without creating an object
+	 */
+	public static long getLong(byte[] bytes) {
+		return (bytes[1] == INT ? Bytes.toInt(bytes, 2) : Bytes.toLong(bytes, 2));
+	}
+
+	/**
+	 * Reads a float or double value without creating an object
+	 */
+	public static double getDouble(byte[] bytes) {
+		return (bytes[1] == FLOAT ? Bytes.toFloat(bytes, 2) : Bytes.toDouble(bytes, 2));
+	}
+
+
+	/**
+	 * Packs encoded values, keyed by column name, into a single record.
+	 * <code>null</code> values are left out.
+	 */
+	public static byte[] pack(Map<String,byte[]> values) {
+		List<byte[]> parts = new ArrayList<byte[]>(2 + values.size() * 4);
+		parts.add(header(PACKED));
+		int cnt = 0;
+		for (Map.Entry<String,byte[]> e : values.entrySet()) {
+			if (e.getValue() == null)
+				continue;
+			byte[] name = Bytes.toBytes(e.getKey());
+			parts.add(vint(name.length));
+			parts.add(name);
+			parts.add(vint(e.getValue().length));
+			parts.add(e.getValue());
+			cnt++;
+		}
+		parts.add(1, vint(cnt));
+
+		return concat(parts);
+	}
+
+	/**
+	 * Returns <code>true</code> if the bytes hold a packed record
+	 */
+	public static boolean isPacked(byte[] bytes) {
+		return getType(bytes) == PACKED;
+	}
+
+	/**
+	 * Returns the encoded values in a packed record by column name, in
+	 * stored order
+	 */
+	public static Map<String,byte[]> unpack(byte[] bytes) {
+		Map<String,byte[]> values = new LinkedHashMap<String,byte[]>();
+		if (!isPacked(bytes))
+			return values;
+
+		int[] pos = new int[]{ 2 };
+		int cnt = (int)readVLong(bytes, pos);
+		for (int i=0; i<cnt; i++) {
+			int namelen = (int)readVLong(bytes, pos);
+			String name = Bytes.toString(bytes, pos[0], namelen);
+			pos[0] += namelen;
+			int len = (int)readVLong(bytes, pos);
+			byte[] val = new byte[len];
+			System.arraycopy(bytes, pos[0], val, 0, len);
+			pos[0] += len;
+			values.put(name, val);
+		}
+
+		return values;
+	}
+
+	/**
+	 * Returns the encoded value for a single column from a packed record,
+	 * or <code>null</code> if the record doesn't contain the column.  Other
+	 * values are skipped without being copied.
+	 */
+	public static byte[] getPacked(byte[] bytes, byte[] name) {
+		if (!isPacked(bytes))
+			return null;
+
+		int[] pos = new int[]{ 2 };
+		int cnt = (int)readVLong(bytes, pos);
+		for (int i=0; i<cnt; i++) {
+			int namelen = (int)readVLong(bytes, pos);
+			boolean match = Bytes.compareTo(bytes, pos[0], namelen, name, 0, name.length) == 0;
+			pos[0] += namelen;
+			int len = (int)readVLong(bytes, pos);
+			if (match) {
+				byte[] val = new byte[len];
+				System.arraycopy(bytes, pos[0], val, 0, len);
+				return val;
+			}
+			pos[0] += len;
+		}
+
+		return null;
+	}
+
+
+	private static byte[] header(byte type) {
+		return new byte[]{ MARKER, type };
+	}
+
+	private static byte[] withLength(byte type, byte[] val) {
+		byte[] len = vint(val.length);
+		byte[] out = new byte[2 + len.length + val.length];
+		out[0] = MARKER;
+		out[1] = type;
+		System.arraycopy(len, 0, out, 2, len.length);
+		System.arraycopy(val, 0, out, 2 + len.length, val.length);
+		return out;
+	}
+
+	private static String readString(byte[] bytes, int offset) {
+		int[] pos = new int[]{ offset };
+		int len = (int)readVLong(bytes, pos);
+		return Bytes.toString(bytes, pos[0], len);
+	}
+
+	/**
+	 * Encodes an unsigned varint, 7 bits per byte, low order bits first
+	 */
+	static byte[] vint(long val) {
+		byte[] buf = new byte[10];
+		int len = 0;
+		while ((val & ~0x7FL) != 0) {
+			buf[len++] = (byte)((val & 0x7F) | 0x80);
+			val >>>= 7;
+		}
+		buf[len++] = (byte)val;
+
+		byte[] out = new byte[len];
+		System.arraycopy(buf, 0, out, 0, len);
+		return out;
+	}
+
+	/**
+	 * Reads an unsigned varint at <code>pos[0]</code>, advancing the position
+	 */
+	static long readVLong(byte[] bytes, int[] pos) {
+		long val = 0;
+		int shift = 0;
+		byte b;
+		do {
+			b = bytes[pos[0]++];
+			val |= (long)(b & 0x7F) << shift;
+			shift += 7;
+		} while ((b & 0x80) != 0);
+
+		return val;
+	}
+
+	private static byte[] concat(List<byte[]> parts) {
+		int len = 0;
+		for (byte[] part : parts)
+			len += part.length;
+		byte[] out = new byte[len];
+		int pos = 0;
+		for (byte[] part : parts) {
+			System.arraycopy(part, 0, out, pos, part.length);
+			pos += part.length;
+		}
+		return out;
+	}
+}
@@ -0,0 +1,287 @@
+package meetup.beeno.util;
+
+import java.beans.BeanInfo;
+import java.beans.IntrospectionException;
+import java.beans.Introspector;
+import java.beans.PropertyDescriptor;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedSet;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import net.sf.cglib.proxy.Enhancer;
+import net.sf.cglib.proxy.Factory;
+import net.sf.cglib.proxy.LazyLoader;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Serializes a value object (a JavaBean) into a single cell value, for
+ * properties mapped with {@link meetup.beeno.HEmbedded}.  The bean's
+ * readable and writable properties are introspected once per class, and
+ * each value is stored with the {@link CompactCodec} in a packed record
+ * keyed by property name.  Properties holding other beans are stored as
+ * nested records.  Collections are stored as string lists.
+ *
+ * Properties are stored by name, so properties can be added to or removed
+ * from the value class without affecting stored values.  Value classes
+ * are checked when the codec is created: properties of a type with no
+ * stored form (one that is neither a supported scalar, a collection nor a
+ * nested bean), and classes containing themselves, directly or through
+ * other nested beans, are rejected with an
+ * <code>IllegalArgumentException</code>.
+ *
+ * @author garyh
+ *
+ */
+public class EmbeddedCodec {
+	private static Logger log = Logger.getLogger(EmbeddedCodec.class);
+
+	private static final ConcurrentMap<Class<?>, EmbeddedCodec> codecs = new ConcurrentHashMap<Class<?>, EmbeddedCodec>();
+
+	/** Value classes whose codecs are being created by the current thread, outermost first */
+	private static final ThreadLocal<List<Class<?>>> creating = new ThreadLocal<List<Class<?>>>() {
+		protected List<Class<?>> initialValue() {
+			return new ArrayList<Class<?>>();
+		}
+	};
+
+	private final Class<?> type;
+	private final PropertyDescriptor[] props;
+	private final EmbeddedCodec[] nested;
+	private final boolean proxyable;
+	/** Proxy instance used to create further lazy proxies, without regenerating the class */
+	private volatile Factory proxyFactory = null;
+
+	/**
+	 * Returns the codec for the value class, creating it on first use
+	 */
+	public static EmbeddedCodec forClass(Class<?> type) {
+		EmbeddedCodec codec = codecs.get(type);
+		if (codec == null) {
+			List<Class<?>> path = creating.get();
+			if (path.contains(type)) {
+				StringBuilder cycle = new StringBuilder();
+				for (Class<?> c : path.subList(path.indexOf(type), path.size()))
+					cycle.append(c.getName()).append(" -> ");
+				cycle.append(type.getName());
+				throw new IllegalArgumentException(
+						String.format("Embedded class %s cannot contain itself (%s)", type.getName(), cycle));
+			}
+
+			path.add(type);
+			try {
+				codec = new EmbeddedCodec(type);
+			}
+			finally {
+				path.remove(path.size() - 1);
+			}
+			EmbeddedCodec existing = codecs.putIfAbsent(type, codec);
+			if (existing != null)
+				codec = existing;
+		}
+
+		return codec;
+	}
+
+	protected EmbeddedCodec(Class<?> type) {
+		if (!isBean(type))
+			throw new IllegalArgumentException(
+					String.format("Embedded class %s must be a concrete class with a no argument constructor", type.getName()));
+		this.type = type;
+
+		List<PropertyDescriptor> mapped = new ArrayList<PropertyDescriptor>();
+		try {
+			BeanInfo info = Introspector.getBeanInfo(type, Object.class);
+			for (PropertyDescriptor prop : info.getPropertyDescriptors()) {
+				if (prop.getReadMethod() == null || prop.getWriteMethod() == null)
+					continue;
+				Class<?> propType = prop.getPropertyType();
+				if (CompactCodec.typeCode(propType) == 0 && !isBean(propType)) {
+					throw new IllegalArgumentException(
+							String.format("Embedded property %s.%s has unsupported type %s",
+										  type.getName(), prop.getName(), propType.getName()));
+				}
+				mapped.add(prop);
+			}
+		}
+		catch (IntrospectionException ie) {
+			throw new IllegalArgumentException("Unable to introspect embedded class "+type.getName(), ie);
+		}
+		Collections.sort(mapped, new Comparator<PropertyDescriptor>() {
+			public int compare(PropertyDescriptor p1, PropertyDescriptor p2) {
+				return p1.getName().compareTo(p2.getName());
+			}
+		});
+
+		this.props = mapped.toArray(new PropertyDescriptor[mapped.size()]);
+		this.nested = new EmbeddedCodec[this.props.length];
+		for (int i=0; i<this.props.length; i++) {
+			// other beans are stored as nested records
+			Class<?> propType = this.props[i].getPropertyType();
+			if (CompactCodec.typeCode(propType) == 0)
+				this.nested[i] = forClass(propType);
+		}
+
+		this.proxyable = isProxyable(type);
+	}
+
+	/**
+	 * Returns <code>true</code> if values of the type can be stored as
+	 * nested records: a concrete, non-JDK class with a non-private, no
+	 * argument constructor.  JDK classes without a scalar mapping, such as
+	 * <code>BigDecimal</code>, <code>Character</code> or <code>Object</code>,
+	 * have no properties to store.
+	 */
+	private static boolean isBean(Class<?> type) {
+		if (type.isPrimitive() || type.isArray() || type.isInterface() ||
+			Modifier.isAbstract(type.getModifiers()) || Map.class.isAssignableFrom(type))
+			return false;
+		String name = type.getName();
+		if (name.startsWith("java.") || name.startsWith("javax."))
+			return false;
+		try {
+			return !Modifier.isPrivate(type.getDeclaredConstructor().getModifiers());
+		}
+		catch (NoSuchMethodException nsme) {
+			return false;
+		}
+	}
+
+	private static boolean isProxyable(Class<?> type) {
+		return !Modifier.isFinal(type.getModifiers());
+	}
+
+	public Class<?> getType() { return this.type; }
+
+	/**
+	 * Encodes the value object, returning <code>null</code> for a
+	 * <code>null</code> value
+	 */
+	public byte[] encode(Object value) {
+		if (value == null)
+			return null;
+
+		Map<String,byte[]> fields = new TreeMap<String,byte[]>();
+		for (int i=0; i<this.props.length; i++) {
+			Object propVal = read(value, this.props[i]);
+			if (propVal == null)
+				continue;
+
+			if (this.nested[i] != null)
+				fields.put(this.props[i].getName(), this.nested[i].encode(propVal));
+			else
+				fields.put(this.props[i].getName(), CompactCodec.toBytes(propVal, this.props[i].getPropertyType()));
+		}
+
+		return CompactCodec.pack(fields);
+	}
+
+	/**
+	 * Decodes a stored value into a new instance of the value class
+	 */
+	public Object decode(byte[] bytes) {
+		if (!CompactCodec.isPacked(bytes))
+			return null;
+
+		Object value = null;
+		try {
+			value = this.type.newInstance();
+		}
+		catch (Exception e) {
+			throw new IllegalArgumentException("Unable to instantiate embedded class "+this.type.getName(), e);
+		}
+
+		Map<String,byte[]> fields = CompactCodec.unpack(bytes);
+		for (int i=0; i<this.props.length; i++) {
+			byte[] propBytes = fields.get(this.props[i].getName());
+			if (propBytes == null)
+				continue;
+
+			Object propVal = null;
+			if (this.nested[i] != null)
+				propVal = this.nested[i].decode(propBytes);
+			else
+				propVal = convert(CompactCodec.toValue(propBytes, this.props[i].getPropertyType()),
+								  this.props[i].getPropertyType());
+			write(value, this.props[i], propVal);
+		}
+
+		return value;
+	}
+
+	/**
+	 * Returns a proxy for the value object which decodes the stored value on
+	 * first access.  Falls back to decoding immediately if the value class
+	 * can't be proxied.
+	 */
+	public Object decodeLazy(final byte[] bytes) {
+		if (!CompactCodec.isPacked(bytes))
+			return null;
+		if (!this.proxyable)
+			return decode(bytes);
+
+		LazyLoader loader = new LazyLoader() {
+			public Object loadObject() {
+				return decode(bytes);
+			}
+		};
+		Factory factory = this.proxyFactory;
+		if (factory != null)
+			return factory.newInstance(loader);
+
+		// the first proxy generates the class, and creates the others
+		Enhancer enhancer = new Enhancer();
+		enhancer.setSuperclass(this.type);
+		enhancer.setCallback(loader);
+		Object proxy = enhancer.create();
+		this.proxyFactory = (Factory) proxy;
+		return proxy;
+	}
+
+	private static Object convert(Object value, Class<?> type) {
+		if (value == null || type.isInstance(value))
+			return value;
+
+		if (value instanceof Collection && Collection.class.isAssignableFrom(type)) {
+			Collection<?> values = (Collection<?>)value;
+			if (SortedSet.class.isAssignableFrom(type))
+				return new TreeSet<Object>(values);
+			if (Set.class.isAssignableFrom(type))
+				return new HashSet<Object>(values);
+			return new ArrayList<Object>(values);
+		}
+
+		return HUtil.cast(value, type);
+	}
+
+	private static Object read(Object bean, PropertyDescriptor prop) {
+		try {
+			return prop.getReadMethod().invoke(bean);
+		}
+		catch (Exception e) {
+			log.error(String.format("Error reading embedded property %s.%s", bean.getClass().getName(), prop.getName()), e);
+		}
+
+		return null;
+	}
+
+	private static void write(Object bean, PropertyDescriptor prop, Object value) {
+		try {
+			prop.getWriteMethod().invoke(bean, value);
+		}
+		catch (Exception e) {
+			log.error(String.format("Error writing embedded property %s.%s", bean.getClass().getName(), prop.getName()), e);
+		}
+	}
+}
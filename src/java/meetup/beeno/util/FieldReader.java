@@ -0,0 +1,287 @@
+package meetup.beeno.util;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+import meetup.beeno.HDataTypes;
+
+import org.apache.log4j.Logger;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.CodedInputStream;
+
+/**
+ * Streaming decoder for serialized <code>HField</code> messages.  Fields
+ * are read straight from the input into primitive values, without building
+ * the message objects, so a single reader can be reused to decode the
+ * values of many cells.
+ *
+ * Decoded values are the same as those returned from the generated
+ * <code>HField</code> accessors: fields missing from the message read as
+ * their defaults, and messages missing required fields are rejected.
+ *
+ * Instances are not thread safe.
+ *
+ * @author garyh
+ *
+ */
+public class FieldReader {
+	private static Logger log = Logger.getLogger(FieldReader.class);
+
+	/* wire format tags: (field number << 3) | wire type */
+	private static final int TYPE_TAG = (1 << 3) | 0;
+	private static final int TEXT_TAG = (2 << 3) | 2;
+	private static final int INTEGER_TAG = (3 << 3) | 0;
+	private static final int FLOAT_TAG = (4 << 3) | 1;
+	private static final int BOOLEAN_TAG = (5 << 3) | 0;
+	private static final int BINARY_TAG = (6 << 3) | 2;
+	private static final int DATETIME_TAG = (7 << 3) | 2;
+	private static final int JAVAENUM_TAG = (8 << 3) | 2;
+	private static final int STRINGLIST_TAG = (9 << 3) | 2;
+
+	/* nested message tags */
+	private static final int TIMESTAMP_TAG = (1 << 3) | 0;
+	private static final int ENUM_TYPE_TAG = (1 << 3) | 2;
+	private static final int ENUM_VALUE_TAG = (2 << 3) | 2;
+	private static final int LIST_VALUE_TAG = (1 << 3) | 2;
+
+	/** Resolved enum classes by name, shared by all readers */
+	private static final ConcurrentHashMap<String, Class<? extends Enum>> enumClasses =
+		new ConcurrentHashMap<String, Class<? extends Enum>>();
+
+	private HDataTypes.HField.Type type;
+	private String text;
+	private long integer;
+	private double floatVal;
+	private boolean bool;
+	private ByteString binary;
+	private long timestamp;
+	private String enumType;
+	private String enumValue;
+	private List<String> strings;
+
+	/**
+	 * Decodes the serialized message, returning <code>false</code> if the
+	 * bytes are not a valid <code>HField</code>.
+	 */
+	public boolean read(byte[] bytes) {
+		reset();
+		if (bytes == null || bytes.length == 0)
+			return false;
+
+		try {
+			return read(CodedInputStream.newInstance(bytes));
+		}
+		catch (IOException ioe) {
+			log.error("Invalid protocol buffer parsing bytes", ioe);
+			reset();
+		}
+
+		return false;
+	}
+
+	protected boolean read(CodedInputStream in) throws IOException {
+		boolean valid = true;
+		int tag;
+		while ((tag = in.readTag()) != 0) {
+			switch (tag) {
+			case TYPE_TAG:
+				// unknown enum numbers are left unset, as the generated parser does
+				HDataTypes.HField.Type t = HDataTypes.HField.Type.valueOf(in.readEnum());
+				if (t != null)
+					this.type = t;
+				break;
+			case TEXT_TAG:
+				this.text = in.readString();
+				break;
+			case INTEGER_TAG:
+				this.integer = in.readInt64();
+				break;
+			case FLOAT_TAG:
+				this.floatVal = in.readDouble();
+				break;
+			case BOOLEAN_TAG:
+				this.bool = in.readBool();
+				break;
+			case BINARY_TAG:
+				this.binary = in.readBytes();
+				break;
+			case DATETIME_TAG:
+				valid &= readDateTime(in);
+				break;
+			case JAVAENUM_TAG:
+				valid &= readJavaEnum(in);
+				break;
+			case STRINGLIST_TAG:
+				readStringList(in);
+				break;
+			default:
+				if (!in.skipField(tag))
+					return finish(valid);
+			}
+		}
+
+		return finish(valid);
+	}
+
+	private boolean finish(boolean valid) {
+		if (!valid || this.type == null) {
+			log.error("Invalid protocol buffer: missing required fields");
+			reset();
+			return false;
+		}
+
+		return true;
+	}
+
+	private boolean readDateTime(CodedInputStream in) throws IOException {
+		int limit = in.pushLimit(in.readRawVarint32());
+		boolean hasTimestamp = false;
+		int tag;
+		// the time zone doesn't change the returned instant, so is skipped
+		while ((tag = in.readTag()) != 0) {
+			if (tag == TIMESTAMP_TAG) {
+				this.timestamp = in.readInt64();
+				hasTimestamp = true;
+			}
+			else if (!in.skipField(tag))
+				break;
+		}
+		in.popLimit(limit);
+
+		return hasTimestamp;
+	}
+
+	private boolean readJavaEnum(CodedInputStream in) throws IOException {
+		int limit = in.pushLimit(in.readRawVarint32());
+		int tag;
+		while ((tag = in.readTag()) != 0) {
+			if (tag == ENUM_TYPE_TAG)
+				this.enumType = in.readString();
+			else if (tag == ENUM_VALUE_TAG)
+				this.enumValue = in.readString();
+			else if (!in.skipField(tag))
+				break;
+		}
+		in.popLimit(limit);
+
+		return this.enumType != null && this.enumValue != null;
+	}
+
+	private void readStringList(CodedInputStream in) throws IOException {
+		int limit = in.pushLimit(in.readRawVarint32());
+		if (this.strings == null)
+			this.strings = new ArrayList<String>();
+		int tag;
+		while ((tag = in.readTag()) != 0) {
+			if (tag == LIST_VALUE_TAG)
+				this.strings.add(in.readString());
+			else if (!in.skipField(tag))
+				break;
+		}
+		in.popLimit(limit);
+	}
+
+	protected void reset() {
+		this.type = null;
+		this.text = null;
+		this.integer = 0;
+		this.floatVal = 0;
+		this.bool = false;
+		this.binary = null;
+		this.timestamp = 0;
+		this.enumType = null;
+		this.enumValue = null;
+		this.strings = null;
+	}
+
+	/** Returns the type of the last value read, or <code>null</code> if invalid */
+	public HDataTypes.HField.Type getType() { return this.type; }
+
+	public String getText() { return (this.text != null ? this.text : ""); }
+
+	public long getInteger() { return this.integer; }
+
+	public double getFloat() { return this.floatVal; }
+
+	public boolean getBoolean() { return this.bool; }
+
+	public byte[] getBinary() {
+		return (this.binary != null ? this.binary.toByteArray() : new byte[0]);
+	}
+
+	/** Returns the date time value as epoch milliseconds */
+	public long getTimestamp() { return this.timestamp; }
+
+	public List<String> getStringList() {
+		if (this.strings == null)
+			return Collections.emptyList();
+
+		return Collections.unmodifiableList(this.strings);
+	}
+
+	/**
+	 * Returns the enum constant for the value, or <code>null</code> if the
+	 * enum class or constant cannot be found
+	 */
+	public Enum getEnum() {
+		try {
+			String typeName = (this.enumType != null ? this.enumType : "");
+			return Enum.valueOf(getEnumClass(typeName), (this.enumValue != null ? this.enumValue : ""));
+		}
+		catch (Exception e) {
+			log.error("Error instantiating field value for JavaEnum", e);
+		}
+
+		return null;
+	}
+
+	/**
+	 * Returns the last value read as the corresponding java type, as
+	 * returned by {@link PBUtil#toValue(byte[])}
+	 */
+	public Object getValue() {
+		if (this.type == null)
+			return null;
+
+		switch (this.type) {
+		case TEXT:
+			return getText();
+		case INTEGER:
+			return getInteger();
+		case FLOAT:
+			return getFloat();
+		case BOOLEAN:
+			return getBoolean();
+		case BINARY:
+			return getBinary();
+		case DATETIME:
+			return new Date(getTimestamp());
+		case JAVAENUM:
+			return getEnum();
+		case STRINGLIST:
+			return getStringList();
+		default:
+			log.error("Unknown field type "+this.type);
+		}
+
+		return null;
+	}
+
+	/**
+	 * Returns the enum class for the name, resolving each class only once
+	 */
+	protected static Class<? extends Enum> getEnumClass(String name) throws ClassNotFoundException {
+		Class<? extends Enum> enumClass = enumClasses.get(name);
+		if (enumClass == null) {
+			enumClass = Class.forName(name).asSubclass(Enum.class);
+			enumClasses.putIfAbsent(name, enumClass);
+		}
+
+		return enumClass;
+	}
+}
@@ -1,17 +1,23 @@
 package meetup.beeno.util;
 
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.Date;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
+import java.util.TreeSet;
 
 import meetup.beeno.mapping.EntityInfo;
 import meetup.beeno.mapping.FieldMapping;
 
 import org.apache.hadoop.hbase.HBaseConfiguration;
 import org.apache.hadoop.hbase.KeyValue;
+import org.apache.hadoop.hbase.client.Get;
 import org.apache.hadoop.hbase.client.HTable;
 import org.apache.hadoop.hbase.client.HTablePool;
+import org.apache.hadoop.hbase.client.Scan;
 import org.apache.hadoop.hbase.util.Bytes;
 import org.apache.log4j.Logger;
 
@@ -185,6 +191,53 @@ public class HUtil {
 	}
 
 
+	/**
+	 * Restricts the Get to the columns read for the entity, leaving out any
+	 * deferred (lazy) fields.  The <code>required</code> columns, such as 
+	 * those read by filters, are always added.  Leaves the Get reading all
+	 * columns if the entity has no deferred fields.
+	 */
+	public static void addFetchColumns(Get get, EntityInfo info, Collection<String> required) {
+		if (!info.hasDeferredFields())
+			return;
+		
+		for (HCol col : getFetchColumns(info, required))
+			get.addColumn(col.family(), col.column());
+		for (String family : info.getFetchFamilies())
+			get.addFamily(Bytes.toBytes(family));
+	}
+
+	/**
+	 * Restricts the Scan to the columns read for the entity, as for 
+	 * {@link #addFetchColumns(Get, EntityInfo, Collection)}
+	 */
+	public static void addFetchColumns(Scan scan, EntityInfo info, Collection<String> required) {
+		if (!info.hasDeferredFields())
+			return;
+		
+		for (HCol col : getFetchColumns(info, required))
+			scan.addColumn(col.family(), col.column());
+		for (String family : info.getFetchFamilies())
+			scan.addFamily(Bytes.toBytes(family));
+	}
+
+	private static List<HCol> getFetchColumns(EntityInfo info, Collection<String> required) {
+		Set<String> names = new TreeSet<String>(info.getFetchColumns());
+		if (required != null)
+			names.addAll(required);
+		
+		// columns in families read in full are already covered
+		List<HCol> columns = new ArrayList<HCol>(names.size());
+		for (String name : names) {
+			HCol col = HCol.parse(name);
+			if (col != null && !info.getFetchFamilies().contains(Bytes.toString(col.family())))
+				columns.add(col);
+		}
+		
+		return columns;
+	}
+
+
 	public static byte[] toOrderedBytes(Long ts) {
 		return toOrderedBytes(ts, false);
 	}
@@ -270,6 +323,13 @@ public class HUtil {
 		
 		public byte[] family() { return this.family; }
 		public byte[] column() { return this.column; }
+
+		/**
+		 * Returns the column in "family:column" form
+		 */
+		public String toString() {
+			return Bytes.toString(this.family)+":"+Bytes.toString(this.column);
+		}
 		
 		public static HCol parse(String fullName) {
 			byte[][] parts = KeyValue.parseColumn(Bytes.toBytes(fullName));
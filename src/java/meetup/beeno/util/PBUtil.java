@@ -3,7 +3,6 @@
  */
 package meetup.beeno.util;
 
-import java.util.Calendar;
 import java.util.Collection;
 import java.util.Date;
 import java.util.TimeZone;
@@ -30,14 +29,34 @@ import com.google.protobuf.Message;
 public class PBUtil {
 
 	private static Logger log = Logger.getLogger(PBUtil.class);
+
+	/** Readers for decoding protobuf values, reused by each thread */
+	private static final ThreadLocal<FieldReader> readers = new ThreadLocal<FieldReader>() {
+		protected FieldReader initialValue() {
+			return new FieldReader();
+		}
+	};
 	
 	
 	/* ********** Google Protocol Buffer versions for serialization *********** */
 	public static byte[] toBytes(Object val) {
+		Message pb = toField(val);
+		if (pb != null) {
+			// self describing message
+			return pb.toByteArray();
+		}
+		
+		return null;
+	}
+	
+	/**
+	 * Returns the protobuf message for the value
+	 */
+	protected static HDataTypes.HField toField(Object val) {
 		if (val == null)
 			return null;
 
-		Message pb = null;
+		HDataTypes.HField pb = null;
 		if (val.getClass().isArray() && val.getClass().getComponentType() == Byte.TYPE) {
 			pb = toMessage( (byte[])val );
 		}		
@@ -59,6 +78,9 @@ public class PBUtil {
 		else if (val instanceof Date) {
 			pb = toMessage( (Date)val );
 		}
+		else if (val instanceof Boolean) {
+			pb = toMessage( (Boolean)val );
+		}
 		else if (val instanceof Enum) {
 			pb = toMessage( (Enum)val );
 		}
@@ -72,17 +94,18 @@ public class PBUtil {
 			return null;
 		}
 		
-		if (pb != null) {
-			// self describing message
-			return pb.toByteArray();
-		}
-		
-		return null;
+		return pb;
 	}
 	
+	/**
+	 * Parses the stored value as a protobuf message.  Values stored with the
+	 * {@link CompactCodec} are converted to the equivalent message.
+	 */
 	public static HDataTypes.HField readMessage(byte[] bytes) {
 		if (bytes == null || bytes.length == 0)
 			return null;
+		if (CompactCodec.isCompact(bytes))
+			return toField(CompactCodec.toValue(bytes));
 		
 		// convert to the underlying message type
 		HDataTypes.HField field = null;
@@ -98,46 +121,32 @@ public class PBUtil {
 		return field;
 	}
 	
+	/**
+	 * Decodes a stored value in either the protobuf or compact format, for
+	 * a property of the given type.  The type is only used for compact 
+	 * values, where it's needed to restore enums.
+	 */
+	public static Object toValue(byte[] bytes, Class<?> type) {
+		if (CompactCodec.isCompact(bytes))
+			return CompactCodec.toValue(bytes, type);
+		
+		return toValue(bytes);
+	}
+	
+	/**
+	 * Decodes a stored value in either the protobuf or compact format.
+	 * Protobuf values are read with the thread's {@link FieldReader},
+	 * without building the <code>HField</code> message.
+	 */
 	public static Object toValue(byte[] bytes) {
-		HDataTypes.HField field = readMessage(bytes);
-		if (field == null)
-			return null;
+		if (CompactCodec.isCompact(bytes))
+			return CompactCodec.toValue(bytes);
 		
-		switch (field.getType()) {
-		case TEXT:
-			return field.getText();
-		case INTEGER:
-			return field.getInteger();
-		case FLOAT:
-			return field.getFloat();
-		case BOOLEAN:
-			return field.getBoolean();
-		case BINARY:
-			return field.getBinary().toByteArray();
-		case DATETIME:
-			HDataTypes.DateTime dt = field.getDateTime();
-			Calendar cal = Calendar.getInstance();
-			cal.setTimeInMillis(dt.getTimestamp());
-			if (dt.hasTimezone())
-				cal.setTimeZone( TimeZone.getTimeZone(dt.getTimezone()) );
-			return cal.getTime();
-		case JAVAENUM:
-			try {
-				HDataTypes.JavaEnum en = field.getJavaEnum();
-				Class enumClass = Class.forName(en.getType());
-				return Enum.valueOf(enumClass, en.getValue());
-			}
-			catch (Exception e) {
-				log.error("Error instantiating field value for JavaEnum", e);
-			}
-			break;
-		case STRINGLIST:
-			return field.getStringList().getValuesList();
-		default:
-			log.error("Unknown field type "+field.getType());
-		}
+		FieldReader reader = readers.get();
+		if (!reader.read(bytes))
+			return null;
 		
-		return null;
+		return reader.getValue();
 	}
 	
 	public static HDataTypes.HField toMessage(String val) {
@@ -176,11 +185,9 @@ public class PBUtil {
 	}
 	
 	public static HDataTypes.HField toMessage(Date val) {
-		Calendar cal = Calendar.getInstance();
-		cal.setTime(val);
 		HDataTypes.DateTime dt = HDataTypes.DateTime.newBuilder()
-			.setTimestamp(cal.getTime().getTime())
-			.setTimezone(cal.getTimeZone().getID())
+			.setTimestamp(val.getTime())
+			.setTimezone(TimeZone.getDefault().getID())
 			.build();
 		
 		return HDataTypes.HField.newBuilder()
@@ -8,6 +8,7 @@ import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
+import meetup.beeno.HEmbedded;
 import meetup.beeno.HEntity;
 import meetup.beeno.HIndex;
 import meetup.beeno.HProperty;
@@ -243,4 +244,543 @@ public class TestEntities {
 					this.intKey, this.timestamp);
 		}
 	}
+
+	/**
+	 * Entity with a multi-valued index on a collection property
+	 */
+	@HEntity(name="test_tagged")
+	public static class TaggedEntity {
+		String id;
+		List<String> tags = new ArrayList<String>();
+
+		public TaggedEntity() {}
+
+		public TaggedEntity(String id, List<String> tags) {
+			this.id = id;
+			this.tags = tags;
+		}
+
+		@HRowKey
+		public String getId() { return this.id; }
+		public void setId(String id) { this.id = id; }
+
+		@HProperty(family="props", name="tags", type="string",
+				   indexes = { @HIndex(multi_value=true) } )
+		public List<String> getTags() { return this.tags; }
+		public void setTags(List<String> tags) { this.tags = tags; }
+
+		public String toString() {
+			return String.format("[%s: id=%s; tags=%s]",
+					this.getClass().getSimpleName(), this.id, this.tags);
+		}
+	}
+
+	/**
+	 * Entity with a composite index on (groupId, itemType), sorted by date
+	 */
+	@HEntity(name="test_grouped")
+	public static class GroupedEntity {
+		String id;
+		String groupId;
+		String itemType;
+		long timestamp;
+
+		public GroupedEntity() {}
+
+		public GroupedEntity(String id, String groupId, String itemType, long timestamp) {
+			this.id = id;
+			this.groupId = groupId;
+			this.itemType = itemType;
+			this.timestamp = timestamp;
+		}
+
+		@HRowKey
+		public String getId() { return this.id; }
+		public void setId(String id) { this.id = id; }
+
+		@HProperty(family="props", name="groupid",
+				   indexes = { @HIndex(key_cols={"props:itemtype"}, date_col="props:tscol", date_invert=true) } )
+		public String getGroupId() { return this.groupId; }
+		public void setGroupId(String groupId) { this.groupId = groupId; }
+
+		@HProperty(family="props", name="itemtype")
+		public String getItemType() { return this.itemType; }
+		public void setItemType(String itemType) { this.itemType = itemType; }
+
+		@HProperty(family="props", name="tscol")
+		public long getTimestamp() { return this.timestamp; }
+		public void setTimestamp(long ts) { this.timestamp = ts; }
+
+		public String toString() {
+			return String.format("[%s: id=%s; groupid=%s; itemtype=%s; tscol=%d]",
+					this.getClass().getSimpleName(), this.id, this.groupId, this.itemType, this.timestamp);
+		}
+	}
+
+	/**
+	 * Entity with a salted, time ordered index
+	 */
+	@HEntity(name="test_salted")
+	public static class SaltedEntity {
+		String id;
+		String kind;
+		long timestamp;
+
+		public SaltedEntity() {}
+
+		public SaltedEntity(String id, String kind, long timestamp) {
+			this.id = id;
+			this.kind = kind;
+			this.timestamp = timestamp;
+		}
+
+		@HRowKey
+		public String getId() { return this.id; }
+		public void setId(String id) { this.id = id; }
+
+		@HProperty(family="props", name="kind",
+				   indexes = { @HIndex(salt_buckets=4, date_col="props:tscol", date_invert=true) } )
+		public String getKind() { return this.kind; }
+		public void setKind(String kind) { this.kind = kind; }
+
+		@HProperty(family="props", name="tscol")
+		public long getTimestamp() { return this.timestamp; }
+		public void setTimestamp(long ts) { this.timestamp = ts; }
+
+		public String toString() {
+			return String.format("[%s: id=%s; kind=%s; tscol=%d]",
+					this.getClass().getSimpleName(), this.id, this.kind, this.timestamp);
+		}
+	}
+
+	/**
+	 * Entity stored with the compact value encoding
+	 */
+	@HEntity(name="test_compact", compact=true)
+	public static class CompactEntity {
+		public static enum Color { RED, GREEN, BLUE }
+
+		String id;
+		String name;
+		int count;
+		double score;
+		long timestamp;
+		List<String> tags = new ArrayList<String>();
+		List<Color> colors = new ArrayList<Color>();
+
+		public CompactEntity() {}
+
+		public CompactEntity(String id, String name, int count, double score) {
+			this.id = id;
+			this.name = name;
+			this.count = count;
+			this.score = score;
+		}
+
+		@HRowKey
+		public String getId() { return this.id; }
+		public void setId(String id) { this.id = id; }
+
+		@HProperty(family="props", name="name",
+				   indexes = { @HIndex(date_col="props:timestamp", extra_cols={"props:count"}) } )
+		public String getName() { return this.name; }
+		public void setName(String name) { this.name = name; }
+
+		@HProperty(family="props", name="count")
+		public int getCount() { return this.count; }
+		public void setCount(int count) { this.count = count; }
+
+		@HProperty(family="props", name="score")
+		public double getScore() { return this.score; }
+		public void setScore(double score) { this.score = score; }
+
+		@HProperty(family="props", name="timestamp")
+		public long getTimestamp() { return this.timestamp; }
+		public void setTimestamp(long ts) { this.timestamp = ts; }
+
+		@HProperty(family="props", name="tags", type="string")
+		public List<String> getTags() { return this.tags; }
+		public void setTags(List<String> tags) { this.tags = tags; }
+
+		@HProperty(family="props", name="colors")
+		public List<Color> getColors() { return this.colors; }
+		public void setColors(List<Color> colors) { this.colors = colors; }
+
+		public String toString() {
+			return String.format("[%s: id=%s; name=%s; count=%d; score=%f]",
+					this.getClass().getSimpleName(), this.id, this.name, this.count, this.score);
+		}
+	}
+
+	/**
+	 * Entity storing its non-indexed properties in a packed cell
+	 */
+	@HEntity(name="test_packed", packed=true)
+	public static class PackedEntity {
+		String id;
+		String kind;
+		int count;
+		double score;
+		String note;
+
+		public PackedEntity() {}
+
+		public PackedEntity(String id, String kind, int count, double score, String note) {
+			this.id = id;
+			this.kind = kind;
+			this.count = count;
+			this.score = score;
+			this.note = note;
+		}
+
+		@HRowKey
+		public String getId() { return this.id; }
+		public void setId(String id) { this.id = id; }
+
+		@HProperty(family="props", name="kind",
+				   indexes = { @HIndex() } )
+		public String getKind() { return this.kind; }
+		public void setKind(String kind) { this.kind = kind; }
+
+		@HProperty(family="props", name="count")
+		public int getCount() { return this.count; }
+		public void setCount(int count) { this.count = count; }
+
+		@HProperty(family="props", name="score")
+		public double getScore() { return this.score; }
+		public void setScore(double score) { this.score = score; }
+
+		@HProperty(family="props", name="note")
+		public String getNote() { return this.note; }
+		public void setNote(String note) { this.note = note; }
+
+		public String toString() {
+			return String.format("[%s: id=%s; kind=%s; count=%d; score=%f; note=%s]",
+					this.getClass().getSimpleName(), this.id, this.kind, this.count, this.score, this.note);
+		}
+	}
+
+	/**
+	 * Entity stored with short column aliases
+	 */
+	@HEntity(name="test_aliased")
+	public static class AliasedEntity {
+		String id;
+		String category;
+		long timestamp;
+		List<String> labels = new ArrayList<String>();
+
+		public AliasedEntity() {}
+
+		public AliasedEntity(String id, String category, long timestamp) {
+			this.id = id;
+			this.category = category;
+			this.timestamp = timestamp;
+		}
+
+		@HRowKey
+		public String getId() { return this.id; }
+		public void setId(String id) { this.id = id; }
+
+		@HProperty(family="props", name="category", alias="c",
+				   indexes = { @HIndex(date_col="props:timestamp", date_invert=true, extra_cols={"props:timestamp"}) } )
+		public String getCategory() { return this.category; }
+		public void setCategory(String category) { this.category = category; }
+
+		@HProperty(family="props", name="timestamp", alias="t")
+		public long getTimestamp() { return this.timestamp; }
+		public void setTimestamp(long ts) { this.timestamp = ts; }
+
+		@HProperty(family="props", name="labels", alias="l", type="string")
+		public List<String> getLabels() { return this.labels; }
+		public void setLabels(List<String> labels) { this.labels = labels; }
+
+		public String toString() {
+			return String.format("[%s: id=%s; category=%s; timestamp=%d; labels=%s]",
+					this.getClass().getSimpleName(), this.id, this.category, this.timestamp, this.labels);
+		}
+	}
+
+	/**
+	 * Value object stored in a single column by {@link EmbeddedEntity}
+	 */
+	public static class Address {
+		String street;
+		String city;
+		int zip;
+		Location location;
+
+		public Address() {}
+
+		public Address(String street, String city, int zip) {
+			this.street = street;
+			this.city = city;
+			this.zip = zip;
+		}
+
+		public String getStreet() { return this.street; }
+		public void setStreet(String street) { this.street = street; }
+
+		public String getCity() { return this.city; }
+		public void setCity(String city) { this.city = city; }
+
+		public int getZip() { return this.zip; }
+		public void setZip(int zip) { this.zip = zip; }
+
+		public Location getLocation() { return this.location; }
+		public void setLocation(Location location) { this.location = location; }
+	}
+
+	/**
+	 * Nested value object within {@link Address}
+	 */
+	public static class Location {
+		double latitude;
+		double longitude;
+
+		public Location() {}
+
+		public Location(double latitude, double longitude) {
+			this.latitude = latitude;
+			this.longitude = longitude;
+		}
+
+		public double getLatitude() { return this.latitude; }
+		public void setLatitude(double latitude) { this.latitude = latitude; }
+
+		public double getLongitude() { return this.longitude; }
+		public void setLongitude(double longitude) { this.longitude = longitude; }
+	}
+
+	/**
+	 * Entity with embedded value objects
+	 */
+	@HEntity(name="test_embedded")
+	public static class EmbeddedEntity {
+		String id;
+		Address home;
+		Address work;
+
+		public EmbeddedEntity() {}
+
+		public EmbeddedEntity(String id, Address home, Address work) {
+			this.id = id;
+			this.home = home;
+			this.work = work;
+		}
+
+		@HRowKey
+		public String getId() { return this.id; }
+		public void setId(String id) { this.id = id; }
+
+		@HProperty(family="props", name="home")
+		@HEmbedded
+		public Address getHome() { return this.home; }
+		public void setHome(Address home) { this.home = home; }
+
+		@HProperty(family="props", name="work")
+		@HEmbedded(lazy=false)
+		public Address getWork() { return this.work; }
+		public void setWork(Address work) { this.work = work; }
+
+		public String toString() {
+			return String.format("[%s: id=%s]", this.getClass().getSimpleName(), this.id);
+		}
+	}
+
+	/**
+	 * Entity read lazily, decoding each property on first access
+	 */
+	@HEntity(name="test_lazy", lazy=true)
+	public static class LazyLoadedEntity {
+		String id;
+		String name;
+		int count;
+		List<String> tags = new ArrayList<String>();
+
+		public LazyLoadedEntity() {}
+
+		public LazyLoadedEntity(String id, String name, int count, List<String> tags) {
+			this.id = id;
+			this.name = name;
+			this.count = count;
+			this.tags = tags;
+		}
+
+		@HRowKey
+		public String getId() { return this.id; }
+		public void setId(String id) { this.id = id; }
+
+		@HProperty(family="props", name="name")
+		public String getName() { return this.name; }
+		public void setName(String name) { this.name = name; }
+
+		@HProperty(family="props", name="count")
+		public int getCount() { return this.count; }
+		public void setCount(int count) { this.count = count; }
+
+		@HProperty(family="props", name="tags", type="string")
+		public List<String> getTags() { return this.tags; }
+		public void setTags(List<String> tags) { this.tags = tags; }
+
+		/** Reads fields directly, for checking all properties are loaded */
+		public String describe() {
+			return String.format("%s/%d/%s", this.name, this.count, this.tags);
+		}
+
+		public String toString() {
+			return String.format("[%s: id=%s]", this.getClass().getSimpleName(), this.id);
+		}
+	}
+	/**
+	 * Entity with lazily loaded properties, left out of the initial read
+	 */
+	@HEntity(name="test_lazy_fields", lazyFamilies={"extended"})
+	public static class LazyFieldsEntity {
+		String id;
+		String name;
+		String summary;
+		Map<String,String> extendedMap = new HashMap<String,String>();
+
+		public LazyFieldsEntity() {}
+
+		public LazyFieldsEntity(String id, String name, String summary) {
+			this.id = id;
+			this.name = name;
+			this.summary = summary;
+		}
+
+		@HRowKey
+		public String getId() { return this.id; }
+		public void setId(String id) { this.id = id; }
+
+		@HProperty(family="props", name="name", 
+				   indexes = { @HIndex() } )
+		public String getName() { return this.name; }
+		public void setName(String name) { this.name = name; }
+
+		@HProperty(family="props", name="summary", lazy=true)
+		public String getSummary() { return this.summary; }
+		public void setSummary(String summary) { this.summary = summary; }
+
+		@HProperty(family="extended", name="*", type="string")
+		public Map<String,String> getExtendedProps() { return this.extendedMap; }
+		public void setExtendedProps(Map<String,String> props) { this.extendedMap = props; }
+
+		public String toString() {
+			return String.format("[%s: id=%s]", this.getClass().getSimpleName(), this.id);
+		}
+	}
+
+	/**
+	 * Invalid composite index with a custom key factory
+	 */
+	@HEntity(name="test_bad_composite")
+	public static class BadCompositeEntity {
+		String id;
+		String groupId;
+		String itemType;
+
+		public static class ReversedKeyFactory extends EntityIndexer.DefaultKeyFactory {
+		}
+
+		@HRowKey
+		public String getId() { return this.id; }
+		public void setId(String id) { this.id = id; }
+
+		@HProperty(family="props", name="groupid",
+				   indexes = { @HIndex(key_cols={"props:itemtype"}, key_factory=ReversedKeyFactory.class) } )
+		public String getGroupId() { return this.groupId; }
+		public void setGroupId(String groupId) { this.groupId = groupId; }
+
+		@HProperty(family="props", name="itemtype")
+		public String getItemType() { return this.itemType; }
+		public void setItemType(String itemType) { this.itemType = itemType; }
+	}
+
+	/**
+	 * Value object containing itself through {@link CyclicChild}
+	 */
+	public static class CyclicParent {
+		CyclicChild child;
+
+		public CyclicChild getChild() { return this.child; }
+		public void setChild(CyclicChild child) { this.child = child; }
+	}
+
+	public static class CyclicChild {
+		CyclicParent parent;
+
+		public CyclicParent getParent() { return this.parent; }
+		public void setParent(CyclicParent parent) { this.parent = parent; }
+	}
+
+	/**
+	 * Invalid embedded value object containing itself indirectly
+	 */
+	@HEntity(name="test_bad_embedded")
+	public static class CyclicEmbeddedEntity {
+		String id;
+		CyclicParent parent;
+
+		@HRowKey
+		public String getId() { return this.id; }
+		public void setId(String id) { this.id = id; }
+
+		@HProperty(family="props", name="parent")
+		@HEmbedded
+		public CyclicParent getParent() { return this.parent; }
+		public void setParent(CyclicParent parent) { this.parent = parent; }
+	}
+
+	/**
+	 * Value object with a property of a type that can't be stored
+	 */
+	public static class Price {
+		java.math.BigDecimal amount;
+
+		public java.math.BigDecimal getAmount() { return this.amount; }
+		public void setAmount(java.math.BigDecimal amount) { this.amount = amount; }
+	}
+
+	/**
+	 * Invalid embedded value object with an unsupported property type
+	 */
+	@HEntity(name="test_bad_embedded")
+	public static class UnsupportedEmbeddedEntity {
+		String id;
+		Price price;
+
+		@HRowKey
+		public String getId() { return this.id; }
+		public void setId(String id) { this.id = id; }
+
+		@HProperty(family="props", name="price")
+		@HEmbedded
+		public Price getPrice() { return this.price; }
+		public void setPrice(Price price) { this.price = price; }
+	}
+
+	/**
+	 * Entity with a map property whose columns share a prefix with a list
+	 * property
+	 */
+	@HEntity(name="test_shared_map")
+	public static class SharedMapEntity {
+		String id;
+		List<String> items = new ArrayList<String>();
+		Map<String,String> itemAttributes = new HashMap<String,String>();
+
+		@HRowKey
+		public String getId() { return this.id; }
+		public void setId(String id) { this.id = id; }
+
+		@HProperty(family="props", name="items", type="string")
+		public List<String> getItems() { return this.items; }
+		public void setItems(List<String> items) { this.items = items; }
+
+		@HProperty(family="props", name="items", type="string")
+		public Map<String,String> getItemAttributes() { return this.itemAttributes; }
+		public void setItemAttributes(Map<String,String> attributes) { this.itemAttributes = attributes; }
+	}
 }
@@ -5,12 +5,14 @@
 from jyunit.util import *
 
 import java.lang
+import java.util
 from java.util import ArrayList, HashSet, HashMap
-from org.apache.hadoop.hbase.client import HTablePool
-from meetup.beeno import EntityService, HBaseException
+from org.apache.hadoop.hbase.client import HTablePool, Get, Delete
+from meetup.beeno import EntityService, HBaseException, Criteria, LazyEntity
 from meetup.beeno import TestEntities
 from meetup.beeno.mapping import EntityMetadata, MappingException
-from meetup.beeno.util import HUtil
+from meetup.beeno.util import HUtil, PBUtil
+from org.apache.hadoop.hbase.util import Bytes
 from dbtest.hbase import HBaseContext
 
 hc = HBaseContext()
@@ -26,6 +28,14 @@ def setup():
         admin.create("test_simple", {"props:": {}})
     if not admin.exists("test_complex"):
         admin.create("test_complex", {"props:": {db.hbase.VERSIONS: 10}, "extended:": {db.hbase.VERSIONS: 10}})
+    if not admin.exists("test_embedded"):
+        admin.create("test_embedded", {"props:": {}})
+    if not admin.exists("test_lazy"):
+        admin.create("test_lazy", {"props:": {}})
+    if not admin.exists("test_lazy_fields"):
+        admin.create("test_lazy_fields", {"props:": {}, "extended:": {}})
+    if not admin.exists("test_lazy_fields-by_name"):
+        admin.create("test_lazy_fields-by_name", {"props:": {}, "__idx__:": {}})
 
 def teardown():
     try:
@@ -40,6 +50,19 @@ def teardown():
         if admin.exists("test_complex"):
             admin.disable("test_complex")
             admin.drop("test_complex")
+
+        if admin.exists("test_embedded"):
+            admin.disable("test_embedded")
+            admin.drop("test_embedded")
+
+        if admin.exists("test_lazy"):
+            admin.disable("test_lazy")
+            admin.drop("test_lazy")
+
+        for t in ("test_lazy_fields", "test_lazy_fields-by_name"):
+            if admin.exists(t):
+                admin.disable(t)
+                admin.drop(t)
     finally:
         hc.tearDown()
         # hack to give server time to shutdown
@@ -114,6 +137,225 @@ def save_and_get_complex():
 	assertEquals(entity2.getExtendedProps().get("prop2"), "two")
 
 
+def read_map_values():
+	'''Test reading part of a map property'''
+	entity = TestEntities.ComplexEntity("wide1")
+	for i in range(10):
+		entity.getExtendedProps().put("key%02d" % i, "val%d" % i)
+	entity.getExtendedProps().put("other", "x")
+	service = EntityService(TestEntities.ComplexEntity)
+	service.save(entity)
+
+	# selected keys only
+	vals = service.getMapValues("wide1", "extendedProps", ["key03", "key07", "missing"])
+	assertEquals( dict(vals), {"key03": "val3", "key07": "val7"} )
+
+	# keys by prefix, in key order
+	vals = service.getMapValuesByPrefix("wide1", "extendedProps", "key0")
+	assertEquals( list(vals.keySet()), ["key%02d" % i for i in range(10)] )
+	assertEquals( dict(service.getMapValuesByPrefix("wide1", "extendedProps", "oth")), {"other": "x"} )
+
+	# paging through all keys
+	keys = []
+	last = None
+	while 1:
+		page = service.getMapPage("wide1", "extendedProps", last, 4)
+		if page.isEmpty():
+			break
+		assertTrue( page.size() <= 4 )
+		keys.extend(page.keySet())
+		last = keys[-1]
+	assertEquals( keys, ["key%02d" % i for i in range(10)] + ["other"] )
+
+	# paging within a prefix
+	page = service.getMapPage("wide1", "extendedProps", "key", "key08", 4)
+	assertEquals( list(page.keySet()), ["key09"] )
+
+	assertEquals( service.getMapValues("nosuchrow", "extendedProps", ["key01"]).size(), 0 )
+
+	# other properties' columns would count toward the limit
+	shared = EntityService(TestEntities.SharedMapEntity)
+	try:
+		shared.getMapPage("shared1", "itemAttributes", None, 4)
+		fail("getMapPage should reject a limit for a map sharing its family")
+	except java.lang.IllegalArgumentException, iae:
+		assertMatches( iae.getMessage(), "Map property 'itemAttributes' shares columns" )
+
+
+def append_values():
+	'''Test appending to list properties'''
+	entity = TestEntities.ComplexEntity("append1", java.util.ArrayList(["s0", "s1"]), HashSet())
+	service = EntityService(TestEntities.ComplexEntity)
+	service.save(entity)
+
+	# elements stay in order past 10 elements
+	for i in range(2, 12):
+		service.append("append1", "stringList", [java.lang.String("s%d" % i)])
+	assertEquals( list(service.get("append1").getStringList()), ["s%d" % i for i in range(12)] )
+
+	# only the new cells are written
+	table = HUtil.getTable("test_complex")
+	try:
+		get = Get( Bytes.toBytes("append1") )
+		get.addFamily( Bytes.toBytes("props") )
+		cnt = table.get(get).size()
+		service.append("append1", "stringList", [java.lang.String("s12"), java.lang.String("s13")])
+		assertEquals( table.get(get).size(), cnt + 2 )
+
+		# lists stored without a counter are counted on the first append
+		op = Delete( Bytes.toBytes("append1") )
+		op.deleteColumns( Bytes.toBytes("props"), Bytes.toBytes("strings_count") )
+		table.delete(op)
+	finally:
+		HUtil.releaseTable(table)
+	service.append("append1", "stringList", [java.lang.String("s14")])
+	assertEquals( list(service.get("append1").getStringList()), ["s%d" % i for i in range(15)] )
+
+	# saving restarts appends after the saved elements
+	saved = service.get("append1")
+	saved.setStringList( java.util.ArrayList(["a", "b"]) )
+	service.save(saved)
+	service.append("append1", "stringList", [java.lang.String("c")])
+	assertEquals( list(service.get("append1").getStringList()), ["a", "b", "c"] )
+
+
+def update_list_values():
+	'''Test replacing unindexed list properties with updateProperties()'''
+	entity = TestEntities.ComplexEntity("update1", java.util.ArrayList(["s%d" % i for i in range(12)]), HashSet())
+	service = EntityService(TestEntities.ComplexEntity)
+	service.save(entity)
+
+	# the later stored elements aren't read back
+	vals = HashMap()
+	vals.put( "stringList", java.util.ArrayList(["x", "y"]) )
+	service.updateProperties( "update1", vals )
+	assertEquals( list(service.get("update1").getStringList()), ["x", "y"] )
+
+	# and appends follow the updated elements
+	service.append("update1", "stringList", [java.lang.String("z")])
+	assertEquals( list(service.get("update1").getStringList()), ["x", "y", "z"] )
+
+
+def save_and_get_embedded():
+	'''Test saving entities with embedded value objects'''
+	home = TestEntities.Address("1 Main St", "Springfield", 12345)
+	home.setLocation( TestEntities.Location(40.5, -73.25) )
+	entity1 = TestEntities.EmbeddedEntity("embed1", home, TestEntities.Address("9 Side St", "Shelbyville", 54321))
+	entity2 = TestEntities.EmbeddedEntity("embed2", None, TestEntities.Address("9 Side St", "Shelbyville", 54321))
+
+	service = EntityService(TestEntities.EmbeddedEntity)
+	service.saveAll([entity1, entity2])
+
+	saved = service.get("embed1")
+	# lazily decoded on first access
+	assertTrue( saved.getHome().getClass() != TestEntities.Address )
+	assertEquals( saved.getHome().getStreet(), "1 Main St" )
+	assertEquals( saved.getHome().getCity(), "Springfield" )
+	assertEquals( saved.getHome().getZip(), 12345 )
+	assertEquals( saved.getHome().getLocation().getLatitude(), 40.5, None, 0.0001 )
+	assertEquals( saved.getHome().getLocation().getLongitude(), -73.25, None, 0.0001 )
+	assertEquals( saved.getWork().getClass(), TestEntities.Address )
+	assertEquals( saved.getWork().getCity(), "Shelbyville" )
+	assertEquals( saved.getWork().getLocation(), None )
+	assertEquals( service.get("embed2").getHome(), None )
+
+	# stored as a single cell each
+	table = HUtil.getTable("test_embedded")
+	try:
+		row = table.get( Get(Bytes.toBytes("embed1")) )
+		assertEquals( row.size(), 2 )
+	finally:
+		HUtil.releaseTable(table)
+
+	# saving a lazy value writes it back unchanged
+	service.save(saved)
+	assertEquals( service.get("embed1").getHome().getZip(), 12345 )
+
+	# embedded values can be matched as a whole
+	q = service.query().where( Criteria.eq( "work", TestEntities.Address("9 Side St", "Shelbyville", 54321) ) )
+	assertEquals( sorted([e.getId() for e in q.execute()]), ["embed1", "embed2"] )
+
+
+def save_and_get_lazy():
+	'''Test reading entities which decode properties on first access'''
+	tags = ArrayList()
+	tags.add("red")
+	tags.add("blue")
+	service = EntityService(TestEntities.LazyLoadedEntity)
+	service.save( TestEntities.LazyLoadedEntity("lazy1", "first", 3, tags) )
+
+	saved = service.get("lazy1")
+	assertTrue( isinstance(saved, LazyEntity) )
+	assertEquals( saved.getId(), "lazy1" )
+	assertEquals( saved.getName(), "first" )
+	assertEquals( saved.getCount(), 3 )
+	assertEquals( list(saved.getTags()), ["red", "blue"] )
+
+	# other methods see all stored values
+	assertEquals( service.get("lazy1").describe(), "first/3/[red, blue]" )
+
+	# values set before first access replace the stored value
+	saved = service.get("lazy1")
+	saved.setName("second")
+	assertEquals( saved.getName(), "second" )
+	assertEquals( saved.getCount(), 3 )
+	service.save(saved)
+
+	saved = service.get("lazy1")
+	assertEquals( saved.getName(), "second" )
+	assertEquals( list(saved.getTags()), ["red", "blue"] )
+
+	# query results are lazy too
+	results = service.query().execute()
+	assertEquals( len(results), 1 )
+	assertTrue( isinstance(results[0], LazyEntity) )
+	assertEquals( results[0].getCount(), 3 )
+
+
+def save_and_get_lazy_fields():
+	'''Test loading lazy properties on first access'''
+	service = EntityService(TestEntities.LazyFieldsEntity)
+	for i in range(3):
+		e = TestEntities.LazyFieldsEntity("lf%d" % i, "name%d" % i, "summary %d" % i)
+		e.getExtendedProps().put("color", "red%d" % i)
+		service.save(e)
+
+	# lazy values are read on first access, so later changes are seen
+	saved = service.get("lf0")
+	assertTrue( isinstance(saved, LazyEntity) )
+	assertEquals( saved.getName(), "name0" )
+	service.deleteMapProperty("lf0", "extendedProps", "color")
+	assertEquals( saved.getSummary(), "summary 0" )
+	assertEquals( saved.getExtendedProps().size(), 0 )
+
+	# unloaded values are left unchanged by saves
+	saved = service.get("lf1")
+	saved.setName("renamed")
+	service.save(saved)
+	saved = service.get("lf1")
+	assertEquals( saved.getName(), "renamed" )
+	assertEquals( saved.getSummary(), "summary 1" )
+	assertEquals( saved.getExtendedProps().get("color"), "red1" )
+
+	# batch loading a fetch group for query results
+	results = service.query().using( Criteria.eq("name", java.lang.String("name2")) ).execute()
+	assertEquals( len(results), 1 )
+	service.loadLazy(results, ["extended"])
+	service.deleteMapProperty("lf2", "extendedProps", "color")
+	service.deleteProperty("lf2", "summary")
+	assertEquals( results[0].getExtendedProps().get("color"), "red2" )
+	assertEquals( results[0].getSummary(), None )
+
+	# Object methods don't load lazy values
+	saved = service.get("lf1")
+	assertTrue( str(saved).endswith("id=lf1]") )
+	hash(saved)
+	assertTrue( saved.equals(saved) )
+	service.deleteProperty("lf1", "summary")
+	assertEquals( saved.getSummary(), None )
+	assertEquals( saved.getName(), "renamed" )
+
+
 def save_multiple():
 	'''Test saving multiple entities as a batch'''
 	entities = [ TestEntities.SimpleEntity("e1", "string1", 1, 1.1, 1.1, 1),
@@ -152,10 +394,36 @@ def save_timeout():
 		fail("Save failed with unexpected exception")
 
 
+def decode_values():
+	'''Test decoding stored values without building messages'''
+	now = java.util.Date()
+	strings = ArrayList()
+	strings.add("one")
+	strings.add("two")
+	for val in [java.lang.String("words"), java.lang.Long(-12345678901), java.lang.Double(3.25),
+				java.lang.Boolean(1), now, strings, java.lang.Thread.State.RUNNABLE]:
+		assertEquals( PBUtil.toValue(PBUtil.toBytes(val)), val )
+
+	# ints and floats widen, as the stored message does
+	assertEquals( PBUtil.toValue(PBUtil.toBytes(java.lang.Integer(7))), java.lang.Long(7) )
+	assertEquals( PBUtil.toValue(PBUtil.toBytes(java.lang.Float(0.5))), java.lang.Double(0.5) )
+	assertEquals( list(PBUtil.toValue(PBUtil.toBytes(Bytes.toBytes("raw")))), list(Bytes.toBytes("raw")) )
+
+	# unreadable values decode as null
+	assertEquals( PBUtil.toValue(Bytes.toBytes("garbage")), None )
+
+
 def run_test():
 	save_and_get()
 	save_multiple()
 	save_and_get_complex()
+	read_map_values()
+	append_values()
+	update_list_values()
+	save_and_get_embedded()
+	save_and_get_lazy()
+	save_and_get_lazy_fields()
+	decode_values()
 	#save_timeout()
 
 
@@ -81,12 +81,39 @@ def test_indexes():
 	idxmapping = idxinfo.getFirstPropertyIndex("stringProperty")
 	assertNotNull(idxmapping)
 	assertEquals(idxmapping.getTableName(), "test_indexed-by_stringcol")
+
+	# composite keys can't use a custom key factory
+	try:
+		badinfo = metadata.getInfo(TestEntities.BadCompositeEntity)
+		fail("EntityMetadata should have failed parsing BadCompositeEntity due to composite key_factory")
+	except MappingException, me:
+		assertMatches(me.getMessage(), "Invalid index .* key_factory")
+
+def test_embedded():
+	metadata = EntityMetadata.getInstance()
+	info = metadata.getInfo(TestEntities.EmbeddedEntity)
+	assertNotNull(info.getFieldProperty("props:home"))
+
+	# value objects can't contain themselves through other value objects
+	try:
+		badinfo = metadata.getInfo(TestEntities.CyclicEmbeddedEntity)
+		fail("EntityMetadata should have failed parsing CyclicEmbeddedEntity due to a cycle")
+	except MappingException, me:
+		assertMatches(me.getMessage(), "Invalid embedded property 'parent': .*cannot contain itself")
+
+	# properties must have a stored form
+	try:
+		badinfo = metadata.getInfo(TestEntities.UnsupportedEmbeddedEntity)
+		fail("EntityMetadata should have failed parsing UnsupportedEmbeddedEntity due to a BigDecimal property")
+	except MappingException, me:
+		assertMatches(me.getMessage(), "Invalid embedded property 'price': .*unsupported type java.math.BigDecimal")
 	
 		
 def run_test():
 	test_parsing()
 	test_rowkey()
 	test_indexes()
+	test_embedded()
 	
 	
 if __name__ == "__main__":
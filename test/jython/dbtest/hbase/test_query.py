@@ -8,8 +8,10 @@ import java.lang
 
 import db.hbase
 from org.apache.hadoop.hbase.client import HTablePool
-from meetup.beeno import EntityService, Query, Criteria, HBaseException
-from meetup.beeno.util import HUtil
+from meetup.beeno import EntityService, Query, QueryCursor, Criteria, HBaseException, QueryException, Aggregate, IndexRebuilder, IndexScrubber, StatsCollector, StatsStore
+from meetup.beeno.util import HUtil, PBUtil
+from org.apache.hadoop.hbase.client import Put, Delete, Scan, Get
+from org.apache.hadoop.hbase.util import Bytes
 from meetup.beeno import TestEntities
 from meetup.beeno.mapping import EntityMetadata
 from dbtest.hbase import HBaseContext
@@ -29,6 +31,32 @@ def setup():
         admin.create("test_indexed-by_intcol", {"props:": {}, "__idx__:": {}})
     if not admin.exists("test_indexed-by_stringcol"):
         admin.create("test_indexed-by_stringcol", {"props:": {}, "__idx__:": {}})
+    if not admin.exists("test_tagged"):
+        admin.create("test_tagged", {"props:": {}})
+    if not admin.exists("test_tagged-by_tags"):
+        admin.create("test_tagged-by_tags", {"props:": {}, "__idx__:": {}})
+    if not admin.exists("test_grouped"):
+        admin.create("test_grouped", {"props:": {}})
+    if not admin.exists("test_grouped-by_groupid-itemtype"):
+        admin.create("test_grouped-by_groupid-itemtype", {"props:": {}, "__idx__:": {}})
+    if not admin.exists("beeno_stats"):
+        admin.create("beeno_stats", {"stats:": {}})
+    if not admin.exists("test_salted"):
+        admin.create("test_salted", {"props:": {}})
+    if not admin.exists("test_salted-by_kind"):
+        admin.create("test_salted-by_kind", {"props:": {}, "__idx__:": {}})
+    if not admin.exists("test_compact"):
+        admin.create("test_compact", {"props:": {}})
+    if not admin.exists("test_compact-by_name"):
+        admin.create("test_compact-by_name", {"props:": {}, "__idx__:": {}})
+    if not admin.exists("test_packed"):
+        admin.create("test_packed", {"props:": {}})
+    if not admin.exists("test_packed-by_kind"):
+        admin.create("test_packed-by_kind", {"props:": {}, "__idx__:": {}})
+    if not admin.exists("test_aliased"):
+        admin.create("test_aliased", {"props:": {}})
+    if not admin.exists("test_aliased-by_category"):
+        admin.create("test_aliased-by_category", {"props:": {}, "__idx__:": {}})
 
     srv = EntityService(TestEntities.IndexedEntity)
     now = java.lang.System.currentTimeMillis()
@@ -52,6 +80,32 @@ def teardown():
             admin.drop("test_indexed-by_intcol")
         if admin.exists("test_indexed-by_stringcol"):
             admin.drop("test_indexed-by_stringcol")
+        if admin.exists("test_tagged"):
+            admin.drop("test_tagged")
+        if admin.exists("test_tagged-by_tags"):
+            admin.drop("test_tagged-by_tags")
+        if admin.exists("test_grouped"):
+            admin.drop("test_grouped")
+        if admin.exists("test_grouped-by_groupid-itemtype"):
+            admin.drop("test_grouped-by_groupid-itemtype")
+        if admin.exists("beeno_stats"):
+            admin.drop("beeno_stats")
+        if admin.exists("test_salted"):
+            admin.drop("test_salted")
+        if admin.exists("test_salted-by_kind"):
+            admin.drop("test_salted-by_kind")
+        if admin.exists("test_compact"):
+            admin.drop("test_compact")
+        if admin.exists("test_compact-by_name"):
+            admin.drop("test_compact-by_name")
+        if admin.exists("test_packed"):
+            admin.drop("test_packed")
+        if admin.exists("test_packed-by_kind"):
+            admin.drop("test_packed-by_kind")
+        if admin.exists("test_aliased"):
+            admin.drop("test_aliased")
+        if admin.exists("test_aliased-by_category"):
+            admin.drop("test_aliased-by_category")
     finally:
         hc.tearDown()
         # hack to give server time to shutdown
@@ -104,9 +158,686 @@ def query_by_int():
     assertEquals( matches[0].getIntKey(), 1 )
 
 
+def query_with_cursor():
+    srv = EntityService(TestEntities.IndexedEntity)
+    # page through the indexed results two at a time
+    q = srv.query()
+    q.using( Criteria.eq( "stringProperty", java.lang.String('duck') ) ).limit(2)
+    matches = q.execute()
+    assertEquals( len(matches), 2 )
+    assertEquals( matches[0].getId(), 'e1' )
+    assertEquals( matches[1].getId(), 'e2' )
+    cursor = q.getCursor()
+    assertNotNull( cursor, "Full page should return a cursor" )
+
+    q = srv.query()
+    q.using( Criteria.eq( "stringProperty", java.lang.String('duck') ) ).limit(2)
+    q.resume( cursor.toString() )
+    matches = q.execute()
+    assertEquals( len(matches), 1 )
+    assertEquals( matches[0].getId(), 'e3' )
+    assertNull( q.getCursor(), "Exhausted scan should not return a cursor" )
+
+    # cursors can't be used across different plans
+    q = srv.query()
+    q.using( Criteria.eq( "intKey", java.lang.Integer(2) ) ).resume( cursor )
+    try:
+        q.execute()
+        fail("Expected QueryException for mismatched cursor plan")
+    except QueryException, qe:
+        pass
+
+
+def query_count():
+    srv = EntityService(TestEntities.IndexedEntity)
+    q = srv.query()
+    q.using( Criteria.eq( "stringProperty", java.lang.String('duck') ) )
+    assertEquals( q.count(), 3 )
+
+    q = srv.query()
+    q.using( Criteria.eq( "intKey", java.lang.Integer(1) ) )
+    assertEquals( q.count(), 1 )
+
+    # non-indexed count of all rows
+    assertEquals( srv.query().count(), 4 )
+    assertEquals( srv.query().where( Criteria.eq( "stringProperty", java.lang.String('goose') ) ).count(), 1 )
+
+    assertTrue( srv.exists("e1") )
+    assertFalse( srv.exists("nosuchrow") )
+
+def query_aggregate():
+    srv = EntityService(TestEntities.IndexedEntity)
+    cnt = Aggregate.count()
+    total = Aggregate.sum("intKey")
+    res = srv.query().aggregate( [cnt, total, Aggregate.max("intKey")] )
+    assertEquals( res.get(cnt), 4.0 )
+    assertEquals( res.get(total), 7.0 )
+    assertEquals( res.get(2), 2.0 )
+
+    # indexed aggregate
+    q = srv.query().using( Criteria.eq( "stringProperty", java.lang.String('duck') ) )
+    res = q.aggregate( [cnt, Aggregate.min("intKey")] )
+    assertEquals( res.get(0), 3.0 )
+    assertEquals( res.get(1), 1.0 )
+
+    # entity rows are read for only the aggregated columns, plus the index
+    # key columns needed to verify each index row
+    assertEquals( q.aggregate( [cnt] ).get(0), 3.0 )
+    res = q.readRepair().aggregate( [cnt, total] )
+    assertEquals( res.get(cnt), 3.0 )
+    assertEquals( res.get(total), 5.0 )
+    groups = q.aggregate( "stringProperty", [cnt] )
+    assertEquals( groups.size(), 1 )
+    assertEquals( groups.get("duck").get(cnt), 3.0 )
+
+    groups = srv.query().aggregate( "stringProperty", [cnt, total] )
+    assertEquals( groups.size(), 2 )
+    assertEquals( groups.get("duck").get(total), 5.0 )
+    assertEquals( groups.get("goose").get(cnt), 1.0 )
+
+def index_cleanup():
+    srv = EntityService(TestEntities.IndexedEntity)
+    # move e3 from "duck" to "goose"
+    e3 = srv.get("e3")
+    e3.setStringProperty("goose")
+    srv.save(e3)
+
+    q = srv.query().using( Criteria.eq( "stringProperty", java.lang.String('duck') ) )
+    assertEquals( q.count(), 2 )
+    q = srv.query().using( Criteria.eq( "stringProperty", java.lang.String('goose') ) )
+    assertEquals( q.count(), 2 )
+
+    # deleting removes both index entries
+    srv.delete("e4")
+    q = srv.query().using( Criteria.eq( "stringProperty", java.lang.String('goose') ) )
+    assertEquals( q.count(), 1 )
+    q = srv.query().using( Criteria.eq( "intKey", java.lang.Integer(2) ) )
+    assertEquals( q.count(), 2 )
+
+def read_repair():
+    srv = EntityService(TestEntities.IndexedEntity)
+    now = java.lang.System.currentTimeMillis()
+    srv.save( TestEntities.IndexedEntity("e5", "swan", 5, now) )
+
+    # change the base row directly, leaving a stale index row
+    table = HUtil.getTable("test_indexed")
+    try:
+        up = Put(Bytes.toBytes("e5"))
+        up.add(Bytes.toBytes("props"), Bytes.toBytes("stringcol"), PBUtil.toBytes(java.lang.String("heron")))
+        table.put(up)
+    finally:
+        HUtil.releaseTable(table)
+
+    q = srv.query().using( Criteria.eq( "stringProperty", java.lang.String('swan') ) )
+    results = q.execute()
+    assertEquals( len(results), 1 )
+    assertEquals( results[0].getStringProperty(), "heron" )
+
+    q = srv.query().using( Criteria.eq( "stringProperty", java.lang.String('swan') ) ).readRepair()
+    assertEquals( len(q.execute()), 0 )
+
+    # stale row is removed in the background
+    java.lang.Thread.sleep(3000)
+    q = srv.query().using( Criteria.eq( "stringProperty", java.lang.String('swan') ) )
+    assertEquals( q.count(), 0 )
+
+def rebuild_index():
+    # clear out the string index table
+    table = HUtil.getTable("test_indexed-by_stringcol")
+    try:
+        scanner = table.getScanner(Scan())
+        for r in scanner:
+            table.delete(Delete(r.getRow()))
+        scanner.close()
+    finally:
+        HUtil.releaseTable(table)
+
+    srv = EntityService(TestEntities.IndexedEntity)
+    q = srv.query().using( Criteria.eq( "stringProperty", java.lang.String('duck') ) )
+    assertEquals( q.count(), 0 )
+
+    ckpt = java.io.File.createTempFile("test_indexed", ".ckpt")
+    ckpt.delete()
+    try:
+        rebuilder = IndexRebuilder(TestEntities.IndexedEntity)
+        rebuilder.setCheckpointFile(ckpt)
+        rebuilder.setBatchSize(2)
+        assertEquals( rebuilder.rebuild(["test_indexed-by_stringcol"]), 4 )
+
+        q = srv.query().using( Criteria.eq( "stringProperty", java.lang.String('duck') ) )
+        assertEquals( q.count(), 2 )
+        q = srv.query().using( Criteria.eq( "stringProperty", java.lang.String('heron') ) )
+        assertEquals( q.count(), 1 )
+
+        # checkpoints are cleared once the rebuild completes
+        assertFalse( ckpt.exists() )
+        assertEquals( rebuilder.rebuild(["test_indexed-by_stringcol"]), 4 )
+
+        # checkpoints for another index don't skip regions
+        props = java.util.Properties()
+        props.setProperty( "test_indexed-by_intcol/end", "done" )
+        out = java.io.FileOutputStream(ckpt)
+        props.store(out, None)
+        out.close()
+        assertEquals( rebuilder.rebuild(["test_indexed-by_stringcol"]), 4 )
+        assertTrue( ckpt.exists() )
+    finally:
+        ckpt.delete()
+
+def scrub_index():
+    srv = EntityService(TestEntities.IndexedEntity)
+    scrubber = IndexScrubber(TestEntities.IndexedEntity)
+    reports = scrubber.scrub()
+    assertEquals( reports.size(), 2 )
+    for r in reports.values():
+        assertTrue( r.isConsistent() )
+
+    # change the base row directly, so the index row no longer matches
+    table = HUtil.getTable("test_indexed")
+    try:
+        up = Put(Bytes.toBytes("e1"))
+        up.add(Bytes.toBytes("props"), Bytes.toBytes("stringcol"), PBUtil.toBytes(java.lang.String("crow")))
+        table.put(up)
+    finally:
+        HUtil.releaseTable(table)
+
+    report = scrubber.scrub("test_indexed-by_stringcol")
+    assertFalse( report.isConsistent() )
+    assertEquals( report.getMismatched(), 1 )
+    assertEquals( report.getMissing(), 1 )
+    assertEquals( report.getDangling(), 0 )
+
+    scrubber.setRepair(True)
+    report = scrubber.scrub("test_indexed-by_stringcol")
+    assertEquals( report.getRepaired(), 2 )
+
+    scrubber.setRepair(False)
+    assertTrue( scrubber.scrub("test_indexed-by_stringcol").isConsistent() )
+    q = srv.query().using( Criteria.eq( "stringProperty", java.lang.String('crow') ) )
+    assertEquals( q.count(), 1 )
+
+def query_multi_value():
+    srv = EntityService(TestEntities.TaggedEntity)
+    srv.save( TestEntities.TaggedEntity("t1", java.util.ArrayList(["red", "green"])) )
+    srv.save( TestEntities.TaggedEntity("t2", java.util.ArrayList(["green", "blue", "green"])) )
+
+    q = srv.query().using( Criteria.eq( "tags", java.lang.String('green') ) )
+    results = q.execute()
+    assertEquals( len(results), 2 )
+    q = srv.query().using( Criteria.eq( "tags", java.lang.String('red') ) )
+    assertEquals( q.count(), 1 )
+
+    # rows matching several elements are returned and counted once, across pages
+    q = srv.query().using( Criteria.in( "tags", ["red", "green", "blue"] ) ).limit(2)
+    assertEquals( sorted([e.getId() for e in q.execute()]), ["t1", "t2"] )
+    cursor = QueryCursor.parse( q.getCursor().toString() )
+    q = srv.query().using( Criteria.in( "tags", ["red", "green", "blue"] ) ).limit(2).resume(cursor)
+    assertEquals( len(q.execute()), 0 )
+    q = srv.query().using( Criteria.in( "tags", ["red", "green", "blue"] ) )
+    assertEquals( q.count(), 2 )
+
+    # only the current element's index row returns the row, with or without read repair
+    srv.save( TestEntities.TaggedEntity("t4", java.util.ArrayList(["black", "white"])) )
+    table = HUtil.getTable("test_tagged")
+    try:
+        up = Put(Bytes.toBytes("t4"))
+        up.add(Bytes.toBytes("props"), Bytes.toBytes("tags_0"), PBUtil.toBytes(java.lang.String("gray")))
+        table.put(up)
+    finally:
+        HUtil.releaseTable(table)
+    q = srv.query().using( Criteria.in( "tags", ["black", "white"] ) )
+    assertEquals( [e.getId() for e in q.execute()], ["t4"] )
+    assertEquals( q.count(), 1 )
+    q = srv.query().using( Criteria.in( "tags", ["black", "white"] ) ).readRepair()
+    assertEquals( [e.getId() for e in q.execute()], ["t4"] )
+    srv.delete("t4")
+
+    # removed elements are dropped from the index
+    t1 = srv.get("t1")
+    t1.setTags( java.util.ArrayList(["green"]) )
+    srv.save(t1)
+    q = srv.query().using( Criteria.eq( "tags", java.lang.String('red') ) )
+    assertEquals( q.count(), 0 )
+    assertEquals( list(srv.get("t1").getTags()), ["green"] )
+
+    srv.delete("t2")
+    q = srv.query().using( Criteria.eq( "tags", java.lang.String('blue') ) )
+    assertEquals( q.count(), 0 )
+    q = srv.query().using( Criteria.eq( "tags", java.lang.String('green') ) )
+    assertEquals( q.count(), 1 )
+
+def append_multi_value():
+    srv = EntityService(TestEntities.TaggedEntity)
+    srv.save( TestEntities.TaggedEntity("t3", java.util.ArrayList(["red"])) )
+
+    # appended elements are indexed
+    srv.append( "t3", "tags", [java.lang.String("purple"), java.lang.String("orange")] )
+    assertEquals( list(srv.get("t3").getTags()), ["red", "purple", "orange"] )
+    q = srv.query().using( Criteria.eq( "tags", java.lang.String('purple') ) )
+    assertEquals( [e.getId() for e in q.execute()], ["t3"] )
+    q = srv.query().using( Criteria.eq( "tags", java.lang.String('red') ) )
+    assertTrue( "t3" in [e.getId() for e in q.execute()] )
+
+def update_properties():
+    srv = EntityService(TestEntities.IndexedEntity)
+    now = java.lang.System.currentTimeMillis()
+    srv.save( TestEntities.IndexedEntity("u1", "swan", java.lang.Integer(90), now) )
+
+    # only the updated index moves
+    vals = java.util.HashMap()
+    vals.put( "stringProperty", java.lang.String("pelican") )
+    srv.updateProperties( "u1", vals )
+    u1 = srv.get("u1")
+    assertEquals( u1.getStringProperty(), "pelican" )
+    assertEquals( u1.getIntKey(), 90 )
+    assertEquals( u1.getTimestamp(), now )
+    q = srv.query().using( Criteria.eq( "stringProperty", java.lang.String('swan') ) )
+    assertEquals( q.count(), 0 )
+    q = srv.query().using( Criteria.eq( "stringProperty", java.lang.String('pelican') ) )
+    assertEquals( [e.getId() for e in q.execute()], ["u1"] )
+
+    # batched form
+    vals = java.util.HashMap()
+    vals.put( "intKey", java.lang.Integer(91) )
+    updates = java.util.HashMap()
+    updates.put( "u1", vals )
+    srv.updateProperties( updates )
+    q = srv.query().using( Criteria.eq( "intKey", java.lang.Integer(90) ) )
+    assertEquals( q.count(), 0 )
+    q = srv.query().using( Criteria.eq( "intKey", java.lang.Integer(91) ) )
+    assertEquals( [e.getId() for e in q.execute()], ["u1"] )
+    q = srv.query().using( Criteria.eq( "stringProperty", java.lang.String('pelican') ) )
+    assertEquals( [e.getId() for e in q.execute()], ["u1"] )
+
+    # lists replace the stored elements
+    tsrv = EntityService(TestEntities.TaggedEntity)
+    vals = java.util.HashMap()
+    vals.put( "tags", java.util.ArrayList(["green"]) )
+    tsrv.updateProperties( "t3", vals )
+    assertEquals( list(tsrv.get("t3").getTags()), ["green"] )
+    q = tsrv.query().using( Criteria.eq( "tags", java.lang.String('purple') ) )
+    assertEquals( q.count(), 0 )
+    q = tsrv.query().using( Criteria.eq( "tags", java.lang.String('green') ) )
+    assertTrue( "t3" in [e.getId() for e in q.execute()] )
+
+def insert_new():
+    srv = EntityService(TestEntities.IndexedEntity)
+    # new rows are indexed without reading them first
+    srv.insertAll( [TestEntities.IndexedEntity("n1", "wren", java.lang.Integer(71), java.lang.System.currentTimeMillis()),
+                    TestEntities.IndexedEntity("n2", "wren", java.lang.Integer(72), java.lang.System.currentTimeMillis())] )
+    q = srv.query().using( Criteria.eq( "stringProperty", java.lang.String('wren') ) )
+    assertEquals( sorted([e.getId() for e in q.execute()]), ["n1", "n2"] )
+    q = srv.query().using( Criteria.eq( "intKey", java.lang.Integer(72) ) )
+    assertEquals( [e.getId() for e in q.execute()], ["n2"] )
+
+def query_composite():
+    srv = EntityService(TestEntities.GroupedEntity)
+    now = java.lang.System.currentTimeMillis()
+    srv.save( TestEntities.GroupedEntity("g1", "g", "comment", now - 100) )
+    srv.save( TestEntities.GroupedEntity("g2", "g", "photo", now - 80) )
+    srv.save( TestEntities.GroupedEntity("g3", "g", "comment", now - 60) )
+    srv.save( TestEntities.GroupedEntity("g4", "gg", "comment", now - 40) )
+
+    # full key prefix, newest first
+    q = srv.query().using( Criteria.eq( "groupId", java.lang.String('g') ) ) \
+                   .where( Criteria.eq( "itemType", java.lang.String('comment') ) )
+    results = q.execute()
+    assertEquals( [e.getId() for e in results], ["g3", "g1"] )
+    assertEquals( q.count(), 2 )
+
+    # leading column only
+    q = srv.query().using( Criteria.eq( "groupId", java.lang.String('g') ) )
+    assertEquals( q.count(), 3 )
+    q = srv.query().using( Criteria.eq( "groupId", java.lang.String('gg') ) )
+    assertEquals( len(q.execute()), 1 )
+
+    # changing a trailing key column moves the index row
+    g2 = srv.get("g2")
+    g2.setItemType("comment")
+    srv.save(g2)
+    q = srv.query().using( Criteria.eq( "groupId", java.lang.String('g') ) ) \
+                   .where( Criteria.eq( "itemType", java.lang.String('comment') ) )
+    assertEquals( q.count(), 3 )
+    q = srv.query().using( Criteria.eq( "groupId", java.lang.String('g') ) ) \
+                   .where( Criteria.eq( "itemType", java.lang.String('photo') ) )
+    assertEquals( q.count(), 0 )
+
+def query_salted():
+    srv = EntityService(TestEntities.SaltedEntity)
+    now = java.lang.System.currentTimeMillis()
+    for i in range(8):
+        srv.save( TestEntities.SaltedEntity("s%d" % i, "event", now - 100 + i) )
+    srv.save( TestEntities.SaltedEntity("s8", "other", now) )
+
+    # results from all buckets are merged newest first
+    q = srv.query().using( Criteria.eq( "kind", java.lang.String('event') ) )
+    results = q.execute()
+    assertEquals( [e.getId() for e in results], ["s%d" % i for i in range(7, -1, -1)] )
+    assertEquals( q.count(), 8 )
+
+    # cursors resume across all buckets
+    q = srv.query().using( Criteria.eq( "kind", java.lang.String('event') ) ).limit(3)
+    page = [e.getId() for e in q.execute()]
+    q2 = srv.query().using( Criteria.eq( "kind", java.lang.String('event') ) ).limit(10)
+    q2.resume( q.getCursor().toString() )
+    page.extend( [e.getId() for e in q2.execute()] )
+    assertEquals( page, ["s%d" % i for i in range(7, -1, -1)] )
+
+def query_in():
+    srv = EntityService(TestEntities.IndexedEntity)
+    # index scans for each value are merged newest first
+    q = srv.query().using( Criteria.in( "intKey", [java.lang.Integer(1), java.lang.Integer(2)] ) )
+    assertEquals( [e.getId() for e in q.execute()], ["e4", "e3", "e2", "e1"] )
+    assertEquals( q.count(), 4 )
+
+    q = srv.query().using( Criteria.in( "intKey", [java.lang.Integer(1), java.lang.Integer(2)] ) ).limit(2)
+    assertEquals( [e.getId() for e in q.execute()], ["e4", "e3"] )
+    cursor = q.getCursor()
+    q = srv.query().using( Criteria.in( "intKey", [java.lang.Integer(1), java.lang.Integer(2)] ) ).limit(2)
+    q.resume( cursor.toString() )
+    assertEquals( [e.getId() for e in q.execute()], ["e2", "e1"] )
+
+    q = srv.query().using( Criteria.in( "stringProperty", [java.lang.String('goose'), java.lang.String('swan')] ) )
+    assertEquals( [e.getId() for e in q.execute()], ["e4"] )
+
+def query_by_key():
+    srv = EntityService(TestEntities.IndexedEntity)
+    q = srv.query().where( Criteria.eq( "id", "e2" ) )
+    assertEquals( [e.getId() for e in q.execute()], ["e2"] )
+    plan = q.explain()
+    assertEquals( plan.getStrategy(), "ScanByKey" )
+    assertEquals( plan.getRanges().size(), 1 )
+
+    # keys are read in row order, skipping missing rows
+    q = srv.query().using( Criteria.in( "id", ["e4", "e1", "e9"] ) )
+    assertEquals( [e.getId() for e in q.execute()], ["e1", "e4"] )
+    assertEquals( q.count(), 2 )
+
+    # other conditions still apply
+    q = srv.query().where( Criteria.eq( "id", "e1" ) ) \
+                   .where( Criteria.eq( "stringProperty", java.lang.String('goose') ) )
+    assertEquals( len(q.execute()), 0 )
+
+    q = srv.query().where( Criteria.ge( "id", "e2" ) ).where( Criteria.lt( "id", "e4" ) )
+    assertEquals( [e.getId() for e in q.execute()], ["e2", "e3"] )
+    assertEquals( q.count(), 2 )
+    assertEquals( Bytes.toString(q.explain().getRanges()[0][0]), "e2" )
+
+    # key conditions are checked against index rows for index scans
+    q = srv.query().using( Criteria.eq( "stringProperty", java.lang.String('duck') ) ) \
+                   .where( Criteria.gt( "id", "e1" ) )
+    assertEquals( sorted([e.getId() for e in q.execute()]), ["e2", "e3"] )
+
+    # stored values don't sort like the property values, so ranges are only
+    # supported on the row key
+    for q in [srv.query().where( Criteria.gt( "intKey", java.lang.Integer(2) ) ),
+              srv.query().using( Criteria.lt( "stringProperty", java.lang.String('duck') ) )]:
+        try:
+            q.execute()
+            fail("Expected QueryException for range comparison on a property")
+        except QueryException, qe:
+            pass
+
+def query_compact():
+    srv = EntityService(TestEntities.CompactEntity)
+    c1 = TestEntities.CompactEntity("c1", "widget", 3, 1.5)
+    c1.getTags().add("red")
+    c1.getTags().add("blue")
+    c1.getColors().add(TestEntities.CompactEntity.Color.GREEN)
+    c1.getColors().add(TestEntities.CompactEntity.Color.RED)
+    c1.setTimestamp(100)
+    srv.save( c1 )
+    c2 = TestEntities.CompactEntity("c2", "widget", 5, 2.5)
+    c2.setTimestamp(200)
+    srv.save( c2 )
+    srv.save( TestEntities.CompactEntity("c3", "gadget", 7, 0.25) )
+
+    saved = srv.get("c1")
+    assertEquals( saved.getName(), "widget" )
+    assertEquals( saved.getCount(), 3 )
+    assertEquals( saved.getScore(), 1.5, None, 0.0001 )
+    assertTrue( saved.getTags().contains("red") )
+    assertTrue( saved.getTags().contains("blue") )
+    # enum elements are read back as the declared element type
+    assertEquals( list(saved.getColors()), [TestEntities.CompactEntity.Color.GREEN, TestEntities.CompactEntity.Color.RED] )
+    assertEquals( srv.get("c3").getCount(), 7 )
+
+    # stored with the compact marker and fixed width ints
+    table = HUtil.getTable("test_compact")
+    try:
+        row = table.get( Get(Bytes.toBytes("c1")) )
+        val = row.getValue( Bytes.toBytes("props:count") )
+        assertEquals( len(val), 6 )
+        assertEquals( val[0], 0 )
+        assertEquals( PBUtil.toValue(val), 3 )
+    finally:
+        HUtil.releaseTable(table)
+
+    q = srv.query().using( Criteria.eq( "name", java.lang.String('widget') ) )
+    assertEquals( sorted([e.getId() for e in q.execute()]), ["c1", "c2"] )
+
+    # index rows store the date in the compact format, so filters on it match
+    table = HUtil.getTable("test_compact-by_name")
+    try:
+        scanner = table.getScanner( Scan() )
+        row = scanner.next()
+        scanner.close()
+        assertEquals( row.getValue( Bytes.toBytes("props:timestamp") )[0], 0 )
+    finally:
+        HUtil.releaseTable(table)
+    q = srv.query().using( Criteria.eq( "name", java.lang.String('widget') ) ) \
+                   .where( Criteria.eq( "timestamp", java.lang.Long(200) ) )
+    assertEquals( [e.getId() for e in q.execute()], ["c2"] )
+    q = srv.query().where( Criteria.eq( "count", java.lang.Integer(5) ) )
+    assertEquals( [e.getId() for e in q.execute()], ["c2"] )
+
+    total = Aggregate.sum("count")
+    res = srv.query().aggregate( [total, Aggregate.max("score")] )
+    assertEquals( res.get(total), 15.0 )
+    assertEquals( res.get(1), 2.5 )
+
+def query_packed():
+    srv = EntityService(TestEntities.PackedEntity)
+    srv.save( TestEntities.PackedEntity("p1", "box", 3, 1.5, "fragile") )
+    srv.save( TestEntities.PackedEntity("p2", "box", 5, 2.5, None) )
+    srv.save( TestEntities.PackedEntity("p3", "crate", 7, 0.25, "heavy") )
+
+    saved = srv.get("p1")
+    assertEquals( saved.getKind(), "box" )
+    assertEquals( saved.getCount(), 3 )
+    assertEquals( saved.getScore(), 1.5, None, 0.0001 )
+    assertEquals( saved.getNote(), "fragile" )
+    assertEquals( srv.get("p2").getNote(), None )
+
+    # indexed column stays separate, the rest share one cell
+    table = HUtil.getTable("test_packed")
+    try:
+        row = table.get( Get(Bytes.toBytes("p1")) )
+        assertEquals( row.size(), 2 )
+        assertNotNull( row.getValue( Bytes.toBytes("props:kind") ) )
+        assertNotNull( row.getValue( Bytes.toBytes("props:__packed__") ) )
+    finally:
+        HUtil.releaseTable(table)
+
+    q = srv.query().using( Criteria.eq( "kind", java.lang.String('box') ) ) \
+                   .where( Criteria.eq( "note", java.lang.String('fragile') ) )
+    assertEquals( [e.getId() for e in q.execute()], ["p1"] )
+    q = srv.query().where( Criteria.ne( "count", java.lang.Integer(3) ) )
+    assertEquals( sorted([e.getId() for e in q.execute()]), ["p2", "p3"] )
+
+    total = Aggregate.sum("count")
+    res = srv.query().aggregate( [total, Aggregate.count("note")] )
+    assertEquals( res.get(total), 15.0 )
+    assertEquals( res.get(1), 2.0 )
+
+    srv.deleteProperty("p1", "note")
+    assertEquals( srv.get("p1").getNote(), None )
+    assertEquals( srv.get("p1").getCount(), 3 )
+
+def query_aliased():
+    srv = EntityService(TestEntities.AliasedEntity)
+    now = java.lang.System.currentTimeMillis()
+    a1 = TestEntities.AliasedEntity("a1", "news", now - 20)
+    a1.getLabels().add("local")
+    srv.save( a1 )
+    srv.save( TestEntities.AliasedEntity("a2", "news", now - 10) )
+    srv.save( TestEntities.AliasedEntity("a3", "sports", now) )
+
+    saved = srv.get("a1")
+    assertEquals( saved.getCategory(), "news" )
+    assertEquals( saved.getTimestamp(), now - 20 )
+    assertEquals( list(saved.getLabels()), ["local"] )
+
+    # only the aliases are stored
+    table = HUtil.getTable("test_aliased")
+    try:
+        row = table.get( Get(Bytes.toBytes("a1")) )
+        assertNotNull( row.getValue( Bytes.toBytes("props:c") ) )
+        assertNotNull( row.getValue( Bytes.toBytes("props:l_0") ) )
+        assertEquals( row.getValue( Bytes.toBytes("props:category") ), None )
+    finally:
+        HUtil.releaseTable(table)
+
+    # index columns named in annotations resolve to the aliases
+    q = srv.query().using( Criteria.eq( "category", java.lang.String('news') ) )
+    assertEquals( [e.getId() for e in q.execute()], ["a2", "a1"] )
+    q = srv.query().using( Criteria.eq( "category", java.lang.String('news') ) ) \
+                   .where( Criteria.eq( "timestamp", java.lang.Long(now - 20) ) )
+    plan = q.explain()
+    assertEquals( plan.getResidualFilters().size(), 0 )
+    assertEquals( [e.getId() for e in q.execute()], ["a1"] )
+
+    info = EntityMetadata.getInstance().getInfo(TestEntities.AliasedEntity)
+    assertEquals( info.getFieldProperty("props:category").getName(), "category" )
+    assertEquals( info.getFieldProperty("props:c").getName(), "category" )
+
+def query_planner():
+    srv = EntityService(TestEntities.IndexedEntity)
+    stats = StatsCollector(TestEntities.IndexedEntity).collect()
+    counts = dict([(s.getTableName(), (s.getRowCount(), s.getDistinctValues())) for s in stats])
+    assertEquals( counts, {"test_indexed": (4, 0), "test_indexed-by_stringcol": (4, 2), "test_indexed-by_intcol": (4, 2)} )
+
+    try:
+        # scanning the small table is cheaper than the index lookups
+        q = srv.query().using( Criteria.eq( "stringProperty", java.lang.String('duck') ) ).limit(1)
+        assertEquals( [e.getId() for e in q.execute()], ["e1"] )
+        assertEquals( q.getCursor().getPlan(), "scan:test_indexed" )
+
+        # conditions not stored in the index rows are still applied
+        q = srv.query().using( Criteria.eq( "stringProperty", java.lang.String('duck') ) ) \
+                       .using( Criteria.eq( "intKey", java.lang.Integer(2) ) )
+        assertEquals( sorted([e.getId() for e in q.execute()]), ["e2", "e3"] )
+        assertEquals( q.count(), 2 )
+
+        # index matches are estimated from the index statistics
+        q = srv.query().using( Criteria.eq( "intKey", java.lang.Integer(2) ) )
+        matches = q.explain().getEstimatedMatches()
+        assertTrue( matches.get("index:test_indexed-by_intcol") <= 4 )
+        assertEquals( sorted([e.getId() for e in q.execute()]), ["e2", "e3", "e4"] )
+    finally:
+        for s in stats:
+            StatsStore.getInstance().delete(s.getTableName())
+
+def query_explain():
+    srv = EntityService(TestEntities.IndexedEntity)
+    q = srv.query().using( Criteria.eq( "stringProperty", java.lang.String('duck') ) ) \
+                   .using( Criteria.eq( "intKey", java.lang.Integer(2) ) )
+    plan = q.explain()
+    assertEquals( plan.getStrategy(), "ScanByIndex" )
+    assertEquals( plan.getPlanId(), "index:test_indexed-by_stringcol" )
+    assertEquals( plan.getIndexTable(), "test_indexed-by_stringcol" )
+    assertEquals( plan.getRanges().size(), 1 )
+    assertEquals( plan.getPushedFilters().size(), 1 )
+    # intKey isn't stored in the index rows
+    assertEquals( plan.getResidualFilters().size(), 1 )
+    # so it's checked against the entity rows read
+    assertEquals( sorted([e.getId() for e in q.execute()]), ["e2", "e3"] )
+    assertEquals( q.count(), 2 )
+
+    q = srv.query().using( Criteria.eq( "stringProperty", java.lang.String('duck') ) )
+    matches = q.executeWithStats()
+    assertEquals( len(matches), 3 )
+    stats = q.getStats()
+    assertEquals( stats.getPlan().getPlanId(), "index:test_indexed-by_stringcol" )
+    assertEquals( stats.getIndexRows(), 3 )
+    assertEquals( stats.getBaseGets(), 3 )
+    assertEquals( stats.getBaseRows(), 0 )
+    assertEquals( stats.getRowsFiltered(), 0 )
+    assertTrue( stats.getBytesReceived() > 0 )
+    assertTrue( stats.getTotalTime() >= stats.getGetTime() )
+
+    q = srv.query().where( Criteria.eq( "stringProperty", java.lang.String('goose') ) )
+    matches = q.executeWithStats()
+    assertEquals( len(matches), 1 )
+    stats = q.getStats()
+    assertEquals( stats.getPlan().getPlanId(), "scan:test_indexed" )
+    assertEquals( stats.getPlan().getPushedFilters().size(), 1 )
+    assertEquals( stats.getBaseRows(), 1 )
+    assertEquals( stats.getBaseGets(), 0 )
+
+def collect_stats():
+    srv = EntityService(TestEntities.SaltedEntity)
+    collector = StatsCollector(TestEntities.SaltedEntity)
+    stats = dict([(s.getTableName(), s) for s in collector.collect()])
+    try:
+        idx = stats["test_salted-by_kind"]
+        assertEquals( idx.getRowCount(), 9 )
+        assertEquals( idx.getDistinctValues(), 2 )
+        assertEquals( idx.estimateEqual(PBUtil.toBytes(java.lang.String('event'))), 8.0 )
+        assertEquals( [PBUtil.toValue(b) for b in idx.getHistogram()], ["event", "other"] )
+
+        # stored and read back compactly
+        StatsStore.getInstance().clearCache()
+        stored = StatsStore.getInstance().get("test_salted-by_kind")
+        assertEquals( stored.getRowCount(), 9 )
+        assertEquals( stored.getHeavyHitters().size(), 2 )
+
+        # refresh only merges in the new index rows
+        srv.save( TestEntities.SaltedEntity("s9", "other", java.lang.System.currentTimeMillis()) )
+        stats = dict([(s.getTableName(), s) for s in collector.refresh()])
+        idx = stats["test_salted-by_kind"]
+        assertEquals( idx.getRowCount(), 10 )
+        assertEquals( idx.getDistinctValues(), 2 )
+        assertEquals( idx.estimateEqual(PBUtil.toBytes(java.lang.String('other'))), 2.0 )
+        assertEquals( stats["test_salted"].getRowCount(), 10 )
+
+        # re-written rows don't add to the row counts
+        s9 = srv.get("s9")
+        srv.insert( s9 )
+        stats = dict([(s.getTableName(), s) for s in collector.refresh()])
+        assertEquals( stats["test_salted-by_kind"].getRowCount(), 10 )
+        assertEquals( stats["test_salted-by_kind"].getDistinctValues(), 2 )
+        assertEquals( stats["test_salted"].getRowCount(), 10 )
+    finally:
+        for name in stats.keys():
+            StatsStore.getInstance().delete(name)
+
+
 def run_test():
     query_by_string()
     query_by_int()
+    query_with_cursor()
+    query_count()
+    query_aggregate()
+    query_multi_value()
+    query_composite()
+    query_salted()
+    query_in()
+    query_by_key()
+    query_compact()
+    query_packed()
+    query_aliased()
+    query_planner()
+    query_explain()
+    collect_stats()
+    # modifies test data, run last
+    index_cleanup()
+    read_repair()
+    rebuild_index()
+    scrub_index()
+    append_multi_value()
+    update_properties()
+    insert_new()
 
 
 if __name__ == '__main__':